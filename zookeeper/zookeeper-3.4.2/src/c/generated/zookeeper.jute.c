@@ -274,6 +274,37 @@ void deallocate_SetWatches(struct SetWatches*v){
     deallocate_String_vector(&v->existWatches);
     deallocate_String_vector(&v->childWatches);
 }
+int serialize_SetWatches2(struct oarchive *out, const char *tag, struct SetWatches2 *v){
+    int rc;
+    rc = out->start_record(out, tag);
+    rc = rc ? rc : out->serialize_Long(out, "relativeZxid", &v->relativeZxid);
+    rc = rc ? rc : serialize_String_vector(out, "dataWatches", &v->dataWatches);
+    rc = rc ? rc : serialize_String_vector(out, "existWatches", &v->existWatches);
+    rc = rc ? rc : serialize_String_vector(out, "childWatches", &v->childWatches);
+    rc = rc ? rc : serialize_String_vector(out, "persistentWatches", &v->persistentWatches);
+    rc = rc ? rc : serialize_String_vector(out, "persistentRecursiveWatches", &v->persistentRecursiveWatches);
+    rc = rc ? rc : out->end_record(out, tag);
+    return rc;
+}
+int deserialize_SetWatches2(struct iarchive *in, const char *tag, struct SetWatches2*v){
+    int rc;
+    rc = in->start_record(in, tag);
+    rc = rc ? rc : in->deserialize_Long(in, "relativeZxid", &v->relativeZxid);
+    rc = rc ? rc : deserialize_String_vector(in, "dataWatches", &v->dataWatches);
+    rc = rc ? rc : deserialize_String_vector(in, "existWatches", &v->existWatches);
+    rc = rc ? rc : deserialize_String_vector(in, "childWatches", &v->childWatches);
+    rc = rc ? rc : deserialize_String_vector(in, "persistentWatches", &v->persistentWatches);
+    rc = rc ? rc : deserialize_String_vector(in, "persistentRecursiveWatches", &v->persistentRecursiveWatches);
+    rc = rc ? rc : in->end_record(in, tag);
+    return rc;
+}
+void deallocate_SetWatches2(struct SetWatches2*v){
+    deallocate_String_vector(&v->dataWatches);
+    deallocate_String_vector(&v->existWatches);
+    deallocate_String_vector(&v->childWatches);
+    deallocate_String_vector(&v->persistentWatches);
+    deallocate_String_vector(&v->persistentRecursiveWatches);
+}
 int serialize_RequestHeader(struct oarchive *out, const char *tag, struct RequestHeader *v){
     int rc;
     rc = out->start_record(out, tag);
@@ -590,6 +621,49 @@ int deserialize_GetChildren2Request(struct iarchive *in, const char *tag, struct
 void deallocate_GetChildren2Request(struct GetChildren2Request*v){
     deallocate_String(&v->path);
 }
+int serialize_AddWatchRequest(struct oarchive *out, const char *tag, struct AddWatchRequest *v){
+    int rc;
+    rc = out->start_record(out, tag);
+    rc = rc ? rc : out->serialize_String(out, "path", &v->path);
+    rc = rc ? rc : out->serialize_Int(out, "mode", &v->mode);
+    rc = rc ? rc : out->end_record(out, tag);
+    return rc;
+}
+int deserialize_AddWatchRequest(struct iarchive *in, const char *tag, struct AddWatchRequest*v){
+    int rc;
+    rc = in->start_record(in, tag);
+    rc = rc ? rc : in->deserialize_String(in, "path", &v->path);
+    rc = rc ? rc : in->deserialize_Int(in, "mode", &v->mode);
+    rc = rc ? rc : in->end_record(in, tag);
+    return rc;
+}
+void deallocate_AddWatchRequest(struct AddWatchRequest*v){
+    deallocate_String(&v->path);
+}
+int serialize_GetChildrenPagedRequest(struct oarchive *out, const char *tag, struct GetChildrenPagedRequest *v){
+    int rc;
+    rc = out->start_record(out, tag);
+    rc = rc ? rc : out->serialize_String(out, "path", &v->path);
+    rc = rc ? rc : out->serialize_String(out, "startAfter", &v->startAfter);
+    rc = rc ? rc : out->serialize_Int(out, "maxChildren", &v->maxChildren);
+    rc = rc ? rc : out->serialize_Bool(out, "watch", &v->watch);
+    rc = rc ? rc : out->end_record(out, tag);
+    return rc;
+}
+int deserialize_GetChildrenPagedRequest(struct iarchive *in, const char *tag, struct GetChildrenPagedRequest*v){
+    int rc;
+    rc = in->start_record(in, tag);
+    rc = rc ? rc : in->deserialize_String(in, "path", &v->path);
+    rc = rc ? rc : in->deserialize_String(in, "startAfter", &v->startAfter);
+    rc = rc ? rc : in->deserialize_Int(in, "maxChildren", &v->maxChildren);
+    rc = rc ? rc : in->deserialize_Bool(in, "watch", &v->watch);
+    rc = rc ? rc : in->end_record(in, tag);
+    return rc;
+}
+void deallocate_GetChildrenPagedRequest(struct GetChildrenPagedRequest*v){
+    deallocate_String(&v->path);
+    deallocate_String(&v->startAfter);
+}
 int serialize_CheckVersionRequest(struct oarchive *out, const char *tag, struct CheckVersionRequest *v){
     int rc;
     rc = out->start_record(out, tag);
@@ -898,6 +972,26 @@ void deallocate_GetChildren2Response(struct GetChildren2Response*v){
     deallocate_String_vector(&v->children);
     deallocate_Stat(&v->stat);
 }
+int serialize_GetChildrenPagedResponse(struct oarchive *out, const char *tag, struct GetChildrenPagedResponse *v){
+    int rc;
+    rc = out->start_record(out, tag);
+    rc = rc ? rc : serialize_String_vector(out, "children", &v->children);
+    rc = rc ? rc : serialize_Stat(out, "stat", &v->stat);
+    rc = rc ? rc : out->end_record(out, tag);
+    return rc;
+}
+int deserialize_GetChildrenPagedResponse(struct iarchive *in, const char *tag, struct GetChildrenPagedResponse*v){
+    int rc;
+    rc = in->start_record(in, tag);
+    rc = rc ? rc : deserialize_String_vector(in, "children", &v->children);
+    rc = rc ? rc : deserialize_Stat(in, "stat", &v->stat);
+    rc = rc ? rc : in->end_record(in, tag);
+    return rc;
+}
+void deallocate_GetChildrenPagedResponse(struct GetChildrenPagedResponse*v){
+    deallocate_String_vector(&v->children);
+    deallocate_Stat(&v->stat);
+}
 int serialize_GetACLResponse(struct oarchive *out, const char *tag, struct GetACLResponse *v){
     int rc;
     rc = out->start_record(out, tag);
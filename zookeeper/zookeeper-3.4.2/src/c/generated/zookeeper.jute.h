@@ -118,6 +118,17 @@ struct SetWatches {
 int serialize_SetWatches(struct oarchive *out, const char *tag, struct SetWatches *v);
 int deserialize_SetWatches(struct iarchive *in, const char *tag, struct SetWatches*v);
 void deallocate_SetWatches(struct SetWatches*);
+struct SetWatches2 {
+    int64_t relativeZxid;
+    struct String_vector dataWatches;
+    struct String_vector existWatches;
+    struct String_vector childWatches;
+    struct String_vector persistentWatches;
+    struct String_vector persistentRecursiveWatches;
+};
+int serialize_SetWatches2(struct oarchive *out, const char *tag, struct SetWatches2 *v);
+int deserialize_SetWatches2(struct iarchive *in, const char *tag, struct SetWatches2*v);
+void deallocate_SetWatches2(struct SetWatches2*);
 struct RequestHeader {
     int32_t xid;
     int32_t type;
@@ -227,6 +238,22 @@ struct GetChildren2Request {
 int serialize_GetChildren2Request(struct oarchive *out, const char *tag, struct GetChildren2Request *v);
 int deserialize_GetChildren2Request(struct iarchive *in, const char *tag, struct GetChildren2Request*v);
 void deallocate_GetChildren2Request(struct GetChildren2Request*);
+struct AddWatchRequest {
+    char * path;
+    int32_t mode;
+};
+int serialize_AddWatchRequest(struct oarchive *out, const char *tag, struct AddWatchRequest *v);
+int deserialize_AddWatchRequest(struct iarchive *in, const char *tag, struct AddWatchRequest*v);
+void deallocate_AddWatchRequest(struct AddWatchRequest*);
+struct GetChildrenPagedRequest {
+    char * path;
+    char * startAfter;
+    int32_t maxChildren;
+    int32_t watch;
+};
+int serialize_GetChildrenPagedRequest(struct oarchive *out, const char *tag, struct GetChildrenPagedRequest *v);
+int deserialize_GetChildrenPagedRequest(struct iarchive *in, const char *tag, struct GetChildrenPagedRequest*v);
+void deallocate_GetChildrenPagedRequest(struct GetChildrenPagedRequest*);
 struct CheckVersionRequest {
     char * path;
     int32_t version;
@@ -338,6 +365,13 @@ struct GetChildren2Response {
 int serialize_GetChildren2Response(struct oarchive *out, const char *tag, struct GetChildren2Response *v);
 int deserialize_GetChildren2Response(struct iarchive *in, const char *tag, struct GetChildren2Response*v);
 void deallocate_GetChildren2Response(struct GetChildren2Response*);
+struct GetChildrenPagedResponse {
+    struct String_vector children;
+    struct Stat stat;
+};
+int serialize_GetChildrenPagedResponse(struct oarchive *out, const char *tag, struct GetChildrenPagedResponse *v);
+int deserialize_GetChildrenPagedResponse(struct iarchive *in, const char *tag, struct GetChildrenPagedResponse*v);
+void deallocate_GetChildrenPagedResponse(struct GetChildrenPagedResponse*);
 struct GetACLResponse {
     struct ACL_vector acl;
     struct Stat stat;
@@ -0,0 +1,121 @@
+// File generated by hadoop record compiler. Do not edit.
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.zookeeper.proto;
+
+import org.apache.jute.*;
+public class AddWatchRequest implements Record {
+  private String path;
+  private int mode;
+  public AddWatchRequest() {
+  }
+  public AddWatchRequest(
+        String path,
+        int mode) {
+    this.path=path;
+    this.mode=mode;
+  }
+  public String getPath() {
+    return path;
+  }
+  public void setPath(String m_) {
+    path=m_;
+  }
+  public int getMode() {
+    return mode;
+  }
+  public void setMode(int m_) {
+    mode=m_;
+  }
+  public void serialize(OutputArchive a_, String tag) throws java.io.IOException {
+    a_.startRecord(this,tag);
+    a_.writeString(path,"path");
+    a_.writeInt(mode,"mode");
+    a_.endRecord(this,tag);
+  }
+  public void deserialize(InputArchive a_, String tag) throws java.io.IOException {
+    a_.startRecord(tag);
+    path=a_.readString("path");
+    mode=a_.readInt("mode");
+    a_.endRecord(tag);
+}
+  public String toString() {
+    try {
+      java.io.ByteArrayOutputStream s =
+        new java.io.ByteArrayOutputStream();
+      CsvOutputArchive a_ = 
+        new CsvOutputArchive(s);
+      a_.startRecord(this,"");
+    a_.writeString(path,"path");
+    a_.writeInt(mode,"mode");
+      a_.endRecord(this,"");
+      return new String(s.toByteArray(), "UTF-8");
+    } catch (Throwable ex) {
+      ex.printStackTrace();
+    }
+    return "ERROR";
+  }
+  public void write(java.io.DataOutput out) throws java.io.IOException {
+    BinaryOutputArchive archive = new BinaryOutputArchive(out);
+    serialize(archive, "");
+  }
+  public void readFields(java.io.DataInput in) throws java.io.IOException {
+    BinaryInputArchive archive = new BinaryInputArchive(in);
+    deserialize(archive, "");
+  }
+  public int compareTo (Object peer_) throws ClassCastException {
+    if (!(peer_ instanceof AddWatchRequest)) {
+      throw new ClassCastException("Comparing different types of records.");
+    }
+    AddWatchRequest peer = (AddWatchRequest) peer_;
+    int ret = 0;
+    ret = path.compareTo(peer.path);
+    if (ret != 0) return ret;
+    ret = (mode == peer.mode)? 0 :((mode<peer.mode)?-1:1);
+    if (ret != 0) return ret;
+     return ret;
+  }
+  public boolean equals(Object peer_) {
+    if (!(peer_ instanceof AddWatchRequest)) {
+      return false;
+    }
+    if (peer_ == this) {
+      return true;
+    }
+    AddWatchRequest peer = (AddWatchRequest) peer_;
+    boolean ret = false;
+    ret = path.equals(peer.path);
+    if (!ret) return ret;
+    ret = (mode==peer.mode);
+    if (!ret) return ret;
+     return ret;
+  }
+  public int hashCode() {
+    int result = 17;
+    int ret;
+    ret = path.hashCode();
+    result = 37*result + ret;
+    ret = (int)mode;
+    result = 37*result + ret;
+    return result;
+  }
+  public static String signature() {
+    return "LAddWatchRequest(si)";
+  }
+}
@@ -103,7 +103,23 @@ public class BinaryInputArchive implements InputArchive {
         in.readFully(arr);
         return arr;
     }
-    
+
+    /**
+     * read a buffer written by writeBuffer that may be longer than
+     * jute.maxbuffer, such as a chunk of a snapshot.
+     * @param maxLength the longest buffer accepted
+     */
+    public byte[] readBuffer(String tag, int maxLength) throws IOException {
+        int len = readInt(tag);
+        if (len == -1) return null;
+        if (len < 0 || len > maxLength) {
+            throw new IOException("Unreasonable length = " + len);
+        }
+        byte[] arr = new byte[len];
+        in.readFully(arr);
+        return arr;
+    }
+
     public void readRecord(Record r, String tag) throws IOException {
         r.deserialize(this, tag);
     }
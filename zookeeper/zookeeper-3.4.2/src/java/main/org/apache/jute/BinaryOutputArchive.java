@@ -32,6 +32,8 @@ import java.util.TreeMap;
 public class BinaryOutputArchive implements OutputArchive {
     private ByteBuffer bb = ByteBuffer.allocate(1024);
 
+    private byte[] scratch;
+
     private DataOutput out;
     
     public static BinaryOutputArchive getArchive(OutputStream strm) {
@@ -118,7 +120,35 @@ public class BinaryOutputArchive implements OutputArchive {
     	out.writeInt(barr.length);
         out.write(barr);
     }
-    
+
+    /**
+     * write the remaining bytes of a buffer in the same format as
+     * {@link #writeBuffer(byte[], String)}, without first copying them into
+     * a byte array of their own. The position of the buffer is not changed.
+     */
+    public void writeBuffer(ByteBuffer buf, String tag)
+    throws IOException {
+        if (buf == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteBuffer src = buf.duplicate();
+        out.writeInt(src.remaining());
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(),
+                    src.remaining());
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[8192];
+        }
+        while (src.hasRemaining()) {
+            int n = Math.min(scratch.length, src.remaining());
+            src.get(scratch, 0, n);
+            out.write(scratch, 0, n);
+        }
+    }
+
     public void writeRecord(Record r, String tag) throws IOException {
         r.serialize(this, tag);
     }
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import org.apache.zookeeper.ZooDefs.AddWatchModes;
+
+/**
+ * The kinds of watch that can be added with
+ * {@link ZooKeeper#addWatch(String, Watcher, AddWatchMode)}. Unlike the
+ * watches left by getData, exists and getChildren, these watches are not
+ * removed when they fire; they stay until the session ends.
+ */
+public enum AddWatchMode {
+    /**
+     * The watch fires for every change to the node at the path: it being
+     * created, deleted or its data changing, and its children changing.
+     */
+    PERSISTENT (AddWatchModes.persistent),
+    /**
+     * The watch fires for the node at the path and every node below it being
+     * created, deleted or their data changing. Changes to the children of a
+     * node are seen as the creation or deletion of the child, so no
+     * NodeChildrenChanged events are delivered.
+     */
+    PERSISTENT_RECURSIVE (AddWatchModes.persistentRecursive);
+
+    private final int mode;
+
+    AddWatchMode(int mode) {
+        this.mode = mode;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+}
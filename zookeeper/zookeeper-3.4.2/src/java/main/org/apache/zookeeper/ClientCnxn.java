@@ -62,6 +62,7 @@ import org.apache.zookeeper.proto.CreateResponse;
 import org.apache.zookeeper.proto.ExistsResponse;
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPagedResponse;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.ReplyHeader;
@@ -70,6 +71,7 @@ import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetSASLResponse;
 import org.apache.zookeeper.proto.SetWatches;
+import org.apache.zookeeper.proto.SetWatches2;
 import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.ZooTrace;
@@ -602,6 +604,15 @@ public class ClientCnxn {
                       } else {
                           cb.processResult(rc, clientPath, p.ctx, null, null);
                       }
+                  } else if (p.response instanceof GetChildrenPagedResponse) {
+                      Children2Callback cb = (Children2Callback) p.cb;
+                      GetChildrenPagedResponse rsp = (GetChildrenPagedResponse) p.response;
+                      if (rc == 0) {
+                          cb.processResult(rc, clientPath, p.ctx, rsp
+                                  .getChildren(), rsp.getStat());
+                      } else {
+                          cb.processResult(rc, clientPath, p.ctx, null, null);
+                      }
                   } else if (p.response instanceof CreateResponse) {
                       StringCallback cb = (StringCallback) p.cb;
                       CreateResponse rsp = (CreateResponse) p.response;
@@ -859,7 +870,26 @@ public class ClientCnxn {
                     List<String> dataWatches = zooKeeper.getDataWatches();
                     List<String> existWatches = zooKeeper.getExistWatches();
                     List<String> childWatches = zooKeeper.getChildWatches();
-                    if (!dataWatches.isEmpty()
+                    List<String> persistentWatches =
+                        zooKeeper.getPersistentWatches();
+                    List<String> persistentRecursiveWatches =
+                        zooKeeper.getPersistentRecursiveWatches();
+                    if (!persistentWatches.isEmpty()
+                            || !persistentRecursiveWatches.isEmpty()) {
+                        // only servers that know about persistent watches
+                        // are sent the new request
+                        SetWatches2 sw = new SetWatches2(lastZxid,
+                                prependChroot(dataWatches),
+                                prependChroot(existWatches),
+                                prependChroot(childWatches),
+                                prependChroot(persistentWatches),
+                                prependChroot(persistentRecursiveWatches));
+                        RequestHeader h = new RequestHeader();
+                        h.setType(ZooDefs.OpCode.setWatches2);
+                        h.setXid(-8);
+                        Packet packet = new Packet(h, new ReplyHeader(), sw, null, null);
+                        outgoingQueue.addFirst(packet);
+                    } else if (!dataWatches.isEmpty()
                                 || !existWatches.isEmpty() || !childWatches.isEmpty()) {
                         SetWatches sw = new SetWatches(lastZxid,
                                 prependChroot(dataWatches),
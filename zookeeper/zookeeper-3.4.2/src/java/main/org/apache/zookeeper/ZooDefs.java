@@ -54,12 +54,18 @@ public class ZooDefs {
 
         public final int multi = 14;
 
+        public final int getChildrenPaged = 22;
+
+        public final int addWatch = 23;
+
         public final int auth = 100;
 
         public final int setWatches = 101;
 
         public final int sasl = 102;
 
+        public final int setWatches2 = 103;
+
         public final int createSession = -10;
 
         public final int closeSession = -11;
@@ -67,6 +73,12 @@ public class ZooDefs {
         public final int error = -1;
     }
 
+    public interface AddWatchModes {
+        public final int persistent = 0;
+
+        public final int persistentRecursive = 1;
+    }
+
     public interface Perms {
         int READ = 1 << 0;
 
@@ -114,6 +114,18 @@ public class ZooKeeper {
             return rc;
         }
     }
+    List<String> getPersistentWatches() {
+        synchronized(watchManager.persistentWatches) {
+            List<String> rc = new ArrayList<String>(watchManager.persistentWatches.keySet());
+            return rc;
+        }
+    }
+    List<String> getPersistentRecursiveWatches() {
+        synchronized(watchManager.persistentRecursiveWatches) {
+            List<String> rc = new ArrayList<String>(watchManager.persistentRecursiveWatches.keySet());
+            return rc;
+        }
+    }
 
     /**
      * Manage watchers & handle events generated by the ClientCnxn object.
@@ -129,6 +141,10 @@ public class ZooKeeper {
             new HashMap<String, Set<Watcher>>();
         private final Map<String, Set<Watcher>> childWatches =
             new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> persistentWatches =
+            new HashMap<String, Set<Watcher>>();
+        private final Map<String, Set<Watcher>> persistentRecursiveWatches =
+            new HashMap<String, Set<Watcher>>();
 
         private volatile Watcher defaultWatcher;
 
@@ -182,6 +198,24 @@ public class ZooKeeper {
                     }
                 }
 
+                synchronized(persistentWatches) {
+                    for(Set<Watcher> ws: persistentWatches.values()) {
+                        result.addAll(ws);
+                    }
+                    if (clear) {
+                        persistentWatches.clear();
+                    }
+                }
+
+                synchronized(persistentRecursiveWatches) {
+                    for(Set<Watcher> ws: persistentRecursiveWatches.values()) {
+                        result.addAll(ws);
+                    }
+                    if (clear) {
+                        persistentRecursiveWatches.clear();
+                    }
+                }
+
                 return result;
             case NodeDataChanged:
             case NodeCreated:
@@ -220,8 +254,34 @@ public class ZooKeeper {
                 throw new RuntimeException(msg);
             }
 
+            // persistent watches are not removed when they fire
+            synchronized (persistentWatches) {
+                addTo(persistentWatches.get(clientPath), result);
+            }
+            if (type != Watcher.Event.EventType.NodeChildrenChanged) {
+                synchronized (persistentRecursiveWatches) {
+                    if (!persistentRecursiveWatches.isEmpty()) {
+                        for (String p = clientPath; p != null; p = parentOf(p)) {
+                            addTo(persistentRecursiveWatches.get(p), result);
+                        }
+                    }
+                }
+            }
+
             return result;
         }
+
+        /**
+         * @return the parent of path, "/" for the children of the root and
+         * null for the root itself
+         */
+        private static String parentOf(String path) {
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash <= 0) {
+                return path.length() > 1 ? "/" : null;
+            }
+            return path.substring(0, lastSlash);
+        }
     }
 
     /**
@@ -308,6 +368,23 @@ public class ZooKeeper {
         }
     }
 
+    class AddWatchRegistration extends WatchRegistration {
+        private final AddWatchMode mode;
+
+        public AddWatchRegistration(Watcher watcher, String clientPath,
+                AddWatchMode mode) {
+            super(watcher, clientPath);
+            this.mode = mode;
+        }
+
+        @Override
+        protected Map<String, Set<Watcher>> getWatches(int rc) {
+            return mode == AddWatchMode.PERSISTENT_RECURSIVE
+                ? watchManager.persistentRecursiveWatches
+                : watchManager.persistentWatches;
+        }
+    }
+
     public enum States {
         CONNECTING, ASSOCIATING, CONNECTED, CONNECTEDREADONLY,
         CLOSED, AUTH_FAILED, NOT_CONNECTED;
@@ -1628,6 +1705,238 @@ public class ZooKeeper {
         getChildren(path, watch ? watchManager.defaultWatcher : null, cb, ctx);
     }
 
+    /**
+     * Add a watch to the given path that is not removed when it fires. The
+     * watch stays until the session ends, and is set again on the new server
+     * when the client reconnects. Events that happen while the client is
+     * disconnected are not replayed when it reconnects.
+     * <p>
+     * With {@link AddWatchMode#PERSISTENT} the watcher sees the events a
+     * data watch and a child watch on the path would see. With
+     * {@link AddWatchMode#PERSISTENT_RECURSIVE} it sees the NodeCreated,
+     * NodeDeleted and NodeDataChanged events of the path and of every path
+     * below it, so one registration covers a whole subtree.
+     * <p>
+     * The node need not exist.
+     *
+     * @since 3.4.2
+     *
+     * @param basePath the path to watch
+     * @param watcher explicit watcher
+     * @param mode the kind of watch
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath,
+                mode.getMode());
+        ReplyHeader r = cnxn.submitRequest(h, request, null,
+                new AddWatchRegistration(watcher, clientPath, mode));
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+    }
+
+    /**
+     * Add a watch to the given path that is not removed when it fires, using
+     * the default watcher.
+     *
+     * @since 3.4.2
+     *
+     * @see #addWatch(String, Watcher, AddWatchMode)
+     */
+    public void addWatch(String basePath, AddWatchMode mode)
+        throws KeeperException, InterruptedException
+    {
+        addWatch(basePath, watchManager.defaultWatcher, mode);
+    }
+
+    /**
+     * The asynchronous version of addWatch.
+     *
+     * @since 3.4.2
+     *
+     * @see #addWatch(String, Watcher, AddWatchMode)
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode,
+            VoidCallback cb, Object ctx)
+    {
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath,
+                mode.getMode());
+        cnxn.queuePacket(h, new ReplyHeader(), request, null, cb, clientPath,
+                serverPath, ctx, new AddWatchRegistration(watcher, clientPath,
+                        mode));
+    }
+
+    /**
+     * The asynchronous version of addWatch, using the default watcher.
+     *
+     * @since 3.4.2
+     *
+     * @see #addWatch(String, AddWatchMode)
+     */
+    public void addWatch(String basePath, AddWatchMode mode, VoidCallback cb,
+            Object ctx)
+    {
+        addWatch(basePath, watchManager.defaultWatcher, mode, cb, ctx);
+    }
+
+    /**
+     * Return a page of the children of the node of the given path, along with
+     * the stat of the node.
+     * <p>
+     * Unlike {@link #getChildren(String, Watcher, Stat)} the children are
+     * returned in sorted order, the natural order of the String names. The
+     * page holds at most maxChildren names, starting with the first name
+     * that sorts after startAfter. To list all the children of a node, start
+     * with a null startAfter and pass the last name of each page as the
+     * startAfter of the next one, until a page holds fewer than maxChildren
+     * names. Children created or deleted between pages are seen or missed
+     * depending on where they sort; no child is listed twice.
+     * <p>
+     * If the watcher is non-null and the call is successful (no exception is
+     * thrown), a watch will be left on the node with the given path, as for
+     * getChildren.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.4.2
+     *
+     * @param path
+     * @param startAfter the page starts after this name, null for the first
+     *                page
+     * @param maxChildren the most children to return, must be positive
+     * @param watcher explicit watcher
+     * @param stat stat of the znode designated by path
+     * @return a sorted page of the children of the node with the given path
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path or maxChildren is
+     *                specified
+     */
+    public List<String> getChildrenPage(final String path,
+            String startAfter, int maxChildren, Watcher watcher, Stat stat)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        validateMaxChildren(maxChildren);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPaged);
+        GetChildrenPagedRequest request = new GetChildrenPagedRequest(
+                serverPath, startAfter, maxChildren, watcher != null);
+        GetChildrenPagedResponse response = new GetChildrenPagedResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, wcb);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+        if (stat != null) {
+            DataTree.copyStat(response.getStat(), stat);
+        }
+        return response.getChildren();
+    }
+
+    /**
+     * Return a page of the children of the node of the given path, along with
+     * the stat of the node.
+     * <p>
+     * If the watch is true and the call is successful (no exception is thrown),
+     * a watch will be left on the node with the given path, as for
+     * getChildren.
+     *
+     * @since 3.4.2
+     *
+     * @see #getChildrenPage(String, String, int, Watcher, Stat)
+     */
+    public List<String> getChildrenPage(String path, String startAfter,
+            int maxChildren, boolean watch, Stat stat)
+            throws KeeperException, InterruptedException {
+        return getChildrenPage(path, startAfter, maxChildren,
+                watch ? watchManager.defaultWatcher : null, stat);
+    }
+
+    /**
+     * The asynchronous version of getChildrenPage.
+     *
+     * @since 3.4.2
+     *
+     * @see #getChildrenPage(String, String, int, Watcher, Stat)
+     */
+    public void getChildrenPage(final String path, String startAfter,
+            int maxChildren, Watcher watcher, Children2Callback cb,
+            Object ctx)
+    {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        validateMaxChildren(maxChildren);
+
+        // the watch contains the un-chroot path
+        WatchRegistration wcb = null;
+        if (watcher != null) {
+            wcb = new ChildWatchRegistration(watcher, clientPath);
+        }
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPaged);
+        GetChildrenPagedRequest request = new GetChildrenPagedRequest(
+                serverPath, startAfter, maxChildren, watcher != null);
+        GetChildrenPagedResponse response = new GetChildrenPagedResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb,
+                clientPath, serverPath, ctx, wcb);
+    }
+
+    /**
+     * The asynchronous version of getChildrenPage.
+     *
+     * @since 3.4.2
+     *
+     * @see #getChildrenPage(String, String, int, boolean, Stat)
+     */
+    public void getChildrenPage(String path, String startAfter,
+            int maxChildren, boolean watch, Children2Callback cb, Object ctx)
+    {
+        getChildrenPage(path, startAfter, maxChildren,
+                watch ? watchManager.defaultWatcher : null, cb, ctx);
+    }
+
+    private static void validateMaxChildren(int maxChildren) {
+        if (maxChildren <= 0) {
+            throw new IllegalArgumentException(
+                    "maxChildren must be positive: " + maxChildren);
+        }
+    }
+
     /**
      * Asynchronous sync. Flushes channel between process and leader.
      * @param path
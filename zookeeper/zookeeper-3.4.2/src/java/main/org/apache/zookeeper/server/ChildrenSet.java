@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The children of a DataNode, kept as a sorted array of names.
+ * <p>
+ * This costs one reference per child instead of a hash entry per child, and
+ * lookups are a binary search. The live part of the array may start at an
+ * offset, so both appending past the last name (sequential nodes) and
+ * removing the first name (queue consumers) are cheap; inserts and removals
+ * elsewhere shift the names on the shorter side. Like the HashSet it replaces it is
+ * not thread safe, callers synchronize on the owning DataNode.
+ */
+final class ChildrenSet extends AbstractSet<String> {
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] names;
+
+    /** index of the first name in names */
+    private int start;
+
+    private int size;
+
+    ChildrenSet() {
+        this(MIN_CAPACITY);
+    }
+
+    ChildrenSet(int capacity) {
+        names = new String[Math.max(capacity, MIN_CAPACITY)];
+    }
+
+    ChildrenSet(Collection<String> c) {
+        this(c.size());
+        String[] sorted = c.toArray(new String[c.size()]);
+        Arrays.sort(sorted);
+        for (String name : sorted) {
+            // c is a set, so there are no duplicates to skip
+            names[size++] = name;
+        }
+    }
+
+    /**
+     * @return a copy of this set that does not change when this set does
+     */
+    ChildrenSet copy() {
+        ChildrenSet c = new ChildrenSet(size);
+        System.arraycopy(names, start, c.names, 0, size);
+        c.size = size;
+        return c;
+    }
+
+    /**
+     * @return the position of name relative to start if present, otherwise
+     * (-(insertion point) - 1)
+     */
+    private int search(String name) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = names[start + mid].compareTo(name);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && search((String) o) >= 0;
+    }
+
+    @Override
+    public boolean add(String name) {
+        int i = search(name);
+        if (i >= 0) {
+            return false;
+        }
+        i = -(i + 1);
+        if (start > 0 && i < size / 2 + 1) {
+            // cheaper to move the names before it one slot down
+            System.arraycopy(names, start, names, start - 1, i);
+            start--;
+            names[start + i] = name;
+            size++;
+            return true;
+        }
+        if (start + size == names.length) {
+            makeRoom();
+        }
+        int pos = start + i;
+        System.arraycopy(names, pos, names, pos + 1, size - i);
+        names[pos] = name;
+        size++;
+        return true;
+    }
+
+    /**
+     * Makes room for one more name at the end, by moving the names to the
+     * front of the array if that frees enough space, growing it otherwise.
+     */
+    private void makeRoom() {
+        if (start > 0 && size < names.length - (names.length >> 2)) {
+            System.arraycopy(names, start, names, 0, size);
+            Arrays.fill(names, size, start + size, null);
+        } else {
+            String[] grown = new String[names.length * 2];
+            System.arraycopy(names, start, grown, 0, size);
+            names = grown;
+        }
+        start = 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int i = search((String) o);
+        if (i < 0) {
+            return false;
+        }
+        if (i < size / 2) {
+            // cheaper to move the names before it one slot up
+            System.arraycopy(names, start, names, start + 1, i);
+            names[start++] = null;
+        } else {
+            int pos = start + i;
+            System.arraycopy(names, pos + 1, names, pos, size - i - 1);
+            names[start + size - 1] = null;
+        }
+        size--;
+        if (size == 0) {
+            start = 0;
+        } else if (names.length > MIN_CAPACITY * 4 && size < names.length >> 2) {
+            // don't hold on to the array of a big directory that was drained
+            String[] shrunk = new String[Math.max(size * 2, MIN_CAPACITY)];
+            System.arraycopy(names, start, shrunk, 0, size);
+            names = shrunk;
+            start = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        names = new String[MIN_CAPACITY];
+        start = 0;
+        size = 0;
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] a = new Object[size];
+        System.arraycopy(names, start, a, 0, size);
+        return a;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        if (a.length < size) {
+            a = (T[]) java.lang.reflect.Array.newInstance(
+                    a.getClass().getComponentType(), size);
+        }
+        System.arraycopy(names, start, a, 0, size);
+        if (a.length > size) {
+            a[size] = null;
+        }
+        return a;
+    }
+
+    /**
+     * copy a page of the names, in sorted order. Only the names in the page
+     * are copied, finding the start of the page is a binary search.
+     *
+     * @param startAfter
+     *            the page starts with the first name that sorts after this
+     *            one, which need not be in the set. null or the empty string
+     *            start from the first name.
+     * @param max
+     *            the most names to return
+     * @return the names in the page
+     */
+    List<String> page(String startAfter, int max) {
+        int from = 0;
+        if (startAfter != null) {
+            int i = search(startAfter);
+            from = i >= 0 ? i + 1 : -(i + 1);
+        }
+        int n = Math.min(max, size - from);
+        if (n <= 0) {
+            return new ArrayList<String>(0);
+        }
+        ArrayList<String> page = new ArrayList<String>(n);
+        for (int i = start + from, end = i + n; i < end; i++) {
+            page.add(names[i]);
+        }
+        return page;
+    }
+
+    /**
+     * Iterates the names in sorted order. Like the rest of the class it must
+     * be used while holding the owning node's lock, and it does not support
+     * remove.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return names[start + next++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -19,9 +19,12 @@
 package org.apache.zookeeper.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -33,31 +36,61 @@ import org.apache.zookeeper.data.StatPersisted;
  * <p>
  * A data node contains a reference to its parent, a byte array as its data, an
  * array of ACLs, a stat object, and a set of its children's paths.
- * 
+ * <p>
+ * To keep the per node overhead of large trees down, the stat is held as
+ * primitive fields of the node rather than as a separate StatPersisted, the
+ * acl is a primitive long and the children are a sorted array of names. The
+ * StatPersisted layout is only materialized at the jute boundary, when the
+ * node is serialized, deserialized or copied into a Stat. Large payloads may
+ * be held in an {@link OffHeapDataStore} rather than in the data array, see
+ * {@link #getData()}.
  */
 public class DataNode implements Record {
     /** the parent of this datanode */
     DataNode parent;
 
-    /** the data for this datanode */
+    /** the data for this datanode, if it is held on the heap */
     byte data[];
 
     /**
-     * the acl map long for this datanode. the datatree has the map
+     * the data for this datanode, if it is held off heap. At most one of data
+     * and payload is set.
      */
-    Long acl;
+    OffHeapDataStore.Payload payload;
 
     /**
-     * the stat for this node that is persisted to disk.
+     * the acl map long for this datanode. the datatree has the map
+     */
+    long acl;
+
+    /*
+     * the stat for this node that is persisted to disk, in the order of the
+     * fields of StatPersisted
      */
-    public StatPersisted stat;
+    private long czxid;
+
+    private long mzxid;
+
+    private long ctime;
+
+    private long mtime;
+
+    private int version;
+
+    private int cversion;
+
+    private int aversion;
+
+    private long ephemeralOwner;
+
+    private long pzxid;
 
     /**
      * the list of children for this node. note that the list of children string
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
      */
-    private Set<String> children = null;
+    private ChildrenSet children = null;
 
     /**
      * default constructor for the datanode
@@ -78,11 +111,11 @@ public class DataNode implements Record {
      * @param stat
      *            the stat for this node.
      */
-    public DataNode(DataNode parent, byte data[], Long acl, StatPersisted stat) {
+    public DataNode(DataNode parent, byte data[], long acl, StatPersisted stat) {
         this.parent = parent;
         this.data = data;
         this.acl = acl;
-        this.stat = stat;
+        setStatPersisted(stat);
     }
 
     /**
@@ -95,7 +128,7 @@ public class DataNode implements Record {
     public synchronized boolean addChild(String child) {
         if (children == null) {
             // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new ChildrenSet();
         }
         return children.add(child);
     }
@@ -118,29 +151,73 @@ public class DataNode implements Record {
      * 
      * @param children
      */
-    public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+    public void setChildren(HashSet<String> children) {
+        this.children = children == null ? null : new ChildrenSet(children);
     }
 
     /**
      * convenience methods to get the children
      * 
-     * @return the children of this datanode
+     * @return the children of this datanode, in sorted order
      */
     public synchronized Set<String> getChildren() {
         return children;
     }
 
+    /**
+     * get a page of the children of this node, in sorted order
+     *
+     * @param startAfter
+     *            the page starts with the first child that sorts after this
+     *            name, null to start with the first child
+     * @param max
+     *            the most children to return
+     * @return the names of the children in the page
+     */
+    public synchronized List<String> getChildrenPage(String startAfter,
+            int max) {
+        if (children == null) {
+            return new ArrayList<String>(0);
+        }
+        return children.page(startAfter, max);
+    }
+
+    /**
+     * @return a copy of this node that does not change when this node does.
+     *         The copy shares the data array, takes its own reference to an
+     *         off heap payload and has no parent.
+     */
+    synchronized DataNode copy() {
+        DataNode n = new DataNode();
+        n.data = data;
+        n.payload = payload;
+        if (payload != null) {
+            payload.retain();
+        }
+        n.acl = acl;
+        n.czxid = czxid;
+        n.mzxid = mzxid;
+        n.ctime = ctime;
+        n.mtime = mtime;
+        n.version = version;
+        n.cversion = cversion;
+        n.aversion = aversion;
+        n.ephemeralOwner = ephemeralOwner;
+        n.pzxid = pzxid;
+        n.children = children == null ? null : children.copy();
+        return n;
+    }
+
     synchronized public void copyStat(Stat to) {
-        to.setAversion(stat.getAversion());
-        to.setCtime(stat.getCtime());
-        to.setCzxid(stat.getCzxid());
-        to.setMtime(stat.getMtime());
-        to.setMzxid(stat.getMzxid());
-        to.setPzxid(stat.getPzxid());
-        to.setVersion(stat.getVersion());
-        to.setEphemeralOwner(stat.getEphemeralOwner());
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setAversion(aversion);
+        to.setCtime(ctime);
+        to.setCzxid(czxid);
+        to.setMtime(mtime);
+        to.setMzxid(mzxid);
+        to.setPzxid(pzxid);
+        to.setVersion(version);
+        to.setEphemeralOwner(ephemeralOwner);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -148,26 +225,163 @@ public class DataNode implements Record {
         // when we do the Cversion we need to translate from the count of the creates
         // to the count of the changes (v3 semantics)
         // for every create there is a delete except for the children still present
-        to.setCversion(stat.getCversion()*2 - numChildren);
+        to.setCversion(cversion*2 - numChildren);
         to.setNumChildren(numChildren);
     }
 
+    /**
+     * copy the persisted stat of this node
+     *
+     * @param to the StatPersisted to fill in
+     */
+    synchronized public void copyStatPersisted(StatPersisted to) {
+        to.setCzxid(czxid);
+        to.setMzxid(mzxid);
+        to.setCtime(ctime);
+        to.setMtime(mtime);
+        to.setVersion(version);
+        to.setCversion(cversion);
+        to.setAversion(aversion);
+        to.setEphemeralOwner(ephemeralOwner);
+        to.setPzxid(pzxid);
+    }
+
+    synchronized void setStatPersisted(StatPersisted from) {
+        czxid = from.getCzxid();
+        mzxid = from.getMzxid();
+        ctime = from.getCtime();
+        mtime = from.getMtime();
+        version = from.getVersion();
+        cversion = from.getCversion();
+        aversion = from.getAversion();
+        ephemeralOwner = from.getEphemeralOwner();
+        pzxid = from.getPzxid();
+    }
+
+    /**
+     * @return the length of the data of this node, wherever it is held
+     */
+    int getDataLength() {
+        OffHeapDataStore.Payload p = payload;
+        if (p != null) {
+            return p.getLength();
+        }
+        byte[] d = data;
+        return d == null ? 0 : d.length;
+    }
+
+    /**
+     * @return the data of this node, copied onto the heap if it is held off
+     *         heap. Must be called with the node locked.
+     */
+    byte[] getData() {
+        return payload != null ? payload.toArray() : data;
+    }
+
+    public long getCzxid() {
+        return czxid;
+    }
+
+    public long getMzxid() {
+        return mzxid;
+    }
+
+    public void setMzxid(long mzxid) {
+        this.mzxid = mzxid;
+    }
+
+    public long getCtime() {
+        return ctime;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public void setMtime(long mtime) {
+        this.mtime = mtime;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getCversion() {
+        return cversion;
+    }
+
+    public void setCversion(int cversion) {
+        this.cversion = cversion;
+    }
+
+    public int getAversion() {
+        return aversion;
+    }
+
+    public void setAversion(int aversion) {
+        this.aversion = aversion;
+    }
+
+    public long getEphemeralOwner() {
+        return ephemeralOwner;
+    }
+
+    public long getPzxid() {
+        return pzxid;
+    }
+
+    public void setPzxid(long pzxid) {
+        this.pzxid = pzxid;
+    }
+
     synchronized public void deserialize(InputArchive archive, String tag)
             throws IOException {
         archive.startRecord("node");
         data = archive.readBuffer("data");
         acl = archive.readLong("acl");
-        stat = new StatPersisted();
-        stat.deserialize(archive, "statpersisted");
+        // inlined StatPersisted.deserialize
+        archive.startRecord("statpersisted");
+        czxid = archive.readLong("czxid");
+        mzxid = archive.readLong("mzxid");
+        ctime = archive.readLong("ctime");
+        mtime = archive.readLong("mtime");
+        version = archive.readInt("version");
+        cversion = archive.readInt("cversion");
+        aversion = archive.readInt("aversion");
+        ephemeralOwner = archive.readLong("ephemeralOwner");
+        pzxid = archive.readLong("pzxid");
+        archive.endRecord("statpersisted");
         archive.endRecord("node");
     }
 
     synchronized public void serialize(OutputArchive archive, String tag)
             throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        if (payload == null) {
+            archive.writeBuffer(data, "data");
+        } else if (archive instanceof BinaryOutputArchive) {
+            ((BinaryOutputArchive) archive).writeBuffer(payload.buffer(),
+                    "data");
+        } else {
+            archive.writeBuffer(payload.toArray(), "data");
+        }
         archive.writeLong(acl, "acl");
-        stat.serialize(archive, "statpersisted");
+        // inlined StatPersisted.serialize
+        archive.startRecord(this, "statpersisted");
+        archive.writeLong(czxid, "czxid");
+        archive.writeLong(mzxid, "mzxid");
+        archive.writeLong(ctime, "ctime");
+        archive.writeLong(mtime, "mtime");
+        archive.writeInt(version, "version");
+        archive.writeInt(cversion, "cversion");
+        archive.writeInt(aversion, "aversion");
+        archive.writeLong(ephemeralOwner, "ephemeralOwner");
+        archive.writeLong(pzxid, "pzxid");
+        archive.endRecord(this, "statpersisted");
         archive.endRecord(this, "node");
     }
 }
@@ -18,20 +18,20 @@
 
 package org.apache.zookeeper.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.jute.Index;
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -45,7 +45,7 @@ import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
-import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.AddWatchModes;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.data.ACL;
@@ -68,19 +68,29 @@ import org.slf4j.LoggerFactory;
  * or client connection code in it so that it can be tested in a stand alone
  * way.
  * <p>
- * The tree maintains two parallel data structures: a hashtable that maps from
+ * The tree maintains two parallel data structures: an index that maps from
  * full paths to DataNodes and a tree of DataNodes. All accesses to a path is
- * through the hashtable. The tree is traversed only when serializing to disk.
+ * through the index. The tree is traversed only when serializing to disk.
+ * <p>
+ * The index is a hashtable of full paths by default. Setting the
+ * zookeeper.nodeIndex system property to "segment" selects an index keyed by
+ * parent and name instead, which uses less memory for large trees.
  */
 public class DataTree {
     private static final Logger LOG = LoggerFactory.getLogger(DataTree.class);
 
     /**
-     * This hashtable provides a fast lookup to the datanodes. The tree is the
+     * This index provides a fast lookup to the datanodes. The tree is the
      * source of truth and is where all the locking occurs
      */
-    private final ConcurrentHashMap<String, DataNode> nodes =
-        new ConcurrentHashMap<String, DataNode>();
+    private final NodeIndex nodes = createNodeIndex();
+
+    /**
+     * the store for large payloads kept off heap, null if payloads are all
+     * kept on the heap
+     */
+    private final OffHeapDataStore offHeap =
+        OffHeapDataStore.createFromSystemProperties();
 
     private final WatchManager dataWatches = new WatchManager();
 
@@ -120,19 +130,27 @@ public class DataTree {
      * this is map from longs to acl's. It saves acl's being stored for each
      * datanode.
      */
-    public final Map<Long, List<ACL>> longKeyMap =
-        new HashMap<Long, List<ACL>>();
+    private final ReferenceCountedACLCache aclCache =
+        new ReferenceCountedACLCache();
+
+    /**
+     * if true serialize writes the tree as of a single zxid, see
+     * {@link #beginSnapshot()}
+     */
+    private final boolean consistentSnapshots = Boolean.parseBoolean(
+            System.getProperty("zookeeper.consistentSnapshot", "true"));
 
     /**
-     * this a map from acls to long.
+     * held while a transaction is applied, so snapshot views begin between
+     * transactions
      */
-    public final Map<List<ACL>, Long> aclKeyMap =
-        new HashMap<List<ACL>, Long>();
+    private final Object txnLock = new Object();
 
     /**
-     * these are the number of acls that we have in the datatree
+     * the views of the snapshots being written, replaced as a whole under
+     * txnLock
      */
-    protected long aclIndex = 0;
+    private volatile SnapshotView[] snapshotViews = new SnapshotView[0];
 
     @SuppressWarnings("unchecked")
     public HashSet<String> getEphemerals(long sessionId) {
@@ -151,10 +169,6 @@ public class DataTree {
         return ephemerals;
     }
 
-    private long incrementIndex() {
-        return ++aclIndex;
-    }
-
     /**
      * compare two list of acls. if there elements are in the same order and the
      * same size then return true else return false
@@ -181,43 +195,32 @@ public class DataTree {
     }
 
     /**
-     * converts the list of acls to a list of longs.
+     * converts the list of acls to a long, taking a reference to it on
+     * behalf of the node that will hold the long.
      *
      * @param acls
-     * @return a list of longs that map to the acls
+     * @return a long that maps to the acls
      */
-    public synchronized Long convertAcls(List<ACL> acls) {
-        if (acls == null)
-            return -1L;
-        // get the value from the map
-        Long ret = aclKeyMap.get(acls);
-        // could not find the map
-        if (ret != null)
-            return ret;
-        long val = incrementIndex();
-        longKeyMap.put(val, acls);
-        aclKeyMap.put(acls, val);
-        return val;
+    public Long convertAcls(List<ACL> acls) {
+        return aclCache.convertAcls(acls);
     }
 
     /**
-     * converts a list of longs to a list of acls.
+     * converts a long to a list of acls.
      *
      * @param longVal
-     *            the list of longs
-     * @return a list of ACLs that map to longs
+     *            the long
+     * @return a list of ACLs that map to the long
      */
-    public synchronized List<ACL> convertLong(Long longVal) {
-        if (longVal == null)
-            return null;
-        if (longVal == -1L)
-            return Ids.OPEN_ACL_UNSAFE;
-        List<ACL> acls = longKeyMap.get(longVal);
-        if (acls == null) {
-            LOG.error("ERROR: ACL not available for long " + longVal);
-            throw new RuntimeException("Failed to fetch acls for " + longVal);
-        }
-        return acls;
+    public List<ACL> convertLong(Long longVal) {
+        return aclCache.convertLong(longVal);
+    }
+
+    /**
+     * @return the number of distinct lists of acls in use
+     */
+    public int aclCacheSize() {
+        return aclCache.size();
     }
 
     public Collection<Long> getSessions() {
@@ -234,7 +237,12 @@ public class DataTree {
      *            the datanode corresponding to this path
      */
     public void addDataNode(String path, DataNode node) {
-        nodes.put(path, node);
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            nodes.setRoot(node);
+        } else {
+            nodes.put(path, node.parent, path.substring(lastSlash + 1), node);
+        }
     }
 
     public DataNode getNode(String path) {
@@ -264,16 +272,7 @@ public class DataTree {
      * @return size of the data
      */
     public long approximateDataSize() {
-        long result = 0;
-        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
-            DataNode value = entry.getValue();
-            synchronized (value) {
-                result += entry.getKey().length();
-                result += (value.data == null ? 0
-                        : value.data.length);
-            }
-        }
-        return result;
+        return nodes.approximateDataSize();
     }
 
     /**
@@ -297,16 +296,126 @@ public class DataTree {
             -1L, new StatPersisted());
 
     public DataTree() {
-        /* Rather than fight it, let root have an alias */
-        nodes.put("", root);
-        nodes.put(rootZookeeper, root);
+        nodes.setRoot(root);
 
         /** add the proc node and quota node */
         root.addChild(procChildZookeeper);
-        nodes.put(procZookeeper, procDataNode);
+        nodes.put(procZookeeper, root, procChildZookeeper, procDataNode);
 
         procDataNode.addChild(quotaChildZookeeper);
-        nodes.put(quotaZookeeper, quotaDataNode);
+        nodes.put(quotaZookeeper, procDataNode, quotaChildZookeeper,
+                quotaDataNode);
+    }
+
+    /**
+     * create the path index selected by the zookeeper.nodeIndex system
+     * property, "path" (the default) or "segment"
+     */
+    static NodeIndex createNodeIndex() {
+        String kind = System.getProperty("zookeeper.nodeIndex", "path");
+        if ("segment".equals(kind)) {
+            return new SegmentNodeIndex();
+        }
+        if (!"path".equals(kind)) {
+            LOG.warn("Unknown zookeeper.nodeIndex " + kind
+                    + ", using the path index");
+        }
+        return new PathNodeIndex();
+    }
+
+    /**
+     * @return the store holding off heap payloads, or null if payloads are
+     *         all kept on the heap
+     */
+    public OffHeapDataStore getOffHeapDataStore() {
+        return offHeap;
+    }
+
+    /**
+     * set the data of a node, moving it off heap if an off heap store is
+     * configured and takes it. The previous off heap payload of the node, if
+     * any, is released. Must be called with the node locked, or before the
+     * node is published.
+     *
+     * Reads that race with a delete of the node may see its data as empty,
+     * the requests applied by FinalRequestProcessor never do since reads and
+     * writes are applied by the same thread.
+     */
+    private void setNodeData(DataNode node, byte data[]) {
+        OffHeapDataStore.Payload last = node.payload;
+        node.payload = offHeap == null ? null : offHeap.store(data);
+        node.data = node.payload == null ? data : null;
+        if (last != null) {
+            last.release();
+        }
+    }
+
+    /**
+     * save the pre-image of a node into the views of the snapshots being
+     * written, before the node is changed. Must be called with the node
+     * locked.
+     */
+    private void preserve(String path, DataNode node) {
+        SnapshotView[] views = snapshotViews;
+        for (int i = 0; i < views.length; i++) {
+            views[i].preserve(path, node);
+        }
+    }
+
+    /**
+     * Begin a point in time view of the tree for the calling thread. Until
+     * the thread calls {@link #endSnapshot()}, its calls to
+     * {@link #serialize(OutputArchive, String)} write the tree exactly as it
+     * was after the transaction with the returned zxid, without blocking the
+     * transactions applied meanwhile. If consistent snapshots are disabled
+     * the view is not created and the snapshot is fuzzy, as before.
+     *
+     * @return the zxid of the last transaction the snapshot includes
+     */
+    public long beginSnapshot() {
+        synchronized (txnLock) {
+            if (!consistentSnapshots) {
+                return lastProcessedZxid;
+            }
+            SnapshotView view = new SnapshotView(lastProcessedZxid,
+                    Thread.currentThread(), aclCache);
+            SnapshotView[] views = new SnapshotView[snapshotViews.length + 1];
+            System.arraycopy(snapshotViews, 0, views, 0, snapshotViews.length);
+            views[snapshotViews.length] = view;
+            snapshotViews = views;
+            return view.getZxid();
+        }
+    }
+
+    /**
+     * end the view begun by the calling thread, if any
+     */
+    public void endSnapshot() {
+        SnapshotView view;
+        synchronized (txnLock) {
+            view = viewOf(Thread.currentThread());
+            if (view == null) {
+                return;
+            }
+            ArrayList<SnapshotView> views = new ArrayList<SnapshotView>(
+                    Arrays.asList(snapshotViews));
+            views.remove(view);
+            snapshotViews = views.toArray(new SnapshotView[views.size()]);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(view.size() + " nodes changed while the snapshot of 0x"
+                    + Long.toHexString(view.getZxid()) + " was written");
+        }
+        view.release();
+    }
+
+    private SnapshotView viewOf(Thread thread) {
+        for (SnapshotView view : snapshotViews) {
+            if (view.getOwner() == thread) {
+                return view;
+            }
+        }
+        return null;
     }
 
     /**
@@ -368,9 +477,10 @@ public class DataTree {
             return;
         }
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            preserve(statNode, node);
+            updatedStat = new StatsTrack(new String(node.getData()));
             updatedStat.setCount(updatedStat.getCount() + diff);
-            node.data = updatedStat.toString().getBytes();
+            setNodeData(node, updatedStat.toString().getBytes());
         }
         // now check if the counts match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
@@ -382,7 +492,7 @@ public class DataTree {
             return;
         }
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(node.getData()));
         }
         if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
             LOG
@@ -413,9 +523,10 @@ public class DataTree {
         }
         StatsTrack updatedStat = null;
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            preserve(statNode, node);
+            updatedStat = new StatsTrack(new String(node.getData()));
             updatedStat.setBytes(updatedStat.getBytes() + diff);
-            node.data = updatedStat.toString().getBytes();
+            setNodeData(node, updatedStat.toString().getBytes());
         }
         // now check if the bytes match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
@@ -428,7 +539,7 @@ public class DataTree {
         }
         StatsTrack thisStats = null;
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(node.getData()));
         }
         if (thisStats.getBytes() > -1 && (thisStats.getBytes() < updatedStat.getBytes())) {
             LOG
@@ -478,16 +589,18 @@ public class DataTree {
                 }
             }
             
+            preserve(parentName, parent);
             if (parentCVersion == -1) {
-                parentCVersion = parent.stat.getCversion();
+                parentCVersion = parent.getCversion();
                 parentCVersion++;
             }    
-            parent.stat.setCversion(parentCVersion);
-            parent.stat.setPzxid(zxid);
+            parent.setCversion(parentCVersion);
+            parent.setPzxid(zxid);
             Long longval = convertAcls(acl);
-            DataNode child = new DataNode(parent, data, longval, stat);
+            DataNode child = new DataNode(parent, null, longval, stat);
+            setNodeData(child, data);
             parent.addChild(childName);
-            nodes.put(path, child);
+            nodes.put(path, parent, childName, child);
             if (ephemeralOwner != 0) {
                 HashSet<String> list = ephemerals.get(ephemeralOwner);
                 if (list == null) {
@@ -543,15 +656,21 @@ public class DataTree {
         if (node == null) {
             throw new KeeperException.NoNodeException();
         }
-        nodes.remove(path);
+        synchronized (node) {
+            // before the node leaves the index, so the snapshot views find
+            // either the node or its pre-image
+            preserve(path, node);
+        }
         DataNode parent = nodes.get(parentName);
+        nodes.remove(path, parent, childName);
         if (parent == null) {
             throw new KeeperException.NoNodeException();
         }
         synchronized (parent) {
+            preserve(parentName, parent);
             parent.removeChild(childName);
-            parent.stat.setPzxid(zxid);
-            long eowner = node.stat.getEphemeralOwner();
+            parent.setPzxid(zxid);
+            long eowner = node.getEphemeralOwner();
             if (eowner != 0) {
                 HashSet<String> nodes = ephemerals.get(eowner);
                 if (nodes != null) {
@@ -562,6 +681,12 @@ public class DataTree {
             }
             node.parent = null;
         }
+        int bytes;
+        synchronized (node) {
+            bytes = node.getDataLength();
+            setNodeData(node, null);
+            aclCache.removeUsage(node.acl);
+        }
         if (parentName.startsWith(procZookeeper)) {
             // delete the node in the trie.
             if (Quotas.limitNode.equals(childName)) {
@@ -576,11 +701,7 @@ public class DataTree {
         if((lastPrefix = getMaxPrefixWithQuota(path)) != null) {
             // ok we have some match and need to update
             updateCount(lastPrefix, -1);
-            int bytes = 0;
-            synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
-            }
-            updateBytes(lastPrefix, bytes);
+            updateBytes(lastPrefix, -bytes);
         }
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
@@ -602,20 +723,21 @@ public class DataTree {
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
-        byte lastdata[] = null;
+        int lastLength;
         synchronized (n) {
-            lastdata = n.data;
-            n.data = data;
-            n.stat.setMtime(time);
-            n.stat.setMzxid(zxid);
-            n.stat.setVersion(version);
+            preserve(path, n);
+            lastLength = n.getDataLength();
+            setNodeData(n, data);
+            n.setMtime(time);
+            n.setMzxid(zxid);
+            n.setVersion(version);
             n.copyStat(s);
         }
         // now update if the path is in a quota subtree.
         String lastPrefix;
         if((lastPrefix = getMaxPrefixWithQuota(path)) != null) {
           this.updateBytes(lastPrefix, (data == null ? 0 : data.length)
-              - (lastdata == null ? 0 : lastdata.length));
+              - lastLength);
         }
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
@@ -652,7 +774,40 @@ public class DataTree {
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            return n.data;
+            return n.getData();
+        }
+    }
+
+    /**
+     * get the data of a node as a GetDataResponse. Unlike
+     * {@link #getData(String, Stat, Watcher)} an off heap payload is not
+     * copied onto the heap; the returned response holds a reference to it
+     * and must be released once it has been serialized.
+     *
+     * @param path
+     *            the path of the node
+     * @param watcher
+     *            the watcher to set on the node, or null
+     * @return the response record
+     * @throws KeeperException.NoNodeException
+     */
+    public PayloadDataResponse getDataResponse(String path, Watcher watcher)
+            throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        Stat stat = new Stat();
+        synchronized (n) {
+            n.copyStat(stat);
+            if (watcher != null) {
+                dataWatches.addWatch(path, watcher);
+            }
+            if (n.payload != null) {
+                n.payload.retain();
+                return new PayloadDataResponse(n.payload, stat);
+            }
+            return new PayloadDataResponse(n.data, stat);
         }
     }
 
@@ -698,6 +853,42 @@ public class DataTree {
         }
     }
 
+    /**
+     * get a page of the children of a node, in sorted order
+     *
+     * @param path
+     *            the path of the node
+     * @param startAfter
+     *            the page starts with the first child that sorts after this
+     *            name, null to start with the first child
+     * @param max
+     *            the most children to return
+     * @param stat
+     *            the stat of the node, filled in if not null
+     * @param watcher
+     *            the child watcher to set on the node, or null
+     * @return the names of the children in the page
+     * @throws KeeperException.NoNodeException
+     */
+    public List<String> getChildrenPage(String path, String startAfter,
+            int max, Stat stat, Watcher watcher)
+            throws KeeperException.NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new KeeperException.NoNodeException();
+        }
+        synchronized (n) {
+            if (stat != null) {
+                n.copyStat(stat);
+            }
+            List<String> children = n.getChildrenPage(startAfter, max);
+            if (watcher != null) {
+                childWatches.addWatch(path, watcher);
+            }
+            return children;
+        }
+    }
+
     public Stat setACL(String path, List<ACL> acl, int version)
             throws KeeperException.NoNodeException {
         Stat stat = new Stat();
@@ -706,8 +897,11 @@ public class DataTree {
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
-            n.stat.setAversion(version);
+            preserve(path, n);
+            n.setAversion(version);
+            long last = n.acl;
             n.acl = convertAcls(acl);
+            aclCache.removeUsage(last);
             n.copyStat(stat);
             return stat;
         }
@@ -774,6 +968,13 @@ public class DataTree {
     public volatile long lastProcessedZxid = 0;
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn)
+    {
+        synchronized (txnLock) {
+            return applyTxn(header, txn);
+        }
+    }
+
+    private ProcessTxnResult applyTxn(TxnHeader header, Record txn)
     {
         ProcessTxnResult rc = new ProcessTxnResult();
 
@@ -1016,7 +1217,7 @@ public class DataTree {
             if (childs != null) {
                 children = childs.toArray(new String[childs.size()]);
             }
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1049,7 +1250,7 @@ public class DataTree {
             return;
         }
         synchronized (node) {
-            node.data = strack.toString().getBytes();
+            setNodeData(node, strack.toString().getBytes());
         }
     }
 
@@ -1111,120 +1312,251 @@ public class DataTree {
      * @throws IOException
      * @throws InterruptedException
      */
-    void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
-        String pathString = path.toString();
-        DataNode node = getNode(pathString);
-        if (node == null) {
+    void serializeNode(OutputArchive oa, StringBuilder path, SnapshotView view)
+            throws IOException {
+        String children[] = writeNode(oa, path.toString(), view);
+        if (children == null) {
             return;
         }
-        String children[] = null;
+        scount++;
+        path.append('/');
+        int off = path.length();
+        for (String child : children) {
+            // since this is single buffer being resused
+            // we need
+            // to truncate the previous bytes of string.
+            path.delete(off, Integer.MAX_VALUE);
+            path.append(child);
+            serializeNode(oa, path, view);
+        }
+    }
+
+    /**
+     * write a single node as of the view, without its children.
+     *
+     * @return the children of the node as of the view, null if the node
+     *         does not exist
+     */
+    String[] writeNode(OutputArchive oa, String path, SnapshotView view)
+            throws IOException {
+        DataNode node = getNode(path);
+        if (node == null) {
+            // deleted since the view began, which saved it first
+            node = view == null ? null : view.getPreImage(path);
+            if (node == null) {
+                return null;
+            }
+        }
         synchronized (node) {
-            scount++;
-            oa.writeString(pathString, "path");
+            if (view != null) {
+                DataNode preImage = view.getPreImage(path);
+                if (preImage != null) {
+                    node = preImage;
+                }
+            }
+            oa.writeString(path, "path");
             oa.writeRecord(node, "node");
-            Set<String> childs = node.getChildren();
-            if (childs != null) {
-                children = childs.toArray(new String[childs.size()]);
+            return childrenOf(node);
+        }
+    }
+
+    /**
+     * @return the children of the node as of the view, null if the node does
+     *         not exist
+     */
+    String[] getChildrenAsOf(String path, SnapshotView view) {
+        DataNode node = getNode(path);
+        if (node == null) {
+            node = view == null ? null : view.getPreImage(path);
+            if (node == null) {
+                return null;
             }
         }
-        path.append('/');
-        int off = path.length();
-        if (children != null) {
-            for (String child : children) {
-                // since this is single buffer being resused
-                // we need
-                // to truncate the previous bytes of string.
-                path.delete(off, Integer.MAX_VALUE);
-                path.append(child);
-                serializeNode(oa, path);
+        synchronized (node) {
+            if (view != null) {
+                DataNode preImage = view.getPreImage(path);
+                if (preImage != null) {
+                    node = preImage;
+                }
             }
+            return childrenOf(node);
         }
     }
 
+    private static String[] childrenOf(DataNode node) {
+        Set<String> childs = node.getChildren();
+        if (childs == null) {
+            return new String[0];
+        }
+        return childs.toArray(new String[childs.size()]);
+    }
+
     int scount;
 
     public boolean initialized = false;
 
-    private void deserializeList(Map<Long, List<ACL>> longKeyMap,
-            InputArchive ia) throws IOException {
-        int i = ia.readInt("map");
-        while (i > 0) {
-            Long val = ia.readLong("long");
-            if (aclIndex < val) {
-                aclIndex = val;
-            }
-            List<ACL> aclList = new ArrayList<ACL>();
-            Index j = ia.startVector("acls");
-            while (!j.done()) {
-                ACL acl = new ACL();
-                acl.deserialize(ia, "acl");
-                aclList.add(acl);
-                j.incr();
+    /**
+     * write the tree. If the calling thread began a view with
+     * {@link #beginSnapshot()} the tree is written as of the view, otherwise
+     * a view is begun and ended around the call.
+     */
+    public void serialize(OutputArchive oa, String tag) throws IOException {
+        SnapshotView view = viewOf(Thread.currentThread());
+        boolean ownView = false;
+        if (view == null && consistentSnapshots) {
+            beginSnapshot();
+            view = viewOf(Thread.currentThread());
+            ownView = true;
+        }
+        try {
+            scount = 0;
+            aclCache.purgeUnused();
+            aclCache.serialize(oa);
+            serializeNode(oa, new StringBuilder(""), view);
+            // / marks end of stream
+            // we need to check if clear had been called in between the snapshot.
+            if (root != null) {
+                oa.writeString("/", "path");
             }
-            longKeyMap.put(val, aclList);
-            aclKeyMap.put(aclList, val);
-            i--;
-        }
-    }
-
-    private synchronized void serializeList(Map<Long, List<ACL>> longKeyMap,
-            OutputArchive oa) throws IOException {
-        oa.writeInt(longKeyMap.size(), "map");
-        Set<Map.Entry<Long, List<ACL>>> set = longKeyMap.entrySet();
-        for (Map.Entry<Long, List<ACL>> val : set) {
-            oa.writeLong(val.getKey(), "long");
-            List<ACL> aclList = val.getValue();
-            oa.startVector(aclList, "acls");
-            for (ACL acl : aclList) {
-                acl.serialize(oa, "acl");
+        } finally {
+            if (ownView) {
+                endSnapshot();
             }
-            oa.endVector(aclList, "acls");
-        }
-    }
-
-    public void serialize(OutputArchive oa, String tag) throws IOException {
-        scount = 0;
-        serializeList(longKeyMap, oa);
-        serializeNode(oa, new StringBuilder(""));
-        // / marks end of stream
-        // we need to check if clear had been called in between the snapshot.
-        if (root != null) {
-            oa.writeString("/", "path");
         }
     }
 
     public void deserialize(InputArchive ia, String tag) throws IOException {
-        deserializeList(longKeyMap, ia);
+        aclCache.deserialize(ia);
         nodes.clear();
         String path = ia.readString("path");
         while (!path.equals("/")) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
-            int lastSlash = path.lastIndexOf('/');
-            if (lastSlash == -1) {
-                root = node;
-            } else {
-                String parentPath = path.substring(0, lastSlash);
-                node.parent = nodes.get(parentPath);
-                if (node.parent == null) {
-                    throw new IOException("Invalid Datatree, unable to find " +
-                            "parent " + parentPath + " of path " + path);
-                }
-                node.parent.addChild(path.substring(lastSlash + 1));
-                long eowner = node.stat.getEphemeralOwner();
-                if (eowner != 0) {
-                    HashSet<String> list = ephemerals.get(eowner);
-                    if (list == null) {
-                        list = new HashSet<String>();
-                        ephemerals.put(eowner, list);
-                    }
-                    list.add(path);
-                }
-            }
+            restoreNode(path, node);
             path = ia.readString("path");
         }
-        nodes.put("/", root);
+        finishRestore();
+    }
+
+    /**
+     * write the tree like {@link #serialize(OutputArchive, String)} does, but
+     * with the nodes in chunks that several threads serialize at once, each
+     * followed by its checksum. See {@link ParallelSnapshotWriter}.
+     *
+     * @param threads the number of threads serializing chunks
+     * @param chunkSize the size at which the chunks are cut
+     */
+    public void serializeChunked(OutputArchive oa, String tag, int threads,
+            int chunkSize) throws IOException {
+        SnapshotView view = viewOf(Thread.currentThread());
+        boolean ownView = false;
+        if (view == null && consistentSnapshots) {
+            beginSnapshot();
+            view = viewOf(Thread.currentThread());
+            ownView = true;
+        }
+        try {
+            aclCache.purgeUnused();
+            aclCache.serialize(oa);
+            new ParallelSnapshotWriter(this, view, threads, chunkSize)
+                .write(oa);
+        } finally {
+            if (ownView) {
+                endSnapshot();
+            }
+        }
+    }
+
+    /**
+     * read a tree written by
+     * {@link #serializeChunked(OutputArchive, String, int, int)}, see
+     * {@link ParallelSnapshotLoader}
+     *
+     * @param threads the number of threads decoding chunks
+     */
+    public void deserializeChunked(InputArchive ia, String tag, int threads)
+            throws IOException {
+        aclCache.deserialize(ia);
+        new ParallelSnapshotLoader(this, threads).load(ia);
+        finishRestore();
+    }
+
+    /**
+     * add a node read from a snapshot. Its parent must have been added
+     * already.
+     */
+    private void restoreNode(String path, DataNode node) throws IOException {
+        restoreData(node);
+        aclCache.addUsage(node.acl);
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            restoreRoot(node);
+        } else {
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find " +
+                        "parent " + parentPath + " of path " + path);
+            }
+            restoreLink(path, parent, path.substring(lastSlash + 1), node);
+            long eowner = node.getEphemeralOwner();
+            if (eowner != 0) {
+                restoreEphemeral(eowner, path);
+            }
+        }
+    }
+
+    /**
+     * empty the tree before nodes are restored into it
+     *
+     * @param expectedSize the expected number of nodes
+     */
+    void prepareRestore(int expectedSize) {
+        nodes.clear(expectedSize);
+    }
+
+    /**
+     * move the data of a restored node off heap if need be. Safe to call
+     * from several threads at once.
+     */
+    void restoreData(DataNode node) {
+        if (offHeap != null) {
+            setNodeData(node, node.data);
+        }
+    }
+
+    /**
+     * link a restored node to its parent and add it to the index. Safe to
+     * call from several threads at once, for different nodes.
+     */
+    void restoreLink(String path, DataNode parent, String name,
+            DataNode node) {
+        node.parent = parent;
+        parent.addChild(name);
+        nodes.put(path, parent, name, node);
+    }
+
+    void restoreRoot(DataNode node) {
+        root = node;
+        nodes.setRoot(node);
+    }
+
+    void restoreEphemeral(long owner, String path) {
+        HashSet<String> list = ephemerals.get(owner);
+        if (list == null) {
+            list = new HashSet<String>();
+            ephemerals.put(owner, list);
+        }
+        list.add(path);
+    }
+
+    void restoreAclUsage(long acl, int references) {
+        aclCache.addUsage(acl, references);
+    }
+
+    private void finishRestore() {
+        nodes.setRoot(root);
+        aclCache.purgeUnused();
         // we are done with deserializing the
         // the datatree
         // update the quotas - create path trie
@@ -1291,10 +1623,10 @@ public class DataTree {
             if (node == null) {
                 e = new WatchedEvent(EventType.NodeDeleted,
                         KeeperState.SyncConnected, path);
-            } else if (node.stat.getCzxid() > relativeZxid) {
+            } else if (node.getCzxid() > relativeZxid) {
                 e = new WatchedEvent(EventType.NodeCreated,
                         KeeperState.SyncConnected, path);
-            } else if (node.stat.getMzxid() > relativeZxid) {
+            } else if (node.getMzxid() > relativeZxid) {
                 e = new WatchedEvent(EventType.NodeDataChanged,
                         KeeperState.SyncConnected, path);
             }
@@ -1309,7 +1641,7 @@ public class DataTree {
             WatchedEvent e = null;
             if (node == null) {
                 // This is the case when the watch was registered
-            } else if (node.stat.getMzxid() > relativeZxid) {
+            } else if (node.getMzxid() > relativeZxid) {
                 e = new WatchedEvent(EventType.NodeDataChanged,
                         KeeperState.SyncConnected, path);
             } else {
@@ -1328,7 +1660,7 @@ public class DataTree {
             if (node == null) {
                 e = new WatchedEvent(EventType.NodeDeleted,
                         KeeperState.SyncConnected, path);
-            } else if (node.stat.getPzxid() > relativeZxid) {
+            } else if (node.getPzxid() > relativeZxid) {
                 e = new WatchedEvent(EventType.NodeChildrenChanged,
                         KeeperState.SyncConnected, path);
             }
@@ -1340,6 +1672,47 @@ public class DataTree {
         }
     }
 
+    /**
+     * reset watches after a reconnect, including the persistent watches.
+     * Persistent watches are just registered again, the events the watcher
+     * missed while disconnected are not replayed.
+     */
+    public void setWatches(long relativeZxid, List<String> dataWatches,
+            List<String> existWatches, List<String> childWatches,
+            List<String> persistentWatches,
+            List<String> persistentRecursiveWatches, Watcher watcher) {
+        setWatches(relativeZxid, dataWatches, existWatches, childWatches,
+                watcher);
+        for (String path : persistentWatches) {
+            addWatch(path, watcher, AddWatchModes.persistent);
+        }
+        for (String path : persistentRecursiveWatches) {
+            addWatch(path, watcher, AddWatchModes.persistentRecursive);
+        }
+    }
+
+    /**
+     * add a persistent watch. A persistent watch sees the same events as a
+     * data watch and a child watch on the path together, a persistent
+     * recursive watch sees the data watch events of the path and all of its
+     * descendants.
+     *
+     * @param basePath
+     *            the path to watch
+     * @param watcher
+     *            the watcher
+     * @param mode
+     *            one of the ZooDefs.AddWatchModes
+     */
+    public void addWatch(String basePath, Watcher watcher, int mode) {
+        if (mode == AddWatchModes.persistentRecursive) {
+            dataWatches.addPersistentWatch(basePath, watcher, true);
+        } else {
+            dataWatches.addPersistentWatch(basePath, watcher, false);
+            childWatches.addPersistentWatch(basePath, watcher, false);
+        }
+    }
+
      /**
       * This method sets the Cversion and Pzxid for the specified node to the
       * values passed as arguments. The values are modified only if newCversion
@@ -1367,11 +1740,12 @@ public class DataTree {
         }
         synchronized (node) {
             if(newCversion == -1) {
-                newCversion = node.stat.getCversion() + 1;
+                newCversion = node.getCversion() + 1;
             }
-            if (newCversion > node.stat.getCversion()) {
-                node.stat.setCversion(newCversion);
-                node.stat.setPzxid(zxid);
+            if (newCversion > node.getCversion()) {
+                preserve(path, node);
+                node.setCversion(newCversion);
+                node.setPzxid(zxid);
             }
         }
     }
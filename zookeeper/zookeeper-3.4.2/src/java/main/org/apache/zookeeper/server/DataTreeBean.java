@@ -46,6 +46,31 @@ public class DataTreeBean implements DataTreeMXBean, ZKMBeanInfo {
         return dataTree.getWatchCount();
     }
 
+    public long getOffHeapCapacity() {
+        OffHeapDataStore store = dataTree.getOffHeapDataStore();
+        return store == null ? 0 : store.getCapacity();
+    }
+
+    public long getOffHeapReserved() {
+        OffHeapDataStore store = dataTree.getOffHeapDataStore();
+        return store == null ? 0 : store.getReservedBytes();
+    }
+
+    public long getOffHeapUsed() {
+        OffHeapDataStore store = dataTree.getOffHeapDataStore();
+        return store == null ? 0 : store.getUsedBytes();
+    }
+
+    public long getOffHeapDataSize() {
+        OffHeapDataStore store = dataTree.getOffHeapDataStore();
+        return store == null ? 0 : store.getDataBytes();
+    }
+
+    public long getOffHeapNodeCount() {
+        OffHeapDataStore store = dataTree.getOffHeapDataStore();
+        return store == null ? 0 : store.getPayloadCount();
+    }
+
     public String getName() {
         return "InMemoryDataTree";
     }
@@ -44,4 +44,26 @@ public interface DataTreeMXBean {
      * @return number of ephemeral nodes in the data tree
      */
     public int countEphemerals();
+    /**
+     * @return direct memory the off heap payload store may reserve, 0 if
+     * payloads are all kept on the heap.
+     */
+    public long getOffHeapCapacity();
+    /**
+     * @return direct memory reserved by the off heap payload store.
+     */
+    public long getOffHeapReserved();
+    /**
+     * @return direct memory taken by off heap payloads, including the
+     * rounding up to their size class.
+     */
+    public long getOffHeapUsed();
+    /**
+     * @return total length of the payloads held off heap.
+     */
+    public long getOffHeapDataSize();
+    /**
+     * @return number of znodes whose payload is held off heap.
+     */
+    public long getOffHeapNodeCount();
 }
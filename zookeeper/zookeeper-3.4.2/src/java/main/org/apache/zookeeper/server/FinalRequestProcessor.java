@@ -38,20 +38,22 @@ import org.apache.zookeeper.proto.ExistsRequest;
 import org.apache.zookeeper.proto.ExistsResponse;
 import org.apache.zookeeper.proto.GetACLRequest;
 import org.apache.zookeeper.proto.GetACLResponse;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPagedRequest;
+import org.apache.zookeeper.proto.GetChildrenPagedResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
-import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.SetACLResponse;
 import org.apache.zookeeper.proto.SetDataResponse;
 import org.apache.zookeeper.proto.SetWatches;
+import org.apache.zookeeper.proto.SetWatches2;
 import org.apache.zookeeper.proto.SyncRequest;
 import org.apache.zookeeper.proto.SyncResponse;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
-import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
 import org.apache.zookeeper.txn.CreateSessionTxn;
 import org.apache.zookeeper.txn.ErrorTxn;
 
@@ -95,39 +97,30 @@ public class FinalRequestProcessor implements RequestProcessor {
             ZooTrace.logRequest(LOG, traceMask, 'E', request, "");
         }
         ProcessTxnResult rc = null;
-        synchronized (zks.outstandingChanges) {
-            while (!zks.outstandingChanges.isEmpty()
-                    && zks.outstandingChanges.get(0).zxid <= request.zxid) {
-                ChangeRecord cr = zks.outstandingChanges.remove(0);
-                if (cr.zxid < request.zxid) {
-                    LOG.warn("Zxid outstanding "
-                            + cr.zxid
-                            + " is less than current " + request.zxid);
+        if (request.hdr != null) {
+            rc = zks.getZKDatabase().processTxn(request.hdr, request.txn);
+            if (request.type == OpCode.createSession) {
+                if (request.txn instanceof CreateSessionTxn) {
+                    CreateSessionTxn cst = (CreateSessionTxn) request.txn;
+                    zks.sessionTracker.addSession(request.sessionId, cst
+                            .getTimeOut());
+                } else {
+                    LOG.warn("*****>>>>> Got "
+                            + request.txn.getClass() + " "
+                            + request.txn.toString());
                 }
-                if (zks.outstandingChangesForPath.get(cr.path) == cr) {
-                    zks.outstandingChangesForPath.remove(cr.path);
-                }
-            }
-            if (request.hdr != null) {
-                rc = zks.getZKDatabase().processTxn(request.hdr, request.txn);
-                if (request.type == OpCode.createSession) {
-                    if (request.txn instanceof CreateSessionTxn) {
-                        CreateSessionTxn cst = (CreateSessionTxn) request.txn;
-                        zks.sessionTracker.addSession(request.sessionId, cst
-                                .getTimeOut());
-                    } else {
-                        LOG.warn("*****>>>>> Got "
-                                + request.txn.getClass() + " "
-                                + request.txn.toString());
-                    }
-                } else if (request.type == OpCode.closeSession) {
-                    zks.sessionTracker.removeSession(request.sessionId);
-                }
-            }
-            // do not add non quorum packets to the queue.
-            if (Request.isQuorum(request.type)) {
-                zks.getZKDatabase().addCommittedProposal(request);
+            } else if (request.type == OpCode.closeSession) {
+                zks.sessionTracker.removeSession(request.sessionId);
             }
+            // drop the changes only once they are in the DataTree, so
+            // PrepRequestProcessor always finds them in one or the other.
+            // Only txns were added, a read may be processed before the
+            // txn whose zxid it carries
+            zks.outstandingChanges.trim(request.zxid);
+        }
+        // do not add non quorum packets to the queue.
+        if (Request.isQuorum(request.type)) {
+            zks.getZKDatabase().addCommittedProposal(request);
         }
 
         if (request.hdr != null && request.hdr.getType() == OpCode.closeSession) {
@@ -297,10 +290,8 @@ public class FinalRequestProcessor implements RequestProcessor {
                 PrepRequestProcessor.checkACL(zks, zks.getZKDatabase().convertLong(aclL),
                         ZooDefs.Perms.READ,
                         request.authInfo);
-                Stat stat = new Stat();
-                byte b[] = zks.getZKDatabase().getData(getDataRequest.getPath(), stat,
+                rsp = zks.getZKDatabase().getDataResponse(getDataRequest.getPath(),
                         getDataRequest.getWatch() ? cnxn : null);
-                rsp = new GetDataResponse(b, stat);
                 break;
             }
             case OpCode.setWatches: {
@@ -316,6 +307,36 @@ public class FinalRequestProcessor implements RequestProcessor {
                         setWatches.getChildWatches(), cnxn);
                 break;
             }
+            case OpCode.setWatches2: {
+                lastOp = "STW2";
+                SetWatches2 setWatches = new SetWatches2();
+                // XXX We really should NOT need this!!!!
+                request.request.rewind();
+                ByteBufferInputStream.byteBuffer2Record(request.request, setWatches);
+                long relativeZxid = setWatches.getRelativeZxid();
+                zks.getZKDatabase().setWatches(relativeZxid,
+                        setWatches.getDataWatches(),
+                        setWatches.getExistWatches(),
+                        setWatches.getChildWatches(),
+                        setWatches.getPersistentWatches(),
+                        setWatches.getPersistentRecursiveWatches(), cnxn);
+                break;
+            }
+            case OpCode.addWatch: {
+                lastOp = "ADDW";
+                AddWatchRequest addWatchRequest = new AddWatchRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        addWatchRequest);
+                int mode = addWatchRequest.getMode();
+                if (mode != ZooDefs.AddWatchModes.persistent
+                        && mode != ZooDefs.AddWatchModes.persistentRecursive) {
+                    throw new KeeperException.BadArgumentsException(
+                            addWatchRequest.getPath());
+                }
+                zks.getZKDatabase().addWatch(addWatchRequest.getPath(), cnxn,
+                        mode);
+                break;
+            }
             case OpCode.getACL: {
                 lastOp = "GETA";
                 GetACLRequest getACLRequest = new GetACLRequest();
@@ -373,6 +394,36 @@ public class FinalRequestProcessor implements RequestProcessor {
                 rsp = new GetChildren2Response(children, stat);
                 break;
             }
+            case OpCode.getChildrenPaged: {
+                lastOp = "GETP";
+                GetChildrenPagedRequest getChildrenPagedRequest =
+                    new GetChildrenPagedRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        getChildrenPagedRequest);
+                if (getChildrenPagedRequest.getMaxChildren() <= 0) {
+                    throw new KeeperException.BadArgumentsException(
+                            getChildrenPagedRequest.getPath());
+                }
+                Stat stat = new Stat();
+                DataNode n = zks.getZKDatabase().getNode(getChildrenPagedRequest.getPath());
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                Long aclG;
+                synchronized(n) {
+                    aclG = n.acl;
+                }
+                PrepRequestProcessor.checkACL(zks, zks.getZKDatabase().convertLong(aclG),
+                        ZooDefs.Perms.READ,
+                        request.authInfo);
+                List<String> children = zks.getZKDatabase().getChildrenPage(
+                        getChildrenPagedRequest.getPath(),
+                        getChildrenPagedRequest.getStartAfter(),
+                        getChildrenPagedRequest.getMaxChildren(), stat,
+                        getChildrenPagedRequest.getWatch() ? cnxn : null);
+                rsp = new GetChildrenPagedResponse(children, stat);
+                break;
+            }
             }
         } catch (SessionMovedException e) {
             // session moved is a connection level error, we need to tear
@@ -415,6 +466,10 @@ public class FinalRequestProcessor implements RequestProcessor {
             }
         } catch (IOException e) {
             LOG.error("FIXMSG",e);
+        } finally {
+            if (rsp instanceof PayloadDataResponse) {
+                ((PayloadDataResponse) rsp).release();
+            }
         }
     }
 
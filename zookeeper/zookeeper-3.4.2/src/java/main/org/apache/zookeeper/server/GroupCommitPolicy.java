@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when SyncRequestProcessor commits the requests it has appended
+ * to the transaction log.
+ * <p>
+ * The policy keeps moving averages of how long a commit takes and of the
+ * time between two write requests. Their ratio is the number of writes that
+ * arrive while one commit is in progress, which is the batch size a busy
+ * log settles on anyway. When the queue runs dry before the current batch
+ * has reached that size, the processor waits a little for the next write
+ * instead of paying for a commit that would cover only a few requests.
+ * When writes are rare compared to the cost of a commit it never waits,
+ * so an idle server commits every write right away as before.
+ * <p>
+ * A batch is always committed once it holds maxBatchBytes of log entries or
+ * maxBatchSize requests, or once its first request has waited maxWait.
+ * <p>
+ * {@link #arrived()} is called by the threads queueing requests and
+ * {@link #committed(long, long)} by the thread syncing the log, all other
+ * methods by the thread appending to the log.
+ */
+class GroupCommitPolicy {
+    /** weight of a new sample in the moving averages */
+    private static final double ALPHA = 0.25;
+
+    private final long maxBatchBytes;
+
+    private final int maxBatchSize;
+
+    private final long maxWaitNanos;
+
+    private final AtomicInteger arrivals = new AtomicInteger();
+
+    private volatile double fsyncNanos;
+
+    private volatile double interArrivalNanos = Double.MAX_VALUE;
+
+    private long lastCommitNanos;
+
+    private long batchStartNanos;
+
+    /**
+     * @param now the current System.nanoTime(), arrivals are counted from
+     * here until the first commit
+     */
+    GroupCommitPolicy(long maxBatchBytes, int maxBatchSize, long maxWaitMs,
+            long now) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.lastCommitNanos = now;
+    }
+
+    /**
+     * Creates a policy from the zookeeper.groupCommit.* system properties.
+     */
+    static GroupCommitPolicy fromSystemProperties() {
+        return new GroupCommitPolicy(
+                Long.getLong("zookeeper.groupCommit.maxBatchBytes",
+                        1024 * 1024),
+                Integer.getInteger("zookeeper.groupCommit.maxBatchSize",
+                        1000),
+                Long.getLong("zookeeper.groupCommit.maxWaitMs", 2),
+                System.nanoTime());
+    }
+
+    /**
+     * Counts a write request handed to the processor. Called by the thread
+     * queueing the request.
+     */
+    void arrived() {
+        arrivals.incrementAndGet();
+    }
+
+    /**
+     * The first request of a new batch was appended.
+     */
+    void started(long now) {
+        batchStartNanos = now;
+    }
+
+    /**
+     * @return true if the batch has to be committed before more requests
+     * are appended to it
+     */
+    boolean isFull(int requests, long bytes, long now) {
+        return requests >= maxBatchSize || bytes >= maxBatchBytes
+            || (maxWaitNanos > 0 && now - batchStartNanos >= maxWaitNanos);
+    }
+
+    /**
+     * Called when there are no more queued requests.
+     * @return how long to wait for the next request before committing the
+     * batch, 0 to commit it right away
+     */
+    long waitNanos(int requests, long now) {
+        long left = maxWaitNanos - (now - batchStartNanos);
+        if (left <= 0 || requests >= getTargetBatchSize()) {
+            return 0;
+        }
+        // give the next write twice its expected delay to show up
+        return Math.min(left, (long) (2 * interArrivalNanos));
+    }
+
+    /**
+     * A batch of requests was committed.
+     * @param fsyncNanos how long the commit took
+     */
+    void committed(long fsyncNanos, long now) {
+        int n = arrivals.getAndSet(0);
+        long elapsed = now - lastCommitNanos;
+        lastCommitNanos = now;
+        double interArrival = n == 0 ? elapsed : (double) elapsed / n;
+        if (this.interArrivalNanos == Double.MAX_VALUE) {
+            this.interArrivalNanos = interArrival;
+            this.fsyncNanos = fsyncNanos;
+        } else {
+            this.interArrivalNanos += ALPHA * (interArrival - this.interArrivalNanos);
+            this.fsyncNanos += ALPHA * (fsyncNanos - this.fsyncNanos);
+        }
+    }
+
+    /**
+     * @return the number of writes expected to arrive during one commit,
+     * at least 1
+     */
+    int getTargetBatchSize() {
+        double interArrival = interArrivalNanos;
+        if (interArrival <= 0) {
+            return maxBatchSize;
+        }
+        double target = fsyncNanos / interArrival;
+        if (target >= maxBatchSize) {
+            return maxBatchSize;
+        }
+        return Math.max(1, (int) Math.ceil(target));
+    }
+
+    long getFsyncNanos() {
+        return (long) fsyncNanos;
+    }
+
+    long getInterArrivalNanos() {
+        return (long) interArrivalNanos;
+    }
+}
@@ -18,23 +18,17 @@
 
 package org.apache.zookeeper.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
-import org.apache.jute.InputArchive;
-import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
-import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.server.persistence.MappedTxnIterator;
 import org.apache.zookeeper.txn.TxnHeader;
 
 public class LogFormatter {
@@ -52,6 +46,7 @@ public class LogFormatter {
         BinaryInputArchive logStream = BinaryInputArchive.getArchive(fis);
         FileHeader fhdr = new FileHeader();
         fhdr.deserialize(logStream, "fileheader");
+        fis.close();
 
         if (fhdr.getMagic() != FileTxnLog.TXNLOG_MAGIC) {
             System.err.println("Invalid magic number for " + args[0]);
@@ -62,45 +57,27 @@ public class LogFormatter {
                 + fhdr.getVersion());
 
         int count = 0;
-        while (true) {
-            long crcValue;
-            byte[] bytes;
-            try {
-                crcValue = logStream.readLong("crcvalue");
-
-                bytes = logStream.readBuffer("txnEntry");
-            } catch (EOFException e) {
-                System.out.println("EOF reached after " + count + " txns.");
-                return;
-            }
-            if (bytes.length == 0) {
-                // Since we preallocate, we define EOF to be an
-                // empty transaction
-                System.out.println("EOF reached after " + count + " txns.");
-                return;
-            }
-            Checksum crc = new Adler32();
-            crc.update(bytes, 0, bytes.length);
-            if (crcValue != crc.getValue()) {
-                throw new IOException("CRC doesn't match " + crcValue +
-                        " vs " + crc.getValue());
-            }
-            TxnHeader hdr = new TxnHeader();
-            Record txn = SerializeUtils.deserializeTxn(bytes, hdr);
-            System.out.println(DateFormat.getDateTimeInstance(DateFormat.SHORT,
-                    DateFormat.LONG).format(new Date(hdr.getTime()))
-                    + " session 0x"
-                    + Long.toHexString(hdr.getClientId())
-                    + " cxid 0x"
-                    + Long.toHexString(hdr.getCxid())
-                    + " zxid 0x"
-                    + Long.toHexString(hdr.getZxid())
-                    + " " + TraceFormatter.op2String(hdr.getType()) + " " + txn);
-            if (logStream.readByte("EOR") != 'B') {
-                LOG.error("Last transaction was partial.");
-                throw new EOFException("Last transaction was partial.");
+        MappedTxnIterator itr = MappedTxnIterator.forFile(new File(args[0]));
+        try {
+            // the header is null once the log ended
+            while (itr.getHeader() != null) {
+                TxnHeader hdr = itr.getHeader();
+                System.out.println(DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                        DateFormat.LONG).format(new Date(hdr.getTime()))
+                        + " session 0x"
+                        + Long.toHexString(hdr.getClientId())
+                        + " cxid 0x"
+                        + Long.toHexString(hdr.getCxid())
+                        + " zxid 0x"
+                        + Long.toHexString(hdr.getZxid())
+                        + " " + TraceFormatter.op2String(hdr.getType()) + " "
+                        + itr.getTxn());
+                count++;
+                itr.next();
             }
-            count++;
+        } finally {
+            itr.close();
         }
+        System.out.println("EOF reached after " + count + " txns.");
     }
 }
@@ -20,6 +20,7 @@ package org.apache.zookeeper.server;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -27,10 +28,13 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -62,6 +66,8 @@ public class NIOServerCnxn extends ServerCnxn {
 
     NIOServerCnxnFactory factory;
 
+    final NIOServerCnxnFactory.SelectorThread selectorThread;
+
     SocketChannel sock;
 
     private SelectionKey sk;
@@ -74,6 +80,31 @@ public class NIOServerCnxn extends ServerCnxn {
 
     LinkedBlockingQueue<ByteBuffer> outgoingBuffers = new LinkedBlockingQueue<ByteBuffer>();
 
+    /**
+     * Set once close() gave the queued pooled buffers back, nothing is
+     * queued after that. Guarded by outgoingBuffers.
+     */
+    private boolean outgoingReleased;
+
+    /**
+     * Watch notifications that have not been sent yet, in the order they
+     * were triggered, and the type of the last pending notification of each
+     * path. Both are guarded by this.
+     */
+    private final ArrayList<WatcherEvent> pendingEvents =
+        new ArrayList<WatcherEvent>();
+    private final HashMap<String, Integer> pendingTypes =
+        new HashMap<String, Integer>();
+
+    /**
+     * Writes the responses into the buffer it is pointed at, guarded by
+     * this. Only the pooled response buffers are direct.
+     */
+    private final ByteBufferOutputStream responseStream =
+        new ByteBufferOutputStream(null);
+    private final BinaryOutputArchive responseArchive =
+        new BinaryOutputArchive(new DataOutputStream(responseStream));
+
     int sessionTimeout;
 
     private final ZooKeeperServer zkServer;
@@ -93,11 +124,13 @@ public class NIOServerCnxn extends ServerCnxn {
     int outstandingLimit = 1;
 
     public NIOServerCnxn(ZooKeeperServer zk, SocketChannel sock,
-            SelectionKey sk, NIOServerCnxnFactory factory) throws IOException {
+            SelectionKey sk, NIOServerCnxnFactory factory,
+            NIOServerCnxnFactory.SelectorThread selectorThread) throws IOException {
         this.zkServer = zk;
         this.sock = sock;
         this.sk = sk;
         this.factory = factory;
+        this.selectorThread = selectorThread;
         if (this.factory.login != null) {
             this.zooKeeperSaslServer = new ZooKeeperSaslServer(factory.login);
         }
@@ -145,6 +178,8 @@ public class NIOServerCnxn extends ServerCnxn {
     }
     
     public void sendBuffer(ByteBuffer bb) {
+        // whether a pooled buffer was queued, or given back, by now
+        boolean handedOff = false;
         try {
             if (bb != ServerCnxnFactory.closeConn) {
                 // We check if write interest here because if it is NOT set,
@@ -160,17 +195,31 @@ public class NIOServerCnxn extends ServerCnxn {
                 // if there is nothing left to send, we are done
                 if (bb.remaining() == 0) {
                     packetSent();
+                    handedOff = true;
+                    if (bb.isDirect()) {
+                        selectorThread.returnResponseBuffer(bb);
+                    }
                     return;
                 }
             }
 
-            synchronized(this.factory){
+            synchronized(this.selectorThread){
                 sk.selector().wakeup();
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Add a buffer to outgoingBuffers, sk " + sk
                             + " is valid: " + sk.isValid());
                 }
-                outgoingBuffers.add(bb);
+                synchronized (outgoingBuffers) {
+                    handedOff = true;
+                    if (outgoingReleased) {
+                        // closed, this is never going to be sent
+                        if (bb.isDirect()) {
+                            selectorThread.returnResponseBuffer(bb);
+                        }
+                        return;
+                    }
+                    outgoingBuffers.add(bb);
+                }
                 if (sk.isValid()) {
                     sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
                 }
@@ -178,6 +227,9 @@ public class NIOServerCnxn extends ServerCnxn {
             
         } catch(Exception e) {
             LOG.error("Unexpected Exception: ", e);
+            if (!handedOff && bb.isDirect()) {
+                selectorThread.returnResponseBuffer(bb);
+            }
         }
     }
 
@@ -247,80 +299,86 @@ public class NIOServerCnxn extends ServerCnxn {
                 // ZooLog.CLIENT_DATA_PACKET_TRACE_MASK
                 // "outgoingBuffers.size() = " +
                 // outgoingBuffers.size());
-                if (outgoingBuffers.size() > 0) {
-                    // ZooLog.logTraceMessage(LOG,
-                    // ZooLog.CLIENT_DATA_PACKET_TRACE_MASK,
-                    // "sk " + k + " is valid: " +
-                    // k.isValid());
-
-                    /*
-                     * This is going to reset the buffer position to 0 and the
-                     * limit to the size of the buffer, so that we can fill it
-                     * with data from the non-direct buffers that we need to
-                     * send.
-                     */
-                    ByteBuffer directBuffer = factory.directBuffer;
-                    directBuffer.clear();
-
-                    for (ByteBuffer b : outgoingBuffers) {
-                        if (directBuffer.remaining() < b.remaining()) {
+                // close() gives the pooled buffers back under this lock
+                synchronized (outgoingBuffers) {
+                    if (outgoingBuffers.size() > 0) {
+                        // ZooLog.logTraceMessage(LOG,
+                        // ZooLog.CLIENT_DATA_PACKET_TRACE_MASK,
+                        // "sk " + k + " is valid: " +
+                        // k.isValid());
+
+                        /*
+                         * This is going to reset the buffer position to 0 and the
+                         * limit to the size of the buffer, so that we can fill it
+                         * with data from the non-direct buffers that we need to
+                         * send.
+                         */
+                        ByteBuffer directBuffer = selectorThread.directBuffer;
+                        directBuffer.clear();
+
+                        for (ByteBuffer b : outgoingBuffers) {
+                            if (directBuffer.remaining() < b.remaining()) {
+                                /*
+                                 * When we call put later, if the directBuffer is to
+                                 * small to hold everything, nothing will be copied,
+                                 * so we've got to slice the buffer if it's too big.
+                                 */
+                                b = (ByteBuffer) b.slice().limit(
+                                        directBuffer.remaining());
+                            }
                             /*
-                             * When we call put later, if the directBuffer is to
-                             * small to hold everything, nothing will be copied,
-                             * so we've got to slice the buffer if it's too big.
+                             * put() is going to modify the positions of both
+                             * buffers, put we don't want to change the position of
+                             * the source buffers (we'll do that after the send, if
+                             * needed), so we save and reset the position after the
+                             * copy
                              */
-                            b = (ByteBuffer) b.slice().limit(
-                                    directBuffer.remaining());
+                            int p = b.position();
+                            directBuffer.put(b);
+                            b.position(p);
+                            if (directBuffer.remaining() == 0) {
+                                break;
+                            }
                         }
                         /*
-                         * put() is going to modify the positions of both
-                         * buffers, put we don't want to change the position of
-                         * the source buffers (we'll do that after the send, if
-                         * needed), so we save and reset the position after the
-                         * copy
+                         * Do the flip: limit becomes position, position gets set to
+                         * 0. This sets us up for the write.
                          */
-                        int p = b.position();
-                        directBuffer.put(b);
-                        b.position(p);
-                        if (directBuffer.remaining() == 0) {
-                            break;
+                        directBuffer.flip();
+
+                        int sent = sock.write(directBuffer);
+                        ByteBuffer bb;
+
+                        // Remove the buffers that we have sent
+                        while (outgoingBuffers.size() > 0) {
+                            bb = outgoingBuffers.peek();
+                            if (bb == ServerCnxnFactory.closeConn) {
+                                throw new CloseRequestException("close requested");
+                            }
+                            int left = bb.remaining() - sent;
+                            if (left > 0) {
+                                /*
+                                 * We only partially sent this buffer, so we update
+                                 * the position and exit the loop.
+                                 */
+                                bb.position(bb.position() + sent);
+                                break;
+                            }
+                            packetSent();
+                            /* We've sent the whole buffer, so drop the buffer */
+                            sent -= bb.remaining();
+                            outgoingBuffers.remove();
+                            if (bb.isDirect()) {
+                                selectorThread.returnResponseBuffer(bb);
+                            }
                         }
+                        // ZooLog.logTraceMessage(LOG,
+                        // ZooLog.CLIENT_DATA_PACKET_TRACE_MASK, "after send,
+                        // outgoingBuffers.size() = " + outgoingBuffers.size());
                     }
-                    /*
-                     * Do the flip: limit becomes position, position gets set to
-                     * 0. This sets us up for the write.
-                     */
-                    directBuffer.flip();
-
-                    int sent = sock.write(directBuffer);
-                    ByteBuffer bb;
-
-                    // Remove the buffers that we have sent
-                    while (outgoingBuffers.size() > 0) {
-                        bb = outgoingBuffers.peek();
-                        if (bb == ServerCnxnFactory.closeConn) {
-                            throw new CloseRequestException("close requested");
-                        }
-                        int left = bb.remaining() - sent;
-                        if (left > 0) {
-                            /*
-                             * We only partially sent this buffer, so we update
-                             * the position and exit the loop.
-                             */
-                            bb.position(bb.position() + sent);
-                            break;
-                        }
-                        packetSent();
-                        /* We've sent the whole buffer, so drop the buffer */
-                        sent -= bb.remaining();
-                        outgoingBuffers.remove();
-                    }
-                    // ZooLog.logTraceMessage(LOG,
-                    // ZooLog.CLIENT_DATA_PACKET_TRACE_MASK, "after send,
-                    // outgoingBuffers.size() = " + outgoingBuffers.size());
                 }
 
-                synchronized(this.factory){
+                synchronized(this.selectorThread){
                     if (outgoingBuffers.size() == 0) {
                         if (!initialized
                                 && (sk.interestOps() & SelectionKey.OP_READ) == 0) {
@@ -370,7 +428,7 @@ public class NIOServerCnxn extends ServerCnxn {
             synchronized (this) {
                 outstandingRequests++;
             }
-            synchronized (this.factory) {        
+            synchronized (this.selectorThread) {        
                 // check throttling
                 if (zkServer.getInProcess() > outstandingLimit) {
                     if (LOG.isDebugEnabled()) {
@@ -392,7 +450,7 @@ public class NIOServerCnxn extends ServerCnxn {
     }
 
     public void enableRecv() {
-        synchronized (this.factory) {
+        synchronized (this.selectorThread) {
             sk.selector().wakeup();
             if (sk.isValid()) {
                 int interest = sk.interestOps();
@@ -759,6 +817,12 @@ public class NIOServerCnxn extends ServerCnxn {
             print("ephemerals_count", zkdb.getDataTree().getEphemeralsCount());
             print("approximate_data_size", zkdb.getDataTree().approximateDataSize());
 
+            print("commit_count", stats.getCommitCount());
+            print("avg_commit_batch_size", stats.getAvgCommitBatchSize());
+            print("commit_batch_sizes", stats.getCommitBatchSizesString());
+            print("avg_fsync_time_us", stats.getAvgFsyncMicros());
+            print("max_fsync_time_us", stats.getMaxFsyncMicros());
+
             OperatingSystemMXBean osMbean = ManagementFactory.getOperatingSystemMXBean();
             if(osMbean != null && osMbean instanceof UnixOperatingSystemMXBean) {
                 UnixOperatingSystemMXBean unixos = (UnixOperatingSystemMXBean)osMbean;
@@ -929,7 +993,7 @@ public class NIOServerCnxn extends ServerCnxn {
 
     public long getOutstandingRequests() {
         synchronized (this) {
-            synchronized (this.factory) {
+            synchronized (this.selectorThread) {
                 return outstandingRequests;
             }
         }
@@ -969,6 +1033,8 @@ public class NIOServerCnxn extends ServerCnxn {
             }
 
             factory.unregisterConnection(this);
+            factory.removeSession(sessionId, this);
+            releaseOutgoingBuffers();
 
             if (zkServer != null) {
                 zkServer.removeCnxn(this);
@@ -989,6 +1055,22 @@ public class NIOServerCnxn extends ServerCnxn {
         }
     }
 
+    /**
+     * Drop the responses that were not sent, giving the pooled buffers among
+     * them back to the selector thread.
+     */
+    private void releaseOutgoingBuffers() {
+        synchronized (outgoingBuffers) {
+            outgoingReleased = true;
+            ByteBuffer bb;
+            while ((bb = outgoingBuffers.poll()) != null) {
+                if (bb.isDirect()) {
+                    selectorThread.returnResponseBuffer(bb);
+                }
+            }
+        }
+    }
+
     /**
      * Close resources associated with the sock of this cnxn. 
      */
@@ -1055,30 +1137,18 @@ public class NIOServerCnxn extends ServerCnxn {
      */
     @Override
     synchronized public void sendResponse(ReplyHeader h, Record r, String tag) {
+        // the notifications were triggered before this response was made,
+        // the client must see them first
+        flushNotifications();
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            // Make space for length
-            BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-            try {
-                baos.write(fourBytes);
-                bos.writeRecord(h, "header");
-                if (r != null) {
-                    bos.writeRecord(r, tag);
-                }
-                baos.close();
-            } catch (IOException e) {
-                LOG.error("Error serializing response");
-            }
-            byte b[] = baos.toByteArray();
-            ByteBuffer bb = ByteBuffer.wrap(b);
-            bb.putInt(b.length - 4).rewind();
+            ByteBuffer bb = serializeResponse(h, r, tag);
             sendBuffer(bb);
             if (h.getXid() > 0) {
                 synchronized(this){
                     outstandingRequests--;
                 }
                 // check throttling
-                synchronized (this.factory) {        
+                synchronized (this.selectorThread) {        
                     if (zkServer.getInProcess() < outstandingLimit
                             || outstandingRequests < 1) {
                         sk.selector().wakeup();
@@ -1091,6 +1161,52 @@ public class NIOServerCnxn extends ServerCnxn {
          }
     }
 
+    /**
+     * Serialize a response with its length prefix into a pooled buffer of
+     * the selector thread, or into a buffer of its own if none is free or
+     * it does not fit.
+     */
+    private ByteBuffer serializeResponse(ReplyHeader h, Record r, String tag)
+            throws IOException {
+        ByteBuffer bb = selectorThread.takeResponseBuffer();
+        if (bb != null) {
+            responseStream.bb = bb;
+            try {
+                // Make space for length
+                bb.putInt(0);
+                responseArchive.writeRecord(h, "header");
+                if (r != null) {
+                    responseArchive.writeRecord(r, tag);
+                }
+                bb.putInt(0, bb.position() - 4);
+                bb.flip();
+                return bb;
+            } catch (BufferOverflowException e) {
+                // too large for a pooled buffer
+                selectorThread.returnResponseBuffer(bb);
+            } finally {
+                responseStream.bb = null;
+            }
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Make space for length
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        try {
+            baos.write(fourBytes);
+            bos.writeRecord(h, "header");
+            if (r != null) {
+                bos.writeRecord(r, tag);
+            }
+            baos.close();
+        } catch (IOException e) {
+            LOG.error("Error serializing response");
+        }
+        byte b[] = baos.toByteArray();
+        bb = ByteBuffer.wrap(b);
+        bb.putInt(b.length - 4).rewind();
+        return bb;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -1109,7 +1225,67 @@ public class NIOServerCnxn extends ServerCnxn {
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
 
-        sendResponse(h, e, "notification");
+        if (!factory.coalesceNotifications) {
+            sendResponse(h, e, "notification");
+            return;
+        }
+        Integer last = pendingTypes.put(e.getPath(), e.getType());
+        if (last != null && last.intValue() == e.getType()) {
+            // the same as the last pending event of the path, a second one
+            // would not tell the client anything new
+            return;
+        }
+        pendingEvents.add(e);
+        if (pendingEvents.size() == 1) {
+            selectorThread.scheduleNotificationFlush(this);
+        }
+    }
+
+    /**
+     * Send all the pending watch notifications in one buffer, so that a
+     * burst of events costs a single socket write.
+     */
+    synchronized void flushNotifications() {
+        int count = pendingEvents.size();
+        if (count == 0) {
+            return;
+        }
+        if (sock == null || !sk.isValid()) {
+            // closed, nobody is listening anymore
+            pendingEvents.clear();
+            pendingTypes.clear();
+            return;
+        }
+        ReplyHeader h = new ReplyHeader(-1, -1L, 0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(count * 64);
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        int starts[] = new int[count + 1];
+        try {
+            for (int i = 0; i < count; i++) {
+                starts[i] = baos.size();
+                // Make space for length
+                baos.write(fourBytes);
+                bos.writeRecord(h, "header");
+                bos.writeRecord(pendingEvents.get(i), "notification");
+            }
+            baos.close();
+        } catch (IOException e) {
+            LOG.error("Error serializing notifications");
+        } finally {
+            pendingEvents.clear();
+            pendingTypes.clear();
+        }
+        byte b[] = baos.toByteArray();
+        starts[count] = b.length;
+        ByteBuffer bb = ByteBuffer.wrap(b);
+        for (int i = 0; i < count; i++) {
+            bb.putInt(starts[i], starts[i + 1] - starts[i] - 4);
+        }
+        sendBuffer(bb);
+        // sendBuffer counts the whole batch as a single packet
+        for (int i = 1; i < count; i++) {
+            packetSent();
+        }
     }
 
     /*
@@ -1125,6 +1301,7 @@ public class NIOServerCnxn extends ServerCnxn {
     @Override
     public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
+        factory.addSession(sessionId, this);
     }
 
     @Override
@@ -31,6 +31,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.zookeeper.Login;
 import org.apache.zookeeper.server.auth.SaslServerCallbackHandler;
@@ -61,23 +63,44 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
         }
     }
 
+    /**
+     * Number of threads doing the reads and writes of the client sockets,
+     * each with its own selector. Connections are handed to them in turn by
+     * the thread accepting them.
+     */
+    public static final String NUM_SELECTOR_THREADS =
+        "zookeeper.nio.numSelectorThreads";
+
+    /** Responses that fit are serialized into pooled buffers of this size */
+    static final int RESPONSE_BUFFER_SIZE = 8 * 1024;
+
+    static final int MAX_POOLED_RESPONSE_BUFFERS = 64;
+
     ServerSocketChannel ss;
 
+    /** Only the server socket is registered with this one */
     final Selector selector = Selector.open();
 
-    /**
-     * We use this buffer to do efficient socket I/O. Since there is a single
-     * sender thread per NIOServerCnxn instance, we can use a member variable to
-     * only allocate it once.
-    */
-    final ByteBuffer directBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    SelectorThread[] selectorThreads;
+
+    private int nextSelectorThread;
 
     final HashSet<ServerCnxn> cnxns = new HashSet<ServerCnxn>();
     final HashMap<InetAddress, Set<NIOServerCnxn>> ipMap =
         new HashMap<InetAddress, Set<NIOServerCnxn>>( );
 
+    /** The established connections by their session id */
+    private final ConcurrentHashMap<Long, NIOServerCnxn> sessionMap =
+        new ConcurrentHashMap<Long, NIOServerCnxn>();
+
     int maxClientCnxns = 60;
 
+    /**
+     * If true watch notifications are queued on their connection and sent
+     * in batches by the selector thread, instead of one write per event.
+     */
+    final boolean coalesceNotifications = Boolean.parseBoolean(
+            System.getProperty("zookeeper.coalesceNotifications", "true"));
 
     /**
      * Construct a new server connection factory which will accept an unlimited number
@@ -102,6 +125,19 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
                   + " Zookeeper server to authenticate itself properly: " + e);
             }
         }
+        // a few selector threads keep up with many cores worth of requests
+        int numCores = Runtime.getRuntime().availableProcessors();
+        int numSelectorThreads = Integer.getInteger(NUM_SELECTOR_THREADS,
+                Math.max((int) Math.sqrt((float) numCores / 2), 1));
+        if (numSelectorThreads < 1) {
+            throw new IOException(NUM_SELECTOR_THREADS + " must be at least 1");
+        }
+        LOG.info("Using " + numSelectorThreads + " selector threads");
+        selectorThreads = new SelectorThread[numSelectorThreads];
+        for (int i = 0; i < numSelectorThreads; i++) {
+            selectorThreads[i] = new SelectorThread(
+                    "NIOServerCxn.Selector-" + i + ":" + addr);
+        }
         thread = new Thread(this, "NIOServerCxn.Factory:" + addr);
         thread.setDaemon(true);
         maxClientCnxns = maxcc;
@@ -127,6 +163,9 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
     public void start() {
         // ensure thread is started once and only once
         if (thread.getState() == Thread.State.NEW) {
+            for (SelectorThread t : selectorThreads) {
+                t.start();
+            }
             thread.start();
         }
     }
@@ -173,8 +212,8 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
     }
 
     protected NIOServerCnxn createConnection(SocketChannel sock,
-            SelectionKey sk) throws IOException {
-        return new NIOServerCnxn(zkServer, sock, sk, this);
+            SelectionKey sk, SelectorThread selectorThread) throws IOException {
+        return new NIOServerCnxn(zkServer, sock, sk, this, selectorThread);
     }
 
     private int getClientCnxnCount(InetAddress cl) {
@@ -188,43 +227,21 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
         }
     }
 
+    /**
+     * Accept the connections and hand them to the selector threads in turn,
+     * all the socket I/O is done there.
+     */
     public void run() {
         while (!ss.socket().isClosed()) {
             try {
                 selector.select(1000);
-                Set<SelectionKey> selected;
-                synchronized (this) {
-                    selected = selector.selectedKeys();
-                }
-                ArrayList<SelectionKey> selectedList = new ArrayList<SelectionKey>(
-                        selected);
-                Collections.shuffle(selectedList);
-                for (SelectionKey k : selectedList) {
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for (SelectionKey k : selected) {
                     if ((k.readyOps() & SelectionKey.OP_ACCEPT) != 0) {
-                        SocketChannel sc = ((ServerSocketChannel) k
-                                .channel()).accept();
-                        InetAddress ia = sc.socket().getInetAddress();
-                        int cnxncount = getClientCnxnCount(ia);
-                        if (maxClientCnxns > 0 && cnxncount >= maxClientCnxns){
-                            LOG.warn("Too many connections from " + ia
-                                     + " - max is " + maxClientCnxns );
-                            sc.close();
-                        } else {
-                            LOG.info("Accepted socket connection from "
-                                     + sc.socket().getRemoteSocketAddress());
-                            sc.configureBlocking(false);
-                            SelectionKey sk = sc.register(selector,
-                                    SelectionKey.OP_READ);
-                            NIOServerCnxn cnxn = createConnection(sc, sk);
-                            sk.attach(cnxn);
-                            addCnxn(cnxn);
-                        }
-                    } else if ((k.readyOps() & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0) {
-                        NIOServerCnxn c = (NIOServerCnxn) k.attachment();
-                        c.doIO(k);
+                        doAccept();
                     } else {
                         if (LOG.isDebugEnabled()) {
-                            LOG.debug("Unexpected ops in select "
+                            LOG.debug("Unexpected ops in accept select "
                                       + k.readyOps());
                         }
                     }
@@ -237,17 +254,189 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
             }
         }
         closeAll();
+        for (SelectorThread t : selectorThreads) {
+            t.shutdown();
+        }
         LOG.info("NIOServerCnxn factory exited run method");
     }
 
+    private void doAccept() throws IOException {
+        SocketChannel sc = ss.accept();
+        if (sc == null) {
+            return;
+        }
+        InetAddress ia = sc.socket().getInetAddress();
+        int cnxncount = getClientCnxnCount(ia);
+        if (maxClientCnxns > 0 && cnxncount >= maxClientCnxns){
+            LOG.warn("Too many connections from " + ia
+                     + " - max is " + maxClientCnxns );
+            sc.close();
+        } else {
+            LOG.info("Accepted socket connection from "
+                     + sc.socket().getRemoteSocketAddress());
+            sc.configureBlocking(false);
+            SelectorThread t = selectorThreads[nextSelectorThread];
+            nextSelectorThread = (nextSelectorThread + 1) % selectorThreads.length;
+            // count the connection before accepting the next one, so that
+            // maxClientCnxns holds
+            synchronized (t) {
+                t.wakeupSelector();
+                SelectionKey sk = sc.register(t.selector,
+                        SelectionKey.OP_READ);
+                NIOServerCnxn cnxn = createConnection(sc, sk, t);
+                sk.attach(cnxn);
+                addCnxn(cnxn);
+            }
+        }
+    }
+
+    /**
+     * Reads and writes the sockets of the connections assigned to it.
+     * Registering a channel or changing its interest ops from another thread
+     * blocks while the selector is selecting, so that is done holding the
+     * lock of this thread after waking the selector up, and this thread
+     * takes the lock after every select.
+     */
+    class SelectorThread extends Thread {
+        final Selector selector;
+
+        /**
+         * We use this buffer to do efficient socket I/O. Since there is a
+         * single thread doing the writes of its connections, we can use a
+         * member variable to only allocate it once.
+         */
+        final ByteBuffer directBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        /**
+         * Direct buffers for the connections to serialize responses into,
+         * returned once the response is written. Guarded by itself, a
+         * queue would allocate a node for every buffer returned.
+         */
+        private final ByteBuffer[] responseBuffers =
+            new ByteBuffer[MAX_POOLED_RESPONSE_BUFFERS];
+
+        private int numResponseBuffers;
+
+        /** How many response buffers were allocated, guarded by responseBuffers */
+        private int allocatedResponseBuffers;
+
+        /** Connections with notifications waiting for this thread */
+        private final LinkedBlockingQueue<NIOServerCnxn> notificationFlushQueue =
+            new LinkedBlockingQueue<NIOServerCnxn>();
+
+        /** Reused by every select, only this thread touches it */
+        private final ArrayList<SelectionKey> selectedList =
+            new ArrayList<SelectionKey>();
+
+        private volatile boolean stopped;
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * have this thread send the pending notifications of cnxn on its next
+         * iteration
+         */
+        void scheduleNotificationFlush(NIOServerCnxn cnxn) {
+            notificationFlushQueue.add(cnxn);
+            selector.wakeup();
+        }
+
+        void wakeupSelector() {
+            selector.wakeup();
+        }
+
+        /**
+         * At most MAX_POOLED_RESPONSE_BUFFERS are ever allocated, a response
+         * queued for a slow client holds on to the whole buffer.
+         * @return an empty buffer of RESPONSE_BUFFER_SIZE bytes, to be given
+         * back with returnResponseBuffer, or null if all of them are in use
+         */
+        ByteBuffer takeResponseBuffer() {
+            synchronized (responseBuffers) {
+                if (numResponseBuffers > 0) {
+                    ByteBuffer bb = responseBuffers[--numResponseBuffers];
+                    responseBuffers[numResponseBuffers] = null;
+                    bb.clear();
+                    return bb;
+                }
+                if (allocatedResponseBuffers == responseBuffers.length) {
+                    return null;
+                }
+                allocatedResponseBuffers++;
+            }
+            return ByteBuffer.allocateDirect(RESPONSE_BUFFER_SIZE);
+        }
+
+        void returnResponseBuffer(ByteBuffer bb) {
+            synchronized (responseBuffers) {
+                // no more are allocated than fit, the check only keeps a
+                // buffer given back twice from overflowing the pool
+                if (numResponseBuffers < responseBuffers.length) {
+                    responseBuffers[numResponseBuffers++] = bb;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select(1000);
+                    Set<SelectionKey> selected;
+                    synchronized (this) {
+                        selected = selector.selectedKeys();
+                    }
+                    selectedList.clear();
+                    for (SelectionKey k : selected) {
+                        selectedList.add(k);
+                    }
+                    Collections.shuffle(selectedList);
+                    for (SelectionKey k : selectedList) {
+                        if ((k.readyOps() & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0) {
+                            NIOServerCnxn c = (NIOServerCnxn) k.attachment();
+                            c.doIO(k);
+                        } else {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Unexpected ops in select "
+                                          + k.readyOps());
+                            }
+                        }
+                    }
+                    selected.clear();
+                    flushNotifications();
+                } catch (RuntimeException e) {
+                    LOG.warn("Ignoring unexpected runtime exception", e);
+                } catch (Exception e) {
+                    LOG.warn("Ignoring exception", e);
+                }
+            }
+            LOG.info(getName() + " exited run method");
+        }
+
+        private void flushNotifications() {
+            NIOServerCnxn cnxn;
+            while ((cnxn = notificationFlushQueue.poll()) != null) {
+                cnxn.flushNotifications();
+            }
+        }
+
+        void shutdown() {
+            stopped = true;
+            selector.wakeup();
+        }
+    }
+
     /**
-     * clear all the connections in the selector
+     * clear all the connections in the selectors
      *
      */
     @Override
     @SuppressWarnings("unchecked")
-    synchronized public void closeAll() {
-        selector.wakeup();
+    public void closeAll() {
         HashSet<NIOServerCnxn> cnxns;
         synchronized (this.cnxns) {
             cnxns = (HashSet<NIOServerCnxn>)this.cnxns.clone();
@@ -262,6 +451,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
                          + Long.toHexString(cnxn.sessionId), e);
             }
         }
+        // let the selectors drop the cancelled keys
+        for (SelectorThread t : selectorThreads) {
+            t.wakeupSelector();
+        }
     }
 
     public void shutdown() {
@@ -270,6 +463,10 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
             closeAll();
             thread.interrupt();
             thread.join();
+            for (SelectorThread t : selectorThreads) {
+                t.shutdown();
+                t.join();
+            }
             if (login != null) {
                 login.shutdown();
             }
@@ -280,6 +477,9 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
         }
         try {
             selector.close();
+            for (SelectorThread t : selectorThreads) {
+                t.selector.close();
+            }
         } catch (IOException e) {
             LOG.warn("Selector closing", e);
         }
@@ -288,34 +488,33 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory implements Runnable
         }
     }
 
-    @Override
-    public synchronized void closeSession(long sessionId) {
-        selector.wakeup();
-        closeSessionWithoutWakeup(sessionId);
+    void addSession(long sessionId, NIOServerCnxn cnxn) {
+        sessionMap.put(sessionId, cnxn);
     }
 
-    @SuppressWarnings("unchecked")
-    private void closeSessionWithoutWakeup(long sessionId) {
-        HashSet<NIOServerCnxn> cnxns;
-        synchronized (this.cnxns) {
-            cnxns = (HashSet<NIOServerCnxn>)this.cnxns.clone();
-        }
+    void removeSession(long sessionId, NIOServerCnxn cnxn) {
+        sessionMap.remove(sessionId, cnxn);
+    }
 
-        for (NIOServerCnxn cnxn : cnxns) {
-            if (cnxn.getSessionId() == sessionId) {
-                try {
-                    cnxn.close();
-                } catch (Exception e) {
-                    LOG.warn("exception during session close", e);
-                }
-                break;
+    @Override
+    public void closeSession(long sessionId) {
+        NIOServerCnxn cnxn = sessionMap.get(sessionId);
+        if (cnxn != null) {
+            try {
+                cnxn.close();
+            } catch (Exception e) {
+                LOG.warn("exception during session close", e);
             }
+            cnxn.selectorThread.wakeupSelector();
         }
     }
 
     @Override
     public void join() throws InterruptedException {
         thread.join();
+        for (SelectorThread t : selectorThreads) {
+            t.join();
+        }
     }
 
     @Override
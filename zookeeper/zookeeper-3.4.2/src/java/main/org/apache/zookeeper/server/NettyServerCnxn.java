@@ -570,6 +570,12 @@ public class NettyServerCnxn extends ServerCnxn {
             print("ephemerals_count", zkdb.getDataTree().getEphemeralsCount());
             print("approximate_data_size", zkdb.getDataTree().approximateDataSize());
 
+            print("commit_count", stats.getCommitCount());
+            print("avg_commit_batch_size", stats.getAvgCommitBatchSize());
+            print("commit_batch_sizes", stats.getCommitBatchSizesString());
+            print("avg_fsync_time_us", stats.getAvgFsyncMicros());
+            print("max_fsync_time_us", stats.getMaxFsyncMicros());
+
             OperatingSystemMXBean osMbean = ManagementFactory.getOperatingSystemMXBean();
             if(osMbean != null && osMbean instanceof UnixOperatingSystemMXBean) {
                 UnixOperatingSystemMXBean unixos = (UnixOperatingSystemMXBean)osMbean;
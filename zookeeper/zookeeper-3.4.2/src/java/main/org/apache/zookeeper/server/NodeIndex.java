@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+/**
+ * The lookup structure a DataTree uses to find its DataNodes by path. The
+ * tree of DataNodes stays the source of truth, the index only has to map
+ * every path in that tree to its node. Both "" and "/" map to the root.
+ * <p>
+ * Nodes are always added and removed together with their parent and their
+ * name (the last path segment). The name is the same String instance the
+ * parent keeps in its children, which lets an index share that storage
+ * instead of holding another copy of it.
+ */
+public interface NodeIndex {
+    /**
+     * @param path the absolute path of the node
+     * @return the node at path or null if there is none
+     */
+    DataNode get(String path);
+
+    /**
+     * Adds a node to the index.
+     *
+     * @param path the absolute path of the node
+     * @param parent the parent node, already in the index
+     * @param name the last segment of path, as stored in the parent
+     * @param node the node to add
+     */
+    void put(String path, DataNode parent, String name, DataNode node);
+
+    /**
+     * Removes a node from the index.
+     *
+     * @param path the absolute path of the node
+     * @param parent the parent node
+     * @param name the last segment of path, as stored in the parent
+     * @return the removed node or null if there was none
+     */
+    DataNode remove(String path, DataNode parent, String name);
+
+    /**
+     * Makes node the root of the index, reachable as both "" and "/".
+     */
+    void setRoot(DataNode root);
+
+    /**
+     * @return the number of paths in the index, the root counts as one path
+     * for each of its two aliases
+     */
+    int size();
+
+    /**
+     * @return the sum of the path lengths and data lengths of all nodes
+     */
+    long approximateDataSize();
+
+    void clear();
+
+    /**
+     * Removes all nodes and sizes the index for the number of nodes about
+     * to be added, like the nodes of a snapshot being loaded.
+     *
+     * @param expectedSize the expected number of nodes
+     */
+    void clear(int expectedSize);
+}
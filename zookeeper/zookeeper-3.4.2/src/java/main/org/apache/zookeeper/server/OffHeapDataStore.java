@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store for znode payloads kept outside of the java heap.
+ * <p>
+ * Direct memory is reserved lazily in slabs of {@link #SLAB_SIZE} bytes, up
+ * to the configured capacity. A slab is dedicated to a single power of two
+ * size class the first time that class runs out of chunks, and chunks that
+ * are released go back to the free list of their class, so the store never
+ * fragments and never hands memory back once reserved. The price is that a
+ * payload uses up to twice its length in direct memory.
+ * <p>
+ * Payloads shorter than the configured minimum stay on the heap, as do
+ * payloads that do not fit once the capacity is exhausted. The caller
+ * decides what to do in that case, {@link #store(byte[])} just returns
+ * null.
+ * <p>
+ * A stored payload is reference counted. The node holding it owns the
+ * first reference; readers that hand the payload to another thread retain
+ * it first and release it when they are done. The chunk is recycled when the
+ * last reference is released.
+ */
+public class OffHeapDataStore {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(OffHeapDataStore.class);
+
+    /** the smallest size class, 64 bytes */
+    static final int MIN_CLASS_SHIFT = 6;
+
+    /** the largest size class, which is also the slab size, 1MB */
+    static final int MAX_CLASS_SHIFT = 20;
+
+    static final int SLAB_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    /**
+     * create the store configured by the zookeeper.offHeapData.size and
+     * zookeeper.offHeapData.minSize system properties
+     *
+     * @return the store, or null if off heap payloads are disabled
+     */
+    static OffHeapDataStore createFromSystemProperties() {
+        long capacity = Long.getLong("zookeeper.offHeapData.size", 0);
+        if (capacity <= 0) {
+            return null;
+        }
+        int minSize = Integer.getInteger("zookeeper.offHeapData.minSize",
+                4096);
+        return new OffHeapDataStore(capacity, minSize);
+    }
+
+    private final long capacity;
+
+    private final int minSize;
+
+    private final ByteBuffer[] slabs;
+
+    private int slabCount;
+
+    private final FreeList[] freeLists;
+
+    private long usedBytes;
+
+    private long dataBytes;
+
+    private long payloadCount;
+
+    /**
+     * @param capacity
+     *            the most direct memory this store will reserve, rounded
+     *            down to a whole number of slabs
+     * @param minSize
+     *            payloads shorter than this stay on the heap
+     */
+    public OffHeapDataStore(long capacity, int minSize) {
+        long count = capacity / SLAB_SIZE;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off heap capacity too large: "
+                    + capacity);
+        }
+        this.slabs = new ByteBuffer[(int) count];
+        this.capacity = count * SLAB_SIZE;
+        this.minSize = Math.max(minSize, 1);
+        this.freeLists = new FreeList[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new FreeList();
+        }
+    }
+
+    /**
+     * copy a payload into the store
+     *
+     * @param data
+     *            the payload to store
+     * @return the stored payload holding one reference, or null if the
+     *         payload should stay on the heap
+     */
+    public Payload store(byte[] data) {
+        if (data == null || data.length < minSize || data.length > SLAB_SIZE) {
+            return null;
+        }
+        int sizeClass = sizeClass(data.length);
+        long chunk;
+        ByteBuffer slab;
+        synchronized (this) {
+            chunk = allocate(sizeClass);
+            if (chunk < 0) {
+                return null;
+            }
+            slab = slabs[slabIndex(chunk)];
+            usedBytes += 1 << (sizeClass + MIN_CLASS_SHIFT);
+            dataBytes += data.length;
+            payloadCount++;
+        }
+        ByteBuffer dst = slab.duplicate();
+        dst.position(chunkOffset(chunk));
+        dst.put(data);
+        return new Payload(this, slab, chunk, sizeClass, data.length);
+    }
+
+    private long allocate(int sizeClass) {
+        FreeList free = freeLists[sizeClass];
+        if (free.size == 0) {
+            if (slabCount == slabs.length) {
+                return -1;
+            }
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            } catch (OutOfMemoryError e) {
+                LOG.warn("Unable to reserve an off heap slab, "
+                        + "keeping payloads on the heap", e);
+                return -1;
+            }
+            int index = slabCount++;
+            slabs[index] = slab;
+            int chunkSize = 1 << (sizeClass + MIN_CLASS_SHIFT);
+            for (int off = SLAB_SIZE - chunkSize; off >= 0; off -= chunkSize) {
+                free.push(((long) index << 32) | off);
+            }
+        }
+        return free.pop();
+    }
+
+    private synchronized void free(Payload p) {
+        freeLists[p.sizeClass].push(p.chunk);
+        usedBytes -= 1 << (p.sizeClass + MIN_CLASS_SHIFT);
+        dataBytes -= p.length;
+        payloadCount--;
+    }
+
+    static int sizeClass(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    private static int slabIndex(long chunk) {
+        return (int) (chunk >>> 32);
+    }
+
+    private static int chunkOffset(long chunk) {
+        return (int) chunk;
+    }
+
+    /**
+     * @return the most direct memory this store will reserve
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the direct memory reserved so far
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * @return the direct memory taken by chunks holding payloads
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the total length of the payloads held in the store
+     */
+    public synchronized long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return the number of payloads held in the store
+     */
+    public synchronized long getPayloadCount() {
+        return payloadCount;
+    }
+
+    /**
+     * A payload held in the store.
+     */
+    public static final class Payload {
+        private static final AtomicIntegerFieldUpdater<Payload> REFS =
+            AtomicIntegerFieldUpdater.newUpdater(Payload.class, "refs");
+
+        private final OffHeapDataStore store;
+
+        private final ByteBuffer slab;
+
+        private final long chunk;
+
+        private final int sizeClass;
+
+        private final int length;
+
+        private volatile int refs = 1;
+
+        Payload(OffHeapDataStore store, ByteBuffer slab, long chunk,
+                int sizeClass, int length) {
+            this.store = store;
+            this.slab = slab;
+            this.chunk = chunk;
+            this.sizeClass = sizeClass;
+            this.length = length;
+        }
+
+        /**
+         * @return the length of the payload
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * take another reference to the payload. The caller must already
+         * hold a reference, or hold the lock of the node holding one.
+         */
+        public void retain() {
+            if (REFS.incrementAndGet(this) <= 1) {
+                throw new IllegalStateException("Payload already released");
+            }
+        }
+
+        /**
+         * drop a reference to the payload, recycling its chunk when this
+         * was the last one
+         */
+        public void release() {
+            int n = REFS.decrementAndGet(this);
+            if (n == 0) {
+                store.free(this);
+            } else if (n < 0) {
+                throw new IllegalStateException("Payload released twice");
+            }
+        }
+
+        /**
+         * @return a read only view of the payload, positioned at its first
+         *         byte. The view is only valid while a reference is held.
+         */
+        public ByteBuffer buffer() {
+            ByteBuffer b = slab.asReadOnlyBuffer();
+            int off = chunkOffset(chunk);
+            b.limit(off + length);
+            b.position(off);
+            return b;
+        }
+
+        /**
+         * @return a copy of the payload on the heap
+         */
+        public byte[] toArray() {
+            byte[] b = new byte[length];
+            buffer().get(b);
+            return b;
+        }
+    }
+
+    /**
+     * a stack of free chunks of one size class, each chunk encoded as the
+     * slab index in the high word and the offset in the slab in the low word
+     */
+    private static final class FreeList {
+        long[] chunks = new long[16];
+
+        int size;
+
+        void push(long chunk) {
+            if (size == chunks.length) {
+                long[] n = new long[size * 2];
+                System.arraycopy(chunks, 0, n, 0, size);
+                chunks = n;
+            }
+            chunks[size++] = chunk;
+        }
+
+        long pop() {
+            return chunks[--size];
+        }
+    }
+}
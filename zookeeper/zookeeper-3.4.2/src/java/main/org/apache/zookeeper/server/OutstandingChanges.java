@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The changes PrepRequestProcessor has made that FinalRequestProcessor has
+ * not applied to the DataTree yet. The changes to a path form a chain from
+ * the newest one, which is found without locking, and all changes are also
+ * linked in zxid order so the applied ones are dropped from the head and a
+ * failed multi is rolled back from the tail, each record in constant time.
+ *
+ * PrepRequestProcessor is the only one adding and rolling back changes and
+ * FinalRequestProcessor the only one dropping them.
+ */
+class OutstandingChanges {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(OutstandingChanges.class);
+
+    private final ConcurrentHashMap<String, ChangeRecord> changesForPath =
+        new ConcurrentHashMap<String, ChangeRecord>();
+
+    /* the zxid ordered list, guarded by this */
+    private ChangeRecord head;
+
+    private ChangeRecord tail;
+
+    private int size;
+
+    /**
+     * @return the newest outstanding change to path, or null if there isn't
+     * one and the DataTree is up to date
+     */
+    ChangeRecord get(String path) {
+        return changesForPath.get(path);
+    }
+
+    synchronized void add(ChangeRecord c) {
+        c.prevForPath = changesForPath.put(c.path, c);
+        c.prev = tail;
+        c.next = null;
+        if (tail == null) {
+            head = c;
+        } else {
+            tail.next = c;
+        }
+        tail = c;
+        size++;
+    }
+
+    /**
+     * Drop the changes up to zxid, they must have been applied to the
+     * DataTree already.
+     */
+    synchronized void trim(long zxid) {
+        while (head != null && head.zxid <= zxid) {
+            ChangeRecord cr = head;
+            if (cr.zxid < zxid) {
+                LOG.warn("Zxid outstanding " + cr.zxid
+                        + " is less than current " + zxid);
+            }
+            head = cr.next;
+            if (head == null) {
+                tail = null;
+            } else {
+                head.prev = null;
+            }
+            cr.next = null;
+            cr.prevForPath = null;
+            cr.applied = true;
+            size--;
+            // a newer change to the path may be outstanding
+            changesForPath.remove(cr.path, cr);
+        }
+    }
+
+    /**
+     * Undo the changes made by the txn zxid, which must be the newest ones.
+     * Each path gets back the change it had before unless that one has been
+     * applied in the meantime.
+     */
+    synchronized void rollback(long zxid) {
+        while (tail != null && tail.zxid == zxid) {
+            ChangeRecord c = tail;
+            tail = c.prev;
+            if (tail == null) {
+                head = null;
+            } else {
+                tail.next = null;
+            }
+            c.prev = null;
+            size--;
+            ChangeRecord prior = c.prevForPath;
+            c.prevForPath = null;
+            if (prior != null && !prior.applied) {
+                changesForPath.replace(c.path, c, prior);
+            } else {
+                changesForPath.remove(c.path, c);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the outstanding changes in zxid order
+     */
+    synchronized List<ChangeRecord> getChanges() {
+        List<ChangeRecord> changes = new ArrayList<ChangeRecord>(size);
+        for (ChangeRecord c = head; c != null; c = c.next) {
+            changes.add(c);
+        }
+        return changes;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.InputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the chunks written by {@link ParallelSnapshotWriter} into a
+ * {@link DataTree}, decoding them on several threads.
+ * <p>
+ * The thread reading the snapshot hands each chunk to a pool, which checks
+ * the checksum of the chunk, decodes its nodes and links each node to its
+ * parent when the parent is in the same chunk. As a chunk is a part of a
+ * preorder walk, that parent is on the stack of the ancestors of the node
+ * kept while decoding. Only the nodes at the start of a chunk can have their
+ * parent in an earlier chunk. The reading thread links those once the
+ * earlier chunks are linked, in the order of the chunks, and adds the
+ * ephemerals and the acl references each chunk gathered. A couple of chunks
+ * per thread at most wait to be decoded.
+ */
+class ParallelSnapshotLoader {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ParallelSnapshotLoader.class);
+
+    /** chunks read ahead per thread */
+    private static final int CHUNKS_AHEAD = 2;
+
+    private static final AtomicInteger loaderCount = new AtomicInteger();
+
+    private final DataTree tree;
+
+    private final int threads;
+
+    /**
+     * the nodes of a chunk the reading thread has left to deal with
+     */
+    private static class DecodedChunk {
+        /** paths and nodes whose parent was not in the chunk */
+        final List<String> orphanPaths = new ArrayList<String>();
+
+        final List<DataNode> orphans = new ArrayList<DataNode>();
+
+        final List<String> ephemeralPaths = new ArrayList<String>();
+
+        final List<Long> ephemeralOwners = new ArrayList<Long>();
+
+        final Map<Long, int[]> aclUsage = new HashMap<Long, int[]>();
+
+        int nodes;
+    }
+
+    ParallelSnapshotLoader(DataTree tree, int threads) {
+        this.tree = tree;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * read the chunks into the tree, which is emptied first
+     */
+    void load(InputArchive ia) throws IOException {
+        tree.prepareRestore(ia.readInt("nodeCount"));
+        final int id = loaderCount.incrementAndGet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SnapshotLoader-" + id + "-"
+                                + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            LinkedList<Future<DecodedChunk>> pending =
+                new LinkedList<Future<DecodedChunk>>();
+            int chunks = 0;
+            int nodes = 0;
+            byte[] chunk;
+            while ((chunk = readBuffer(ia)) != null) {
+                long checksum = ia.readLong("checksum");
+                pending.add(executor.submit(new DecodeTask(chunk, checksum)));
+                chunks++;
+                while (pending.size() > threads * CHUNKS_AHEAD) {
+                    nodes += link(pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                nodes += link(pending.removeFirst());
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Loaded " + nodes + " nodes from " + chunks
+                        + " chunks on " + threads + " threads");
+            }
+        } finally {
+            executor.shutdownNow();
+            // a chunk still being decoded adds its nodes to the tree, which
+            // must not happen once the caller moves on
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE,
+                            TimeUnit.MILLISECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] readBuffer(InputArchive ia) throws IOException {
+        if (ia instanceof BinaryInputArchive) {
+            return ((BinaryInputArchive) ia).readBuffer("chunk",
+                    ParallelSnapshotWriter.MAX_CHUNK_LENGTH);
+        }
+        return ia.readBuffer("chunk");
+    }
+
+    /**
+     * link the nodes of a decoded chunk whose parent is in an earlier chunk
+     *
+     * @return the number of nodes in the chunk
+     */
+    private int link(Future<DecodedChunk> future) throws IOException {
+        DecodedChunk decoded;
+        try {
+            decoded = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while loading the snapshot");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            IOException ioe = new IOException("Unable to load the snapshot");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+        for (int i = 0; i < decoded.orphans.size(); i++) {
+            String path = decoded.orphanPaths.get(i);
+            DataNode node = decoded.orphans.get(i);
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash == -1) {
+                tree.restoreRoot(node);
+                continue;
+            }
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = tree.getNode(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find " +
+                        "parent " + parentPath + " of path " + path);
+            }
+            tree.restoreLink(path, parent, path.substring(lastSlash + 1),
+                    node);
+        }
+        for (int i = 0; i < decoded.ephemeralPaths.size(); i++) {
+            tree.restoreEphemeral(decoded.ephemeralOwners.get(i),
+                    decoded.ephemeralPaths.get(i));
+        }
+        for (Map.Entry<Long, int[]> e : decoded.aclUsage.entrySet()) {
+            tree.restoreAclUsage(e.getKey(), e.getValue()[0]);
+        }
+        return decoded.nodes;
+    }
+
+    /**
+     * checks and decodes a chunk, linking the nodes whose parent is in it
+     */
+    private class DecodeTask implements Callable<DecodedChunk> {
+        private final byte[] data;
+
+        private final long checksum;
+
+        DecodeTask(byte[] data, long checksum) {
+            this.data = data;
+            this.checksum = checksum;
+        }
+
+        public DecodedChunk call() throws IOException {
+            Adler32 crc = new Adler32();
+            crc.update(data, 0, data.length);
+            if (crc.getValue() != checksum) {
+                throw new IOException("CRC corruption in snapshot chunk");
+            }
+            DecodedChunk decoded = new DecodedChunk();
+            // the ancestors of the last node, deepest last
+            ArrayList<String> stackPaths = new ArrayList<String>();
+            ArrayList<DataNode> stackNodes = new ArrayList<DataNode>();
+            InputArchive ia = BinaryInputArchive.getArchive(
+                    new ByteArrayInputStream(data));
+            String path = ia.readString("path");
+            while (!path.equals("/")) {
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                decoded.nodes++;
+                tree.restoreData(node);
+                int[] usage = decoded.aclUsage.get(node.acl);
+                if (usage == null) {
+                    decoded.aclUsage.put(node.acl, new int[] { 1 });
+                } else {
+                    usage[0]++;
+                }
+                int top = stackPaths.size() - 1;
+                while (top >= 0 && !isAncestor(stackPaths.get(top), path)) {
+                    stackPaths.remove(top);
+                    stackNodes.remove(top);
+                    top--;
+                }
+                int lastSlash = path.lastIndexOf('/');
+                if (lastSlash != -1 && top >= 0
+                        && stackPaths.get(top).length() == lastSlash) {
+                    tree.restoreLink(path, stackNodes.get(top),
+                            path.substring(lastSlash + 1), node);
+                } else {
+                    decoded.orphanPaths.add(path);
+                    decoded.orphans.add(node);
+                }
+                long eowner = node.getEphemeralOwner();
+                if (eowner != 0 && lastSlash != -1) {
+                    decoded.ephemeralPaths.add(path);
+                    decoded.ephemeralOwners.add(eowner);
+                }
+                stackPaths.add(path);
+                stackNodes.add(node);
+                path = ia.readString("path");
+            }
+            return decoded;
+        }
+    }
+
+    private static boolean isAncestor(String ancestor, String path) {
+        return path.length() > ancestor.length()
+            && path.charAt(ancestor.length()) == '/'
+            && path.startsWith(ancestor);
+    }
+}
@@ -0,0 +1,404 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the nodes of a {@link DataTree} in chunks that several threads
+ * serialize at once.
+ * <p>
+ * The preorder walk a snapshot is made of is split into ranges, each either
+ * a single node or the whole subtree of a node. Starting from the subtree of
+ * the root, the subtree whose root has the most children is split into its
+ * root and the subtrees of the children, until there are a few subtrees per
+ * thread. Consecutive ranges are grouped into tasks, which the threads
+ * serialize into chunks of about chunkSize bytes each. The number of nodes
+ * in the tree when the snapshot began comes first, as a hint for the
+ * reader. The chunks follow in the order of the walk, so a parent still
+ * comes before its children: each chunk as a buffer of path and node records
+ * ended by "/", followed by its Adler32 checksum, and a null buffer after the
+ * last chunk. {@link ParallelSnapshotLoader} reads them back. A task may
+ * only run a couple of chunks ahead of the writer, which bounds the memory
+ * used to a few chunks per thread.
+ */
+class ParallelSnapshotWriter {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ParallelSnapshotWriter.class);
+
+    /**
+     * the longest chunk accepted when reading. A chunk is cut once it
+     * reaches the chunk size, so it can exceed it by one node.
+     */
+    static final int MAX_CHUNK_LENGTH = 256 * 1024 * 1024;
+
+    /** subtrees to split the walk into per thread */
+    private static final int SUBTREES_PER_THREAD = 4;
+
+    /** tasks to group the ranges into per thread, at most */
+    private static final int TASKS_PER_THREAD = 16;
+
+    /** chunks a task may serialize ahead of the writer */
+    private static final int CHUNKS_AHEAD = 2;
+
+    private static final String[] NO_CHILDREN = new String[0];
+
+    private static final AtomicInteger writerCount = new AtomicInteger();
+
+    private final DataTree tree;
+
+    private final SnapshotView view;
+
+    private final int threads;
+
+    private final int chunkSize;
+
+    /**
+     * a single node, or the whole subtree of the node
+     */
+    static class Range {
+        final String path;
+
+        final boolean subtree;
+
+        /** the children of the node, used to split the subtree */
+        final String[] children;
+
+        Range(String path, boolean subtree, String[] children) {
+            this.path = path;
+            this.subtree = subtree;
+            this.children = children;
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+
+        final int length;
+
+        final long checksum;
+
+        final Throwable error;
+
+        Chunk(byte[] data, int length, long checksum, Throwable error) {
+            this.data = data;
+            this.length = length;
+            this.checksum = checksum;
+            this.error = error;
+        }
+    }
+
+    /** the chunk a task ends with */
+    private static final Chunk END = new Chunk(null, 0, 0, null);
+
+    /**
+     * an unsynchronized ByteArrayOutputStream that hands its array over
+     * rather than copying it
+     */
+    private static class ChunkBuffer extends OutputStream {
+        byte[] buf;
+
+        int count;
+
+        ChunkBuffer(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private void ensure(int len) {
+            if (count + len > buf.length) {
+                byte[] n = new byte[Math.max(buf.length << 1, count + len)];
+                System.arraycopy(buf, 0, n, 0, count);
+                buf = n;
+            }
+        }
+
+        public void write(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+
+    /**
+     * @param view the view to write the tree as of, null for a fuzzy
+     *        snapshot
+     */
+    ParallelSnapshotWriter(DataTree tree, SnapshotView view, int threads,
+            int chunkSize) {
+        this.tree = tree;
+        this.view = view;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_LENGTH / 4));
+    }
+
+    /**
+     * split the walk of the tree into ranges, in the order of the walk
+     */
+    List<Range> split() {
+        List<Range> ranges = new ArrayList<Range>();
+        String[] rootChildren = tree.getChildrenAsOf("", view);
+        if (rootChildren == null) {
+            return ranges;
+        }
+        ranges.add(new Range("", true, rootChildren));
+        int subtrees = 1;
+        int target = threads * SUBTREES_PER_THREAD;
+        // a split of a node with a single child adds no subtree, so the
+        // number of splits is bounded too
+        for (int splits = 0; subtrees < target && splits < target; splits++) {
+            int widest = -1;
+            for (int i = 0; i < ranges.size(); i++) {
+                Range r = ranges.get(i);
+                if (r.subtree && r.children.length > 0 && (widest == -1
+                        || r.children.length > ranges.get(widest).children.length)) {
+                    widest = i;
+                }
+            }
+            if (widest == -1) {
+                break;
+            }
+            Range r = ranges.remove(widest);
+            List<Range> split = new ArrayList<Range>(r.children.length + 1);
+            split.add(new Range(r.path, false, NO_CHILDREN));
+            for (String child : r.children) {
+                String path = r.path + "/" + child;
+                String[] children = tree.getChildrenAsOf(path, view);
+                if (children != null) {
+                    split.add(new Range(path, true, children));
+                }
+            }
+            ranges.addAll(widest, split);
+            subtrees += split.size() - 2;
+        }
+        return ranges;
+    }
+
+    /**
+     * group consecutive ranges into at most a few tasks per thread
+     */
+    List<List<Range>> group(List<Range> ranges) {
+        int subtrees = 0;
+        for (Range r : ranges) {
+            if (r.subtree) {
+                subtrees++;
+            }
+        }
+        int maxTasks = threads * TASKS_PER_THREAD;
+        int perTask = Math.max(1, (subtrees + maxTasks - 1) / maxTasks);
+        List<List<Range>> tasks = new ArrayList<List<Range>>();
+        List<Range> task = new ArrayList<Range>();
+        int count = 0;
+        for (Range r : ranges) {
+            task.add(r);
+            if (r.subtree && ++count == perTask) {
+                tasks.add(task);
+                task = new ArrayList<Range>();
+                count = 0;
+            }
+        }
+        if (!task.isEmpty()) {
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * write the chunks of the tree followed by the null buffer that ends them
+     */
+    void write(OutputArchive oa) throws IOException {
+        oa.writeInt(tree.getNodeCount(), "nodeCount");
+        List<List<Range>> groups = group(split());
+        final int id = writerCount.incrementAndGet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SnapshotWriter-" + id + "-"
+                                + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            List<ChunkTask> tasks = new ArrayList<ChunkTask>(groups.size());
+            for (List<Range> group : groups) {
+                ChunkTask task = new ChunkTask(group);
+                tasks.add(task);
+                executor.execute(task);
+            }
+            int chunks = 0;
+            for (ChunkTask task : tasks) {
+                Chunk chunk;
+                while ((chunk = task.chunks.take()) != END) {
+                    if (chunk.error != null) {
+                        if (chunk.error instanceof IOException) {
+                            throw (IOException) chunk.error;
+                        }
+                        IOException ioe = new IOException(
+                                "Unable to serialize the snapshot");
+                        ioe.initCause(chunk.error);
+                        throw ioe;
+                    }
+                    if (oa instanceof BinaryOutputArchive) {
+                        ((BinaryOutputArchive) oa).writeBuffer(ByteBuffer.wrap(
+                                chunk.data, 0, chunk.length), "chunk");
+                    } else {
+                        byte[] data = new byte[chunk.length];
+                        System.arraycopy(chunk.data, 0, data, 0, chunk.length);
+                        oa.writeBuffer(data, "chunk");
+                    }
+                    oa.writeLong(chunk.checksum, "checksum");
+                    task.free.offer(chunk.data);
+                    chunks++;
+                }
+            }
+            oa.writeBuffer(null, "chunk");
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Wrote " + chunks + " chunks serialized by "
+                        + tasks.size() + " tasks on " + threads + " threads");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while writing the snapshot");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the size of a new chunk buffer, which the last node written
+     *         into it usually leaves some room in
+     */
+    private int initialBufferSize() {
+        return chunkSize + Math.min(chunkSize, 64 * 1024);
+    }
+
+    /**
+     * serializes a group of ranges into chunks, which it queues for the
+     * writer. The writer gives the arrays of the chunks back once written.
+     */
+    private class ChunkTask implements Runnable {
+        private final List<Range> ranges;
+
+        final BlockingQueue<Chunk> chunks =
+            new ArrayBlockingQueue<Chunk>(CHUNKS_AHEAD);
+
+        final BlockingQueue<byte[]> free =
+            new ArrayBlockingQueue<byte[]>(CHUNKS_AHEAD + 1);
+
+        private ChunkBuffer bytes;
+
+        private BinaryOutputArchive oa;
+
+        private int nodes;
+
+        ChunkTask(List<Range> ranges) {
+            this.ranges = ranges;
+        }
+
+        public void run() {
+            bytes = new ChunkBuffer(new byte[initialBufferSize()]);
+            oa = BinaryOutputArchive.getArchive(bytes);
+            try {
+                try {
+                    for (Range r : ranges) {
+                        String[] children = tree.writeNode(oa, r.path, view);
+                        if (children == null) {
+                            continue;
+                        }
+                        written();
+                        if (r.subtree && children.length > 0) {
+                            writeChildren(new StringBuilder(r.path), children);
+                        }
+                    }
+                    if (nodes > 0) {
+                        cut();
+                    }
+                    chunks.put(END);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable t) {
+                    chunks.put(new Chunk(null, 0, 0, t));
+                }
+            } catch (InterruptedException e) {
+                // the writer gave up on the snapshot
+            }
+        }
+
+        private void writeChildren(StringBuilder path, String[] children)
+                throws IOException, InterruptedException {
+            path.append('/');
+            int off = path.length();
+            for (String child : children) {
+                path.delete(off, Integer.MAX_VALUE);
+                path.append(child);
+                String[] grandChildren =
+                    tree.writeNode(oa, path.toString(), view);
+                if (grandChildren == null) {
+                    continue;
+                }
+                written();
+                if (grandChildren.length > 0) {
+                    writeChildren(path, grandChildren);
+                }
+            }
+        }
+
+        private void written() throws IOException, InterruptedException {
+            nodes++;
+            if (bytes.count >= chunkSize) {
+                cut();
+            }
+        }
+
+        private void cut() throws IOException, InterruptedException {
+            oa.writeString("/", "path");
+            Adler32 crc = new Adler32();
+            crc.update(bytes.buf, 0, bytes.count);
+            chunks.put(new Chunk(bytes.buf, bytes.count, crc.getValue(), null));
+            byte[] next = free.poll();
+            bytes.buf = next == null ? new byte[initialBufferSize()] : next;
+            bytes.count = 0;
+            nodes = 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default NodeIndex, a hashtable keyed by the full path of every node.
+ * Lookups are a single hash probe but each node costs a map entry and a copy
+ * of its full path.
+ */
+public class PathNodeIndex implements NodeIndex {
+    private volatile ConcurrentHashMap<String, DataNode> nodes =
+        new ConcurrentHashMap<String, DataNode>();
+
+    public DataNode get(String path) {
+        return nodes.get(path);
+    }
+
+    public void put(String path, DataNode parent, String name, DataNode node) {
+        nodes.put(path, node);
+    }
+
+    public DataNode remove(String path, DataNode parent, String name) {
+        return nodes.remove(path);
+    }
+
+    public void setRoot(DataNode root) {
+        /* Rather than fight it, let root have an alias */
+        nodes.put("", root);
+        nodes.put("/", root);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long approximateDataSize() {
+        long result = 0;
+        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
+            DataNode value = entry.getValue();
+            synchronized (value) {
+                result += entry.getKey().length();
+                result += value.getDataLength();
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    public void clear(int expectedSize) {
+        // the root has two aliases
+        nodes = new ConcurrentHashMap<String, DataNode>(
+                capacityFor(expectedSize + 2));
+    }
+
+    /**
+     * @return the initial capacity of a map that holds size entries without
+     *         growing
+     */
+    static int capacityFor(int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+}
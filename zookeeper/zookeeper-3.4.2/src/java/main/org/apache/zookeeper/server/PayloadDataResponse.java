@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+
+/**
+ * A getData response that serializes the same as {@link GetDataResponse},
+ * but writes an off heap payload straight from the off heap store rather
+ * than from a copy on the heap.
+ */
+public class PayloadDataResponse implements Record {
+    private byte[] data;
+
+    private OffHeapDataStore.Payload payload;
+
+    private Stat stat;
+
+    public PayloadDataResponse() {
+    }
+
+    /**
+     * @param data the data of the node, held on the heap
+     * @param stat the stat of the node
+     */
+    public PayloadDataResponse(byte[] data, Stat stat) {
+        this.data = data;
+        this.payload = null;
+        this.stat = stat;
+    }
+
+    /**
+     * @param payload
+     *            the data of the node, held off heap. The response takes
+     *            over a reference to the payload, dropped by
+     *            {@link #release()}.
+     * @param stat
+     *            the stat of the node
+     */
+    public PayloadDataResponse(OffHeapDataStore.Payload payload, Stat stat) {
+        this.data = null;
+        this.payload = payload;
+        this.stat = stat;
+    }
+
+    public Stat getStat() {
+        return stat;
+    }
+
+    /**
+     * @return the data of the node, copied onto the heap if it is held off
+     *         heap
+     */
+    public byte[] getData() {
+        return payload != null ? payload.toArray() : data;
+    }
+
+    /**
+     * drop the reference to the off heap payload, if any
+     */
+    public void release() {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+
+    public void serialize(OutputArchive archive, String tag)
+            throws IOException {
+        archive.startRecord(this, tag);
+        if (payload == null) {
+            archive.writeBuffer(data, "data");
+        } else if (archive instanceof BinaryOutputArchive) {
+            ((BinaryOutputArchive) archive).writeBuffer(payload.buffer(),
+                    "data");
+        } else {
+            archive.writeBuffer(payload.toArray(), "data");
+        }
+        archive.writeRecord(stat, "stat");
+        archive.endRecord(this, tag);
+    }
+
+    /**
+     * read a response onto the heap, as {@link GetDataResponse} does
+     */
+    public void deserialize(InputArchive archive, String tag)
+            throws IOException {
+        release();
+        payload = null;
+        archive.startRecord(tag);
+        data = archive.readBuffer("data");
+        stat = new Stat();
+        archive.readRecord(stat, "stat");
+        archive.endRecord(tag);
+    }
+}
@@ -23,11 +23,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -136,30 +134,28 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
     }
 
     ChangeRecord getRecordForPath(String path) throws KeeperException.NoNodeException {
-        ChangeRecord lastChange = null;
-        synchronized (zks.outstandingChanges) {
-            lastChange = zks.outstandingChangesForPath.get(path);
-            /*
-            for (int i = 0; i < zks.outstandingChanges.size(); i++) {
-                ChangeRecord c = zks.outstandingChanges.get(i);
-                if (c.path.equals(path)) {
-                    lastChange = c;
-                }
-            }
-            */
-            if (lastChange == null) {
-                DataNode n = zks.getZKDatabase().getNode(path);
-                if (n != null) {
-                    Long acl;
-                    Set<String> children;
-                    synchronized(n) {
-                        acl = n.acl;
-                        children = n.getChildren();
+        // FinalRequestProcessor applies a change before dropping it, so
+        // if there is none outstanding the DataTree is up to date
+        ChangeRecord lastChange = zks.outstandingChanges.get(path);
+        if (lastChange == null) {
+            DataNode n = zks.getZKDatabase().getNode(path);
+            if (n != null) {
+                List<ACL> acl;
+                Set<String> children;
+                StatPersisted stat = new StatPersisted();
+                synchronized(n) {
+                    // a node deleted since the lookup may have taken
+                    // the last reference to its acl along with it
+                    if (n.parent == null
+                            && n != zks.getZKDatabase().getNode("/")) {
+                        throw new KeeperException.NoNodeException(path);
                     }
-                    lastChange = new ChangeRecord(-1, path, n.stat,
-                        children != null ? children.size() : 0,
-                            zks.getZKDatabase().convertLong(acl));
+                    acl = zks.getZKDatabase().convertLong(n.acl);
+                    children = n.getChildren();
+                    n.copyStatPersisted(stat);
                 }
+                lastChange = new ChangeRecord(-1, path, stat,
+                    children != null ? children.size() : 0, acl);
             }
         }
         if (lastChange == null || lastChange.stat == null) {
@@ -169,37 +165,7 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
     }
 
     void addChangeRecord(ChangeRecord c) {
-        synchronized (zks.outstandingChanges) {
-            zks.outstandingChanges.add(c);
-            zks.outstandingChangesForPath.put(c.path, c);
-        }
-    }
-
-    /**
-     * Grab current pending change records for each op in a multi-op.
-     * 
-     * This is used inside MultiOp error code path to rollback in the event
-     * of a failed multi-op.
-     *
-     * @param multiRequest
-     */
-    HashMap<String, ChangeRecord> getPendingChanges(MultiTransactionRecord multiRequest) {
-    	HashMap<String, ChangeRecord> pendingChangeRecords = new HashMap<String, ChangeRecord>();
-    	
-        for(Op op: multiRequest) {
-    		String path = op.getPath();
-
-    		try {
-    			ChangeRecord cr = getRecordForPath(path);
-    			if (cr != null) {
-    				pendingChangeRecords.put(path, cr);
-    			}
-    		} catch (KeeperException.NoNodeException e) {
-    			// ignore this one
-    		}
-    	}
-        
-        return pendingChangeRecords;
+        zks.outstandingChanges.add(c);
     }
 
     /**
@@ -210,41 +176,9 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
      * value is still valid.
      *
      * @param zxid
-     * @param pendingChangeRecords
      */
-    void rollbackPendingChanges(long zxid, HashMap<String, ChangeRecord>pendingChangeRecords) {
-
-        synchronized (zks.outstandingChanges) {
-            // Grab a list iterator starting at the END of the list so we can iterate in reverse
-            ListIterator<ChangeRecord> iter = zks.outstandingChanges.listIterator(zks.outstandingChanges.size());
-            while (iter.hasPrevious()) {
-                ChangeRecord c = iter.previous();
-                if (c.zxid == zxid) {
-                    iter.remove();
-                    zks.outstandingChangesForPath.remove(c.path);
-                } else {
-                    break;
-                }
-            }
-           
-            boolean empty = zks.outstandingChanges.isEmpty();
-            long firstZxid = 0;
-            if (!empty) {
-                firstZxid = zks.outstandingChanges.get(0).zxid;
-            }
-
-            Iterator<ChangeRecord> priorIter = pendingChangeRecords.values().iterator();
-            while (priorIter.hasNext()) {
-                ChangeRecord c = priorIter.next();
-                 
-                /* Don't apply any prior change records less than firstZxid */
-                if (!empty && (c.zxid < firstZxid)) {
-                    continue;
-                }
-
-                zks.outstandingChangesForPath.put(c.path, c);
-            }
-        }
+    void rollbackPendingChanges(long zxid) {
+        zks.outstandingChanges.rollback(zxid);
     }
 
     static void checkACL(ZooKeeperServer zks, List<ACL> acl, int perm,
@@ -444,24 +378,25 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                 // queues up this operation without being the session owner.
                 // this request is the last of the session so it should be ok
                 //zks.sessionTracker.checkSession(request.sessionId, request.getOwner());
+                // take the outstanding changes before the ephemerals, a
+                // change dropped in between has been applied to the DataTree
+                List<ChangeRecord> changes = zks.outstandingChanges.getChanges();
                 HashSet<String> es = zks.getZKDatabase()
                         .getEphemerals(request.sessionId);
-                synchronized (zks.outstandingChanges) {
-                    for (ChangeRecord c : zks.outstandingChanges) {
-                        if (c.stat == null) {
-                            // Doing a delete
-                            es.remove(c.path);
-                        } else if (c.stat.getEphemeralOwner() == request.sessionId) {
-                            es.add(c.path);
-                        }
-                    }
-                    for (String path2Delete : es) {
-                        addChangeRecord(new ChangeRecord(request.hdr.getZxid(),
-                                path2Delete, null, 0, null));
+                for (ChangeRecord c : changes) {
+                    if (c.stat == null) {
+                        // Doing a delete
+                        es.remove(c.path);
+                    } else if (c.stat.getEphemeralOwner() == request.sessionId) {
+                        es.add(c.path);
                     }
-
-                    zks.sessionTracker.setSessionClosing(request.sessionId);
                 }
+                for (String path2Delete : es) {
+                    addChangeRecord(new ChangeRecord(request.hdr.getZxid(),
+                            path2Delete, null, 0, null));
+                }
+
+                zks.sessionTracker.setSessionClosing(request.sessionId);
 
                 LOG.info("Processed session termination for sessionid: 0x"
                         + Long.toHexString(request.sessionId));
@@ -535,9 +470,6 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                 long zxid = zks.getNextZxid();
                 KeeperException ke = null;
 
-                //Store off current pending change records in case we need to rollback
-                HashMap<String, ChangeRecord> pendingChanges = getPendingChanges(multiRequest);
-
                 int index = 0;
                 for(Op op: multiRequest) {
                     Record subrequest = op.toRequestRecord() ;
@@ -569,7 +501,7 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
                             request.setException(e);
 
                             /* Rollback change records from failed multi-op */
-                            rollbackPendingChanges(zxid, pendingChanges);
+                            rollbackPendingChanges(zxid);
                         }
                     }
 
@@ -603,8 +535,11 @@ public class PrepRequestProcessor extends Thread implements RequestProcessor {
             case OpCode.getACL:
             case OpCode.getChildren:
             case OpCode.getChildren2:
+            case OpCode.getChildrenPaged:
             case OpCode.ping:
             case OpCode.setWatches:
+            case OpCode.setWatches2:
+            case OpCode.addWatch:
                 zks.sessionTracker.checkSession(request.sessionId,
                         request.getOwner());
                 break;
@@ -31,6 +31,7 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.TxnLogIndex;
 import org.apache.zookeeper.server.persistence.Util;
 
 /**
@@ -79,7 +80,10 @@ public class PurgeTxnLog {
             exc.add(f);
         }
         long zxid = Util.getZxidFromName(snapShot.getName(),"snapshot");
-        exc.addAll(Arrays.asList(txnLog.getSnapshotLogs(zxid)));
+        for (File f : txnLog.getSnapshotLogs(zxid)) {
+            exc.add(f);
+            exc.add(TxnLogIndex.indexFile(f));
+        }
 
         final Set<File> exclude=exc;
         class MyFileFilter implements FileFilter{
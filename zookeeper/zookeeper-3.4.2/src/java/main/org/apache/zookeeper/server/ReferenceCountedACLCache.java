@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jute.Index;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.ACL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The map from the longs stored in the data nodes to the lists of ACLs they
+ * stand for.
+ * <p>
+ * Every node holding a long counts as a reference to its list, and a list
+ * is dropped as soon as the last node referring to it is deleted or changes
+ * its ACL. Lists read from a snapshot that no node refers to are dropped
+ * once the snapshot is loaded.
+ * <p>
+ * Looking up a long does not take any lock. Changes to the cache are
+ * synchronized on the cache, which the lookups never wait for.
+ */
+public class ReferenceCountedACLCache {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReferenceCountedACLCache.class);
+
+    /** the long standing for OPEN_ACL_UNSAFE, which is not counted */
+    static final long OPEN_UNSAFE_ACL_ID = -1L;
+
+    final Map<Long, List<ACL>> longKeyMap =
+        new ConcurrentHashMap<Long, List<ACL>>();
+
+    /** guarded by this */
+    final Map<List<ACL>, Long> aclKeyMap = new HashMap<List<ACL>, Long>();
+
+    /** guarded by this */
+    final Map<Long, Counter> referenceCounter = new HashMap<Long, Counter>();
+
+    /**
+     * the last long handed out, guarded by this
+     */
+    long aclIndex = 0;
+
+    /**
+     * converts the list of acls to a long, taking a reference to it. The
+     * reference must be given back with {@link #removeUsage(long)} once the
+     * node holding the long is deleted or changes its ACL.
+     *
+     * @param acls
+     * @return a long that maps to the acls
+     */
+    public synchronized long convertAcls(List<ACL> acls) {
+        if (acls == null) {
+            return OPEN_UNSAFE_ACL_ID;
+        }
+        // get the value from the map
+        Long ret = aclKeyMap.get(acls);
+        if (ret == null) {
+            ret = ++aclIndex;
+            longKeyMap.put(ret, acls);
+            aclKeyMap.put(acls, ret);
+        }
+        addUsage(ret);
+        return ret;
+    }
+
+    /**
+     * converts a long to a list of acls.
+     *
+     * @param longVal
+     * @return the list of ACLs the long maps to
+     */
+    public List<ACL> convertLong(Long longVal) {
+        if (longVal == null) {
+            return null;
+        }
+        if (longVal == OPEN_UNSAFE_ACL_ID) {
+            return Ids.OPEN_ACL_UNSAFE;
+        }
+        List<ACL> acls = longKeyMap.get(longVal);
+        if (acls == null) {
+            LOG.error("ERROR: ACL not available for long " + longVal);
+            throw new RuntimeException("Failed to fetch acls for " + longVal);
+        }
+        return acls;
+    }
+
+    /**
+     * take a reference to the list the long maps to, for a node that is
+     * added to the tree with a long it already holds
+     *
+     * @param acl
+     */
+    public synchronized void addUsage(long acl) {
+        addUsage(acl, 1);
+    }
+
+    /**
+     * take several references at once, for nodes that are added in bulk
+     *
+     * @param acl
+     * @param references the number of references to take
+     */
+    public synchronized void addUsage(long acl, int references) {
+        if (acl == OPEN_UNSAFE_ACL_ID) {
+            return;
+        }
+        if (!longKeyMap.containsKey(acl)) {
+            LOG.info("Ignoring acl " + acl + " as it does not exist in the cache");
+            return;
+        }
+        Counter count = referenceCounter.get(acl);
+        if (count == null) {
+            referenceCounter.put(acl, new Counter(references));
+        } else {
+            count.value += references;
+        }
+    }
+
+    /**
+     * give back a reference to the list the long maps to, dropping the list
+     * if this was the last one
+     *
+     * @param acl
+     */
+    public synchronized void removeUsage(long acl) {
+        if (acl == OPEN_UNSAFE_ACL_ID) {
+            return;
+        }
+        Counter count = referenceCounter.get(acl);
+        if (count == null) {
+            return;
+        }
+        if (--count.value <= 0) {
+            referenceCounter.remove(acl);
+            aclKeyMap.remove(longKeyMap.remove(acl));
+        }
+    }
+
+    /**
+     * drop the lists that no node refers to
+     */
+    public synchronized void purgeUnused() {
+        Iterator<Map.Entry<Long, List<ACL>>> it =
+            longKeyMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, List<ACL>> entry = it.next();
+            if (!referenceCounter.containsKey(entry.getKey())) {
+                aclKeyMap.remove(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of lists in the cache
+     */
+    public int size() {
+        return longKeyMap.size();
+    }
+
+    /**
+     * @return the number of references held on the list the long maps to
+     */
+    synchronized long getReferenceCount(long acl) {
+        Counter count = referenceCounter.get(acl);
+        return count == null ? 0 : count.value;
+    }
+
+    public synchronized void clear() {
+        aclKeyMap.clear();
+        longKeyMap.clear();
+        referenceCounter.clear();
+        aclIndex = 0;
+    }
+
+    /**
+     * read the map in the format written by {@link #serialize}. The lists
+     * start out without references; the caller adds one with
+     * {@link #addUsage(long)} for each node it reads and finally purges the
+     * unused ones.
+     */
+    public synchronized void deserialize(InputArchive ia) throws IOException {
+        clear();
+        int i = ia.readInt("map");
+        while (i > 0) {
+            Long val = ia.readLong("long");
+            if (aclIndex < val) {
+                aclIndex = val;
+            }
+            List<ACL> aclList = new ArrayList<ACL>();
+            Index j = ia.startVector("acls");
+            while (!j.done()) {
+                ACL acl = new ACL();
+                acl.deserialize(ia, "acl");
+                aclList.add(acl);
+                j.incr();
+            }
+            longKeyMap.put(val, aclList);
+            aclKeyMap.put(aclList, val);
+            i--;
+        }
+    }
+
+    public synchronized void serialize(OutputArchive oa) throws IOException {
+        oa.writeInt(longKeyMap.size(), "map");
+        for (Map.Entry<Long, List<ACL>> val : longKeyMap.entrySet()) {
+            oa.writeLong(val.getKey(), "long");
+            List<ACL> aclList = val.getValue();
+            oa.startVector(aclList, "acls");
+            for (ACL acl : aclList) {
+                acl.serialize(oa, "acl");
+            }
+            oa.endVector(aclList, "acls");
+        }
+    }
+
+    private static final class Counter {
+        long value;
+
+        Counter(long value) {
+            this.value = value;
+        }
+    }
+}
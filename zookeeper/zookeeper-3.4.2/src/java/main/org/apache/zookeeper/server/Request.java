@@ -114,9 +114,12 @@ public class Request {
         case OpCode.setACL:
         case OpCode.getChildren:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPaged:
         case OpCode.ping:
         case OpCode.closeSession:
         case OpCode.setWatches:
+        case OpCode.setWatches2:
+        case OpCode.addWatch:
             return true;
         default:
             return false;
@@ -129,7 +132,9 @@ public class Request {
         case OpCode.getACL:
         case OpCode.getChildren:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPaged:
         case OpCode.getData:
+        case OpCode.addWatch:
             return false;
         case OpCode.error:
         case OpCode.closeSession:
@@ -154,6 +159,10 @@ public class Request {
             return "create";
         case OpCode.setWatches:
             return "setWatches";
+        case OpCode.setWatches2:
+            return "setWatches2";
+        case OpCode.addWatch:
+            return "addWatch";
         case OpCode.delete:
             return "delete";
         case OpCode.exists:
@@ -176,6 +185,8 @@ public class Request {
             return "getChildren";
         case OpCode.getChildren2:
             return "getChildren2";
+        case OpCode.getChildrenPaged:
+            return "getChildrenPaged";
         case OpCode.ping:
             return "ping";
         case OpCode.createSession:
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A NodeIndex keyed by (parent node, child name) instead of by full path.
+ * <p>
+ * The name in a key is the same String the parent holds in its children, so
+ * the only per node cost beyond the DataNode itself is one map entry and one
+ * small key object. Full paths are never stored, which matters for large
+ * trees where paths are much longer than the names of the nodes. A lookup
+ * walks the path one segment at a time from the root, so it costs one hash
+ * probe per segment and stays O(path length). The segments are matched in
+ * place against the path being looked up, without creating substrings.
+ */
+public class SegmentNodeIndex implements NodeIndex {
+    /**
+     * The key of a node. Identity of the parent is what matters, two nodes
+     * are never equal to each other even if they hold the same data.
+     */
+    private static final class SegmentKey {
+        final DataNode parent;
+
+        final String name;
+
+        final int hash;
+
+        SegmentKey(DataNode parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.hash = hash(parent, name.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SegmentKey)) {
+                return false;
+            }
+            SegmentKey other = (SegmentKey) o;
+            return parent == other.parent && name.equals(other.name);
+        }
+    }
+
+    /**
+     * A lookup key for one segment of a path. The map only ever calls equals
+     * on the key it was asked for, so a probe can be compared against the
+     * stored SegmentKeys without copying the segment out of the path.
+     */
+    private static final class SegmentProbe {
+        DataNode parent;
+
+        String path;
+
+        int start;
+
+        int end;
+
+        int hash;
+
+        void set(DataNode parent, String path, int start, int end) {
+            this.parent = parent;
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            // same as String.hashCode() of the segment
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + path.charAt(i);
+            }
+            this.hash = SegmentNodeIndex.hash(parent, h);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SegmentKey)) {
+                return false;
+            }
+            SegmentKey other = (SegmentKey) o;
+            int len = end - start;
+            return parent == other.parent && other.name.length() == len
+                && path.regionMatches(start, other.name, 0, len);
+        }
+    }
+
+    static int hash(DataNode parent, int nameHash) {
+        return System.identityHashCode(parent) * 31 + nameHash;
+    }
+
+    private volatile ConcurrentHashMap<Object, DataNode> nodes =
+        new ConcurrentHashMap<Object, DataNode>();
+
+    private volatile DataNode root;
+
+    public DataNode get(String path) {
+        DataNode node = root;
+        int len = path.length();
+        if (len == 0 || node == null) {
+            return node;
+        }
+        if (path.charAt(0) != '/') {
+            return null;
+        }
+        if (len == 1) {
+            return node;
+        }
+        ConcurrentHashMap<Object, DataNode> map = nodes;
+        SegmentProbe probe = new SegmentProbe();
+        int start = 1;
+        while (true) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = len;
+            }
+            if (end == start) {
+                // empty segment, such a path can't exist
+                return null;
+            }
+            probe.set(node, path, start, end);
+            node = map.get(probe);
+            if (node == null || end == len) {
+                return node;
+            }
+            start = end + 1;
+        }
+    }
+
+    public void put(String path, DataNode parent, String name, DataNode node) {
+        nodes.put(new SegmentKey(parent, name), node);
+    }
+
+    public DataNode remove(String path, DataNode parent, String name) {
+        return nodes.remove(new SegmentKey(parent, name));
+    }
+
+    public void setRoot(DataNode root) {
+        this.root = root;
+    }
+
+    public int size() {
+        // the root is not in the map but has the "" and "/" aliases
+        return root == null ? nodes.size() : nodes.size() + 2;
+    }
+
+    public long approximateDataSize() {
+        DataNode r = root;
+        if (r == null) {
+            return 0;
+        }
+        // count the root for both of its aliases, like PathNodeIndex
+        long rootSize = 1;
+        synchronized (r) {
+            rootSize += r.getDataLength();
+        }
+        return rootSize + approximateDataSize(r, 0);
+    }
+
+    private long approximateDataSize(DataNode node, int pathLength) {
+        String children[] = null;
+        long result = pathLength;
+        synchronized (node) {
+            result += node.getDataLength();
+            Set<String> childs = node.getChildren();
+            if (childs != null) {
+                children = childs.toArray(new String[childs.size()]);
+            }
+        }
+        if (children != null) {
+            for (String child : children) {
+                DataNode n = nodes.get(new SegmentKey(node, child));
+                if (n != null) {
+                    result += approximateDataSize(n,
+                            pathLength + 1 + child.length());
+                }
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        root = null;
+        nodes.clear();
+    }
+
+    public void clear(int expectedSize) {
+        root = null;
+        nodes = new ConcurrentHashMap<Object, DataNode>(
+                PathNodeIndex.capacityFor(expectedSize));
+    }
+}
@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server;
 
+import java.util.Arrays;
 
 /**
  * Basic Server Statistics
@@ -30,6 +31,19 @@ public class ServerStats {
     private long totalLatency = 0;
     private long count = 0;
 
+    /**
+     * Number of buckets in the commit batch size histogram. Bucket i counts
+     * the batches of more than 2^(i-1) and at most 2^i requests, the last
+     * bucket also counts all the larger batches.
+     */
+    public static final int BATCH_SIZE_BUCKETS = 12;
+
+    private long commitCount;
+    private long totalCommitRequests;
+    private long totalFsyncNanos;
+    private long maxFsyncNanos;
+    private final long batchSizes[] = new long[BATCH_SIZE_BUCKETS];
+
     private final Provider provider;
 
     public interface Provider {
@@ -74,6 +88,61 @@ public class ServerStats {
         return packetsSent;
     }
 
+    synchronized public long getCommitCount() {
+        return commitCount;
+    }
+
+    synchronized public long getAvgCommitBatchSize() {
+        if (commitCount != 0) {
+            return totalCommitRequests / commitCount;
+        }
+        return 0;
+    }
+
+    /**
+     * @return average time in microseconds to commit a batch of requests to
+     * the transaction log, including the fsync
+     */
+    synchronized public long getAvgFsyncMicros() {
+        if (commitCount != 0) {
+            return totalFsyncNanos / commitCount / 1000;
+        }
+        return 0;
+    }
+
+    synchronized public long getMaxFsyncMicros() {
+        return maxFsyncNanos / 1000;
+    }
+
+    /**
+     * @return a copy of the commit batch size histogram, see
+     * {@link #BATCH_SIZE_BUCKETS}
+     */
+    synchronized public long[] getCommitBatchSizes() {
+        return batchSizes.clone();
+    }
+
+    /**
+     * @return the commit batch size histogram as "size:count" pairs, where
+     * size is the upper bound of the bucket
+     */
+    public String getCommitBatchSizesString() {
+        long sizes[] = getCommitBatchSizes();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (i == sizes.length - 1) {
+                sb.append("inf");
+            } else {
+                sb.append(1 << i);
+            }
+            sb.append(':').append(sizes[i]);
+        }
+        return sb.toString();
+    }
+
     public String getServerState() {
         return provider.getState();
     }
@@ -104,6 +173,19 @@ public class ServerStats {
             maxLatency = latency;
         }
     }
+    synchronized void updateCommit(int batchSize, long fsyncNanos) {
+        commitCount++;
+        totalCommitRequests += batchSize;
+        totalFsyncNanos += fsyncNanos;
+        if (fsyncNanos > maxFsyncNanos) {
+            maxFsyncNanos = fsyncNanos;
+        }
+        int bucket = 0;
+        while (bucket < BATCH_SIZE_BUCKETS - 1 && (1 << bucket) < batchSize) {
+            bucket++;
+        }
+        batchSizes[bucket]++;
+    }
     synchronized public void resetLatency(){
         totalLatency = 0;
         count = 0;
@@ -124,9 +206,18 @@ public class ServerStats {
         packetsSent = 0;
     }
     
+    synchronized public void resetCommitStats() {
+        commitCount = 0;
+        totalCommitRequests = 0;
+        totalFsyncNanos = 0;
+        maxFsyncNanos = 0;
+        Arrays.fill(batchSizes, 0);
+    }
+
     synchronized public void reset() {
         resetLatency();
         resetRequestCounters();
+        resetCommitStats();
     }
 
 }
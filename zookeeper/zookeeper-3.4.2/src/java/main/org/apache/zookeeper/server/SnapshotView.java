@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.HashMap;
+
+/**
+ * A point in time view of a {@link DataTree}, used to write a snapshot that
+ * is consistent as of a single zxid while transactions keep being applied.
+ * <p>
+ * The view does not copy the tree up front. The first time a node is changed
+ * after the view began, the tree saves a copy of the node as it was, its
+ * pre-image, into the view. This is done with the node locked and before the
+ * change, so a live node without a pre-image, read with the node locked, has
+ * not changed since the view began. The pre-images hold on to the off heap
+ * payloads and the acls they refer to until the view is released.
+ */
+class SnapshotView {
+    private final long zxid;
+
+    private final Thread owner;
+
+    private final ReferenceCountedACLCache aclCache;
+
+    /**
+     * pre-images by path. Only the thread applying transactions adds to
+     * it, the snapshot thread reads it.
+     */
+    private final HashMap<String, DataNode> preImages =
+        new HashMap<String, DataNode>();
+
+    SnapshotView(long zxid, Thread owner, ReferenceCountedACLCache aclCache) {
+        this.zxid = zxid;
+        this.owner = owner;
+        this.aclCache = aclCache;
+    }
+
+    /**
+     * @return the zxid of the last transaction the view includes
+     */
+    long getZxid() {
+        return zxid;
+    }
+
+    /**
+     * @return the thread writing the snapshot
+     */
+    Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * save the pre-image of a node, if it is the first change of the node
+     * since the view began. Must be called with the node locked, before the
+     * node is changed.
+     */
+    void preserve(String path, DataNode node) {
+        if (node.getCzxid() > zxid) {
+            // created after the view began, the view can't reach it
+            return;
+        }
+        synchronized (preImages) {
+            if (preImages.containsKey(path)) {
+                return;
+            }
+            DataNode copy = node.copy();
+            aclCache.addUsage(copy.acl);
+            preImages.put(path, copy);
+        }
+    }
+
+    /**
+     * @return the pre-image of the path, null if the node has not changed
+     *         since the view began or did not exist then
+     */
+    DataNode getPreImage(String path) {
+        synchronized (preImages) {
+            return preImages.get(path);
+        }
+    }
+
+    /**
+     * @return the number of nodes that changed since the view began
+     */
+    int size() {
+        synchronized (preImages) {
+            return preImages.size();
+        }
+    }
+
+    /**
+     * drop the pre-images, releasing the payloads and acls they hold. The
+     * view must no longer be read or written.
+     */
+    void release() {
+        synchronized (preImages) {
+            for (DataNode n : preImages.values()) {
+                if (n.payload != null) {
+                    n.payload.release();
+                }
+                aclCache.removeUsage(n.acl);
+            }
+            preImages.clear();
+        }
+    }
+}
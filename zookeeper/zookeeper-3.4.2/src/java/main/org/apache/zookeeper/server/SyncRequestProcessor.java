@@ -20,9 +20,13 @@ package org.apache.zookeeper.server;
 
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,7 +35,14 @@ import org.slf4j.LoggerFactory;
 /**
  * This RequestProcessor logs requests to disk. It batches the requests to do
  * the io efficiently. The request is not passed to the next RequestProcessor
- * until its log has been synced to disk.
+ * until its log has been synced to disk. When to sync is decided by a
+ * {@link GroupCommitPolicy}.
+ * <p>
+ * Appending and syncing are done by two threads. This thread appends the
+ * requests to the log and hands each batch to a CommitThread, which syncs
+ * the log and passes the requests on. While a sync is in progress the next
+ * batch is appended, and the batches handed over in the meantime are all
+ * synced together by the next commit.
  */
 public class SyncRequestProcessor extends Thread implements RequestProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(SyncRequestProcessor.class);
@@ -48,8 +59,27 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
      * disk. Basically this is the list of SyncItems whose callbacks will be
      * invoked after flush returns successfully.
      */
-    private final LinkedList<Request> toFlush = new LinkedList<Request>();
+    private LinkedList<Request> toFlush = new LinkedList<Request>();
     private final Random r = new Random(System.nanoTime());
+
+    private final GroupCommitPolicy commitPolicy;
+
+    /**
+     * Batches handed to the commit thread. endOfBatches stops it.
+     */
+    private final LinkedBlockingQueue<List<Request>> batches =
+        new LinkedBlockingQueue<List<Request>>();
+
+    private final List<Request> endOfBatches = new ArrayList<Request>(0);
+
+    /**
+     * The number of batches handed to the commit thread that it hasn't
+     * passed on yet.
+     */
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
+
+    private final CommitThread committer;
+
     /**
      * The number of log entries to log before starting a snapshot
      */
@@ -63,6 +93,8 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
         super("SyncThread:" + zks.getServerId());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
+        this.commitPolicy = GroupCommitPolicy.fromSystemProperties();
+        this.committer = new CommitThread();
         running = true;
     }
 
@@ -85,6 +117,7 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
 
     @Override
     public void run() {
+        committer.start();
         try {
             int logCount = 0;
 
@@ -97,8 +130,17 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
                     si = queuedRequests.take();
                 } else {
                     si = queuedRequests.poll();
+                    if (si == null && batchesInFlight.get() == 0) {
+                        // nothing else will be synced for a while, see if
+                        // more requests can share the sync of this batch
+                        long wait = commitPolicy.waitNanos(toFlush.size(),
+                                System.nanoTime());
+                        if (wait > 0) {
+                            si = queuedRequests.poll(wait, TimeUnit.NANOSECONDS);
+                        }
+                    }
                     if (si == null) {
-                        flush(toFlush);
+                        flush();
                         continue;
                     }
                 }
@@ -130,7 +172,7 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
                             }
                             logCount = 0;
                         }
-                    } else if (toFlush.isEmpty()) {
+                    } else if (toFlush.isEmpty() && batchesInFlight.get() == 0) {
                         // optimization for read heavy workloads
                         // iff this is a read, and there are no pending
                         // flushes (writes), then just pass this to the next
@@ -141,12 +183,19 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
                         }
                         continue;
                     }
+                    long now = System.nanoTime();
+                    if (toFlush.isEmpty()) {
+                        commitPolicy.started(now);
+                    }
                     toFlush.add(si);
-                    if (toFlush.size() > 1000) {
-                        flush(toFlush);
+                    if (commitPolicy.isFull(toFlush.size(),
+                            zks.getZKDatabase().getUncommittedSize(), now)) {
+                        flush();
                     }
                 }
             }
+            batches.add(endOfBatches);
+            committer.join();
         } catch (Throwable t) {
             LOG.error("Severe unrecoverable error, exiting", t);
             running = false;
@@ -155,17 +204,77 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
         LOG.info("SyncRequestProcessor exited!");
     }
 
-    private void flush(LinkedList<Request> toFlush) throws IOException {
+    /**
+     * hand the current batch to the commit thread
+     */
+    private void flush() {
         if (toFlush.isEmpty())
             return;
 
-        zks.getZKDatabase().commit();
-        while (!toFlush.isEmpty()) {
-            Request i = toFlush.remove();
-            nextProcessor.processRequest(i);
+        batchesInFlight.incrementAndGet();
+        batches.add(toFlush);
+        toFlush = new LinkedList<Request>();
+    }
+
+    /**
+     * Syncs the log for all the batches handed over since its last sync and
+     * passes their requests to the next processor, in order.
+     */
+    private class CommitThread extends Thread {
+        CommitThread() {
+            super("CommitThread:" + zks.getServerId());
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<List<Request>> pending = new ArrayList<List<Request>>();
+                boolean done = false;
+                while (!done) {
+                    pending.add(batches.take());
+                    batches.drainTo(pending);
+                    if (pending.get(pending.size() - 1) == endOfBatches) {
+                        pending.remove(pending.size() - 1);
+                        done = true;
+                    }
+                    commit(pending);
+                    batchesInFlight.addAndGet(-pending.size());
+                    pending.clear();
+                }
+            } catch (Throwable t) {
+                LOG.error("Severe unrecoverable error, exiting", t);
+                running = false;
+                System.exit(11);
+            }
         }
-        if (nextProcessor instanceof Flushable) {
-            ((Flushable)nextProcessor).flush();
+
+        private void commit(List<List<Request>> pending) throws IOException {
+            int count = 0;
+            boolean writes = false;
+            for (List<Request> batch : pending) {
+                count += batch.size();
+                for (Request request : batch) {
+                    writes |= request.hdr != null;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            if (writes) {
+                long start = System.nanoTime();
+                zks.getZKDatabase().commit();
+                long now = System.nanoTime();
+                commitPolicy.committed(now - start, now);
+                zks.serverStats().updateCommit(count, now - start);
+            }
+            for (List<Request> batch : pending) {
+                for (Request request : batch) {
+                    nextProcessor.processRequest(request);
+                }
+            }
+            if (nextProcessor instanceof Flushable) {
+                ((Flushable)nextProcessor).flush();
+            }
         }
     }
 
@@ -184,6 +293,9 @@ public class SyncRequestProcessor extends Thread implements RequestProcessor {
 
     public void processRequest(Request request) {
         // request.addRQRec(">sync");
+        if (request.hdr != null) {
+            commitPolicy.arrived();
+        }
         queuedRequests.add(request);
     }
 
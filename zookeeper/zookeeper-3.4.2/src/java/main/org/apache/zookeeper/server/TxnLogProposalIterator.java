@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.QuorumPacket;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * Turns the transactions of the logs into the PROPOSAL packets a learner
+ * is sent for a DIFF, reading the logs only as the packets are asked for.
+ * The packets are the same as the ones of the committedLog.
+ */
+public class TxnLogProposalIterator {
+    private final TxnIterator itr;
+
+    private long lastZxid;
+
+    /**
+     * @param itr the logs, positioned on the last transaction the learner
+     * already has
+     */
+    public TxnLogProposalIterator(TxnIterator itr) {
+        this.itr = itr;
+        this.lastZxid = itr.getHeader().getZxid();
+    }
+
+    /**
+     * @return the zxid of the last transaction returned, the one the
+     * logs were positioned on before the first call
+     */
+    public long getLastZxid() {
+        return lastZxid;
+    }
+
+    /**
+     * @return the proposal of the next transaction, null at the end of
+     * the logs
+     * @throws IOException
+     */
+    public QuorumPacket next() throws IOException {
+        if (!itr.next()) {
+            return null;
+        }
+        TxnHeader hdr = itr.getHeader();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        hdr.serialize(boa, "hdr");
+        if (itr.getTxn() != null) {
+            itr.getTxn().serialize(boa, "txn");
+        }
+        baos.close();
+        lastZxid = hdr.getZxid();
+        return new QuorumPacket(Leader.PROPOSAL, lastZxid,
+                baos.toByteArray(), null);
+    }
+
+    public void close() throws IOException {
+        itr.close();
+    }
+}
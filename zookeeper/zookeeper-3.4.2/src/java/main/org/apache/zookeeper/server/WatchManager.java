@@ -19,10 +19,11 @@
 package org.apache.zookeeper.server;
 
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,60 +35,164 @@ import org.apache.zookeeper.Watcher.Event.KeeperState;
 /**
  * This class manages watches. It allows watches to be associated with a string
  * and removes watchers and their watches in addition to managing triggers.
+ * <p>
+ * There is no manager wide lock. Both tables are concurrent maps, and every
+ * change that concerns a given path (its watcher set and the reverse index
+ * entries for it) is made while holding that path's lock stripe. Registering
+ * a watch from the read path therefore only waits for a trigger on the commit
+ * path when both hash to the same stripe, and triggers on different paths run
+ * in parallel.
+ * <p>
+ * Besides the one shot watches, a watcher may hold persistent watches, which
+ * stay registered when they fire, and persistent recursive watches, which
+ * also fire for every event on the descendants of their path. Recursive
+ * watches are found by looking up each prefix of the event's path, so a
+ * single registration covers a whole subtree. The lookup is skipped while
+ * no recursive watch is registered.
  */
 public class WatchManager {
     private static final Logger LOG = LoggerFactory.getLogger(WatchManager.class);
 
-    private final HashMap<String, HashSet<Watcher>> watchTable =
-        new HashMap<String, HashSet<Watcher>>();
+    /** number of path lock stripes, must be a power of two */
+    private static final int STRIPES = 256;
 
-    private final HashMap<Watcher, HashSet<String>> watch2Paths =
-        new HashMap<Watcher, HashSet<String>>();
+    private final Object[] stripes = new Object[STRIPES];
 
-    public synchronized int size(){
+    private final ConcurrentHashMap<String, HashSet<Watcher>> watchTable =
+        new ConcurrentHashMap<String, HashSet<Watcher>>();
+
+    private final ConcurrentHashMap<Watcher, Set<String>> watch2Paths =
+        new ConcurrentHashMap<Watcher, Set<String>>();
+
+    private final ConcurrentHashMap<String, HashSet<Watcher>> persistentTable =
+        new ConcurrentHashMap<String, HashSet<Watcher>>();
+
+    private final ConcurrentHashMap<String, HashSet<Watcher>> recursiveTable =
+        new ConcurrentHashMap<String, HashSet<Watcher>>();
+
+    /**
+     * the paths of the persistent and persistent recursive watches of each
+     * watcher
+     */
+    private final ConcurrentHashMap<Watcher, Set<String>> watch2PersistentPaths =
+        new ConcurrentHashMap<Watcher, Set<String>>();
+
+    public WatchManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String path) {
+        int h = path.hashCode();
+        // spread the high bits, path hashes often differ only at the end
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    public int size(){
+        return size(watchTable) + size(persistentTable) + size(recursiveTable);
+    }
+
+    private int size(ConcurrentHashMap<String, HashSet<Watcher>> table) {
         int result = 0;
-        for(Set<Watcher> watches : watchTable.values()) {
-            result += watches.size();
+        for(Entry<String, HashSet<Watcher>> e : table.entrySet()) {
+            synchronized (lockFor(e.getKey())) {
+                result += e.getValue().size();
+            }
         }
         return result;
     }
 
-    public synchronized void addWatch(String path, Watcher watcher) {
-        HashSet<Watcher> list = watchTable.get(path);
-        if (list == null) {
-            // don't waste memory if there are few watches on a node
-            // rehash when the 4th entry is added, doubling size thereafter
-            // seems like a good compromise
-            list = new HashSet<Watcher>(4);
-            watchTable.put(path, list);
+    public void addWatch(String path, Watcher watcher) {
+        synchronized (lockFor(path)) {
+            HashSet<Watcher> list = watchTable.get(path);
+            if (list == null) {
+                // don't waste memory if there are few watches on a node
+                // rehash when the 4th entry is added, doubling size thereafter
+                // seems like a good compromise
+                list = new HashSet<Watcher>(4);
+                watchTable.put(path, list);
+            }
+            list.add(watcher);
+            pathsOf(watch2Paths, watcher).add(path);
+        }
+    }
+
+    /**
+     * add a watch that stays registered when it fires, until the watcher is
+     * removed
+     *
+     * @param path
+     *            the path to watch
+     * @param watcher
+     *            the watcher
+     * @param recursive
+     *            if true the watch also fires for the events on all the
+     *            descendants of path
+     */
+    public void addPersistentWatch(String path, Watcher watcher,
+            boolean recursive) {
+        ConcurrentHashMap<String, HashSet<Watcher>> table =
+            recursive ? recursiveTable : persistentTable;
+        synchronized (lockFor(path)) {
+            HashSet<Watcher> list = table.get(path);
+            if (list == null) {
+                list = new HashSet<Watcher>(4);
+                table.put(path, list);
+            }
+            list.add(watcher);
+            pathsOf(watch2PersistentPaths, watcher).add(path);
         }
-        list.add(watcher);
+    }
 
-        HashSet<String> paths = watch2Paths.get(watcher);
+    private static Set<String> pathsOf(
+            ConcurrentHashMap<Watcher, Set<String>> index, Watcher watcher) {
+        Set<String> paths = index.get(watcher);
         if (paths == null) {
             // cnxns typically have many watches, so use default cap here
-            paths = new HashSet<String>();
-            watch2Paths.put(watcher, paths);
+            paths = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = index.putIfAbsent(watcher, paths);
+            if (existing != null) {
+                paths = existing;
+            }
         }
-        paths.add(path);
+        return paths;
     }
 
-    public synchronized void removeWatcher(Watcher watcher) {
-        HashSet<String> paths = watch2Paths.remove(watcher);
-        if (paths == null) {
-            return;
-        }
-        for (String p : paths) {
-            HashSet<Watcher> list = watchTable.get(p);
-            if (list != null) {
-                list.remove(watcher);
-                if (list.size() == 0) {
-                    watchTable.remove(p);
+    public void removeWatcher(Watcher watcher) {
+        Set<String> paths = watch2Paths.remove(watcher);
+        if (paths != null) {
+            for (String p : paths) {
+                synchronized (lockFor(p)) {
+                    removeFrom(watchTable, p, watcher);
+                }
+            }
+        }
+        paths = watch2PersistentPaths.remove(watcher);
+        if (paths != null) {
+            for (String p : paths) {
+                synchronized (lockFor(p)) {
+                    removeFrom(persistentTable, p, watcher);
+                    removeFrom(recursiveTable, p, watcher);
                 }
             }
         }
     }
 
+    private static void removeFrom(
+            ConcurrentHashMap<String, HashSet<Watcher>> table, String path,
+            Watcher watcher) {
+        HashSet<Watcher> list = table.get(path);
+        if (list != null) {
+            list.remove(watcher);
+            if (list.size() == 0) {
+                table.remove(path);
+            }
+        }
+    }
+
     public Set<Watcher> triggerWatch(String path, EventType type) {
         return triggerWatch(path, type, null);
     }
@@ -96,23 +201,41 @@ public class WatchManager {
         WatchedEvent e = new WatchedEvent(type,
                 KeeperState.SyncConnected, path);
         HashSet<Watcher> watchers;
-        synchronized (this) {
+        synchronized (lockFor(path)) {
             watchers = watchTable.remove(path);
-            if (watchers == null || watchers.isEmpty()) {
-                if (LOG.isTraceEnabled()) {
-                    ZooTrace.logTraceMessage(LOG,
-                            ZooTrace.EVENT_DELIVERY_TRACE_MASK,
-                            "No watchers for " + path);
+            if (watchers != null) {
+                for (Watcher w : watchers) {
+                    Set<String> paths = watch2Paths.get(w);
+                    if (paths != null) {
+                        paths.remove(path);
+                    }
                 }
-                return null;
             }
-            for (Watcher w : watchers) {
-                HashSet<String> paths = watch2Paths.get(w);
-                if (paths != null) {
-                    paths.remove(path);
+            HashSet<Watcher> persistent = persistentTable.get(path);
+            if (persistent != null) {
+                watchers = addAll(watchers, persistent);
+            }
+        }
+        if (!recursiveTable.isEmpty()) {
+            for (String p = path; p != null; p = parentOf(p)) {
+                synchronized (lockFor(p)) {
+                    HashSet<Watcher> recursive = recursiveTable.get(p);
+                    if (recursive != null) {
+                        watchers = addAll(watchers, recursive);
+                    }
                 }
             }
         }
+        if (watchers == null || watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG,
+                        ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                        "No watchers for " + path);
+            }
+            return null;
+        }
+        // the set is no longer reachable from the tables, so nobody else
+        // modifies it and it can be iterated outside the stripe
         for (Watcher w : watchers) {
             if (supress != null && supress.contains(w)) {
                 continue;
@@ -122,22 +245,60 @@ public class WatchManager {
         return watchers;
     }
 
+    /**
+     * add the persistent watchers to the set of watchers to notify, which is
+     * created if needed. The persistent set stays in its table, so it is
+     * never returned itself.
+     */
+    private static HashSet<Watcher> addAll(HashSet<Watcher> watchers,
+            HashSet<Watcher> persistent) {
+        if (watchers == null) {
+            watchers = new HashSet<Watcher>(persistent);
+        } else {
+            watchers.addAll(persistent);
+        }
+        return watchers;
+    }
+
+    /**
+     * @return the parent of path, "/" for the children of the root and null
+     *         for the root itself
+     */
+    static String parentOf(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash <= 0) {
+            return path.length() > 1 ? "/" : null;
+        }
+        return path.substring(0, lastSlash);
+    }
+
     /**
      * Brief description of this object.
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder sb = new StringBuilder();
 
         sb.append(watch2Paths.size()).append(" connections watching ")
             .append(watchTable.size()).append(" paths\n");
 
         int total = 0;
-        for (HashSet<String> paths : watch2Paths.values()) {
+        for (Set<String> paths : watch2Paths.values()) {
             total += paths.size();
         }
         sb.append("Total watches:").append(total);
 
+        if (!watch2PersistentPaths.isEmpty()) {
+            total = 0;
+            for (Set<String> paths : watch2PersistentPaths.values()) {
+                total += paths.size();
+            }
+            sb.append("\n").append(watch2PersistentPaths.size())
+                .append(" connections with persistent watches on ")
+                .append(persistentTable.size() + recursiveTable.size())
+                .append(" paths\nTotal persistent watches:").append(total);
+        }
+
         return sb.toString();
     }
 
@@ -147,24 +308,43 @@ public class WatchManager {
      * watches by connection
      * @return string representation of watches
      */
-    public synchronized void dumpWatches(PrintWriter pwriter, boolean byPath) {
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
         if (byPath) {
-            for (Entry<String, HashSet<Watcher>> e : watchTable.entrySet()) {
-                pwriter.println(e.getKey());
-                for (Watcher w : e.getValue()) {
-                    pwriter.print("\t0x");
-                    pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
-                    pwriter.print("\n");
-                }
-            }
+            dumpByPath(pwriter, watchTable, "");
+            dumpByPath(pwriter, persistentTable, " (persistent)");
+            dumpByPath(pwriter, recursiveTable, " (persistent recursive)");
         } else {
-            for (Entry<Watcher, HashSet<String>> e : watch2Paths.entrySet()) {
-                pwriter.print("0x");
-                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
-                for (String path : e.getValue()) {
-                    pwriter.print("\t");
-                    pwriter.println(path);
-                }
+            dumpByWatcher(pwriter, watch2Paths, "");
+            dumpByWatcher(pwriter, watch2PersistentPaths, " (persistent)");
+        }
+    }
+
+    private void dumpByPath(PrintWriter pwriter,
+            ConcurrentHashMap<String, HashSet<Watcher>> table, String kind) {
+        for (Entry<String, HashSet<Watcher>> e : table.entrySet()) {
+            HashSet<Watcher> watchers;
+            synchronized (lockFor(e.getKey())) {
+                watchers = new HashSet<Watcher>(e.getValue());
+            }
+            pwriter.print(e.getKey());
+            pwriter.println(kind);
+            for (Watcher w : watchers) {
+                pwriter.print("\t0x");
+                pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                pwriter.print("\n");
+            }
+        }
+    }
+
+    private void dumpByWatcher(PrintWriter pwriter,
+            ConcurrentHashMap<Watcher, Set<String>> index, String kind) {
+        for (Entry<Watcher, Set<String>> e : index.entrySet()) {
+            pwriter.print("0x");
+            pwriter.print(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+            pwriter.println(kind);
+            for (String path : e.getValue()) {
+                pwriter.print("\t");
+                pwriter.println(path);
             }
         }
     }
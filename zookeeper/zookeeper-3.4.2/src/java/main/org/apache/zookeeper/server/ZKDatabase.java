@@ -19,7 +19,9 @@
 package org.apache.zookeeper.server;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.HashSet;
@@ -42,8 +44,10 @@ import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPacket;
@@ -73,6 +77,17 @@ public class ZKDatabase {
     protected LinkedList<Proposal> committedLog = new LinkedList<Proposal>();
     protected ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
     volatile private boolean initialized = false;
+
+    /**
+     * a learner too far behind for the committedLog is sent a DIFF read
+     * from the transaction logs as long as the logs to read are no bigger
+     * than this fraction of the latest snapshot, negative to always send a
+     * snapshot instead
+     */
+    public static final String SNAPSHOT_SIZE_FACTOR =
+        "zookeeper.snapshotSizeFactor";
+
+    private volatile double snapshotSizeFactor;
     
     /**
      * the filetxnsnaplog that this zk database
@@ -84,6 +99,14 @@ public class ZKDatabase {
         dataTree = new DataTree();
         sessionsWithTimeouts = new ConcurrentHashMap<Long, Integer>();
         this.snapLog = snapLog;
+        String factor = System.getProperty(SNAPSHOT_SIZE_FACTOR, "0.33");
+        try {
+            snapshotSizeFactor = Double.parseDouble(factor);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid " + SNAPSHOT_SIZE_FACTOR + " " + factor
+                    + ", using 0.33");
+            snapshotSizeFactor = 0.33;
+        }
     }
     
     /**
@@ -169,6 +192,77 @@ public class ZKDatabase {
         return this.committedLog;
     }      
     
+    public double getSnapshotSizeFactor() {
+        return snapshotSizeFactor;
+    }
+
+    public void setSnapshotSizeFactor(double snapshotSizeFactor) {
+        this.snapshotSizeFactor = snapshotSizeFactor;
+    }
+
+    /**
+     * @return how many bytes of transaction logs may be read for a DIFF,
+     * -1 if DIFFs are never read from the logs
+     * @throws IOException
+     */
+    public long calculateTxnLogSizeLimit() throws IOException {
+        if (snapshotSizeFactor < 0 || snapLog == null) {
+            return -1;
+        }
+        File snapshot = findMostRecentSnapshot();
+        if (snapshot == null) {
+            return 0;
+        }
+        return (long) (snapshot.length() * snapshotSizeFactor);
+    }
+
+    /**
+     * open the transaction logs to send a DIFF to a learner that is
+     * behind the committedLog
+     * @param peerZxid the last zxid the learner has
+     * @return the proposals that follow peerZxid, read lazily from the
+     * logs. null if peerZxid is not in the logs or the logs to read are
+     * over {@link #calculateTxnLogSizeLimit()}
+     */
+    public TxnLogProposalIterator getProposalsFromTxnLog(long peerZxid) {
+        TxnIterator itr = null;
+        try {
+            long limit = calculateTxnLogSizeLimit();
+            if (limit < 0) {
+                return null;
+            }
+            long size = snapLog.getTxnLogSize(peerZxid);
+            if (size > limit) {
+                LOG.info("Not reading a diff from 0x"
+                        + Long.toHexString(peerZxid) + " from the logs, "
+                        + size + " bytes is over the limit of " + limit);
+                return null;
+            }
+            itr = snapLog.readTxnLog(peerZxid);
+            TxnHeader hdr = itr.getHeader();
+            if (hdr == null || hdr.getZxid() != peerZxid) {
+                LOG.info("0x" + Long.toHexString(peerZxid)
+                        + " is not in the transaction logs");
+                return null;
+            }
+            TxnLogProposalIterator proposals = new TxnLogProposalIterator(itr);
+            itr = null;
+            return proposals;
+        } catch (IOException e) {
+            LOG.warn("Unable to read the transaction logs from 0x"
+                    + Long.toHexString(peerZxid), e);
+            return null;
+        } finally {
+            if (itr != null) {
+                try {
+                    itr.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing the transaction logs", e);
+                }
+            }
+        }
+    }
+
     /**
      * get the last processed zxid from a datatree
      * @return the last processed zxid of a datatree
@@ -371,6 +465,19 @@ public class ZKDatabase {
         return dataTree.getData(path, stat, watcher);
     }
 
+    /**
+     * get data and stat for a path as a response record, without copying
+     * off heap data onto the heap
+     * @param path the path being queried
+     * @param watcher the watcher function
+     * @return the response, to be released once it is sent
+     * @throws KeeperException.NoNodeException
+     */
+    public PayloadDataResponse getDataResponse(String path, Watcher watcher)
+    throws KeeperException.NoNodeException {
+        return dataTree.getDataResponse(path, watcher);
+    }
+
     /**
      * set watches on the datatree
      * @param relativeZxid the relative zxid that client has seen
@@ -383,6 +490,36 @@ public class ZKDatabase {
             List<String> existWatches, List<String> childWatches, Watcher watcher) {
         dataTree.setWatches(relativeZxid, dataWatches, existWatches, childWatches, watcher);
     }
+
+    /**
+     * set watches on the datatree, including persistent ones
+     * @param relativeZxid the relative zxid that client has seen
+     * @param dataWatches the data watches the client wants to reset
+     * @param existWatches the exists watches the client wants to reset
+     * @param childWatches the child watches the client wants to reset
+     * @param persistentWatches the persistent watches the client wants to reset
+     * @param persistentRecursiveWatches the persistent recursive watches the
+     * client wants to reset
+     * @param watcher the watcher function
+     */
+    public void setWatches(long relativeZxid, List<String> dataWatches,
+            List<String> existWatches, List<String> childWatches,
+            List<String> persistentWatches,
+            List<String> persistentRecursiveWatches, Watcher watcher) {
+        dataTree.setWatches(relativeZxid, dataWatches, existWatches,
+                childWatches, persistentWatches, persistentRecursiveWatches,
+                watcher);
+    }
+
+    /**
+     * add a persistent watch to the datatree
+     * @param basePath the path to watch
+     * @param watcher the watcher function
+     * @param mode one of the ZooDefs.AddWatchModes
+     */
+    public void addWatch(String basePath, Watcher watcher, int mode) {
+        dataTree.addWatch(basePath, watcher, mode);
+    }
     
     /**
      * get acl for a path
@@ -408,6 +545,22 @@ public class ZKDatabase {
         return dataTree.getChildren(path, stat, watcher);
     }
 
+    /**
+     * get a page of the children of this path, in sorted order
+     * @param path the path of the node
+     * @param startAfter the page starts after this name, null for the first
+     * @param max the most children to return
+     * @param stat the stat of the node
+     * @param watcher the watcher function for this path
+     * @return the children in the page
+     * @throws KeeperException.NoNodeException
+     */
+    public List<String> getChildrenPage(String path, String startAfter,
+            int max, Stat stat, Watcher watcher)
+    throws KeeperException.NoNodeException {
+        return dataTree.getChildrenPage(path, startAfter, max, stat, watcher);
+    }
+
     /**
      * check if the path is special or not
      * @param path the input path
@@ -422,7 +575,7 @@ public class ZKDatabase {
      * @return the acl size of the datatree
      */
     public int getAclSize() {
-        return dataTree.longKeyMap.size();
+        return dataTree.aclCacheSize();
     }
 
     /**
@@ -449,6 +602,30 @@ public class ZKDatabase {
         initialized = true;
     }   
     
+    /**
+     * deserialize a snapshot file sent by the leader
+     * @param in the stream the snapshot file is read from
+     * @throws IOException
+     */
+    public void deserializeSnapshotFile(InputStream in) throws IOException {
+        clear();
+        // the snapshot directory isn't used to read from a stream
+        new FileSnap(null).deserialize(getDataTree(),
+                getSessionWithTimeOuts(), in);
+        initialized = true;
+    }
+
+    /**
+     * @return the most recent snapshot file, null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot() throws IOException {
+        if (snapLog == null) {
+            return null;
+        }
+        return snapLog.findMostRecentSnapshot();
+    }
+
     /**
      * serialize the snapshot
      * @param oa the output archive to which the snapshot needs to be serialized
@@ -483,6 +660,14 @@ public class ZKDatabase {
     public void commit() throws IOException {
         this.snapLog.commit();
     }
+
+    /**
+     * the number of bytes appended to the transaction log since the last
+     * commit
+     */
+    public long getUncommittedSize() {
+        return this.snapLog.getUncommittedSize();
+    }
     
     /**
      * close this database. free the resources
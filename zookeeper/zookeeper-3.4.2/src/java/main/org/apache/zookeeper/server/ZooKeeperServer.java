@@ -28,14 +28,12 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -125,10 +123,7 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     static final private long superSecret = 0XB3415C00L;
 
     int requestsInProcess;
-    final List<ChangeRecord> outstandingChanges = new ArrayList<ChangeRecord>();
-    // this data structure must be accessed under the outstandingChanges lock
-    final HashMap<String, ChangeRecord> outstandingChangesForPath =
-        new HashMap<String, ChangeRecord>();
+    final OutstandingChanges outstandingChanges = new OutstandingChanges();
     
     private ServerCnxnFactory serverCnxnFactory;
 
@@ -493,6 +488,17 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
 
         List<ACL> acl; /* Make sure to create a new object when changing */
 
+        /* The links below are maintained by OutstandingChanges */
+
+        /* the previous change to the same path */
+        ChangeRecord prevForPath;
+
+        ChangeRecord prev;
+
+        ChangeRecord next;
+
+        boolean applied;
+
         @SuppressWarnings("unchecked")
         ChangeRecord duplicate(long zxid) {
             StatPersisted stat = new StatPersisted();
@@ -841,11 +847,16 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     }
 
     public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
-        // We have the request, now process and setup for next
-        InputStream bais = new ByteBufferInputStream(incomingBuffer);
-        BinaryInputArchive bia = BinaryInputArchive.getArchive(bais);
+        // We have the request, now process and setup for next. The header
+        // is two ints, read them off the buffer rather than allocating an
+        // input archive for every packet
+        if (incomingBuffer.remaining() < 8) {
+            throw new IOException("Packet of " + incomingBuffer.remaining()
+                    + " bytes is too short for a request header");
+        }
         RequestHeader h = new RequestHeader();
-        h.deserialize(bia, "header");
+        h.setXid(incomingBuffer.getInt());
+        h.setType(incomingBuffer.getInt());
         // Through the magic of byte buffers, txn will not be
         // pointing
         // to the start of the txn
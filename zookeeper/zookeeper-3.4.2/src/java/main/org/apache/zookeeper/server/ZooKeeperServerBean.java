@@ -81,6 +81,22 @@ public class ZooKeeperServerBean implements ZooKeeperServerMXBean, ZKMBeanInfo {
         return zks.serverStats().getOutstandingRequests();
     }
 
+    public long getCommitCount() {
+        return zks.serverStats().getCommitCount();
+    }
+
+    public long getAvgCommitBatchSize() {
+        return zks.serverStats().getAvgCommitBatchSize();
+    }
+
+    public long getAvgFsyncTime() {
+        return zks.serverStats().getAvgFsyncMicros();
+    }
+
+    public long getMaxFsyncTime() {
+        return zks.serverStats().getMaxFsyncMicros();
+    }
+
     public int getTickTime() {
         return zks.getTickTime();
     }
@@ -139,5 +155,6 @@ public class ZooKeeperServerBean implements ZooKeeperServerMXBean, ZKMBeanInfo {
         ServerStats serverStats = zks.serverStats();
         serverStats.resetRequestCounters();
         serverStats.resetLatency();
+        serverStats.resetCommitStats();
     }
 }
@@ -58,6 +58,22 @@ public interface ZooKeeperServerMXBean {
      * @return number of outstanding requests.
      */
     public long getOutstandingRequests();
+    /**
+     * @return number of batches committed to the transaction log so far
+     */
+    public long getCommitCount();
+    /**
+     * @return average number of requests committed in one batch
+     */
+    public long getAvgCommitBatchSize();
+    /**
+     * @return average time to commit a batch in microseconds
+     */
+    public long getAvgFsyncTime();
+    /**
+     * @return max time to commit a batch in microseconds
+     */
+    public long getMaxFsyncTime();
     /**
      * Current TickTime of server in milliseconds
      */
@@ -92,7 +108,7 @@ public interface ZooKeeperServerMXBean {
     public void setMaxSessionTimeout(int max);
 
     /**
-     * Reset packet and latency statistics 
+     * Reset packet, latency and commit statistics
      */
     public void resetStatistics();
     /**
@@ -52,10 +52,29 @@ public class FileSnap implements SnapShot {
     File snapDir;
     private volatile boolean close = false;
     private static final int VERSION=2;
+    /**
+     * the version of snapshots whose nodes are written in checksummed
+     * chunks, see {@link SerializeUtils#serializeChunkedSnapshot}
+     */
+    static final int CHUNKED_VERSION=3;
     private static final long dbId=-1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public final static int SNAP_MAGIC
         = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
+    /**
+     * the number of threads serializing snapshots, 0 writes them on the
+     * calling thread in the format of version 2
+     */
+    private final int writerThreads =
+        Integer.getInteger("zookeeper.snapshot.writerThreads", 0);
+    private final int chunkSize =
+        Integer.getInteger("zookeeper.snapshot.chunkSize", 1024 * 1024);
+    /**
+     * the number of threads decoding snapshots written in chunks
+     */
+    private final int loaderThreads = Integer.getInteger(
+            "zookeeper.snapshot.loaderThreads",
+            Runtime.getRuntime().availableProcessors());
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
     }
@@ -124,7 +143,38 @@ public class FileSnap implements SnapShot {
                     + header.getMagic() + 
                     " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt,ia,sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            SerializeUtils.deserializeChunkedSnapshot(dt, ia, sessions,
+                    loaderThreads);
+        } else {
+            SerializeUtils.deserializeSnapshot(dt,ia,sessions);
+        }
+    }
+
+    /**
+     * deserialize a whole snapshot file from a stream, such as one sent by
+     * the leader, and check it. The stream is read up to the end of the
+     * snapshot and no further.
+     * @param dt the datatree to be deserialized into
+     * @param sessions the sessions to be filled up
+     * @param in the stream the snapshot file is read from
+     * @throws IOException if the snapshot can't be read or is corrupt
+     */
+    public void deserialize(DataTree dt, Map<Long, Integer> sessions,
+            InputStream in) throws IOException {
+        CheckedInputStream crcIn = new CheckedInputStream(in, new Adler32());
+        InputArchive ia = BinaryInputArchive.getArchive(crcIn);
+        deserialize(dt, sessions, ia);
+        long checkSum = crcIn.getChecksum().getValue();
+        long val = ia.readLong("val");
+        if (val != checkSum) {
+            throw new IOException("CRC corruption in snapshot");
+        }
+        String path = ia.readString("path");
+        if (!"/".equals(path)) {
+            throw new IOException("Snapshot ends with " + path
+                    + " instead of /");
+        }
     }
 
     /**
@@ -210,7 +260,12 @@ public class FileSnap implements SnapShot {
             throw new IllegalStateException(
                     "Snapshot's not open for writing: uninitialized header");
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt,oa,sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            SerializeUtils.serializeChunkedSnapshot(dt, oa, sessions,
+                    writerThreads, chunkSize);
+        } else {
+            SerializeUtils.serializeSnapshot(dt,oa,sessions);
+        }
     }
 
     /**
@@ -226,7 +281,8 @@ public class FileSnap implements SnapShot {
             CheckedOutputStream crcOut = new CheckedOutputStream(sessOS, new Adler32());
             //CheckedOutputStream cout = new CheckedOutputStream()
             OutputArchive oa = BinaryOutputArchive.getArchive(crcOut);
-            FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+            FileHeader header = new FileHeader(SNAP_MAGIC,
+                    writerThreads > 0 ? CHUNKED_VERSION : VERSION, dbId);
             serialize(dt,sessions,oa, header);
             long val = crcOut.getChecksum().getValue();
             oa.writeLong(val, "val");
@@ -119,15 +119,37 @@ public class FileTxnLog implements TxnLog {
     volatile BufferedOutputStream logStream = null;
     volatile OutputArchive oa;
     volatile FileOutputStream fos = null;
+    private long uncommittedSize;
 
     File logDir;
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");;
+
+    /**
+     * read the logs through memory mappings, see {@link MappedTxnIterator}
+     */
+    private final boolean mmapReader = !System.getProperty(
+            "zookeeper.mmapTxnLogReader", "yes").equals("no");
     long dbId;
     private LinkedList<FileOutputStream> streamsToFlush =
         new LinkedList<FileOutputStream>();
+    /** held for the whole of a commit, see {@link #commit()} */
+    private final Object commitLock = new Object();
     long currentSize;
     File logFileWrite = null;
 
+    /**
+     * the number of log segments to prepare ahead of time, see
+     * {@link LogPreallocator}
+     */
+    private final int preAllocSegments =
+        Integer.getInteger("zookeeper.preAllocSegments", 1);
+    LogPreallocator preallocator;
+
+    /** the index of the log being written, null if it has none */
+    private TxnLogIndex.Writer index;
+    /** the offset in the log being written the next entry goes to */
+    private long writePosition;
+
     /**
      * constructor for FileTxnLog. Take the directory
      * where the txnlogs are stored
@@ -165,18 +187,34 @@ public class FileTxnLog implements TxnLog {
             this.logStream = null;
             oa = null;
         }
+        if (index != null) {
+            index.close();
+            index = null;
+        }
     }
 
     /**
      * close all the open file handles
      * @throws IOException
      */
-    public synchronized void close() throws IOException {
-        if (logStream != null) {
-            logStream.close();
-        }
-        for (FileOutputStream log : streamsToFlush) {
-            log.close();
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            synchronized (this) {
+                if (logStream != null) {
+                    logStream.close();
+                }
+                for (FileOutputStream log : streamsToFlush) {
+                    log.close();
+                }
+                if (index != null) {
+                    index.close();
+                    index = null;
+                }
+                if (preallocator != null) {
+                    preallocator.shutdown();
+                    preallocator = null;
+                }
+            }
         }
     }
     
@@ -195,6 +233,15 @@ public class FileTxnLog implements TxnLog {
                         + " is <= " + lastZxidSeen + " for "
                         + hdr.getType());
             }
+            if (logStream != null && preallocator != null
+                    && preallocator.hasReady()
+                    && fos.getChannel().position() + uncommittedSize + 4096
+                        >= currentSize) {
+                // continue in a prepared segment rather than growing this
+                // one, the entries still in logStream are at most the ones
+                // appended since the last commit
+                rollLog();
+            }
             if (logStream==null) {
                if(LOG.isInfoEnabled()){
                     LOG.info("Creating new log file: log." +  
@@ -203,15 +250,24 @@ public class FileTxnLog implements TxnLog {
                
                logFileWrite = new File(logDir, ("log." + 
                        Long.toHexString(hdr.getZxid())));
-               fos = new FileOutputStream(logFileWrite);
-               logStream=new BufferedOutputStream(fos);
-               oa = BinaryOutputArchive.getArchive(logStream);
-               FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,VERSION, dbId);
-               fhdr.serialize(oa, "fileheader");
-               // Make sure that the magic number is written before padding.
-               logStream.flush();
-               currentSize = fos.getChannel().position();
+               if (startPreallocated()) {
+                   logStream=new BufferedOutputStream(fos);
+                   oa = BinaryOutputArchive.getArchive(logStream);
+               } else {
+                   fos = new FileOutputStream(logFileWrite);
+                   logStream=new BufferedOutputStream(fos);
+                   oa = BinaryOutputArchive.getArchive(logStream);
+                   FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,VERSION, dbId);
+                   fhdr.serialize(oa, "fileheader");
+                   // Make sure that the magic number is written before padding.
+                   logStream.flush();
+                   currentSize = fos.getChannel().position();
+                   writePosition = currentSize;
+               }
                streamsToFlush.add(fos);
+               if (TxnLogIndex.interval > 0) {
+                   index = new TxnLogIndex.Writer(logFileWrite, writePosition);
+               }
             }
             padFile(fos);
             byte[] buf = Util.marshallTxnEntry(hdr, txn);
@@ -223,12 +279,53 @@ public class FileTxnLog implements TxnLog {
             crc.update(buf, 0, buf.length);
             oa.writeLong(crc.getValue(), "txnEntryCRC");
             Util.writeTxnBytes(oa, buf);
+            if (index != null) {
+                index.add(hdr.getZxid(), writePosition);
+            }
+            // crc, length, entry and end of record marker
+            int length = 8 + 4 + buf.length + 1;
+            writePosition += length;
+            uncommittedSize += length;
             
             return true;
         }
         return false;
     }
 
+    /**
+     * start logFileWrite in a segment prepared by the preallocator, the
+     * first call starts the preallocator
+     * @return false if no segment was ready
+     */
+    private boolean startPreallocated() throws IOException {
+        if (preallocator == null) {
+            if (preAllocSegments > 0) {
+                preallocator = new LogPreallocator(logDir,
+                        new FileHeader(TXNLOG_MAGIC, VERSION, dbId),
+                        preAllocSegments, preAllocSize);
+            }
+            return false;
+        }
+        File segment = preallocator.poll();
+        if (segment == null) {
+            return false;
+        }
+        if (!segment.renameTo(logFileWrite)) {
+            LOG.warn("Unable to rename " + segment + " to " + logFileWrite);
+            if (!segment.delete()) {
+                LOG.warn("Unable to delete " + segment);
+            }
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(logFileWrite, "rw");
+        currentSize = raf.length();
+        writePosition = preallocator.getHeaderLength();
+        raf.seek(writePosition);
+        // closing the stream closes the file
+        fos = new FileOutputStream(raf.getFD());
+        return true;
+    }
+
     /**
      * pad the current file to increase its size
      * @param out the outputstream to be padded
@@ -274,6 +371,37 @@ public class FileTxnLog implements TxnLog {
 
     }
 
+    /**
+     * estimate how many bytes of the logs hold the transactions from zxid
+     * on. The indexes bound the end of the entries in each log to within
+     * an index interval, without them the preallocated length of the logs
+     * is counted as well.
+     * @param zxid the zxid the logs would be read from
+     * @return the estimated number of bytes
+     * @throws IOException
+     */
+    public long getLogSize(long zxid) throws IOException {
+        File[] files = getLogFiles(logDir.listFiles(), zxid);
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            long start = 0;
+            long end = files[i].length();
+            if (TxnLogIndex.interval > 0) {
+                TxnLogIndex index = TxnLogIndex.load(files[i]);
+                end = Math.min(end,
+                        index.getLastOffset() + TxnLogIndex.interval);
+                if (i == 0) {
+                    long entry[] = index.lookup(zxid);
+                    if (entry != null) {
+                        start = entry[1];
+                    }
+                }
+            }
+            size += Math.max(0, end - start);
+        }
+        return size;
+    }
+
     /**
      * get the last zxid that was logged in the transaction logs
      * @return the last zxid logged in the transaction logs
@@ -304,12 +432,37 @@ public class FileTxnLog implements TxnLog {
     /**
      * commit the logs. make sure that evertyhing hits the
      * disk
+     * <p>
+     * Only handing the appended transactions to the operating system holds
+     * the lock of the log, the fsync itself doesn't, so another thread can
+     * keep appending while the disk syncs. Commits are done one at a time.
      */
-    public synchronized void commit() throws IOException {
-        if (logStream != null) {
-            logStream.flush();
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            ArrayList<FileOutputStream> toSync;
+            synchronized (this) {
+                if (logStream != null) {
+                    logStream.flush();
+                }
+                toSync = new ArrayList<FileOutputStream>(streamsToFlush);
+                uncommittedSize = 0;
+                if (index != null) {
+                    index.flush();
+                }
+            }
+            sync(toSync);
+            synchronized (this) {
+                // the logs rolled before the flush above are complete and
+                // synced now, only appends after it can go to the last one
+                for (int i = 1; i < toSync.size(); i++) {
+                    streamsToFlush.removeFirst().close();
+                }
+            }
         }
-        for (FileOutputStream log : streamsToFlush) {
+    }
+
+    private void sync(ArrayList<FileOutputStream> toSync) throws IOException {
+        for (FileOutputStream log : toSync) {
             log.flush();
             if (forceSync) {
                 long startSyncNS = System.nanoTime();
@@ -327,9 +480,36 @@ public class FileTxnLog implements TxnLog {
                 }
             }
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.removeFirst().close();
+    }
+
+    /**
+     * the number of bytes appended since the last commit
+     */
+    public synchronized long getUncommittedSize() {
+        return uncommittedSize;
+    }
+
+    /**
+     * the log files to read for the transactions from zxid on: the files
+     * starting after zxid and the last one starting at or before it
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @return the files, the most recent first
+     */
+    static ArrayList<File> getLogFilesFrom(File logDir, long zxid) {
+        ArrayList<File> storedFiles = new ArrayList<File>();
+        List<File> files = Util.sortDataDir(FileTxnLog.getLogFiles(logDir.listFiles(), 0), "log", false);
+        for (File f: files) {
+            if (Util.getZxidFromName(f.getName(), "log") >= zxid) {
+                storedFiles.add(f);
+            }
+            // add the last logfile that is less than the zxid
+            else if (Util.getZxidFromName(f.getName(), "log") < zxid) {
+                storedFiles.add(f);
+                break;
+            }
         }
+        return storedFiles;
     }
 
     /**
@@ -339,6 +519,9 @@ public class FileTxnLog implements TxnLog {
      * logs
      */
     public TxnIterator read(long zxid) throws IOException {
+        if (mmapReader) {
+            return new MappedTxnIterator(logDir, zxid);
+        }
         return new FileTxnIterator(logDir, zxid);
     }
 
@@ -355,10 +538,12 @@ public class FileTxnLog implements TxnLog {
         RandomAccessFile raf=new RandomAccessFile(itr.logFile,"rw");
         raf.setLength(pos);
         raf.close();
+        TxnLogIndex.truncate(itr.logFile, pos);
         while(itr.goToNextLog()) {
             if (!itr.logFile.delete()) {
                 LOG.warn("Unable to truncate " + itr.logFile);
             }
+            TxnLogIndex.delete(itr.logFile);
         }
         return true;
     }
@@ -511,20 +696,9 @@ public class FileTxnLog implements TxnLog {
          * @throws IOException
          */
         void init() throws IOException {
-            storedFiles = new ArrayList<File>();
-            List<File> files = Util.sortDataDir(FileTxnLog.getLogFiles(logDir.listFiles(), 0), "log", false);
-            for (File f: files) {
-                if (Util.getZxidFromName(f.getName(), "log") >= zxid) {
-                    storedFiles.add(f);
-                }
-                // add the last logfile that is less than the zxid
-                else if (Util.getZxidFromName(f.getName(), "log") < zxid) {
-                    storedFiles.add(f);
-                    break;
-                }
-            }
+            storedFiles = getLogFilesFrom(logDir, zxid);
             goToNextLog();
-            if (!next())
+            if (!seek() && !next())
                 return;
             while (hdr.getZxid() < zxid) {
                 if (!next())
@@ -532,6 +706,58 @@ public class FileTxnLog implements TxnLog {
             }
         }
 
+        /**
+         * skip to the entry the index of the first log has for zxid
+         * @return true if the entry was read, false if the next one to
+         * read is the first of the log
+         * @throws IOException
+         */
+        private boolean seek() throws IOException {
+            if (ia == null) {
+                return false;
+            }
+            long entry[] = TxnLogIndex.lookup(logFile, zxid);
+            if (entry == null) {
+                return false;
+            }
+            try {
+                long skip = entry[1] - inputStream.getPosition();
+                while (skip > 0) {
+                    long n = inputStream.skip(skip);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skip -= n;
+                }
+                if (skip == 0) {
+                    long crcValue = ia.readLong("crcvalue");
+                    byte[] bytes = Util.readTxnBytes(ia);
+                    if (bytes != null && bytes.length > 0) {
+                        Checksum crc = makeChecksumAlgorithm();
+                        crc.update(bytes, 0, bytes.length);
+                        // only parse entries known to be intact
+                        if (crcValue == crc.getValue()) {
+                            TxnHeader h = new TxnHeader();
+                            Record r = SerializeUtils.deserializeTxn(bytes, h);
+                            if (h.getZxid() == entry[0]) {
+                                hdr = h;
+                                record = r;
+                                return true;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to read the indexed entry", e);
+            }
+            LOG.warn("Ignoring the index of " + logFile
+                    + ", it doesn't match the log");
+            inputStream.close();
+            inputStream = null;
+            ia = createInputArchive(logFile);
+            return false;
+        }
+
         /**
          * go to the next logfile
          * @return true if there is one and false if there is no
@@ -654,7 +880,10 @@ public class FileTxnLog implements TxnLog {
          * and release the resources.
          */
         public void close() throws IOException {
-            inputStream.close();
+            // the stream is gone once the last log was read
+            if (inputStream != null) {
+                inputStream.close();
+            }
         }
     }
 
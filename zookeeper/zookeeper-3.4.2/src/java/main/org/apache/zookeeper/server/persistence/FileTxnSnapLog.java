@@ -90,6 +90,7 @@ public class FileTxnSnapLog {
                         + this.snapDir);
             }
         }
+        LogPreallocator.recover(this.dataDir);
         txnLog = new FileTxnLog(this.dataDir);
         snapLog = new FileSnap(this.snapDir);
     }
@@ -223,6 +224,28 @@ public class FileTxnSnapLog {
         return txnLog.getLastLoggedZxid();
     }
 
+    /**
+     * start reading the transaction logs from the given zxid
+     * @param zxid the zxid to start reading transactions from
+     * @return an iterator over the transactions
+     * @throws IOException
+     */
+    public TxnIterator readTxnLog(long zxid) throws IOException {
+        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        return txnLog.read(zxid);
+    }
+
+    /**
+     * estimate the size of the transaction logs from the given zxid on
+     * @param zxid the zxid the logs would be read from
+     * @return the estimated number of bytes
+     * @throws IOException
+     */
+    public long getTxnLogSize(long zxid) throws IOException {
+        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        return txnLog.getLogSize(zxid);
+    }
+
     /**
      * save the datatree and the sessions into a snapshot
      * @param dataTree the datatree to be serialized onto disk
@@ -233,12 +256,17 @@ public class FileTxnSnapLog {
     public void save(DataTree dataTree,
             ConcurrentHashMap<Long, Integer> sessionsWithTimeouts)
         throws IOException {
-        long lastZxid = dataTree.lastProcessedZxid;
-        LOG.info("Snapshotting: " + Long.toHexString(lastZxid));
-        File snapshot=new File(
-                snapDir, Util.makeSnapshotName(lastZxid));
-        snapLog.serialize(dataTree, sessionsWithTimeouts, snapshot);
-        
+        // the snapshot holds the tree as of lastZxid, so restoring it
+        // replays the log from the transaction right after lastZxid
+        long lastZxid = dataTree.beginSnapshot();
+        try {
+            LOG.info("Snapshotting: " + Long.toHexString(lastZxid));
+            File snapshot=new File(
+                    snapDir, Util.makeSnapshotName(lastZxid));
+            snapLog.serialize(dataTree, sessionsWithTimeouts, snapshot);
+        } finally {
+            dataTree.endSnapshot();
+        }
     }
 
     /**
@@ -306,6 +334,14 @@ public class FileTxnSnapLog {
         txnLog.commit();
     }
 
+    /**
+     * the number of bytes appended to the transaction log since the last
+     * commit
+     */
+    public long getUncommittedSize() {
+        return txnLog.getUncommittedSize();
+    }
+
     /**
      * roll the transaction logs
      * @throws IOException 
@@ -0,0 +1,294 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prepares transaction log files in the background, so that starting a new
+ * log doesn't have to create and grow a file while requests wait for it.
+ * <p>
+ * A prepared segment already has its file header and is filled with zeros
+ * up to preAllocSize, so entries can be appended anywhere in it without
+ * changing the size of the file. It is named prealloc.&lt;n&gt;, which is
+ * not the name of a log, until {@link FileTxnLog} renames it to the log it
+ * starts. The zeros after the header read as the end of an empty log, so
+ * a segment is harmless even if the server stops right after the rename.
+ * <p>
+ * Nothing makes that rename durable though, so after a crash a segment can
+ * still be named prealloc.&lt;n&gt; while holding entries that were synced.
+ * {@link #recover(File)} gives such segments back the name of their log
+ * before the logs are read, and segments with entries are never deleted.
+ * <p>
+ * The segments of all logs are prepared one at a time by a single daemon
+ * thread.
+ */
+class LogPreallocator {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(LogPreallocator.class);
+
+    static final String PREFIX = "prealloc.";
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private static final ExecutorService executor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LogPreallocator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final File logDir;
+
+    private final int segments;
+
+    private final long size;
+
+    private final byte header[];
+
+    private final LinkedList<File> ready = new LinkedList<File>();
+
+    private int preparing;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param segments the number of segments to keep ready
+     * @param size the size of a segment, including the header
+     */
+    LogPreallocator(File logDir, FileHeader header, int segments, long size)
+            throws IOException {
+        this.logDir = logDir;
+        this.segments = segments;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        header.serialize(BinaryOutputArchive.getArchive(baos), "fileheader");
+        this.header = baos.toByteArray();
+        this.size = Math.max(size, this.header.length);
+        // segments left behind by an earlier run
+        File stale[] = logDir.listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (!f.getName().startsWith(PREFIX)) {
+                    continue;
+                }
+                try {
+                    if (getFirstZxid(f) == -1) {
+                        delete(f);
+                    } else {
+                        LOG.warn("Not deleting " + f + ", it has entries");
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Not deleting " + f, e);
+                }
+            }
+        }
+        refill();
+    }
+
+    /**
+     * Rename the segments left behind by an earlier run that have entries
+     * to the log they started. The server may have stopped before the
+     * rename that made them a log was durable.
+     * @throws IOException if a segment has a damaged first entry, or can't
+     * be renamed
+     */
+    static void recover(File logDir) throws IOException {
+        File files[] = logDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (!f.getName().startsWith(PREFIX)) {
+                continue;
+            }
+            long zxid = getFirstZxid(f);
+            if (zxid == -1) {
+                continue;
+            }
+            File log = new File(logDir, Util.makeLogName(zxid));
+            if (log.exists() || !f.renameTo(log)) {
+                if (!f.exists()) {
+                    // it became the log as we read it
+                    continue;
+                }
+                throw new IOException("Unable to rename " + f + " with "
+                        + "entries from 0x" + Long.toHexString(zxid)
+                        + " to " + log);
+            }
+            LOG.warn("Recovered log " + log + " from " + f);
+        }
+    }
+
+    /**
+     * @return the zxid of the first entry of the segment, -1 if it has none
+     * @throws IOException if the first entry is damaged
+     */
+    static long getFirstZxid(File f) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(f));
+        try {
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(is);
+            long crcValue;
+            byte bytes[];
+            try {
+                new FileHeader().deserialize(ia, "fileheader");
+                crcValue = ia.readLong("crcvalue");
+                bytes = ia.readBuffer("txnEntry");
+            } catch (EOFException e) {
+                // not completely prepared, so never written to
+                return -1;
+            }
+            if (bytes.length == 0) {
+                return -1;
+            }
+            Adler32 crc = new Adler32();
+            crc.update(bytes, 0, bytes.length);
+            if (crcValue != crc.getValue() || ia.readByte("EOR") != 'B') {
+                throw new IOException(f + " has a damaged first entry");
+            }
+            TxnHeader hdr = new TxnHeader();
+            hdr.deserialize(BinaryInputArchive.getArchive(
+                    new ByteArrayInputStream(bytes)), "hdr");
+            return hdr.getZxid();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return the length of the header at the start of each segment
+     */
+    int getHeaderLength() {
+        return header.length;
+    }
+
+    /**
+     * @return a prepared segment, or null if none is ready
+     */
+    synchronized File poll() {
+        File f = ready.poll();
+        refill();
+        return f;
+    }
+
+    synchronized boolean hasReady() {
+        return !ready.isEmpty();
+    }
+
+    /**
+     * stop preparing segments and delete the ones that weren't used
+     */
+    synchronized void shutdown() {
+        running = false;
+        for (File f : ready) {
+            delete(f);
+        }
+        ready.clear();
+    }
+
+    private synchronized void refill() {
+        while (running && ready.size() + preparing < segments) {
+            preparing++;
+            final File f = new File(logDir, PREFIX + nextId.getAndIncrement());
+            executor.execute(new Runnable() {
+                public void run() {
+                    prepared(f, prepare(f));
+                }
+            });
+        }
+    }
+
+    private synchronized void prepared(File f, boolean complete) {
+        preparing--;
+        if (complete && running) {
+            ready.add(f);
+        } else {
+            delete(f);
+        }
+    }
+
+    /**
+     * @return false if the segment couldn't be completed
+     */
+    private boolean prepare(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                channel.write(ByteBuffer.wrap(header));
+                ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+                long left = size - header.length;
+                int chunks = 0;
+                while (left > 0) {
+                    if (!running) {
+                        return false;
+                    }
+                    zeros.clear();
+                    if (left < zeros.capacity()) {
+                        zeros.limit((int) left);
+                    }
+                    left -= channel.write(zeros);
+                    if (++chunks % 64 == 0) {
+                        channel.force(false);
+                    }
+                }
+                // the size of the file has to be durable as well, appends
+                // into it then don't need to change any metadata
+                channel.force(true);
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to prepare " + f + ", new logs are created "
+                    + "when they are started", e);
+            running = false;
+            return false;
+        }
+    }
+
+    private static void delete(File f) {
+        if (f.exists() && !f.delete()) {
+            LOG.warn("Unable to delete " + f);
+        }
+    }
+}
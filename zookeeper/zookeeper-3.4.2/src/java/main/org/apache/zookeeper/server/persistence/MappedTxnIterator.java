@@ -0,0 +1,327 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.ByteBufferInputStream;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads transaction logs through memory mappings of the files, instead of
+ * through a stream, with the same results as {@link FileTxnLog.FileTxnIterator}.
+ * <p>
+ * The files are mapped a window at a time. Each entry is copied once, from
+ * the mapping into a buffer reused for all the entries, where its checksum
+ * is verified and its header and transaction are parsed. A file ends at the
+ * first empty entry, which is where the zeros preallocated at its end
+ * start, or at a partial entry.
+ */
+public class MappedTxnIterator implements TxnLog.TxnIterator {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(MappedTxnIterator.class);
+
+    /** the most of a file mapped at once */
+    private static int windowSize = 64 * 1024 * 1024;
+
+    /** crc and length of an entry */
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    /** the log files left to read, the most recent first */
+    private final ArrayList<File> storedFiles;
+
+    private File logFile;
+
+    private FileHeader fileHeader;
+
+    private long fileSize;
+
+    /** the offset in the file the window starts at */
+    private long windowStart;
+
+    private MappedByteBuffer window;
+
+    private byte[] entry = new byte[4096];
+
+    private final Checksum crc = new Adler32();
+
+    private final EntryInputStream entryStream = new EntryInputStream();
+
+    private final BinaryInputArchive entryArchive =
+        BinaryInputArchive.getArchive(entryStream);
+
+    private TxnHeader hdr;
+
+    private Record record;
+
+    /**
+     * a ByteArrayInputStream pointed at each entry in turn
+     */
+    private static class EntryInputStream extends ByteArrayInputStream {
+        EntryInputStream() {
+            super(new byte[0]);
+        }
+
+        synchronized void set(byte[] buf, int len) {
+            this.buf = buf;
+            this.pos = 0;
+            this.mark = 0;
+            this.count = len;
+        }
+    }
+
+    /**
+     * change the size of the windows mapped, for tests
+     */
+    static void setWindowSize(int size) {
+        windowSize = size;
+    }
+
+    /**
+     * create an iterator over a transaction database directory
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @throws IOException
+     */
+    public MappedTxnIterator(File logDir, long zxid) throws IOException {
+        this(FileTxnLog.getLogFilesFrom(logDir, zxid), zxid);
+    }
+
+    private MappedTxnIterator(ArrayList<File> storedFiles, long zxid)
+            throws IOException {
+        this.storedFiles = storedFiles;
+        if (!seek(zxid) && !next()) {
+            return;
+        }
+        while (hdr.getZxid() < zxid) {
+            if (!next()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * create an iterator over the transactions of a single log file
+     * @param logFile the log file
+     * @throws IOException
+     */
+    public static MappedTxnIterator forFile(File logFile) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        files.add(logFile);
+        return new MappedTxnIterator(files, 0);
+    }
+
+    /**
+     * skip to the entry the index of the first log has for zxid
+     * @return true if the entry was read, false if the next one to read is
+     * the first of the log
+     */
+    private boolean seek(long zxid) throws IOException {
+        if (zxid <= 0 || !goToNextLog()) {
+            return false;
+        }
+        long entry[] = TxnLogIndex.lookup(logFile, zxid);
+        if (entry == null) {
+            return false;
+        }
+        long headerEnd = windowStart + window.position();
+        if (entry[1] > headerEnd && entry[1] < fileSize) {
+            map(entry[1], (int) Math.min(fileSize - entry[1], windowSize));
+            try {
+                if (readEntry() && hdr.getZxid() == entry[0]) {
+                    return true;
+                }
+            } catch (IOException e) {
+                LOG.debug("Unable to read the indexed entry", e);
+            }
+        }
+        LOG.warn("Ignoring the index of " + logFile
+                + ", it doesn't match the log");
+        map(0, (int) Math.min(fileSize, windowSize));
+        window.position((int) headerEnd);
+        hdr = null;
+        record = null;
+        return false;
+    }
+
+    /**
+     * @return the header of the file read last
+     */
+    public FileHeader getFileHeader() {
+        return fileHeader;
+    }
+
+    /**
+     * map the next file and read its header
+     * @return false if there is no file left
+     */
+    private boolean goToNextLog() throws IOException {
+        if (storedFiles.isEmpty()) {
+            return false;
+        }
+        logFile = storedFiles.remove(storedFiles.size() - 1);
+        fileSize = logFile.length();
+        windowStart = 0;
+        window = null;
+        map(0, (int) Math.min(fileSize, windowSize));
+        fileHeader = new FileHeader();
+        fileHeader.deserialize(BinaryInputArchive.getArchive(
+                new ByteBufferInputStream(window)), "fileheader");
+        if (fileHeader.getMagic() != FileTxnLog.TXNLOG_MAGIC) {
+            throw new IOException("Transaction log: " + logFile
+                    + " has invalid magic number " + fileHeader.getMagic()
+                    + " != " + FileTxnLog.TXNLOG_MAGIC);
+        }
+        return true;
+    }
+
+    private void map(long start, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            // the mapping stays valid once the file is closed
+            window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    start, size);
+            windowStart = start;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * make sure the window holds the next n bytes of the file
+     * @return false if the file ends before
+     */
+    private boolean ensure(int n) throws IOException {
+        if (window.remaining() >= n) {
+            return true;
+        }
+        long position = windowStart + window.position();
+        if (position + n > fileSize) {
+            return false;
+        }
+        map(position, (int) Math.min(fileSize - position,
+                Math.max(windowSize, n)));
+        return true;
+    }
+
+    private void endOfLog() {
+        LOG.debug("EOF reached in " + logFile);
+        window = null;
+        hdr = null;
+        record = null;
+    }
+
+    /**
+     * the iterator that moves to the next transaction
+     * @return true if there is more transactions to be read
+     * false if not.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (window == null && !goToNextLog()) {
+                return false;
+            }
+            if (readEntry()) {
+                return true;
+            }
+            endOfLog();
+        }
+    }
+
+    /**
+     * read the entry at the current position of the window
+     * @return false if the log ends there
+     */
+    private boolean readEntry() throws IOException {
+        if (!ensure(ENTRY_HEADER_SIZE)) {
+            return false;
+        }
+        long crcValue = window.getLong();
+        int len = window.getInt();
+        if (len == 0) {
+            // Since we preallocate, we define EOF to be an
+            // empty transaction
+            return false;
+        }
+        if (len < 0 || len > BinaryInputArchive.maxBuffer) {
+            throw new IOException("Unreasonable length = " + len);
+        }
+        // the entry and its end of record marker
+        if (!ensure(len + 1)) {
+            return false;
+        }
+        if (entry.length < len) {
+            entry = new byte[Math.max(len, entry.length << 1)];
+        }
+        window.get(entry, 0, len);
+        if (window.get() != 'B') {
+            LOG.error("Last transaction was partial.");
+            return false;
+        }
+        crc.reset();
+        crc.update(entry, 0, len);
+        if (crcValue != crc.getValue()) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+        entryStream.set(entry, len);
+        hdr = new TxnHeader();
+        record = SerializeUtils.deserializeTxn(entryArchive, entryStream,
+                hdr);
+        return true;
+    }
+
+    /**
+     * reutrn the current header
+     * @return the current header that
+     * is read
+     */
+    public TxnHeader getHeader() {
+        return hdr;
+    }
+
+    /**
+     * return the current transaction
+     * @return the current transaction
+     * that is read
+     */
+    public Record getTxn() {
+        return record;
+    }
+
+    /**
+     * close the iterator, the mappings go away once they are collected
+     */
+    public void close() throws IOException {
+        window = null;
+        storedFiles.clear();
+    }
+}
@@ -82,6 +82,12 @@ public interface TxnLog {
      * @throws IOException
      */
     void commit() throws IOException;
+
+    /**
+     * the number of bytes appended to the log since the last commit.
+     * @return the number of bytes appended since the last commit.
+     */
+    long getUncommittedSize();
    
     /** 
      * close the transactions logs
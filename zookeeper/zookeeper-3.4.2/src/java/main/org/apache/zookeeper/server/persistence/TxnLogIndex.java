@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.jute.BinaryInputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index of a transaction log, kept next to the log as
+ * log.&lt;zxid&gt;.idx. It maps the zxid of an entry about every
+ * zookeeper.txnLogIndexInterval bytes of the log to the offset of that
+ * entry in the file, so a reader can start close to the zxid it wants
+ * instead of at the start of the log.
+ * <p>
+ * The index is only a hint. It isn't synced, and readers check that the
+ * entry at an offset is valid and has the zxid of the index before they
+ * use it, so a stale or damaged index only costs a scan from the start of
+ * the log. A log without an index, such as one written by an earlier
+ * release, gets one the first time it is looked up.
+ * <p>
+ * The file is a header of magic and version, followed by the zxid and
+ * offset of each indexed entry as longs, in the order of the log.
+ */
+public class TxnLogIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    public final static int INDEX_MAGIC =
+        ByteBuffer.wrap("ZKLI".getBytes()).getInt();
+
+    public final static int VERSION = 1;
+
+    static final String SUFFIX = ".idx";
+
+    /** the log bytes between two indexed entries, 0 disables the index */
+    static long interval = Long.getLong("zookeeper.txnLogIndexInterval",
+            64 * 1024);
+
+    private final long zxids[];
+
+    private final long offsets[];
+
+    private final int size;
+
+    private TxnLogIndex(long zxids[], long offsets[], int size) {
+        this.zxids = zxids;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * @return the file the index of a log is kept in
+     */
+    public static File indexFile(File logFile) {
+        return new File(logFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the number of indexed entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the offset of the last indexed entry, 0 if there is none
+     */
+    public long getLastOffset() {
+        return size == 0 ? 0 : offsets[size - 1];
+    }
+
+    /**
+     * @return the zxid and the offset of the indexed entry with the highest
+     * zxid not above zxid, null if there is none
+     */
+    public long[] lookup(long zxid) {
+        int i = Arrays.binarySearch(zxids, 0, size, zxid);
+        if (i < 0) {
+            // the insertion point is the first entry above zxid
+            i = -i - 2;
+            if (i < 0) {
+                return null;
+            }
+        }
+        return new long[] { zxids[i], offsets[i] };
+    }
+
+    /**
+     * look up zxid in the index of a log, building the index if the log
+     * has none
+     * @return see {@link #lookup(long)}, null as well if the index can't
+     * be read or built
+     */
+    public static long[] lookup(File logFile, long zxid) {
+        if (interval <= 0) {
+            return null;
+        }
+        try {
+            return load(logFile).lookup(zxid);
+        } catch (IOException e) {
+            LOG.warn("Unable to use the index of " + logFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * read the index of a log, building it if the log has none
+     */
+    public static TxnLogIndex load(File logFile) throws IOException {
+        File indexFile = indexFile(logFile);
+        if (indexFile.exists()) {
+            TxnLogIndex index = read(indexFile);
+            if (index != null) {
+                return index;
+            }
+            LOG.warn(indexFile + " is not an index, rebuilding it");
+        }
+        return rebuild(logFile);
+    }
+
+    /**
+     * @return null if the file doesn't start with the header of an index
+     */
+    private static TxnLogIndex read(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int n = (int) ((indexFile.length() - 8) / 16);
+            long zxids[] = new long[n];
+            long offsets[] = new long[n];
+            for (int i = 0; i < n; i++) {
+                zxids[i] = in.readLong();
+                offsets[i] = in.readLong();
+            }
+            return new TxnLogIndex(zxids, offsets, n);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * index a log by walking its entries, without parsing or checking them
+     */
+    static TxnLogIndex rebuild(File logFile) throws IOException {
+        long zxids[] = new long[16];
+        long offsets[] = new long[16];
+        int n = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile)));
+        try {
+            // magic, version and dbid
+            in.readInt();
+            in.readInt();
+            in.readLong();
+            long position = 16;
+            long last = position;
+            while (true) {
+                in.readLong();
+                int len = in.readInt();
+                // clientId and cxid come before the zxid in the header
+                if (len < 20 || len > BinaryInputArchive.maxBuffer) {
+                    break;
+                }
+                in.readLong();
+                in.readInt();
+                long zxid = in.readLong();
+                in.skipBytes(len - 20);
+                if (in.readByte() != 'B') {
+                    break;
+                }
+                if (position - last >= interval) {
+                    if (n == zxids.length) {
+                        zxids = grow(zxids);
+                        offsets = grow(offsets);
+                    }
+                    zxids[n] = zxid;
+                    offsets[n] = position;
+                    n++;
+                    last = position;
+                }
+                position += 12 + len + 1;
+            }
+        } catch (EOFException e) {
+            // a partial entry ends the log
+        } finally {
+            in.close();
+        }
+        TxnLogIndex index = new TxnLogIndex(zxids, offsets, n);
+        index.write(indexFile(logFile));
+        return index;
+    }
+
+    private static long[] grow(long a[]) {
+        long b[] = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * drop the entries at or after length, for a log truncated to length
+     */
+    public static void truncate(File logFile, long length) throws IOException {
+        File indexFile = indexFile(logFile);
+        if (!indexFile.exists()) {
+            return;
+        }
+        TxnLogIndex index = read(indexFile);
+        if (index == null) {
+            delete(logFile);
+            return;
+        }
+        int n = 0;
+        while (n < index.size && index.offsets[n] < length) {
+            n++;
+        }
+        new TxnLogIndex(index.zxids, index.offsets, n).write(indexFile);
+    }
+
+    /**
+     * delete the index of a log
+     */
+    public static void delete(File logFile) {
+        File indexFile = indexFile(logFile);
+        if (indexFile.exists() && !indexFile.delete()) {
+            LOG.warn("Unable to delete " + indexFile);
+        }
+    }
+
+    /**
+     * replace the index file with a complete new one, readers see either
+     * of the two
+     */
+    private void write(File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(zxids[i]);
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(indexFile)) {
+            // renameTo doesn't replace files everywhere
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Unable to rename " + tmp + " to "
+                        + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries of a log to its index as they are appended.
+     */
+    static class Writer {
+        private final DataOutputStream out;
+
+        private long last;
+
+        /**
+         * start the index of a new log, replacing any index it had
+         * @param start the offset of the first entry of the log
+         */
+        Writer(File logFile, long start) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexFile(logFile))));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            // readers take an index without its header for a broken one
+            out.flush();
+            last = start;
+        }
+
+        /**
+         * an entry was appended to the log
+         */
+        void add(long zxid, long offset) throws IOException {
+            if (offset - last >= interval) {
+                out.writeLong(zxid);
+                out.writeLong(offset);
+                last = offset;
+            }
+        }
+
+        /**
+         * make the entries added so far visible to readers
+         */
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+}
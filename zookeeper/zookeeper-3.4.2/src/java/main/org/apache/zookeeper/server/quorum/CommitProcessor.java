@@ -19,7 +19,12 @@
 package org.apache.zookeeper.server.quorum;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,10 +37,27 @@ import org.apache.zookeeper.server.RequestProcessor;
  * locally submitted requests. The trick is that locally submitted requests that
  * change the state of the system will come back as incoming committed requests,
  * so we need to match them up.
+ * <p>
+ * Requests that don't change the state of the system are handed to a pool of
+ * worker threads, each session always to the same one, so reads of different
+ * sessions run in parallel and a session gets its responses in order. A
+ * session that waits for the commit of one of its requests holds its later
+ * requests back until that commit is processed, other sessions go on. The
+ * committed requests are processed on this thread in the order they are
+ * committed, once the reads handed out before have been processed, and
+ * requests are taken off queuedRequests only between them so a steady
+ * stream of reads can't hold the commits back.
  */
 public class CommitProcessor extends Thread implements RequestProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(CommitProcessor.class);
 
+    /**
+     * The number of threads that process reads, 0 processes them on the
+     * CommitProcessor thread. Defaults to the number of cores.
+     */
+    public static final String NUM_WORKER_THREADS =
+        "zookeeper.commitProcessor.numWorkerThreads";
+
     /**
      * Requests that we are holding until the commit comes in.
      */
@@ -46,8 +68,25 @@ public class CommitProcessor extends Thread implements RequestProcessor {
      */
     LinkedList<Request> committedRequests = new LinkedList<Request>();
 
+    /**
+     * The queued requests that wait for a commit, in the order they were
+     * queued, which is the order they are committed in.
+     */
+    LinkedList<Request> queuedWriteRequests = new LinkedList<Request>();
+
+    /**
+     * The requests of each session from the one that waits for its commit
+     * on, only used by the CommitProcessor thread.
+     */
+    private final HashMap<Long, LinkedList<Request>> pendingRequests =
+        new HashMap<Long, LinkedList<Request>>();
+
+    /**
+     * The number of requests handed to the workers that are not processed yet.
+     */
+    private final AtomicInteger numRequestsProcessing = new AtomicInteger();
+
     RequestProcessor nextProcessor;
-    ArrayList<Request> toProcess = new ArrayList<Request>();
 
     /**
      * This flag indicates whether we need to wait for a response to come back from the
@@ -56,100 +95,209 @@ public class CommitProcessor extends Thread implements RequestProcessor {
      */
     boolean matchSyncs;
 
+    private final int numWorkerThreads;
+
+    private ExecutorService workers[];
+
     public CommitProcessor(RequestProcessor nextProcessor, String id, boolean matchSyncs) {
         super("CommitProcessor:" + id);
         this.nextProcessor = nextProcessor;
         this.matchSyncs = matchSyncs;
+        this.numWorkerThreads = Integer.getInteger(NUM_WORKER_THREADS,
+                Runtime.getRuntime().availableProcessors());
     }
 
     volatile boolean finished = false;
 
     @Override
     public void run() {
+        startWorkers();
         try {
-            Request nextPending = null;            
+            ArrayList<Request> incoming = new ArrayList<Request>();
             while (!finished) {
-                int len = toProcess.size();
-                for (int i = 0; i < len; i++) {
-                    nextProcessor.processRequest(toProcess.get(i));
-                }
-                toProcess.clear();
                 synchronized (this) {
-                    if ((queuedRequests.size() == 0 || nextPending != null)
-                            && committedRequests.size() == 0) {
+                    while (!finished && queuedRequests.isEmpty()
+                            && committedRequests.isEmpty()) {
                         wait();
-                        continue;
                     }
-                    // First check and see if the commit came in for the pending
-                    // request
-                    if ((queuedRequests.size() == 0 || nextPending != null)
-                            && committedRequests.size() > 0) {
-                        Request r = committedRequests.remove();
-                        /*
-                         * We match with nextPending so that we can move to the
-                         * next request when it is committed. We also want to
-                         * use nextPending because it has the cnxn member set
-                         * properly.
-                         */
-                        if (nextPending != null
-                                && nextPending.sessionId == r.sessionId
-                                && nextPending.cxid == r.cxid) {
-                            // we want to send our version of the request.
-                            // the pointer to the connection in the request
-                            nextPending.hdr = r.hdr;
-                            nextPending.txn = r.txn;
-                            nextPending.zxid = r.zxid;
-                            toProcess.add(nextPending);
-                            nextPending = null;
-                        } else {
-                            // this request came from someone else so just
-                            // send the commit packet
-                            toProcess.add(r);
-                        }
+                    if (finished) {
+                        break;
                     }
+                    // only the requests queued so far, so the commits don't
+                    // wait behind a steady stream of reads
+                    incoming.addAll(queuedRequests);
+                    queuedRequests.clear();
                 }
-
-                // We haven't matched the pending requests, so go back to
-                // waiting
-                if (nextPending != null) {
-                    continue;
-                }
-
-                synchronized (this) {
-                    // Process the next requests in the queuedRequests
-                    while (nextPending == null && queuedRequests.size() > 0) {
-                        Request request = queuedRequests.remove();
-                        switch (request.type) {
-                        case OpCode.create:
-                        case OpCode.delete:
-                        case OpCode.setData:
-                        case OpCode.multi:
-                        case OpCode.setACL:
-                        case OpCode.createSession:
-                        case OpCode.closeSession:
-                            nextPending = request;
-                            break;
-                        case OpCode.sync:
-                            if (matchSyncs) {
-                                nextPending = request;
-                            } else {
-                                toProcess.add(request);
-                            }
-                            break;
-                        default:
-                            toProcess.add(request);
-                        }
-                    }
+                int len = incoming.size();
+                for (int i = 0; i < len; i++) {
+                    processQueued(incoming.get(i));
                 }
+                incoming.clear();
+                processCommitted();
             }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted exception while waiting", e);
         } catch (Throwable e) {
             LOG.error("Unexpected exception causing CommitProcessor to exit", e);
+        } finally {
+            stopWorkers();
         }
         LOG.info("CommitProcessor exited loop!");
     }
 
+    /**
+     * @return true if the request changes the state of the system, so it has
+     * to wait for its commit
+     */
+    private boolean needCommit(Request request) {
+        switch (request.type) {
+        case OpCode.create:
+        case OpCode.delete:
+        case OpCode.setData:
+        case OpCode.multi:
+        case OpCode.setACL:
+        case OpCode.createSession:
+        case OpCode.closeSession:
+            return true;
+        case OpCode.sync:
+            return matchSyncs;
+        default:
+            return false;
+        }
+    }
+
+    private void processQueued(Request request) {
+        LinkedList<Request> pending = pendingRequests.get(request.sessionId);
+        if (pending != null) {
+            // the session waits for a commit, this one goes after it
+            pending.add(request);
+        } else if (needCommit(request)) {
+            pending = new LinkedList<Request>();
+            pending.add(request);
+            pendingRequests.put(request.sessionId, pending);
+        } else {
+            dispatch(request);
+        }
+    }
+
+    /**
+     * process the committed requests in order, each once no reads are being
+     * processed, up to the first one whose local request isn't ready for it
+     */
+    private void processCommitted() throws InterruptedException {
+        while (!finished) {
+            Request committed;
+            Request request;
+            LinkedList<Request> pending = null;
+            synchronized (this) {
+                while (numRequestsProcessing.get() > 0 && !finished) {
+                    wait();
+                }
+                committed = committedRequests.peek();
+                if (committed == null || finished) {
+                    return;
+                }
+                request = committed;
+                Request write = queuedWriteRequests.peek();
+                /*
+                 * The commits come in the order the local requests were
+                 * queued, so a commit of a local request is one of the
+                 * first local request that waits for a commit. We use the
+                 * local request because it has the cnxn member set properly.
+                 */
+                if (write != null && write.sessionId == committed.sessionId
+                        && write.cxid == committed.cxid) {
+                    pending = pendingRequests.get(committed.sessionId);
+                    if (pending == null) {
+                        // not taken off queuedRequests yet
+                        return;
+                    }
+                    queuedWriteRequests.remove();
+                    if (pending.getFirst() == write) {
+                        request = pending.removeFirst();
+                    } else {
+                        LOG.warn("Committed " + committed
+                                + " is not the first pending request "
+                                + pending.getFirst());
+                        pending = null;
+                    }
+                }
+                committedRequests.remove();
+            }
+            if (request != committed) {
+                // we want to send our version of the request.
+                // the pointer to the connection in the request
+                request.hdr = committed.hdr;
+                request.txn = committed.txn;
+                request.zxid = committed.zxid;
+            }
+            // nothing else is being processed, so the txns are applied in
+            // the order they are committed
+            nextProcessor.processRequest(request);
+
+            if (pending != null) {
+                // the session goes on up to its next request that waits
+                while (!pending.isEmpty() && !needCommit(pending.getFirst())) {
+                    dispatch(pending.removeFirst());
+                }
+                if (pending.isEmpty()) {
+                    pendingRequests.remove(committed.sessionId);
+                }
+            }
+        }
+    }
+
+    private void dispatch(final Request request) {
+        if (workers == null) {
+            nextProcessor.processRequest(request);
+            return;
+        }
+        numRequestsProcessing.incrementAndGet();
+        int worker = (int) ((request.sessionId & Long.MAX_VALUE) % workers.length);
+        workers[worker].execute(new Runnable() {
+            public void run() {
+                try {
+                    nextProcessor.processRequest(request);
+                } catch (Throwable e) {
+                    LOG.error("Unexpected exception processing " + request, e);
+                } finally {
+                    if (numRequestsProcessing.decrementAndGet() == 0) {
+                        synchronized (CommitProcessor.this) {
+                            CommitProcessor.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void startWorkers() {
+        if (numWorkerThreads <= 0) {
+            return;
+        }
+        final String name = getName();
+        workers = new ExecutorService[numWorkerThreads];
+        for (int i = 0; i < numWorkerThreads; i++) {
+            final int id = i;
+            workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + ":Worker-" + id);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    private void stopWorkers() {
+        if (workers == null) {
+            return;
+        }
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+
     synchronized public void commit(Request request) {
         if (!finished) {
             if (request == null) {
@@ -173,6 +321,9 @@ public class CommitProcessor extends Thread implements RequestProcessor {
         
         if (!finished) {
             queuedRequests.add(request);
+            if (needCommit(request)) {
+                queuedWriteRequests.add(request);
+            }
             notifyAll();
         }
     }
@@ -182,6 +333,7 @@ public class CommitProcessor extends Thread implements RequestProcessor {
         synchronized (this) {
             finished = true;
             queuedRequests.clear();
+            queuedWriteRequests.clear();
             notifyAll();
         }
         if (nextProcessor != null) {
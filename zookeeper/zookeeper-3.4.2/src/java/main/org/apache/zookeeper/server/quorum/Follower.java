@@ -21,6 +21,7 @@ package org.apache.zookeeper.server.quorum;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
@@ -123,9 +124,29 @@ public class Follower extends Learner{
             lastQueued = hdr.getZxid();
             fzk.logRequest(hdr, txn);
             break;
+        case Leader.PROPOSALBATCH:
+            ByteBuffer bb = ByteBuffer.wrap(qp.getData());
+            while (bb.hasRemaining()) {
+                byte data[] = new byte[bb.getInt()];
+                bb.get(data);
+                hdr = new TxnHeader();
+                txn = SerializeUtils.deserializeTxn(data, hdr);
+                if (hdr.getZxid() != lastQueued + 1) {
+                    LOG.warn("Got zxid 0x"
+                            + Long.toHexString(hdr.getZxid())
+                            + " expected 0x"
+                            + Long.toHexString(lastQueued + 1));
+                }
+                lastQueued = hdr.getZxid();
+                fzk.logRequest(hdr, txn);
+            }
+            break;
         case Leader.COMMIT:
             fzk.commit(qp.getZxid());
             break;
+        case Leader.COMMITBATCH:
+            fzk.commitUpTo(qp.getZxid());
+            break;
         case Leader.UPTODATE:
             LOG.error("Received an UPTODATE message after Follower started");
             break;
@@ -119,6 +119,21 @@ public class FollowerZooKeeperServer extends LearnerZooKeeperServer {
         commitProcessor.commit(request);
     }
     
+    /**
+     * commit every pending txn up to zxid, for a leader that batches
+     * @param zxid the zxid of the last txn to commit
+     */
+    public void commitUpTo(long zxid) {
+        if (pendingTxns.size() == 0 || pendingTxns.element().zxid > zxid) {
+            LOG.warn("Committing up to " + Long.toHexString(zxid)
+                    + " without seeing txn");
+            return;
+        }
+        while (pendingTxns.size() > 0 && pendingTxns.element().zxid <= zxid) {
+            commitProcessor.commit(pendingTxns.remove());
+        }
+    }
+
     synchronized public void sync(){
         if(pendingSyncs.size() ==0){
             LOG.warn("Not expecting a sync.");
@@ -32,6 +32,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -61,8 +62,6 @@ public class Leader {
     static public class Proposal {
         public QuorumPacket packet;
 
-        public HashSet<Long> ackSet = new HashSet<Long>();
-
         public Request request;
 
         @Override
@@ -156,6 +155,37 @@ public class Leader {
      */
     final static int SNAP = 15;
     
+    /**
+     * This is for a learner to load the snapshot file that follows, it is
+     * only sent to learners of at least {@link #SNAPFILE_VERSION}
+     */
+    final static int SNAPFILE = 19;
+
+    /**
+     * The protocol version of learners that can load a SNAPFILE
+     */
+    final static int SNAPFILE_VERSION = 0x10001;
+
+    /**
+     * This message carries consecutive proposals, each as the data of a
+     * PROPOSAL preceded by its length. It is only sent to learners that
+     * negotiated {@link #BATCH_VERSION}.
+     */
+    final static int PROPOSALBATCH = 20;
+
+    /**
+     * This message commits every proposal up to its zxid, it is only sent
+     * to learners that negotiated {@link #BATCH_VERSION}
+     */
+    final static int COMMITBATCH = 21;
+
+    /**
+     * The protocol version of learners that take PROPOSALBATCH and
+     * COMMITBATCH and ack cumulatively. A leader that batches sends it as
+     * its version to such learners.
+     */
+    final static int BATCH_VERSION = 0x10002;
+
     /**
      * This tells the leader that the connecting peer is actually an observer
      */
@@ -239,6 +269,19 @@ public class Leader {
     ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<Proposal>();
 
     Proposal newLeaderProposal = new Proposal();
+
+    /**
+     * The zxid of the last proposal each server acked. Servers log and ack
+     * proposals in order, so an ack of a zxid acks all the proposals before
+     * it, and what a quorum acked is what a quorum of these has reached.
+     */
+    private final ConcurrentHashMap<Long, AtomicLong> ackedZxids =
+        new ConcurrentHashMap<Long, AtomicLong>();
+
+    /**
+     * set by the one thread at a time that commits what a quorum acked
+     */
+    private final AtomicBoolean committing = new AtomicBoolean();
     
     class LearnerCnxAcceptor extends Thread{
         private volatile boolean stop = false;
@@ -327,7 +370,8 @@ public class Leader {
                         + Long.toHexString(newLeaderProposal.packet.getZxid()));
             }
             outstandingProposals.put(newLeaderProposal.packet.getZxid(), newLeaderProposal);
-            newLeaderProposal.ackSet.add(self.getId());
+            ackedZxids.put(self.getId(),
+                    new AtomicLong(newLeaderProposal.packet.getZxid()));
             
             waitForEpochAck(self.getId(), leaderStateSummary);
             self.setCurrentEpoch(epoch);
@@ -335,13 +379,15 @@ public class Leader {
             // We have to get at least a majority of servers in sync with
             // us. We do this by waiting for the NEWLEADER packet to get
             // acknowledged
-            while (!self.getQuorumVerifier().containsQuorum(newLeaderProposal.ackSet)){
+            HashSet<Long> ackSet;
+            while (!self.getQuorumVerifier().containsQuorum(
+                    ackSet = getAckedServers(newLeaderProposal.packet.getZxid()))){
             //while (newLeaderProposal.ackCount <= self.quorumPeers.size() / 2) {
                 if (self.tick > self.initLimit) {
                     // Followers aren't syncing fast enough,
                     // renounce leadership!
                     StringBuilder ackToString = new StringBuilder();
-                    for(Long id : newLeaderProposal.ackSet)
+                    for(Long id : ackSet)
                         ackToString.append(id + ": ");
                     
                     shutdown("Waiting for a quorum of followers, only synced with: " + ackToString);
@@ -454,16 +500,16 @@ public class Leader {
     }
 
     /**
-     * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * Keep track of the acks that are received by the leader. This does not
+     * lock the leader, the ack that completes a quorum commits the proposals
+     * a quorum acked unless another one already is.
      * 
      * @param zxid
-     *                the zxid of the proposal sent out
+     *                the zxid of the proposal sent out, it acks the ones
+     *                before it too
      * @param followerAddr
      */
-    synchronized public void processAck(long sid, long zxid, SocketAddress followerAddr) {
-        boolean first = true;
-        
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Ack zxid: 0x" + Long.toHexString(zxid));
             for (Proposal p : outstandingProposals.values()) {
@@ -474,12 +520,6 @@ public class Leader {
             LOG.trace("outstanding proposals all");
         }
         
-        if (outstandingProposals.size() == 0) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("outstanding is 0");
-            }
-            return;
-        }
         if (lastCommitted >= zxid) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("proposal has already been committed, pzxid:"
@@ -489,52 +529,145 @@ public class Leader {
             // The proposal has already been committed
             return;
         }
-        Proposal p = outstandingProposals.get(zxid);
-        if (p == null) {
+        if (zxid > lastProposed) {
             LOG.warn("Trying to commit future proposal: zxid 0x"
                     + Long.toHexString(zxid) + " from " + followerAddr);
             return;
         }
-        
-        p.ackSet.add(sid);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Count for zxid: 0x" + Long.toHexString(zxid)
-                    + " is " + p.ackSet.size());
-        }
-        if (self.getQuorumVerifier().containsQuorum(p.ackSet)){             
-            if (zxid != lastCommitted+1) {
-                LOG.warn("Commiting zxid 0x" + Long.toHexString(zxid)
-                        + " from " + followerAddr + " not first!");
-                LOG.warn("First is "
-                        + (lastCommitted+1));
-            }
-            outstandingProposals.remove(zxid);
-            if (p.request != null) {
-                toBeApplied.add(p);
+
+        AtomicLong acked = ackedZxids.get(sid);
+        if (acked == null) {
+            acked = new AtomicLong(-1);
+            AtomicLong existing = ackedZxids.putIfAbsent(sid, acked);
+            if (existing != null) {
+                acked = existing;
             }
-            // We don't commit the new leader proposal
-            if ((zxid & 0xffffffffL) != 0) {
-                if (p.request == null) {
-                    LOG.warn("Going to commmit null: " + p);
-                }
-                commit(zxid);
-                inform(p);
-                zk.commitProcessor.commit(p.request);
-                if(pendingSyncs.containsKey(zxid)){
-                    for(LearnerSyncRequest r: pendingSyncs.remove(zxid)) {
-                        sendSync(r);
+        }
+        while (true) {
+            long current = acked.get();
+            if (zxid <= current || acked.compareAndSet(current, zxid)) {
+                break;
+            }
+        }
+
+        long quorumZxid;
+        boolean advanced;
+        do {
+            if (!committing.compareAndSet(false, true)) {
+                // the thread committing will see this ack once it is done
+                return;
+            }
+            advanced = false;
+            try {
+                quorumZxid = getQuorumAckedZxid();
+                if (quorumZxid > lastCommitted) {
+                    synchronized (this) {
+                        advanced = commitUpTo(quorumZxid);
                     }
                 }
-                return;
-            } else {
-                lastCommitted = zxid;
-                if(LOG.isInfoEnabled()){
-                    LOG.info("Have quorum of supporters; starting up and setting last processed zxid: " + zk.getZxid());
+            } finally {
+                committing.set(false);
+            }
+            // an ack that came while committing might have been left to us,
+            // but when nothing could be committed only an ack that moved the
+            // quorum further is worth another try
+        } while (getQuorumAckedZxid() > (advanced ? lastCommitted : quorumZxid));
+    }
+
+    /**
+     * @return the highest zxid a quorum of servers acked, -1 if there is none
+     */
+    long getQuorumAckedZxid() {
+        int size = ackedZxids.size();
+        long sids[] = new long[size];
+        long zxids[] = new long[size];
+        int count = 0;
+        for (Entry<Long, AtomicLong> entry : ackedZxids.entrySet()) {
+            if (count == size) {
+                break;
+            }
+            sids[count] = entry.getKey();
+            zxids[count] = entry.getValue().get();
+            count++;
+        }
+        // add the servers from the one that acked the most on, the zxid of
+        // the one that completes a quorum is acked by all of them
+        HashSet<Long> set = new HashSet<Long>();
+        QuorumVerifier verifier = self.getQuorumVerifier();
+        for (int i = 0; i < count; i++) {
+            int max = i;
+            for (int j = i + 1; j < count; j++) {
+                if (zxids[j] > zxids[max]) {
+                    max = j;
+                }
+            }
+            long sid = sids[max];
+            long zxid = zxids[max];
+            sids[max] = sids[i];
+            zxids[max] = zxids[i];
+            set.add(sid);
+            if (verifier.containsQuorum(set)) {
+                return zxid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the servers that acked zxid
+     */
+    HashSet<Long> getAckedServers(long zxid) {
+        HashSet<Long> set = new HashSet<Long>();
+        for (Entry<Long, AtomicLong> entry : ackedZxids.entrySet()) {
+            if (entry.getValue().get() >= zxid) {
+                set.add(entry.getKey());
+            }
+        }
+        return set;
+    }
+
+    /**
+     * commit the outstanding proposals up to zxid in order, must be called
+     * with the leader locked
+     * 
+     * @return true if lastCommitted moved forward
+     */
+    private boolean commitUpTo(long zxid) {
+        long start = lastCommitted;
+        long newLeaderZxid = newLeaderProposal.packet.getZxid();
+        if (lastCommitted < newLeaderZxid) {
+            // nothing else is proposed before we start up
+            if (zxid < newLeaderZxid) {
+                return false;
+            }
+            // We don't commit the new leader proposal
+            outstandingProposals.remove(newLeaderZxid);
+            lastCommitted = newLeaderZxid;
+            if(LOG.isInfoEnabled()){
+                LOG.info("Have quorum of supporters; starting up and setting last processed zxid: " + zk.getZxid());
+            }
+            zk.startup();
+            zk.getZKDatabase().setlastProcessedZxid(zk.getZxid());
+        }
+        while (lastCommitted < zxid) {
+            long next = lastCommitted + 1;
+            Proposal p = outstandingProposals.remove(next);
+            if (p == null) {
+                LOG.warn("Going to commmit 0x" + Long.toHexString(next)
+                        + " which is not outstanding");
+                break;
+            }
+            toBeApplied.add(p);
+            commit(next);
+            inform(p);
+            zk.commitProcessor.commit(p.request);
+            if(pendingSyncs.containsKey(next)){
+                for(LearnerSyncRequest r: pendingSyncs.remove(next)) {
+                    sendSync(r);
                 }
-                zk.startup();
-                zk.getZKDatabase().setlastProcessedZxid(zk.getZxid());
             }
         }
+        return lastCommitted > start;
     }
 
     static class ToBeAppliedRequestProcessor implements RequestProcessor {
@@ -573,10 +706,12 @@ public class Leader {
         public void processRequest(Request request) {
             // request.addRQRec(">tobe");
             next.processRequest(request);
+            // reads carry the zxid of the last proposal and are processed
+            // in parallel, only the proposal itself removes it
             Proposal p = toBeApplied.peek();
-            if (p != null && p.request != null
+            if (p != null && p.request != null && request.hdr != null
                     && p.request.zxid == request.zxid) {
-                toBeApplied.remove();
+                toBeApplied.remove(p);
             }
         }
 
@@ -616,7 +751,7 @@ public class Leader {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -627,7 +762,8 @@ public class Leader {
         synchronized(this){
             lastCommitted = zxid;
         }
-        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.COMMIT, zxid, null,
+                null);
         sendPacket(qp);
     }
     
@@ -637,12 +773,12 @@ public class Leader {
      * @param proposal
      */
     public void inform(Proposal proposal) {   
-        QuorumPacket qp = new QuorumPacket(Leader.INFORM, proposal.request.zxid, 
-                                            proposal.packet.getData(), null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.INFORM,
+                proposal.request.zxid, proposal.packet.getData(), null);
         sendObserverPacket(qp);
     }
 
-    long lastProposed;
+    volatile long lastProposed;
 
     
     /**
@@ -672,8 +808,9 @@ public class Leader {
         } catch (IOException e) {
             LOG.warn("This really should be impossible", e);
         }
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, 
-                baos.toByteArray(), null);
+        // serialized once here for all the learners it is sent to
+        QuorumPacket pp = new SerializedQuorumPacket(Leader.PROPOSAL,
+                request.zxid, baos.toByteArray(), null);
         
         Proposal p = new Proposal();
         p.packet = pp;
@@ -24,6 +24,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -74,9 +75,19 @@ public class Learner {
     }
     
     protected InputArchive leaderIs;
+    /** the stream leaderIs reads from */
+    protected InputStream leaderInput;
     protected OutputArchive leaderOs;  
     /** the protocol version of the leader */
     protected int leaderProtocolVersion = 0x01;
+
+    /**
+     * @return true if the leader batches proposals and commits for this
+     * learner, which then acks cumulatively
+     */
+    boolean isBatched() {
+        return leaderProtocolVersion >= Leader.BATCH_VERSION;
+    }
     
     protected static final Logger LOG = LoggerFactory.getLogger(Learner.class);
 
@@ -237,8 +248,8 @@ public class Learner {
             }
             Thread.sleep(1000);
         }
-        leaderIs = BinaryInputArchive.getArchive(new BufferedInputStream(
-                sock.getInputStream()));
+        leaderInput = new BufferedInputStream(sock.getInputStream());
+        leaderIs = BinaryInputArchive.getArchive(leaderInput);
         bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
         leaderOs = BinaryOutputArchive.getArchive(bufferedOutput);
     }   
@@ -262,7 +273,7 @@ public class Learner {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getId(), 0x10000);
+        LearnerInfo li = new LearnerInfo(self.getId(), Leader.BATCH_VERSION);
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -332,6 +343,11 @@ public class Learner {
                     LOG.error("Missing signature. Got " + signature);
                     throw new IOException("Missing signature");                   
                 }
+            } else if (qp.getType() == Leader.SNAPFILE) {
+                LOG.info("Getting the snapshot file of 0x"
+                        + Long.toHexString(qp.getZxid()) + " from leader");
+                // the transactions that follow it come as a diff
+                zk.getZKDatabase().deserializeSnapshotFile(leaderInput);
             } else if (qp.getType() == Leader.TRUNC) {
                 //we need to truncate the log to the lastzxid of the leader
                 LOG.warn("Truncating log to get in sync with the leader 0x"
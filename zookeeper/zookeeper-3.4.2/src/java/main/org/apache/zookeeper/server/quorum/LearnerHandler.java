@@ -24,10 +24,18 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -41,6 +49,8 @@ import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.ByteBufferInputStream;
 import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.TxnLogProposalIterator;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.ZooTrace;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
@@ -87,6 +97,48 @@ public class LearnerHandler extends Thread {
     final LinkedBlockingQueue<QuorumPacket> queuedPackets =
         new LinkedBlockingQueue<QuorumPacket>();
 
+    /**
+     * The start of a DIFF that is too old for the committedLog. These
+     * proposals are read from the transaction logs by the sender thread
+     * and sent ahead of queuedPackets, up to txnLogProposalsEnd.
+     */
+    private TxnLogProposalIterator txnLogProposals;
+
+    /**
+     * the zxid of the first proposal of the DIFF that was queued from the
+     * committedLog
+     */
+    private long txnLogProposalsEnd;
+
+    /**
+     * send learners that need a snapshot the latest snapshot file, with a
+     * diff from there, instead of serializing the live tree for them
+     */
+    static boolean snapshotSyncFromFile =
+        Boolean.getBoolean("zookeeper.snapshotSync.fromFile");
+
+    /**
+     * the most bytes a second a snapshot file is sent at, 0 for no limit
+     */
+    static long snapshotSyncMaxBytesPerSec =
+        Long.getLong("zookeeper.snapshotSync.maxBytesPerSec", 0);
+
+    /**
+     * send proposals and commits in batches to learners that support it,
+     * see {@link Leader#BATCH_VERSION}
+     */
+    static boolean batchProposals =
+        Boolean.getBoolean("zookeeper.proposalBatching");
+
+    /**
+     * true if proposals and commits are batched for this learner, which
+     * acks cumulatively in turn
+     */
+    private boolean batched;
+
+    /** the most bytes of a snapshot file sent at once */
+    private static final int TRANSFER_CHUNK = 256 * 1024;
+
     private BinaryInputArchive ia;
 
     private BinaryOutputArchive oa;
@@ -128,6 +180,24 @@ public class LearnerHandler extends Thread {
      */
     private void sendPackets() throws InterruptedException {
         long traceMask = ZooTrace.SERVER_PACKET_TRACE_MASK;
+        if (txnLogProposals != null) {
+            try {
+                sendTxnLogProposals();
+            } catch (IOException e) {
+                if (!sock.isClosed()) {
+                    LOG.warn("Unable to send the diff from the transaction logs to "
+                            + this, e);
+                    try {
+                        sock.close();
+                    } catch(IOException ie) {
+                        LOG.warn("Error closing socket for handler " + this, ie);
+                    }
+                }
+                return;
+            }
+        }
+        // the learner takes batches once it is up to date
+        boolean upToDate = false;
         while (true) {
             try {
                 QuorumPacket p;
@@ -147,7 +217,14 @@ public class LearnerHandler extends Thread {
                 if (LOG.isTraceEnabled()) {
                     ZooTrace.logQuorumPacket(LOG, traceMask, 'o', p);
                 }
-                oa.writeRecord(p, "packet");
+                if (upToDate && isBatchable(p)) {
+                    sendBatch(p);
+                    continue;
+                }
+                writePacket(p);
+                if (p.getType() == Leader.UPTODATE) {
+                    upToDate = batched;
+                }
             } catch (IOException e) {
                 if (!sock.isClosed()) {
                     LOG.warn("Unexpected exception at " + this, e);
@@ -165,6 +242,120 @@ public class LearnerHandler extends Thread {
         }
     }
 
+    private void writePacket(QuorumPacket p) throws IOException {
+        if (p instanceof SerializedQuorumPacket) {
+            // oa doesn't buffer, this keeps the packets in order
+            ((SerializedQuorumPacket) p).write(bufferedOutput);
+        } else {
+            oa.writeRecord(p, "packet");
+        }
+    }
+
+    private static boolean isBatchable(QuorumPacket p) {
+        return p.getType() == Leader.PROPOSAL || p.getType() == Leader.COMMIT;
+    }
+
+    /**
+     * send p and the proposals and commits that follow it in queuedPackets
+     * as one PROPOSALBATCH followed by one COMMITBATCH. The commits can go
+     * after all the proposals as a commit never comes before its proposal.
+     * A batch is no bigger than a learner can read as one packet.
+     */
+    private void sendBatch(QuorumPacket p) throws IOException {
+        List<QuorumPacket> proposals = new ArrayList<QuorumPacket>();
+        long commitZxid = -1;
+        int size = 0;
+        while (true) {
+            if (p.getType() == Leader.PROPOSAL) {
+                proposals.add(p);
+                size += 4 + p.getData().length;
+            } else {
+                commitZxid = p.getZxid();
+            }
+            p = queuedPackets.peek();
+            if (p == null || !isBatchable(p)
+                    || (p.getType() == Leader.PROPOSAL
+                        && size + 4 + p.getData().length > BinaryInputArchive.maxBuffer)) {
+                break;
+            }
+            queuedPackets.poll();
+        }
+        if (proposals.size() == 1) {
+            writePacket(proposals.get(0));
+        } else if (proposals.size() > 1) {
+            // the same as a QuorumPacket whose data is the proposals
+            oa.writeInt(Leader.PROPOSALBATCH, "type");
+            oa.writeLong(proposals.get(proposals.size() - 1).getZxid(), "zxid");
+            oa.writeInt(size, "len");
+            for (QuorumPacket proposal : proposals) {
+                oa.writeBuffer(proposal.getData(), "proposal");
+            }
+            oa.writeInt(-1, "authinfo");
+        }
+        if (commitZxid != -1) {
+            oa.writeRecord(new QuorumPacket(Leader.COMMITBATCH, commitZxid,
+                    null, null), "packet");
+        }
+    }
+
+    /**
+     * stream the proposals of the DIFF that come before the committedLog,
+     * each followed by its commit
+     *
+     * @throws IOException if the logs can't be read or don't reach the
+     * committedLog
+     */
+    private void sendTxnLogProposals() throws IOException {
+        try {
+            int count = 0;
+            QuorumPacket p;
+            while ((p = txnLogProposals.next()) != null
+                    && p.getZxid() < txnLogProposalsEnd) {
+                oa.writeRecord(p, "packet");
+                oa.writeRecord(new QuorumPacket(Leader.COMMIT, p.getZxid(),
+                        null, null), "packet");
+                count++;
+            }
+            if (p == null) {
+                throw new IOException("The transaction logs end at 0x"
+                        + Long.toHexString(txnLogProposals.getLastZxid())
+                        + " before 0x" + Long.toHexString(txnLogProposalsEnd));
+            }
+            LOG.info("Sent " + count + " proposals from the transaction logs to "
+                    + this.sid);
+        } finally {
+            txnLogProposals.close();
+        }
+    }
+
+    /**
+     * copy a whole file to a channel with FileChannel.transferTo
+     *
+     * @param bytesPerSec the most bytes a second to copy, 0 for no limit
+     */
+    static void transferFile(FileChannel file, WritableByteChannel target,
+            long bytesPerSec) throws IOException, InterruptedException {
+        long length = file.size();
+        long position = 0;
+        long start = System.currentTimeMillis();
+        while (position < length) {
+            long n = file.transferTo(position,
+                    Math.min(TRANSFER_CHUNK, length - position), target);
+            if (n <= 0) {
+                throw new IOException("Unable to transfer the file at "
+                        + position + " of " + length);
+            }
+            position += n;
+            if (bytesPerSec > 0) {
+                long ahead = position * 1000 / bytesPerSec
+                    - (System.currentTimeMillis() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead);
+                }
+            }
+        }
+    }
+
     static public String packetToString(QuorumPacket p) {
         if (true)
             return null;
@@ -232,6 +423,8 @@ public class LearnerHandler extends Thread {
      */
     @Override
     public void run() {
+        boolean senderStarted = false;
+        FileInputStream snapIn = null;
         try {            
             sock.setSoTimeout(leader.self.getTickTime()*leader.self.getInitLimit());
             ia = BinaryInputArchive.getArchive(new BufferedInputStream(sock
@@ -282,8 +475,10 @@ public class LearnerHandler extends Thread {
                 // fake the message
                 leader.waitForEpochAck(this.getSid(), ss);
             } else {
+                batched = batchProposals
+                    && getVersion() >= Leader.BATCH_VERSION;
                 byte ver[] = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                ByteBuffer.wrap(ver).putInt(batched ? Leader.BATCH_VERSION : 0x10000);
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, ZxidUtils.makeZxid(newEpoch, 0), ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 bufferedOutput.flush();
@@ -307,6 +502,36 @@ public class LearnerHandler extends Thread {
             /** the packets that the follower needs to get updates from **/
             long updates = peerLastZxid;
             
+            /* open the logs before taking the lock, the committedLog only
+             * moves forward so a peer behind it now will still be then
+             */
+            TxnLogProposalIterator logProposals = null;
+            if (peerLastZxid < leader.zk.getZKDatabase().getminCommittedLog()) {
+                logProposals = leader.zk.getZKDatabase()
+                        .getProposalsFromTxnLog(peerLastZxid);
+            }
+            /* and the latest snapshot, in case the peer needs one */
+            long snapZxid = -1;
+            TxnLogProposalIterator snapProposals = null;
+            if (logProposals == null && snapshotSyncFromFile
+                    && getVersion() >= Leader.SNAPFILE_VERSION
+                    && peerLastZxid < leader.zk.getZKDatabase().getminCommittedLog()) {
+                File snapFile = leader.zk.getZKDatabase().findMostRecentSnapshot();
+                if (snapFile != null) {
+                    snapZxid = Util.getZxidFromName(snapFile.getName(),
+                            "snapshot");
+                    if (snapZxid < leader.zk.getZKDatabase().getminCommittedLog()) {
+                        snapProposals = leader.zk.getZKDatabase()
+                                .getProposalsFromTxnLog(snapZxid);
+                    }
+                    try {
+                        snapIn = new FileInputStream(snapFile);
+                    } catch (FileNotFoundException e) {
+                        LOG.info("Snapshot " + snapFile + " was removed");
+                    }
+                }
+            }
+
             /* we are sending the diff check if we have proposals in memory to be able to 
              * send a diff to the 
              */ 
@@ -372,11 +597,49 @@ public class LearnerHandler extends Thread {
                         packetToSend = Leader.TRUNC;
                         zxidToSend = maxCommittedLog;
                         updates = zxidToSend;
+                    } else if (logProposals != null) {
+                        // the sender reads the start of the diff from the
+                        // logs, the rest comes from the committedLog
+                        packetToSend = Leader.DIFF;
+                        LOG.info("Sending diff from the transaction logs");
+                        zxidToSend = maxCommittedLog;
+                        txnLogProposals = logProposals;
+                        txnLogProposalsEnd = minCommittedLog;
+                        logProposals = null;
+                        for (Proposal propose: proposals) {
+                            queuePacket(propose.packet);
+                            QuorumPacket qcommit = new QuorumPacket(Leader.COMMIT,
+                                    propose.packet.getZxid(), null, null);
+                            queuePacket(qcommit);
+                        }
                     }
                 } else {
                     // just let the state transfer happen
                 }               
 
+                if (packetToSend == Leader.SNAP && snapIn != null
+                        && proposals.size() != 0
+                        && snapZxid <= maxCommittedLog
+                        && (snapZxid >= minCommittedLog || snapProposals != null)) {
+                    // the snapshot file is followed by a diff from its zxid
+                    packetToSend = Leader.SNAPFILE;
+                    zxidToSend = snapZxid;
+                    if (snapZxid < minCommittedLog) {
+                        txnLogProposals = snapProposals;
+                        txnLogProposalsEnd = minCommittedLog;
+                        snapProposals = null;
+                    }
+                    for (Proposal propose: proposals) {
+                        if (propose.packet.getZxid() <= snapZxid) {
+                            continue;
+                        }
+                        queuePacket(propose.packet);
+                        QuorumPacket qcommit = new QuorumPacket(Leader.COMMIT,
+                                propose.packet.getZxid(), null, null);
+                        queuePacket(qcommit);
+                    }
+                }
+
                 leaderLastZxid = leader.startForwarding(this, updates);
                 if (peerLastZxid == leaderLastZxid) {
                     // We are in sync so we'll do an empty diff
@@ -385,6 +648,16 @@ public class LearnerHandler extends Thread {
                 }
             } finally {
                 rl.unlock();
+                if (logProposals != null) {
+                    logProposals.close();
+                }
+                if (snapProposals != null) {
+                    snapProposals.close();
+                }
+                if (snapIn != null && packetToSend != Leader.SNAPFILE) {
+                    snapIn.close();
+                    snapIn = null;
+                }
             }
 
              QuorumPacket newLeaderQP = new QuorumPacket(Leader.NEWLEADER,
@@ -402,6 +675,21 @@ public class LearnerHandler extends Thread {
             oa.writeRecord(new QuorumPacket(packetToSend, zxidToSend, null, null), "packet");
             bufferedOutput.flush();
             
+            if (packetToSend == Leader.SNAPFILE) {
+                LOG.info("Sending snapshot file of 0x"
+                        + Long.toHexString(zxidToSend)
+                        + " last zxid of peer is 0x"
+                        + Long.toHexString(peerLastZxid));
+                // straight to the socket, the buffer was just flushed
+                WritableByteChannel target = sock.getChannel();
+                if (target == null) {
+                    target = Channels.newChannel(sock.getOutputStream());
+                }
+                transferFile(snapIn.getChannel(), target,
+                        snapshotSyncMaxBytesPerSec);
+                snapIn.close();
+                snapIn = null;
+            }
             /* if we are not truncating or sending a diff just send a snapshot */
             if (packetToSend == Leader.SNAP) {
                 LOG.info("Sending snapshot last zxid of peer is 0x"
@@ -428,6 +716,7 @@ public class LearnerHandler extends Thread {
                     }
                 }
             }.start();
+            senderStarted = true;
             
             /*
              * Have to wait for the first ACK, wait until 
@@ -558,6 +847,20 @@ public class LearnerHandler extends Thread {
         } catch (InterruptedException e) {
             LOG.error("Unexpected exception causing shutdown", e);
         } finally {
+            if (snapIn != null) {
+                try {
+                    snapIn.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing the snapshot", e);
+                }
+            }
+            if (txnLogProposals != null && !senderStarted) {
+                try {
+                    txnLogProposals.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing the transaction logs", e);
+                }
+            }
             LOG.warn("******* GOODBYE " 
                     + (sock != null ? sock.getRemoteSocketAddress() : "<null>")
                     + " ********");
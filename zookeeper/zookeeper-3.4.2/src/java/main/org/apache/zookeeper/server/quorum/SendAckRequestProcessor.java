@@ -33,12 +33,25 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
     
     Learner learner;
 
+    /**
+     * the zxid to ack on the next flush when the learner acks cumulatively,
+     * -1 if there is none
+     */
+    private long pendingAck = -1;
+
     SendAckRequestProcessor(Learner peer) {
         this.learner = peer;
     }
 
     public void processRequest(Request si) {
         if(si.type != OpCode.sync){
+            if (learner.isBatched()) {
+                // the ack of the last one logged acks all of them
+                synchronized (this) {
+                    pendingAck = si.hdr.getZxid();
+                }
+                return;
+            }
             QuorumPacket qp = new QuorumPacket(Leader.ACK, si.hdr.getZxid(), null,
                 null);
             try {
@@ -59,7 +72,14 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
     
     public void flush() throws IOException {
         try {
-            learner.writePacket(null, true);
+            QuorumPacket qp = null;
+            synchronized (this) {
+                if (pendingAck != -1) {
+                    qp = new QuorumPacket(Leader.ACK, pendingAck, null, null);
+                    pendingAck = -1;
+                }
+            }
+            learner.writePacket(qp, true);
         } catch(IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
             try {
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A QuorumPacket the leader sends to many learners, serialized once when it
+ * is created. The learner handlers write it out with
+ * {@link #write(OutputStream)} instead of each serializing it again. The
+ * data of the packet is shared rather than copied into the serialized
+ * form, so only the fields around it are kept serialized, and the packet
+ * can't be changed once it is created.
+ */
+public class SerializedQuorumPacket extends QuorumPacket {
+    /** the bytes up to and including the length of the data */
+    private final byte[] head;
+
+    /** the bytes after the data */
+    private final byte[] tail;
+
+    public SerializedQuorumPacket(int type, long zxid, byte[] data,
+            List<Id> authinfo) {
+        super(type, zxid, data, authinfo);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        try {
+            // the same packet without its data, whose length is at 12
+            new QuorumPacket(type, zxid, null, authinfo).serialize(boa,
+                    "packet");
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize a packet", e);
+        }
+        byte[] bytes = baos.toByteArray();
+        head = new byte[16];
+        System.arraycopy(bytes, 0, head, 0, 12);
+        int len = data == null ? -1 : data.length;
+        head[12] = (byte) (len >>> 24);
+        head[13] = (byte) (len >>> 16);
+        head[14] = (byte) (len >>> 8);
+        head[15] = (byte) len;
+        tail = new byte[bytes.length - 16];
+        System.arraycopy(bytes, 16, tail, 0, tail.length);
+    }
+
+    /**
+     * write the packet as {@link BinaryOutputArchive#writeRecord} would
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(head);
+        byte[] data = getData();
+        if (data != null) {
+            out.write(data);
+        }
+        out.write(tail);
+    }
+
+    @Override
+    public void setType(int m_) {
+        throw new UnsupportedOperationException("The packet is serialized");
+    }
+
+    @Override
+    public void setZxid(long m_) {
+        throw new UnsupportedOperationException("The packet is serialized");
+    }
+
+    @Override
+    public void setData(byte[] m_) {
+        throw new UnsupportedOperationException("The packet is serialized");
+    }
+
+    @Override
+    public void setAuthinfo(List<Id> m_) {
+        throw new UnsupportedOperationException("The packet is serialized");
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.zookeeper.server.util;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -51,10 +52,18 @@ public class SerializeUtils {
     public static Record deserializeTxn(byte txnBytes[], TxnHeader hdr)
             throws IOException {
         final ByteArrayInputStream bais = new ByteArrayInputStream(txnBytes);
-        InputArchive ia = BinaryInputArchive.getArchive(bais);
+        return deserializeTxn(BinaryInputArchive.getArchive(bais), bais, hdr);
+    }
 
+    /**
+     * deserialize a transaction from an archive reading from a stream that
+     * supports mark and reset, which lets a reader use a single archive for
+     * all the transactions of a log
+     */
+    public static Record deserializeTxn(InputArchive ia, InputStream in,
+            TxnHeader hdr) throws IOException {
         hdr.deserialize(ia, "hdr");
-        bais.mark(bais.available());
+        in.mark(Integer.MAX_VALUE);
         Record txn = null;
         switch (hdr.getType()) {
         case OpCode.createSession:
@@ -92,7 +101,7 @@ public class SerializeUtils {
                 // perhaps this is a V0 Create
                 if (hdr.getType() == OpCode.create) {
                     CreateTxn create = (CreateTxn)txn;
-                    bais.reset();
+                    in.reset();
                     CreateTxnV0 createv0 = new CreateTxnV0();
                     createv0.deserialize(ia, "txn");
                     // cool now make it V1. a -1 parentCVersion will
@@ -112,6 +121,42 @@ public class SerializeUtils {
 
     public static void deserializeSnapshot(DataTree dt,InputArchive ia,
             Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    public static void serializeSnapshot(DataTree dt,OutputArchive oa,
+            Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * read a snapshot written by
+     * {@link #serializeChunkedSnapshot(DataTree, OutputArchive, Map, int, int)},
+     * see {@link DataTree#deserializeChunked(InputArchive, String, int)}
+     */
+    public static void deserializeChunkedSnapshot(DataTree dt,
+            InputArchive ia, Map<Long, Integer> sessions, int threads)
+            throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeChunked(ia, "tree", threads);
+    }
+
+    /**
+     * write a snapshot whose nodes are serialized in chunks by several
+     * threads, see
+     * {@link DataTree#serializeChunked(OutputArchive, String, int, int)}
+     */
+    public static void serializeChunkedSnapshot(DataTree dt,
+            OutputArchive oa, Map<Long, Integer> sessions, int threads,
+            int chunkSize) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeChunked(oa, "tree", threads, chunkSize);
+    }
+
+    private static void deserializeSessions(InputArchive ia,
+            Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -124,10 +169,9 @@ public class SerializeUtils {
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
-    public static void serializeSnapshot(DataTree dt,OutputArchive oa,
+    private static void serializeSessions(OutputArchive oa,
             Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
@@ -135,7 +179,6 @@ public class SerializeUtils {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
 }
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChildrenSetTest extends ZKTestCase {
+
+    private static void assertSameSet(TreeSet<String> expected, ChildrenSet actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertEquals(new ArrayList<String>(expected),
+                new ArrayList<String>(actual));
+        Assert.assertArrayEquals(expected.toArray(), actual.toArray());
+        Assert.assertArrayEquals(expected.toArray(new String[0]),
+                actual.toArray(new String[0]));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random r = new Random(42);
+        TreeSet<String> expected = new TreeSet<String>();
+        ChildrenSet actual = new ChildrenSet();
+        for (int i = 0; i < 20000; i++) {
+            String name = "n" + r.nextInt(500);
+            if (r.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(name), actual.remove(name));
+            } else {
+                Assert.assertEquals(expected.add(name), actual.add(name));
+            }
+            Assert.assertEquals(expected.contains(name), actual.contains(name));
+            if (i % 1000 == 0) {
+                assertSameSet(expected, actual);
+            }
+        }
+        assertSameSet(expected, actual);
+    }
+
+    /**
+     * producers append sequential names while consumers remove the lowest,
+     * the pattern of queue and lock recipes
+     */
+    @Test
+    public void testQueuePattern() {
+        TreeSet<String> expected = new TreeSet<String>();
+        ChildrenSet actual = new ChildrenSet();
+        int next = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                String name = String.format("item-%010d", next++);
+                expected.add(name);
+                actual.add(name);
+            }
+            for (int i = 0; i < 40; i++) {
+                String first = expected.first();
+                expected.remove(first);
+                Assert.assertTrue(actual.remove(first));
+            }
+        }
+        assertSameSet(expected, actual);
+        while (!expected.isEmpty()) {
+            String last = expected.last();
+            expected.remove(last);
+            Assert.assertTrue(actual.remove(last));
+        }
+        assertSameSet(expected, actual);
+        Assert.assertTrue(actual.add("a"));
+        Assert.assertTrue(actual.contains("a"));
+    }
+
+    @Test
+    public void testFromCollection() {
+        HashSet<String> names = new HashSet<String>();
+        List<String> sorted = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            names.add("c" + i);
+        }
+        sorted.addAll(new TreeSet<String>(names));
+        ChildrenSet set = new ChildrenSet(names);
+        Assert.assertEquals(sorted, new ArrayList<String>(set));
+        Assert.assertFalse(set.add("c5"));
+        Assert.assertFalse(set.remove(Integer.valueOf(5)));
+        Assert.assertFalse(set.contains(Integer.valueOf(5)));
+    }
+
+    @Test
+    public void testPage() {
+        TreeSet<String> expected = new TreeSet<String>();
+        ChildrenSet actual = new ChildrenSet();
+        Random r = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            String name = "n" + r.nextInt(10000);
+            expected.add(name);
+            actual.add(name);
+        }
+        // with and without the live part of the array starting at an offset
+        for (int round = 0; round < 2; round++) {
+            List<String> all = new ArrayList<String>();
+            String last = null;
+            List<String> page;
+            do {
+                page = actual.page(last, 7);
+                Assert.assertTrue(page.size() <= 7);
+                all.addAll(page);
+                if (!page.isEmpty()) {
+                    last = page.get(page.size() - 1);
+                }
+            } while (page.size() == 7);
+            Assert.assertEquals(new ArrayList<String>(expected), all);
+
+            // the cursor need not be one of the names
+            Assert.assertEquals(
+                    new ArrayList<String>(expected.tailSet("n5", false))
+                            .subList(0, 3), actual.page("n5", 3));
+            Assert.assertEquals(new ArrayList<String>(expected).subList(0, 2),
+                    actual.page("", 2));
+            Assert.assertTrue(actual.page(expected.last(), 5).isEmpty());
+            Assert.assertTrue(actual.page("z", 5).isEmpty());
+
+            for (int i = 0; i < 100; i++) {
+                actual.remove(expected.pollFirst());
+            }
+        }
+        Assert.assertTrue(new ChildrenSet().page(null, 1).isEmpty());
+    }
+}
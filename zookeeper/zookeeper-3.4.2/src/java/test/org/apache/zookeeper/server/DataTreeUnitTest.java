@@ -53,7 +53,7 @@ public class DataTreeUnitTest extends ZKTestCase {
         // set a watch on the root node
         dt.getChildren("/", new Stat(), watcher);
         // add a new node, should trigger a watch
-        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").stat.getCversion()+1, 1, 1);
+        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").getCversion()+1, 1, 1);
         Assert.assertFalse("Root node watch not triggered",!watcher.fired);
     }
 
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GroupCommitPolicyTest extends ZKTestCase {
+    private static final long MS = 1000 * 1000;
+
+    @Test
+    public void testIdleCommitsRightAway() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(1024, 1000, 2, 0);
+        policy.started(0);
+        Assert.assertEquals(1, policy.getTargetBatchSize());
+        Assert.assertEquals(0, policy.waitNanos(1, 0));
+
+        // one write per 10ms and 1ms commits, still nothing to wait for
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            policy.arrived();
+            now += 10 * MS;
+            policy.committed(MS, now);
+        }
+        Assert.assertEquals(1, policy.getTargetBatchSize());
+        policy.started(now);
+        Assert.assertEquals(0, policy.waitNanos(1, now));
+    }
+
+    @Test
+    public void testWaitsForFrequentWrites() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(1024 * 1024, 1000, 2, 0);
+        // 10 writes per 1ms commit
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                policy.arrived();
+            }
+            now += MS;
+            policy.committed(MS, now);
+        }
+        Assert.assertEquals(MS, policy.getFsyncNanos());
+        Assert.assertEquals(MS / 10, policy.getInterArrivalNanos());
+        Assert.assertEquals(10, policy.getTargetBatchSize());
+
+        policy.started(now);
+        Assert.assertEquals(2 * MS / 10, policy.waitNanos(1, now));
+        Assert.assertEquals(2 * MS / 10, policy.waitNanos(9, now));
+        Assert.assertEquals(0, policy.waitNanos(10, now));
+        // never past the max wait of the first request
+        Assert.assertEquals(MS / 10, policy.waitNanos(5, now + 19 * MS / 10));
+        Assert.assertEquals(0, policy.waitNanos(5, now + 2 * MS));
+    }
+
+    @Test
+    public void testTargetFollowsLoad() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(1024 * 1024, 100, 2, 0);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 1000; j++) {
+                policy.arrived();
+            }
+            now += MS;
+            policy.committed(MS, now);
+        }
+        Assert.assertEquals(100, policy.getTargetBatchSize());
+        // load drops to one write per commit
+        for (int i = 0; i < 50; i++) {
+            policy.arrived();
+            now += MS;
+            policy.committed(MS, now);
+        }
+        Assert.assertTrue(policy.getTargetBatchSize() <= 2);
+    }
+
+    @Test
+    public void testNoWaiting() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(1024 * 1024, 1000, 0, 0);
+        for (int j = 0; j < 100; j++) {
+            policy.arrived();
+        }
+        policy.committed(MS, MS);
+        Assert.assertTrue(policy.getTargetBatchSize() > 1);
+        policy.started(MS);
+        Assert.assertEquals(0, policy.waitNanos(1, MS));
+        Assert.assertFalse(policy.isFull(1, 0, 100 * MS));
+    }
+
+    @Test
+    public void testFull() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(1024, 10, 2, 0);
+        policy.started(0);
+        Assert.assertFalse(policy.isFull(9, 1023, 2 * MS - 1));
+        Assert.assertTrue(policy.isFull(10, 0, 0));
+        Assert.assertTrue(policy.isFull(1, 1024, 0));
+        Assert.assertTrue(policy.isFull(1, 0, 2 * MS));
+    }
+
+    @Test
+    public void testCommitStats() {
+        ServerStats stats = new ServerStats(null);
+        stats.updateCommit(1, 1000);
+        stats.updateCommit(2, 3000);
+        stats.updateCommit(3, 2000);
+        stats.updateCommit(1 << 20, 2000);
+        Assert.assertEquals(4, stats.getCommitCount());
+        Assert.assertEquals(3, stats.getMaxFsyncMicros());
+        Assert.assertEquals(2, stats.getAvgFsyncMicros());
+        long sizes[] = stats.getCommitBatchSizes();
+        Assert.assertEquals(1, sizes[0]);
+        Assert.assertEquals(1, sizes[1]);
+        Assert.assertEquals(1, sizes[2]);
+        Assert.assertEquals(1, sizes[ServerStats.BATCH_SIZE_BUCKETS - 1]);
+        Assert.assertTrue(stats.getCommitBatchSizesString().startsWith(
+                "1:1,2:1,4:1,8:0,"));
+        Assert.assertTrue(stats.getCommitBatchSizesString().endsWith(
+                ",inf:1"));
+        stats.reset();
+        Assert.assertEquals(0, stats.getCommitCount());
+        Assert.assertEquals(0, stats.getCommitBatchSizes()[0]);
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures large multis submitted by several clients at once, so that tens
+ * of thousands of changes are outstanding between PrepRequestProcessor and
+ * FinalRequestProcessor, both when they commit and when they fail on their
+ * last op and have to be rolled back.
+ */
+public class LargeMultiPerfTest extends ClientBase {
+    protected static final Logger LOG = LoggerFactory.getLogger(LargeMultiPerfTest.class);
+
+    private static final int CLIENTS = 8;
+
+    private static final int MULTIS_PER_CLIENT = 4;
+
+    private static final int OPS_PER_MULTI = 2000;
+
+    private void runMultis(final boolean fail) throws Exception {
+        final ZooKeeper[] zks = new ZooKeeper[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            zks[c] = createClient();
+        }
+        zks[0].create("/multi", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            final int client = c;
+            threads[c] = new Thread("multi-" + c) {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int m = 0; m < MULTIS_PER_CLIENT; m++) {
+                            List<Op> ops = new ArrayList<Op>(OPS_PER_MULTI + 1);
+                            for (int i = 0; i < OPS_PER_MULTI; i++) {
+                                ops.add(Op.create("/multi/" + client + "-"
+                                        + m + "-" + i, new byte[10],
+                                        Ids.OPEN_ACL_UNSAFE,
+                                        CreateMode.PERSISTENT));
+                            }
+                            if (fail) {
+                                ops.add(Op.check("/multi", 42));
+                            }
+                            try {
+                                zks[client].multi(ops);
+                            } catch (KeeperException.BadVersionException e) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Multi failed", e);
+                    }
+                }
+            };
+            threads[c].start();
+        }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long end = System.nanoTime();
+
+        int multis = CLIENTS * MULTIS_PER_CLIENT;
+        Assert.assertEquals(fail ? multis : 0, failures.get());
+        Assert.assertEquals(fail ? 0 : multis * OPS_PER_MULTI,
+                zks[0].getChildren("/multi", false).size());
+        Assert.assertEquals(0, serverFactory.zkServer.outstandingChanges.size());
+        for (ZooKeeper zk : zks) {
+            zk.close();
+        }
+
+        long durationms = (end - start) / 1000000L;
+        LOG.info((fail ? "Failing" : "Committed") + " multis: " + multis
+                + " x " + OPS_PER_MULTI + " ops from " + CLIENTS
+                + " clients in " + durationms + " ms ("
+                + ((long) multis * OPS_PER_MULTI * 1000L / Math.max(1, durationms))
+                + " ops/s), cores="
+                + Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testCommittedMultis() throws Exception {
+        runMultis(false);
+    }
+
+    @Test
+    public void testFailingMultis() throws Exception {
+        runMultis(true);
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.ConnectRequest;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NIOServerCnxnFactoryTest extends ClientBase {
+    private static final int SELECTOR_THREADS = 3;
+
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(NIOServerCnxnFactory.NUM_SELECTOR_THREADS,
+                Integer.toString(SELECTOR_THREADS));
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(NIOServerCnxnFactory.NUM_SELECTOR_THREADS);
+    }
+
+    private List<NIOServerCnxn> getCnxns() {
+        List<NIOServerCnxn> cnxns = new ArrayList<NIOServerCnxn>();
+        NIOServerCnxnFactory factory = (NIOServerCnxnFactory) serverFactory;
+        synchronized (factory.cnxns) {
+            for (ServerCnxn c : factory.cnxns) {
+                cnxns.add((NIOServerCnxn) c);
+            }
+        }
+        return cnxns;
+    }
+
+    @Test
+    public void testConnectionsSpreadAcrossSelectors() throws Exception {
+        ZooKeeper[] zks = new ZooKeeper[SELECTOR_THREADS * 3];
+        for (int i = 0; i < zks.length; i++) {
+            zks[i] = createClient();
+        }
+        for (int i = 0; i < zks.length; i++) {
+            zks[i].create("/node" + i, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL);
+        }
+        for (int i = 0; i < zks.length; i++) {
+            Assert.assertEquals(zks.length,
+                    zks[i].getChildren("/", false).size() - 1);
+        }
+
+        HashMap<Object, Integer> counts = new HashMap<Object, Integer>();
+        for (NIOServerCnxn c : getCnxns()) {
+            Integer count = counts.get(c.selectorThread);
+            counts.put(c.selectorThread, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals(SELECTOR_THREADS, counts.size());
+        for (Integer count : counts.values()) {
+            Assert.assertEquals(3, count.intValue());
+        }
+        for (ZooKeeper zk : zks) {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testNotificationFromOtherSelector() throws Exception {
+        ZooKeeper watching = createClient();
+        ZooKeeper changing = createClient();
+        watching.create("/watched", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        watching.getData("/watched", new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getType() == Event.EventType.NodeDataChanged) {
+                    latch.countDown();
+                }
+            }
+        }, null);
+        changing.setData("/watched", new byte[1], -1);
+        Assert.assertTrue("no notification",
+                latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        watching.close();
+        changing.close();
+    }
+
+    @Test
+    public void testResponsesOfAllSizes() throws Exception {
+        ZooKeeper zk = createClient();
+        // fits a pooled response buffer, or does not
+        final int[] sizes = { 10, NIOServerCnxnFactory.RESPONSE_BUFFER_SIZE - 200,
+                NIOServerCnxnFactory.RESPONSE_BUFFER_SIZE * 4 };
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = new byte[sizes[i]];
+            data[data.length - 1] = (byte) i;
+            zk.create("/size" + i, data, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+
+        // enough at once for the socket to fill up and writes to be queued
+        final int reads = 300;
+        final CountDownLatch latch = new CountDownLatch(reads);
+        final AtomicInteger bad = new AtomicInteger();
+        for (int j = 0; j < reads; j++) {
+            final int i = j % sizes.length;
+            zk.getData("/size" + i, false, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                        byte[] data, Stat stat) {
+                    if (rc != 0 || data.length != sizes[i]
+                            || data[data.length - 1] != (byte) i) {
+                        bad.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            }, null);
+        }
+        Assert.assertTrue("reads did not complete",
+                latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, bad.get());
+        zk.close();
+    }
+
+    @Test
+    public void testResponseBufferPool() throws Exception {
+        ZooKeeper zk = createClient();
+        NIOServerCnxn cnxn = null;
+        for (NIOServerCnxn c : getCnxns()) {
+            if (c.getSessionId() == zk.getSessionId()) {
+                cnxn = c;
+            }
+        }
+        NIOServerCnxnFactory.SelectorThread thread = cnxn.selectorThread;
+
+        // with every pooled buffer in use responses are still sent
+        List<ByteBuffer> taken = new ArrayList<ByteBuffer>();
+        ByteBuffer bb;
+        while ((bb = thread.takeResponseBuffer()) != null) {
+            taken.add(bb);
+        }
+        Assert.assertTrue(taken.size()
+                <= NIOServerCnxnFactory.MAX_POOLED_RESPONSE_BUFFERS);
+        Assert.assertNotNull(zk.exists("/", false));
+
+        // a buffer still queued when the connection closes is given back
+        ByteBuffer queued = taken.remove(0);
+        cnxn.outgoingBuffers.add(queued);
+        cnxn.close();
+        Assert.assertSame(queued, thread.takeResponseBuffer());
+        taken.add(queued);
+
+        for (ByteBuffer b : taken) {
+            thread.returnResponseBuffer(b);
+        }
+        zk.close();
+    }
+
+    @Test
+    public void testCloseSession() throws Exception {
+        ZooKeeper zk = createClient();
+        ZooKeeper other = createClient();
+        long sessionId = zk.getSessionId();
+
+        serverFactory.closeSession(sessionId);
+        for (NIOServerCnxn c : getCnxns()) {
+            Assert.assertTrue(c.getSessionId() != sessionId);
+        }
+        Assert.assertNotNull(other.exists("/", false));
+
+        // the session is still valid, the client reconnects to it
+        long end = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+        while (true) {
+            try {
+                Assert.assertNotNull(zk.exists("/", false));
+                break;
+            } catch (KeeperException.ConnectionLossException e) {
+                if (System.currentTimeMillis() > end) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+        Assert.assertEquals(sessionId, zk.getSessionId());
+
+        zk.close();
+        other.close();
+    }
+
+    @Test
+    public void testShortPacketClosesConnection() throws Exception {
+        ZooKeeper other = createClient();
+        // a packet too short to hold a request header, once with no body
+        // at all and once with half of one
+        for (int bodyLen : new int[] { 0, 4 }) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+            boa.writeInt(44, "len");
+            ConnectRequest conReq =
+                new ConnectRequest(0, 0, 30000, 0, new byte[16]);
+            conReq.serialize(boa, "connect");
+            boa.writeInt(bodyLen, "len");
+            for (int i = 0; i < bodyLen; i++) {
+                boa.writeByte((byte) 0, "body");
+            }
+            baos.close();
+
+            String hp[] = hostPort.split(":");
+            Socket sock = new Socket(hp[0], Integer.parseInt(hp[1]));
+            try {
+                sock.setSoTimeout(CONNECTION_TIMEOUT);
+                sock.getOutputStream().write(baos.toByteArray());
+                sock.getOutputStream().flush();
+
+                // the connect response arrives, then the server hangs up
+                InputStream in = sock.getInputStream();
+                byte[] b = new byte[1024];
+                try {
+                    while (in.read(b) >= 0) {
+                    }
+                } catch (SocketTimeoutException e) {
+                    Assert.fail("connection with a " + bodyLen
+                            + " byte packet was not closed");
+                }
+            } finally {
+                sock.close();
+            }
+
+            Assert.assertNotNull(other.exists("/", false));
+        }
+        other.close();
+    }
+}
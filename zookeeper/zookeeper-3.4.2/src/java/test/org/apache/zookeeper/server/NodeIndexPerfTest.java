@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the heap footprint and the lookup cost of the NodeIndex
+ * implementations on synthetic trees of a million nodes.
+ */
+public class NodeIndexPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(NodeIndexPerfTest.class);
+
+    @After
+    public void tearDown() {
+        System.clearProperty("zookeeper.nodeIndex");
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String tenant(int i) {
+        return "/tenants/tenant-" + String.format("%05d", i);
+    }
+
+    private static String item(int i, int j) {
+        return tenant(i) + "/queue/item-" + String.format("%010d", j);
+    }
+
+    /**
+     * builds /tenants/tenant-N/queue/item-M for tenants * items nodes,
+     * names and depth typical of a queue heavy deployment
+     */
+    private static DataTree createTree(int tenants, int items)
+            throws KeeperException.NodeExistsException, KeeperException.NoNodeException {
+        DataTree tree = new DataTree();
+        byte[] data = new byte[0];
+        long zxid = 1;
+        tree.createNode("/tenants", data, null, 0, -1, zxid++, 1);
+        for (int i = 0; i < tenants; i++) {
+            tree.createNode(tenant(i), data, null, 0, -1, zxid++, 1);
+            tree.createNode(tenant(i) + "/queue", data, null, 0, -1, zxid++, 1);
+            for (int j = 0; j < items; j++) {
+                tree.createNode(item(i, j), data, null, 0, -1, zxid++, 1);
+            }
+        }
+        return tree;
+    }
+
+    private static void measureIndex(String kind, int tenants, int items)
+            throws KeeperException.NodeExistsException, KeeperException.NoNodeException {
+        System.setProperty("zookeeper.nodeIndex", kind);
+        long before = usedHeap();
+        DataTree tree = createTree(tenants, items);
+        int count = tree.getNodeCount();
+        long after = usedHeap();
+
+        String[] paths = new String[tenants];
+        for (int i = 0; i < tenants; i++) {
+            paths[i] = item(i, items - 1);
+        }
+        int found = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 100; round++) {
+            for (String path : paths) {
+                // request paths come off the wire, so their hash is not
+                // cached yet
+                if (tree.getNode(new String(path)) != null) {
+                    found++;
+                }
+            }
+        }
+        long end = System.nanoTime();
+        Assert.assertEquals(100 * tenants, found);
+
+        LOG.info(kind + " index: " + count + " nodes use "
+                + ((after - before) / (1024 * 1024)) + " MB ("
+                + ((after - before) / count) + " bytes/node), "
+                + ((end - start) / found) + " ns/lookup, tenants="
+                + tenants + " items=" + items);
+    }
+
+    @Test
+    public void testPathIndexMillionNodes()
+            throws KeeperException.NodeExistsException, KeeperException.NoNodeException {
+        measureIndex("path", 1000, 1000);
+    }
+
+    @Test
+    public void testSegmentIndexMillionNodes()
+            throws KeeperException.NodeExistsException, KeeperException.NoNodeException {
+        measureIndex("segment", 1000, 1000);
+    }
+}
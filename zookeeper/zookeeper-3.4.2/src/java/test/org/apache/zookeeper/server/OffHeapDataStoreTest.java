@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapDataStoreTest extends ZKTestCase {
+    private DataTree dt;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("zookeeper.offHeapData.size",
+                Integer.toString(4 * OffHeapDataStore.SLAB_SIZE));
+        System.setProperty("zookeeper.offHeapData.minSize", "100");
+        dt = new DataTree();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty("zookeeper.offHeapData.size");
+        System.clearProperty("zookeeper.offHeapData.minSize");
+        dt = null;
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+    @Test
+    public void testSizeClass() {
+        Assert.assertEquals(0, OffHeapDataStore.sizeClass(1));
+        Assert.assertEquals(0, OffHeapDataStore.sizeClass(64));
+        Assert.assertEquals(1, OffHeapDataStore.sizeClass(65));
+        Assert.assertEquals(1, OffHeapDataStore.sizeClass(128));
+        Assert.assertEquals(14, OffHeapDataStore.sizeClass(1 << 20));
+    }
+
+    @Test
+    public void testStoreAndRecycle() {
+        OffHeapDataStore store =
+            new OffHeapDataStore(OffHeapDataStore.SLAB_SIZE, 10);
+        Assert.assertNull(store.store(new byte[9]));
+        Assert.assertNull(store.store(null));
+
+        byte[] data = payload(1000, 1);
+        OffHeapDataStore.Payload p = store.store(data);
+        Assert.assertArrayEquals(data, p.toArray());
+        Assert.assertEquals(1000, p.getLength());
+        Assert.assertEquals(OffHeapDataStore.SLAB_SIZE,
+                store.getReservedBytes());
+        Assert.assertEquals(1024, store.getUsedBytes());
+        Assert.assertEquals(1000, store.getDataBytes());
+        Assert.assertEquals(1, store.getPayloadCount());
+
+        p.retain();
+        p.release();
+        Assert.assertEquals(1, store.getPayloadCount());
+        p.release();
+        Assert.assertEquals(0, store.getUsedBytes());
+        Assert.assertEquals(0, store.getDataBytes());
+        Assert.assertEquals(0, store.getPayloadCount());
+        try {
+            p.release();
+            Assert.fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the only slab is dedicated to the 1k class, which recycles chunks
+        for (int i = 0; i < 3; i++) {
+            OffHeapDataStore.Payload[] all = new OffHeapDataStore.Payload[1024];
+            for (int j = 0; j < all.length; j++) {
+                all[j] = store.store(payload(1024, j));
+                Assert.assertNotNull(all[j]);
+            }
+            Assert.assertNull(store.store(payload(1024, 0)));
+            Assert.assertNull(store.store(payload(2000, 0)));
+            for (int j = 0; j < all.length; j++) {
+                Assert.assertArrayEquals(payload(1024, j), all[j].toArray());
+                all[j].release();
+            }
+        }
+        Assert.assertEquals(OffHeapDataStore.SLAB_SIZE,
+                store.getReservedBytes());
+    }
+
+    @Test
+    public void testDataTree() throws Exception {
+        OffHeapDataStore store = dt.getOffHeapDataStore();
+        Assert.assertNotNull(store);
+        byte[] big = payload(5000, 1);
+        dt.createNode("/big", big, null, 0, 1, 1, 1);
+        dt.createNode("/small", "x".getBytes(), null, 0, 2, 2, 1);
+        Assert.assertNull(dt.getNode("/big").data);
+        Assert.assertNotNull(dt.getNode("/small").data);
+        Assert.assertEquals(1, store.getPayloadCount());
+
+        Stat stat = new Stat();
+        Assert.assertArrayEquals(big, dt.getData("/big", stat, null));
+        Assert.assertEquals(5000, stat.getDataLength());
+
+        byte[] bigger = payload(20000, 2);
+        dt.setData("/big", bigger, 1, 3, 1);
+        Assert.assertEquals(1, store.getPayloadCount());
+        Assert.assertEquals(20000, store.getDataBytes());
+        Assert.assertArrayEquals(bigger, dt.getData("/big", stat, null));
+
+        dt.setData("/small", big, 1, 4, 1);
+        dt.setData("/big", "y".getBytes(), 2, 5, 1);
+        Assert.assertEquals(1, store.getPayloadCount());
+        Assert.assertArrayEquals("y".getBytes(),
+                dt.getData("/big", stat, null));
+
+        dt.deleteNode("/small", 6);
+        Assert.assertEquals(0, store.getPayloadCount());
+        Assert.assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        byte[] big = payload(5000, 3);
+        dt.createNode("/big", big, null, 0, 1, 1, 1);
+        dt.createNode("/big/small", "x".getBytes(), null, 0, 2, 2, 1);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+
+        System.clearProperty("zookeeper.offHeapData.size");
+        DataTree onHeap = new DataTree();
+        Assert.assertNull(onHeap.getOffHeapDataStore());
+        onHeap.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "tree");
+        Assert.assertArrayEquals(big, onHeap.getNode("/big").data);
+
+        // the snapshot is the same whichever way the payloads are held
+        ByteArrayOutputStream onHeapBytes = new ByteArrayOutputStream();
+        onHeap.serialize(BinaryOutputArchive.getArchive(onHeapBytes), "tree");
+        Assert.assertTrue(Arrays.equals(baos.toByteArray(),
+                onHeapBytes.toByteArray()));
+
+        System.setProperty("zookeeper.offHeapData.size",
+                Integer.toString(OffHeapDataStore.SLAB_SIZE));
+        DataTree offHeap = new DataTree();
+        offHeap.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "tree");
+        Assert.assertNull(offHeap.getNode("/big").data);
+        Assert.assertEquals(1, offHeap.getOffHeapDataStore().getPayloadCount());
+        Assert.assertArrayEquals(big,
+                offHeap.getData("/big", new Stat(), null));
+        Assert.assertEquals(dt.approximateDataSize(),
+                offHeap.approximateDataSize());
+    }
+
+    @Test
+    public void testResponseSerialization() throws Exception {
+        byte[] big = payload(5000, 4);
+        dt.createNode("/big", big, null, 0, 1, 1, 1);
+        OffHeapDataStore store = dt.getOffHeapDataStore();
+
+        PayloadDataResponse rsp = dt.getDataResponse("/big", null);
+        dt.deleteNode("/big", 2);
+        // the response still holds the payload
+        Assert.assertEquals(1, store.getPayloadCount());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(rsp, "response");
+        rsp.release();
+        Assert.assertEquals(0, store.getPayloadCount());
+
+        GetDataResponse expected = new GetDataResponse(big, rsp.getStat());
+        ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(expectedBytes).writeRecord(expected,
+                "response");
+        Assert.assertTrue(Arrays.equals(expectedBytes.toByteArray(),
+                baos.toByteArray()));
+
+        GetDataResponse read = new GetDataResponse();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(
+                baos.toByteArray())).readRecord(read, "response");
+        Assert.assertArrayEquals(big, read.getData());
+        Assert.assertEquals(5000, read.getStat().getDataLength());
+
+        PayloadDataResponse readBack = new PayloadDataResponse();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(
+                baos.toByteArray())).readRecord(readBack, "response");
+        Assert.assertArrayEquals(big, readBack.getData());
+        Assert.assertEquals(rsp.getStat(), readBack.getStat());
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.ZooKeeperServer.ChangeRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutstandingChangesTest extends ZKTestCase {
+    private static ChangeRecord record(long zxid, String path) {
+        return new ChangeRecord(zxid, path, new StatPersisted(), 0,
+                new ArrayList<ACL>());
+    }
+
+    @Test
+    public void testNewestChangeForPath() {
+        OutstandingChanges changes = new OutstandingChanges();
+        ChangeRecord a1 = record(1, "/a");
+        ChangeRecord b2 = record(2, "/b");
+        ChangeRecord a3 = record(3, "/a");
+        changes.add(a1);
+        changes.add(b2);
+        changes.add(a3);
+
+        Assert.assertSame(a3, changes.get("/a"));
+        Assert.assertSame(b2, changes.get("/b"));
+        Assert.assertNull(changes.get("/c"));
+        Assert.assertEquals(3, changes.size());
+        List<ChangeRecord> list = changes.getChanges();
+        Assert.assertSame(a1, list.get(0));
+        Assert.assertSame(b2, list.get(1));
+        Assert.assertSame(a3, list.get(2));
+    }
+
+    @Test
+    public void testTrim() {
+        OutstandingChanges changes = new OutstandingChanges();
+        ChangeRecord a1 = record(1, "/a");
+        ChangeRecord b2 = record(2, "/b");
+        ChangeRecord a3 = record(3, "/a");
+        changes.add(a1);
+        changes.add(b2);
+        changes.add(a3);
+
+        changes.trim(1);
+        // a newer change to /a is still outstanding
+        Assert.assertSame(a3, changes.get("/a"));
+        Assert.assertSame(b2, changes.get("/b"));
+        Assert.assertEquals(2, changes.size());
+
+        changes.trim(2);
+        Assert.assertNull(changes.get("/b"));
+        Assert.assertEquals(1, changes.size());
+
+        changes.trim(5);
+        Assert.assertNull(changes.get("/a"));
+        Assert.assertEquals(0, changes.size());
+        Assert.assertTrue(changes.getChanges().isEmpty());
+
+        // adding after emptying it starts a new list
+        ChangeRecord c6 = record(6, "/c");
+        changes.add(c6);
+        Assert.assertSame(c6, changes.get("/c"));
+        Assert.assertSame(c6, changes.getChanges().get(0));
+    }
+
+    @Test
+    public void testRollbackRestoresPriorChanges() {
+        OutstandingChanges changes = new OutstandingChanges();
+        ChangeRecord a1 = record(1, "/a");
+        ChangeRecord b1 = record(1, "/b");
+        changes.add(a1);
+        changes.add(b1);
+        // a multi touching /a twice and a new path /c
+        changes.add(record(2, "/a"));
+        changes.add(record(2, "/c"));
+        changes.add(record(2, "/a"));
+
+        changes.rollback(2);
+        Assert.assertSame(a1, changes.get("/a"));
+        Assert.assertSame(b1, changes.get("/b"));
+        Assert.assertNull(changes.get("/c"));
+        Assert.assertEquals(2, changes.size());
+
+        // nothing of an older txn is rolled back
+        changes.rollback(3);
+        Assert.assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void testRollbackSkipsAppliedChanges() {
+        OutstandingChanges changes = new OutstandingChanges();
+        changes.add(record(1, "/a"));
+        changes.add(record(2, "/a"));
+        changes.add(record(2, "/b"));
+        // the change the multi replaced gets applied before it fails
+        changes.trim(1);
+
+        changes.rollback(2);
+        Assert.assertNull(changes.get("/a"));
+        Assert.assertNull(changes.get("/b"));
+        Assert.assertEquals(0, changes.size());
+        Assert.assertTrue(changes.getChanges().isEmpty());
+    }
+}
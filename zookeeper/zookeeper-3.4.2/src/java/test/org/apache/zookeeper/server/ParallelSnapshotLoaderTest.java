@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelSnapshotLoaderTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty("zookeeper.nodeIndex");
+    }
+
+    private static DataTree load(byte[] b, int threads) throws Exception {
+        DataTree dt = new DataTree();
+        dt.deserializeChunked(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(b)), "tree", threads);
+        return dt;
+    }
+
+    private void testLoad(String nodeIndex) throws Exception {
+        System.setProperty("zookeeper.nodeIndex", nodeIndex);
+        DataTree dt = ParallelSnapshotWriterTest.populate();
+        Map<String, String> expected = ParallelSnapshotWriterTest.dump(dt);
+        int[] chunkSizes = { 1, 300, 1024 * 1024 };
+        int[] threads = { 1, 2, 8 };
+        for (int chunkSize : chunkSizes) {
+            byte[] b = ParallelSnapshotWriterTest.serializeChunked(dt, 3,
+                    chunkSize);
+            for (int t : threads) {
+                DataTree restored = load(b, t);
+                Assert.assertEquals(expected,
+                        ParallelSnapshotWriterTest.dump(restored));
+                Assert.assertEquals(dt.getNodeCount(),
+                        restored.getNodeCount());
+                Assert.assertEquals(dt.getEphemerals(0x1234),
+                        restored.getEphemerals(0x1234));
+                Assert.assertEquals(dt.getEphemeralsCount(),
+                        restored.getEphemeralsCount());
+                Assert.assertEquals(dt.aclCacheSize(),
+                        restored.aclCacheSize());
+            }
+        }
+    }
+
+    @Test
+    public void testLoadWithPathIndex() throws Exception {
+        testLoad("path");
+    }
+
+    @Test
+    public void testLoadWithSegmentIndex() throws Exception {
+        testLoad("segment");
+    }
+
+    private static void deleteSubtree(DataTree dt, String path)
+            throws Exception {
+        for (String child : dt.getChildren(path, null, null)) {
+            deleteSubtree(dt, path + "/" + child);
+        }
+        dt.deleteNode(path, 1000);
+    }
+
+    /**
+     * the acl references counted by the decoding threads are all added,
+     * so the acl goes away with the last node using it
+     */
+    @Test
+    public void testAclReferences() throws Exception {
+        DataTree restored = load(ParallelSnapshotWriterTest.serializeChunked(
+                ParallelSnapshotWriterTest.populate(), 4, 100), 4);
+        int acls = restored.aclCacheSize();
+        // /n1 and /n3 are the only nodes with the read only acl
+        deleteSubtree(restored, "/n1");
+        Assert.assertEquals(acls, restored.aclCacheSize());
+        deleteSubtree(restored, "/n3");
+        Assert.assertEquals(acls - 1, restored.aclCacheSize());
+    }
+}
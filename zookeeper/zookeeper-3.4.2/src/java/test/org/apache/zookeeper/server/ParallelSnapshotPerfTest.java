@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * compares the single threaded snapshot writer and loader with the parallel
+ * ones
+ */
+public class ParallelSnapshotPerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(ParallelSnapshotPerfTest.class);
+
+    private static final int ROUNDS = 5;
+
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+            // do nothing - exclude persistence from perf
+        }
+
+        public void write(byte[] b, int off, int len) {
+            // do nothing - exclude persistence from perf
+        }
+    }
+
+    private static long serialize(DataTree tree, int threads)
+            throws IOException {
+        // checksummed like FileSnap does
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(
+                new CheckedOutputStream(new NullOutputStream(), new Adler32()));
+        long start = System.nanoTime();
+        if (threads == 0) {
+            tree.serialize(oa, "test");
+        } else {
+            tree.serializeChunked(oa, "test", threads, 1024 * 1024);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long deserialize(byte[] b, int threads)
+            throws IOException {
+        DataTree tree = new DataTree();
+        BinaryInputArchive ia =
+            BinaryInputArchive.getArchive(new ByteArrayInputStream(b));
+        long start = System.nanoTime();
+        if (threads == 0) {
+            tree.deserialize(ia, "test");
+        } else {
+            tree.deserializeChunked(ia, "test", threads);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void compare(int depth, int width, int len)
+            throws Exception {
+        DataTree tree = new DataTree();
+        SerializationPerfTest.createNodes(tree, "/", depth, width,
+                tree.getNode("/").getCversion(), new byte[len]);
+        int count = tree.getNodeCount();
+        int[] threads = { 0, 1, 2, 4, 8 };
+        compareWriters(tree, count, threads, depth, width, len);
+        compareLoaders(tree, count, threads, depth, width, len);
+    }
+
+    private static void compareWriters(DataTree tree, int count,
+            int[] threads, int depth, int width, int len) throws Exception {
+        for (int t : threads) {
+            // warm up, then keep the best round
+            serialize(tree, t);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                System.gc();
+                best = Math.min(best, serialize(tree, t));
+            }
+            LOG.info((t == 0 ? "Single threaded writer" : "Parallel writer, "
+                    + t + " threads") + ": serialized " + count + " nodes in "
+                    + best / 1000000L + " ms (" + best / count + "ns/node),"
+                    + " depth=" + depth + " width=" + width + " datalen="
+                    + len);
+        }
+    }
+
+    private static void compareLoaders(DataTree tree, int count,
+            int[] threads, int depth, int width, int len) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        byte[] single = baos.toByteArray();
+        baos = new ByteArrayOutputStream();
+        tree.serializeChunked(BinaryOutputArchive.getArchive(baos), "test",
+                4, 1024 * 1024);
+        byte[] chunked = baos.toByteArray();
+        baos = null;
+        for (int t : threads) {
+            byte[] b = t == 0 ? single : chunked;
+            deserialize(b, t);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                System.gc();
+                best = Math.min(best, deserialize(b, t));
+            }
+            LOG.info((t == 0 ? "Single threaded loader" : "Parallel loader, "
+                    + t + " threads") + ": deserialized " + count
+                    + " nodes in " + best / 1000000L + " ms (" + best / count
+                    + "ns/node), depth=" + depth + " width=" + width
+                    + " datalen=" + len);
+        }
+    }
+
+    @Test
+    public void testWide() throws Exception {
+        compare(2, 50000, 100);
+    }
+
+    @Test
+    public void test40Wide4Deep() throws Exception {
+        compare(4, 40, 100);
+    }
+
+    @Test
+    public void test10Wide6DeepLargeData() throws Exception {
+        compare(6, 10, 1024);
+    }
+}
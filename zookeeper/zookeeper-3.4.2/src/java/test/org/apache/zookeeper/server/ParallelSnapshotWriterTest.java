@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ParallelSnapshotWriter.Range;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelSnapshotWriterTest extends ZKTestCase {
+
+    /**
+     * a tree with a wide node, a deep chain, ephemerals and a few acls
+     */
+    static DataTree populate() throws Exception {
+        DataTree dt = new DataTree();
+        long zxid = 0;
+        for (int i = 0; i < 5; i++) {
+            dt.createNode("/n" + i, ("data" + i).getBytes(),
+                    i % 2 == 0 ? Ids.OPEN_ACL_UNSAFE : Ids.READ_ACL_UNSAFE,
+                    0, -1, ++zxid, zxid);
+            for (int j = 0; j < 40; j++) {
+                dt.createNode("/n" + i + "/c" + j, new byte[j * 10],
+                        Ids.OPEN_ACL_UNSAFE, j % 7 == 0 ? 0x1234 : 0, -1,
+                        ++zxid, zxid);
+            }
+        }
+        String path = "/deep";
+        for (int i = 0; i < 50; i++) {
+            dt.createNode(path, null, Ids.CREATOR_ALL_ACL, 0, -1, ++zxid, zxid);
+            path += "/d";
+        }
+        dt.lastProcessedZxid = zxid;
+        return dt;
+    }
+
+    static Map<String, String> dump(DataTree dt) throws Exception {
+        Map<String, String> nodes = new TreeMap<String, String>();
+        dump(dt, "", nodes);
+        return nodes;
+    }
+
+    private static void dump(DataTree dt, String path, Map<String, String> nodes)
+            throws Exception {
+        Stat stat = new Stat();
+        byte[] data = dt.getData(path.length() == 0 ? "/" : path, stat, null);
+        nodes.put(path, new String(data == null ? new byte[0] : data) + " "
+                + stat + " " + dt.getACL(path.length() == 0 ? "/" : path,
+                        new Stat()));
+        Set<String> children = dt.getNode(
+                path.length() == 0 ? "/" : path).getChildren();
+        if (children == null) {
+            return;
+        }
+        for (String child : new HashSet<String>(children)) {
+            dump(dt, path + "/" + child, nodes);
+        }
+    }
+
+    static byte[] serializeChunked(DataTree dt, int threads,
+            int chunkSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serializeChunked(BinaryOutputArchive.getArchive(baos), "tree",
+                threads, chunkSize);
+        return baos.toByteArray();
+    }
+
+    static DataTree deserializeChunked(byte[] b) throws IOException {
+        DataTree dt = new DataTree();
+        dt.deserializeChunked(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(b)), "tree", 4);
+        return dt;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DataTree dt = populate();
+        Map<String, String> expected = dump(dt);
+        int[][] configs = { { 1, 1024 * 1024 }, { 4, 100 }, { 3, 1 } };
+        for (int[] config : configs) {
+            DataTree restored = deserializeChunked(
+                    serializeChunked(dt, config[0], config[1]));
+            Assert.assertEquals(expected, dump(restored));
+            Assert.assertEquals(dt.getNodeCount(), restored.getNodeCount());
+            Assert.assertEquals(dt.getEphemerals(0x1234),
+                    restored.getEphemerals(0x1234));
+            Assert.assertEquals(dt.aclCacheSize(), restored.aclCacheSize());
+        }
+    }
+
+    @Test
+    public void testSplitKeepsWalkOrder() throws Exception {
+        DataTree dt = populate();
+        List<Range> ranges = new ParallelSnapshotWriter(dt, null, 4, 1).split();
+        Assert.assertTrue("only " + ranges.size() + " ranges",
+                ranges.size() > 16);
+        // each range comes after its parent and outside the subtrees before
+        Set<String> seen = new HashSet<String>();
+        Set<String> subtrees = new HashSet<String>();
+        for (Range r : ranges) {
+            String p = r.path;
+            while (p.length() > 0) {
+                p = p.substring(0, p.lastIndexOf('/'));
+                Assert.assertFalse(r.path, subtrees.contains(p));
+            }
+            if (r.path.length() > 0) {
+                Assert.assertTrue(r.path, seen.contains(
+                        r.path.substring(0, r.path.lastIndexOf('/'))));
+            }
+            Assert.assertTrue(r.path, seen.add(r.path));
+            if (r.subtree) {
+                subtrees.add(r.path);
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedWithView() throws Exception {
+        DataTree dt = populate();
+        Map<String, String> expected = dump(dt);
+        dt.beginSnapshot();
+        try {
+            dt.setData("/n0", "changed".getBytes(), 1, dt.lastProcessedZxid + 1,
+                    1);
+            dt.deleteNode("/n1/c3", dt.lastProcessedZxid + 2);
+            dt.createNode("/n2/new", null, Ids.OPEN_ACL_UNSAFE, 0, -1,
+                    dt.lastProcessedZxid + 3, 1);
+            Assert.assertEquals(expected, dump(deserializeChunked(
+                    serializeChunked(dt, 4, 64))));
+        } finally {
+            dt.endSnapshot();
+        }
+    }
+
+    @Test
+    public void testCorruptChunk() throws Exception {
+        byte[] b = serializeChunked(populate(), 2, 256);
+        // flip a byte well after the acl cache, inside the chunks
+        b[b.length / 2] ^= 0x10;
+        try {
+            deserializeChunked(b);
+            Assert.fail("corruption was not detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFileSnapFormats() throws Exception {
+        DataTree dt = populate();
+        Map<String, String> expected = dump(dt);
+        Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+        sessions.put(0x1234L, 3000);
+        File tmpDir = ClientBase.createTmpDir();
+        try {
+            System.setProperty("zookeeper.snapshot.writerThreads", "4");
+            System.setProperty("zookeeper.snapshot.chunkSize", "512");
+            new FileSnap(tmpDir).serialize(dt, sessions,
+                    new File(tmpDir, "snapshot.10"));
+        } finally {
+            System.clearProperty("zookeeper.snapshot.writerThreads");
+            System.clearProperty("zookeeper.snapshot.chunkSize");
+        }
+        new FileSnap(tmpDir).serialize(dt, sessions,
+                new File(tmpDir, "snapshot.5"));
+
+        // the most recent snapshot is chunked, read it
+        DataTree restored = new DataTree();
+        Map<Long, Integer> restoredSessions = new HashMap<Long, Integer>();
+        Assert.assertEquals(0x10, new FileSnap(tmpDir).deserialize(restored,
+                restoredSessions));
+        Assert.assertEquals(expected, dump(restored));
+        Assert.assertEquals(sessions, restoredSessions);
+
+        // once it is corrupt the older one of version 2 is read
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(tmpDir, "snapshot.10"), "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0x10);
+        raf.close();
+        restored = new DataTree();
+        Assert.assertEquals(0x5, new FileSnap(tmpDir).deserialize(restored,
+                restoredSessions));
+        Assert.assertEquals(expected, dump(restored));
+    }
+}
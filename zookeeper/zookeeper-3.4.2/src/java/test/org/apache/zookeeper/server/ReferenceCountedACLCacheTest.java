@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.Perms;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReferenceCountedACLCacheTest extends ZKTestCase {
+    private static List<ACL> digestAcl(String user) {
+        List<ACL> acl = new ArrayList<ACL>();
+        acl.add(new ACL(Perms.ALL, new Id("digest", user + ":hash")));
+        return acl;
+    }
+
+    @Test
+    public void testCounting() {
+        ReferenceCountedACLCache cache = new ReferenceCountedACLCache();
+        Assert.assertEquals(-1L, cache.convertAcls(null));
+        Assert.assertSame(Ids.OPEN_ACL_UNSAFE, cache.convertLong(-1L));
+        Assert.assertEquals(0, cache.size());
+
+        long a = cache.convertAcls(digestAcl("a"));
+        Assert.assertEquals(a, cache.convertAcls(digestAcl("a")));
+        long b = cache.convertAcls(digestAcl("b"));
+        Assert.assertTrue(a != b);
+        Assert.assertEquals(2, cache.getReferenceCount(a));
+        Assert.assertEquals(digestAcl("a"), cache.convertLong(a));
+
+        cache.removeUsage(a);
+        Assert.assertEquals(digestAcl("a"), cache.convertLong(a));
+        cache.removeUsage(a);
+        Assert.assertEquals(1, cache.size());
+        try {
+            cache.convertLong(a);
+            Assert.fail("acl should have been dropped");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        // longs are not reused
+        Assert.assertTrue(cache.convertAcls(digestAcl("a")) > b);
+    }
+
+    @Test
+    public void testDataTree() throws Exception {
+        DataTree dt = new DataTree();
+        for (int i = 0; i < 10; i++) {
+            dt.createNode("/n" + i, new byte[0], digestAcl("tenant" + i % 2),
+                    0, 1, i + 1, 1);
+        }
+        Assert.assertEquals(2, dt.aclCacheSize());
+        dt.setACL("/n0", digestAcl("other"), 1);
+        Assert.assertEquals(3, dt.aclCacheSize());
+        dt.setACL("/n0", digestAcl("other"), 2);
+        Assert.assertEquals(3, dt.aclCacheSize());
+        Assert.assertEquals(digestAcl("other"), dt.getACL("/n0", new Stat()));
+        dt.deleteNode("/n0", 20);
+        Assert.assertEquals(2, dt.aclCacheSize());
+        for (int i = 1; i < 10; i += 2) {
+            dt.deleteNode("/n" + i, 20 + i);
+        }
+        Assert.assertEquals(1, dt.aclCacheSize());
+        Assert.assertEquals(digestAcl("tenant0"), dt.getACL("/n2", new Stat()));
+    }
+
+    @Test
+    public void testSnapshotDropsUnused() throws Exception {
+        DataTree dt = new DataTree();
+        dt.createNode("/a", new byte[0], digestAcl("a"), 0, 1, 1, 1);
+        dt.createNode("/b", new byte[0], digestAcl("b"), 0, 1, 2, 1);
+        dt.createNode("/c", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, 1, 3, 1);
+
+        // a reference no node holds, like the lists written by servers
+        // that never dropped acls
+        dt.convertAcls(digestAcl("gone"));
+        Assert.assertEquals(4, dt.aclCacheSize());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+
+        DataTree loaded = new DataTree();
+        loaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "tree");
+        Assert.assertEquals(3, loaded.aclCacheSize());
+        Assert.assertEquals(digestAcl("b"), loaded.getACL("/b", new Stat()));
+        Assert.assertEquals(Ids.OPEN_ACL_UNSAFE,
+                loaded.getACL("/c", new Stat()));
+
+        // references are rebuilt from the nodes
+        loaded.deleteNode("/a", 4);
+        Assert.assertEquals(2, loaded.aclCacheSize());
+
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        loaded.serialize(BinaryOutputArchive.getArchive(again), "tree");
+        DataTree reloaded = new DataTree();
+        reloaded.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(again.toByteArray())), "tree");
+        Assert.assertEquals(2, reloaded.aclCacheSize());
+        Assert.assertEquals(digestAcl("b"), reloaded.getACL("/b", new Stat()));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the bytes the server threads allocate per small read, from the
+ * socket read to the response write. Needs a JVM whose ThreadMXBean
+ * reports allocated bytes, otherwise it only logs that it could not
+ * measure.
+ */
+public class ResponseAllocationPerfTest extends ClientBase {
+    protected static final Logger LOG = LoggerFactory.getLogger(ResponseAllocationPerfTest.class);
+
+    private static final int WARMUP_OPS = 10000;
+
+    private static final int OPS = 20000;
+
+    private static final String[] SERVER_THREADS = {
+        "NIOServerCxn", "ProcessThread", "SyncThread"
+    };
+
+    private static long serverAllocatedBytes(Method getAllocatedBytes)
+            throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int n = Thread.enumerate(threads);
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            for (String prefix : SERVER_THREADS) {
+                if (threads[i].getName().startsWith(prefix)) {
+                    long[] bytes = (long[]) getAllocatedBytes.invoke(bean,
+                            new Object[] { new long[] { threads[i].getId() } });
+                    total += bytes[0];
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    private void runReads(ZooKeeper zk, Method getAllocatedBytes,
+            boolean getData) throws Exception {
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            read(zk, getData);
+        }
+        long before = serverAllocatedBytes(getAllocatedBytes);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            read(zk, getData);
+        }
+        long end = System.nanoTime();
+        long allocated = serverAllocatedBytes(getAllocatedBytes) - before;
+
+        long durationms = (end - start) / 1000000L;
+        LOG.info((getData ? "getData" : "exists") + ": " + OPS
+                + " reads in " + durationms + " ms, server threads allocated "
+                + (allocated / OPS) + " bytes/read, cores="
+                + Runtime.getRuntime().availableProcessors());
+    }
+
+    private static void read(ZooKeeper zk, boolean getData) throws Exception {
+        if (getData) {
+            Assert.assertEquals(100, zk.getData("/perf", false, null).length);
+        } else {
+            Assert.assertNotNull(zk.exists("/perf", false));
+        }
+    }
+
+    @Test
+    public void testSmallReads() throws Exception {
+        Method getAllocatedBytes;
+        try {
+            getAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long[].class);
+        } catch (Exception e) {
+            LOG.info("Allocated bytes cannot be measured on this JVM: " + e);
+            return;
+        }
+        ZooKeeper zk = createClient();
+        zk.create("/perf", new byte[100], Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        runReads(zk, getAllocatedBytes, false);
+        runReads(zk, getAllocatedBytes, true);
+        zk.close();
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentNodeIndexTest extends ZKTestCase {
+    private DataTree dt;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("zookeeper.nodeIndex", "segment");
+        dt = new DataTree();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty("zookeeper.nodeIndex");
+        dt = null;
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        dt.createNode("/a", new byte[0], null, 0, 1, 1, 1);
+        dt.createNode("/a/b", new byte[0], null, 0, 1, 2, 1);
+        dt.createNode("/ab", new byte[0], null, 0, 2, 3, 1);
+
+        Assert.assertSame(dt.getNode(""), dt.getNode("/"));
+        Assert.assertNotNull(dt.getNode("/zookeeper/quota"));
+        Assert.assertNotNull(dt.getNode("/a/b"));
+        Assert.assertNotSame(dt.getNode("/a"), dt.getNode("/ab"));
+        Assert.assertNull(dt.getNode("/a/"));
+        Assert.assertNull(dt.getNode("//a"));
+        Assert.assertNull(dt.getNode("a"));
+        Assert.assertNull(dt.getNode("/a/bc"));
+        Assert.assertNull(dt.getNode("/b"));
+        Assert.assertEquals(7, dt.getNodeCount());
+
+        dt.deleteNode("/a/b", 4);
+        Assert.assertNull(dt.getNode("/a/b"));
+        Assert.assertNotNull(dt.getNode("/a"));
+        Assert.assertEquals(6, dt.getNodeCount());
+    }
+
+    @Test
+    public void testSameSizeAsPathIndex() throws Exception {
+        System.setProperty("zookeeper.nodeIndex", "path");
+        DataTree pathTree = new DataTree();
+        for (DataTree tree : new DataTree[] { dt, pathTree }) {
+            tree.createNode("/a", "abc".getBytes(), null, 0, 1, 1, 1);
+            tree.createNode("/a/b", "de".getBytes(), null, 0, 1, 2, 1);
+        }
+        Assert.assertEquals(pathTree.getNodeCount(), dt.getNodeCount());
+        Assert.assertEquals(pathTree.approximateDataSize(),
+                dt.approximateDataSize());
+    }
+
+    @Test
+    public void testSerializeRoundTrip() throws Exception {
+        dt.createNode("/a", new byte[0], null, 0, 1, 1, 1);
+        dt.createNode("/a/b", "x".getBytes(), null, 0, 1, 2, 1);
+        dt.createNode("/a/b/c", new byte[0], null, 0x100L, 1, 3, 1);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "test");
+
+        DataTree copy = new DataTree();
+        copy.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        Assert.assertEquals(dt.getNodeCount(), copy.getNodeCount());
+        Assert.assertEquals("x", new String(copy.getNode("/a/b").data));
+        Assert.assertSame(copy.getNode("/a/b"), copy.getNode("/a/b/c").parent);
+        Assert.assertTrue(copy.getEphemerals(0x100L).contains("/a/b/c"));
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotViewTest extends ZKTestCase {
+
+    private static byte[] serialize(DataTree dt) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serialize(BinaryOutputArchive.getArchive(baos), "tree");
+        return baos.toByteArray();
+    }
+
+    private static DataTree deserialize(byte[] b) throws Exception {
+        DataTree dt = new DataTree();
+        dt.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(b)), "tree");
+        return dt;
+    }
+
+    private static void populate(DataTree dt) throws Exception {
+        dt.createNode("/a", "1".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+        dt.createNode("/a/b", "2".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, -1, 2, 2);
+        dt.createNode("/c", "3".getBytes(), Ids.READ_ACL_UNSAFE, 0, -1, 3, 3);
+        dt.lastProcessedZxid = 3;
+    }
+
+    private static void change(DataTree dt) throws Exception {
+        dt.setData("/a", "changed".getBytes(), 1, 4, 4);
+        dt.createNode("/a/new", null, Ids.OPEN_ACL_UNSAFE, 0, -1, 5, 5);
+        dt.deleteNode("/a/b", 6);
+        dt.setACL("/c", Ids.OPEN_ACL_UNSAFE, 1);
+        dt.deleteNode("/c", 7);
+        dt.createNode("/c", "again".getBytes(), Ids.OPEN_ACL_UNSAFE, 0, -1, 8, 8);
+        dt.lastProcessedZxid = 8;
+    }
+
+    @Test
+    public void testViewIgnoresLaterChanges() throws Exception {
+        DataTree dt = new DataTree();
+        populate(dt);
+        byte[] before = serialize(dt);
+        int aclsBefore = dt.aclCacheSize();
+
+        Assert.assertEquals(3, dt.beginSnapshot());
+        change(dt);
+        byte[] during = serialize(dt);
+        dt.endSnapshot();
+        Assert.assertArrayEquals(before, during);
+
+        // the acl of the old /c was kept for the view and is dropped now
+        Assert.assertEquals(aclsBefore - 1, dt.aclCacheSize());
+        DataTree after = deserialize(serialize(dt));
+        Assert.assertEquals("again",
+                new String(after.getData("/c", new Stat(), null)));
+        Assert.assertNull(after.getNode("/a/b"));
+        Assert.assertNotNull(after.getNode("/a/new"));
+        Assert.assertEquals(aclsBefore - 1, after.aclCacheSize());
+    }
+
+    @Test
+    public void testViewWithOffHeapData() throws Exception {
+        System.setProperty("zookeeper.offHeapData.size",
+                Integer.toString(1024 * 1024));
+        System.setProperty("zookeeper.offHeapData.minSize", "1");
+        try {
+            DataTree dt = new DataTree();
+            OffHeapDataStore store = dt.getOffHeapDataStore();
+            Assert.assertNotNull(store);
+            populate(dt);
+            byte[] before = serialize(dt);
+
+            dt.beginSnapshot();
+            change(dt);
+            // the replaced and deleted payloads are still held by the view
+            Assert.assertEquals(5, store.getPayloadCount());
+            byte[] during = serialize(dt);
+            dt.endSnapshot();
+            Assert.assertArrayEquals(before, during);
+            Assert.assertEquals(2, store.getPayloadCount());
+        } finally {
+            System.clearProperty("zookeeper.offHeapData.size");
+            System.clearProperty("zookeeper.offHeapData.minSize");
+        }
+    }
+
+    /**
+     * Take a snapshot while another thread applies transactions, then restore
+     * it by replaying exactly the transactions after the zxid of the
+     * snapshot. None of them may fail, as they would if the snapshot had
+     * already seen some of them.
+     */
+    @Test
+    public void testRestoreReplaysFromSnapshotZxid() throws Exception {
+        final DataTree dt = new DataTree();
+        final List<TxnHeader> headers = new ArrayList<TxnHeader>();
+        final List<Record> txns = new ArrayList<Record>();
+        final int count = 20000;
+        for (int i = 0; i < count; i++) {
+            long zxid = i + 1;
+            if (i % 3 == 2) {
+                headers.add(new TxnHeader(1, i, zxid, zxid, OpCode.setData));
+                txns.add(new SetDataTxn("/n" + (i / 9 * 3), ("v" + i).getBytes(),
+                        1));
+            } else {
+                String parent = i % 3 == 1 ? "/n" + (i - 1) : "";
+                headers.add(new TxnHeader(1, i, zxid, zxid, OpCode.create));
+                txns.add(new CreateTxn(parent + "/n" + i, ("" + i).getBytes(),
+                        Ids.OPEN_ACL_UNSAFE, false, -1));
+            }
+        }
+        Thread writer = new Thread("writer") {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    dt.processTxn(headers.get(i), txns.get(i));
+                }
+            }
+        };
+        writer.start();
+        while (dt.lastProcessedZxid < count / 10) {
+            Thread.sleep(1);
+        }
+        long zxid = dt.beginSnapshot();
+        byte[] snapshot;
+        try {
+            snapshot = serialize(dt);
+        } finally {
+            dt.endSnapshot();
+        }
+        writer.join();
+        Assert.assertTrue(zxid < count);
+
+        DataTree restored = deserialize(snapshot);
+        for (int i = (int) zxid; i < count; i++) {
+            ProcessTxnResult rc = restored.processTxn(headers.get(i),
+                    txns.get(i));
+            Assert.assertEquals("zxid " + (i + 1), 0, rc.err);
+        }
+        Assert.assertArrayEquals(serialize(dt), serialize(restored));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.apache.zookeeper.server.quorum.QuorumPacket;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TxnLogProposalIteratorTest extends ZKTestCase {
+    private static final int COUNT = 2000;
+
+    private FileTxnSnapLog snapLog;
+
+    private ZKDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        FileTxnLog log = new FileTxnLog(snapLog.getDataDir());
+        for (int i = 1; i <= COUNT; i++) {
+            TxnHeader hdr = new TxnHeader(0x1234, i, i, i, OpCode.setData);
+            log.append(hdr, new SetDataTxn("/node" + i, new byte[i % 300], i));
+            if (i % 700 == 0) {
+                log.commit();
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+        snapLog.save(new DataTree(), new ConcurrentHashMap<Long, Integer>());
+        db = new ZKDatabase(snapLog);
+    }
+
+    private static void assertProposals(TxnLogProposalIterator itr,
+            long from) throws IOException {
+        try {
+            Assert.assertEquals(from, itr.getLastZxid());
+            for (long zxid = from + 1; zxid <= COUNT; zxid++) {
+                QuorumPacket p = itr.next();
+                Assert.assertNotNull("missing " + zxid, p);
+                Assert.assertEquals(Leader.PROPOSAL, p.getType());
+                Assert.assertEquals(zxid, p.getZxid());
+                TxnHeader hdr = new TxnHeader();
+                SetDataTxn txn = (SetDataTxn) SerializeUtils.deserializeTxn(
+                        p.getData(), hdr);
+                Assert.assertEquals(zxid, hdr.getZxid());
+                Assert.assertEquals("/node" + zxid, txn.getPath());
+            }
+            Assert.assertNull(itr.next());
+        } finally {
+            itr.close();
+        }
+    }
+
+    @Test
+    public void testProposalsFromLogs() throws Exception {
+        db.setSnapshotSizeFactor(1000000);
+        assertProposals(db.getProposalsFromTxnLog(1), 1);
+        assertProposals(db.getProposalsFromTxnLog(1234), 1234);
+        assertProposals(db.getProposalsFromTxnLog(COUNT), COUNT);
+    }
+
+    @Test
+    public void testNotInLogs() throws Exception {
+        db.setSnapshotSizeFactor(1000000);
+        Assert.assertNull(db.getProposalsFromTxnLog(0));
+        Assert.assertNull(db.getProposalsFromTxnLog(COUNT + 1));
+    }
+
+    @Test
+    public void testSizeLimit() throws Exception {
+        long recent = snapLog.getTxnLogSize(COUNT - 100);
+        long old = snapLog.getTxnLogSize(100);
+        Assert.assertTrue(recent > 0 && old > recent);
+
+        long snapshotSize = snapLog.findMostRecentSnapshot().length();
+        db.setSnapshotSizeFactor((double) (recent + 1) / snapshotSize);
+        assertProposals(db.getProposalsFromTxnLog(COUNT - 100), COUNT - 100);
+        Assert.assertNull(db.getProposalsFromTxnLog(100));
+
+        db.setSnapshotSizeFactor(-1);
+        Assert.assertEquals(-1, db.calculateTxnLogSizeLimit());
+        Assert.assertNull(db.getProposalsFromTxnLog(COUNT - 100));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures WatchManager throughput with several threads registering watches
+ * (as read requests do) while others trigger them (as the commit path does).
+ * Run with increasing thread counts to see how it scales across cores.
+ */
+public class WatchManagerPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(WatchManagerPerfTest.class);
+
+    private static final int PATHS = 10000;
+
+    private static final int OPS_PER_THREAD = 200000;
+
+    private static class CountingWatcher implements Watcher {
+        final AtomicLong count = new AtomicLong();
+
+        public void process(WatchedEvent event) {
+            count.incrementAndGet();
+        }
+    }
+
+    private static void runWatchManager(int addThreads, int triggerThreads)
+            throws InterruptedException {
+        final WatchManager manager = new WatchManager();
+        final String[] paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            paths[i] = "/perf/node" + i;
+        }
+        final CountingWatcher[] watchers = new CountingWatcher[addThreads];
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[addThreads + triggerThreads];
+        for (int t = 0; t < addThreads; t++) {
+            final CountingWatcher watcher = new CountingWatcher();
+            watchers[t] = watcher;
+            final int offset = t;
+            threads[t] = new Thread("adder-" + t) {
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        manager.addWatch(paths[(i + offset) % PATHS], watcher);
+                    }
+                }
+            };
+        }
+        for (int t = 0; t < triggerThreads; t++) {
+            final int offset = t * 7;
+            threads[addThreads + t] = new Thread("trigger-" + t) {
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        manager.triggerWatch(paths[(i + offset) % PATHS],
+                                EventType.NodeDataChanged);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        System.gc();
+        long start = System.nanoTime();
+        startLatch.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long end = System.nanoTime();
+
+        // fire everything that is left, every registration must fire once
+        // no matter how adds and triggers interleaved
+        for (String path : paths) {
+            manager.triggerWatch(path, EventType.NodeDataChanged);
+        }
+        Assert.assertEquals(0, manager.size());
+
+        long ops = (long) OPS_PER_THREAD * threads.length;
+        long durationms = (end - start) / 1000000L;
+        LOG.info("WatchManager " + addThreads + " adders/" + triggerThreads
+                + " triggers: " + ops + " ops in " + durationms + " ms ("
+                + (ops * 1000L / Math.max(1, durationms)) + " ops/s), cores="
+                + Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testSingleThread() throws InterruptedException {
+        runWatchManager(1, 0);
+    }
+
+    @Test
+    public void testOneAdderOneTrigger() throws InterruptedException {
+        runWatchManager(1, 1);
+    }
+
+    @Test
+    public void testFourAddersOneTrigger() throws InterruptedException {
+        runWatchManager(4, 1);
+    }
+
+    @Test
+    public void testFourAddersFourTriggers() throws InterruptedException {
+        runWatchManager(4, 4);
+    }
+
+    @Test
+    public void testSixteenAddersFourTriggers() throws InterruptedException {
+        runWatchManager(16, 4);
+    }
+}
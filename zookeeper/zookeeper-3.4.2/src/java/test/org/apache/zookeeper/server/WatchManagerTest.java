@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WatchManagerTest extends ZKTestCase {
+
+    private static class CountingWatcher implements Watcher {
+        final AtomicInteger count = new AtomicInteger();
+
+        public void process(WatchedEvent event) {
+            count.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testWatchIsOneShot() {
+        WatchManager manager = new WatchManager();
+        CountingWatcher w1 = new CountingWatcher();
+        CountingWatcher w2 = new CountingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        manager.addWatch("/b", w1);
+        Assert.assertEquals(3, manager.size());
+
+        Set<Watcher> fired = manager.triggerWatch("/a", EventType.NodeDataChanged);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertEquals(1, w1.count.get());
+        Assert.assertEquals(1, w2.count.get());
+        Assert.assertNull(manager.triggerWatch("/a", EventType.NodeDataChanged));
+        Assert.assertEquals(1, manager.size());
+    }
+
+    @Test
+    public void testSuppressAndRemove() {
+        WatchManager manager = new WatchManager();
+        CountingWatcher w1 = new CountingWatcher();
+        CountingWatcher w2 = new CountingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        manager.addWatch("/b", w2);
+
+        Set<Watcher> supress = new HashSet<Watcher>();
+        supress.add(w1);
+        manager.triggerWatch("/a", EventType.NodeDeleted, supress);
+        Assert.assertEquals(0, w1.count.get());
+        Assert.assertEquals(1, w2.count.get());
+
+        manager.removeWatcher(w2);
+        Assert.assertEquals(0, manager.size());
+        Assert.assertNull(manager.triggerWatch("/b", EventType.NodeDeleted));
+    }
+
+    @Test
+    public void testPersistentWatches() {
+        WatchManager manager = new WatchManager();
+        CountingWatcher persistent = new CountingWatcher();
+        CountingWatcher recursive = new CountingWatcher();
+        CountingWatcher oneShot = new CountingWatcher();
+        manager.addPersistentWatch("/a/b", persistent, false);
+        manager.addPersistentWatch("/a", recursive, true);
+        manager.addWatch("/a/b", oneShot);
+        manager.addWatch("/a/b", persistent);
+        Assert.assertEquals(4, manager.size());
+
+        // a watcher with both kinds of watch on a path is notified once
+        Set<Watcher> fired = manager.triggerWatch("/a/b", EventType.NodeDataChanged);
+        Assert.assertEquals(3, fired.size());
+        Assert.assertEquals(1, persistent.count.get());
+        Assert.assertEquals(1, recursive.count.get());
+        Assert.assertEquals(1, oneShot.count.get());
+
+        fired = manager.triggerWatch("/a/b", EventType.NodeDataChanged);
+        Assert.assertEquals(2, fired.size());
+        Assert.assertEquals(2, persistent.count.get());
+        Assert.assertEquals(2, recursive.count.get());
+        Assert.assertEquals(1, oneShot.count.get());
+
+        // the recursive watch covers the whole subtree, but not siblings
+        manager.triggerWatch("/a/b/c/d", EventType.NodeCreated);
+        manager.triggerWatch("/a", EventType.NodeDeleted);
+        Assert.assertNull(manager.triggerWatch("/ab", EventType.NodeCreated));
+        Assert.assertNull(manager.triggerWatch("/", EventType.NodeDataChanged));
+        Assert.assertEquals(4, recursive.count.get());
+        Assert.assertEquals(2, persistent.count.get());
+        Assert.assertEquals(2, manager.size());
+
+        manager.removeWatcher(recursive);
+        Assert.assertEquals(1, manager.size());
+        manager.removeWatcher(persistent);
+        Assert.assertEquals(0, manager.size());
+        Assert.assertNull(manager.triggerWatch("/a/b", EventType.NodeDeleted));
+    }
+
+    @Test
+    public void testParentOf() {
+        Assert.assertEquals("/a/b", WatchManager.parentOf("/a/b/c"));
+        Assert.assertEquals("/", WatchManager.parentOf("/a"));
+        Assert.assertNull(WatchManager.parentOf("/"));
+    }
+
+    /**
+     * Adds and triggers on the same paths from several threads; no
+     * registration may be lost or left behind.
+     */
+    @Test
+    public void testConcurrentAddAndTrigger() throws InterruptedException {
+        final WatchManager manager = new WatchManager();
+        final int paths = 64;
+        final int adds = 20000;
+        final CountingWatcher[] watchers = new CountingWatcher[4];
+        Thread[] threads = new Thread[watchers.length + 2];
+        for (int t = 0; t < watchers.length; t++) {
+            final CountingWatcher watcher = new CountingWatcher();
+            watchers[t] = watcher;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        manager.addWatch("/p" + (i % paths), watcher);
+                    }
+                }
+            };
+        }
+        for (int t = watchers.length; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        manager.triggerWatch("/p" + (i % paths),
+                                EventType.NodeDataChanged);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 0; i < paths; i++) {
+            manager.triggerWatch("/p" + i, EventType.NodeDataChanged);
+        }
+        Assert.assertEquals(0, manager.size());
+        for (CountingWatcher watcher : watchers) {
+            // re-adding an armed watch is a no-op, so each watcher fires at
+            // least once per path and never more than once per add
+            Assert.assertTrue(watcher.count.get() >= paths);
+            Assert.assertTrue(watcher.count.get() <= adds);
+        }
+        Assert.assertTrue(manager.toString().endsWith("Total watches:0"));
+    }
+}
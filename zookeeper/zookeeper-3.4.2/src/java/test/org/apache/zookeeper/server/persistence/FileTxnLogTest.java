@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileTxnLogTest extends ZKTestCase {
+    /**
+     * Commits run on their own thread while another one appends and rolls
+     * the log, nothing may be lost or closed too early.
+     */
+    @Test
+    public void testCommitWhileAppending() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        final FileTxnLog log = new FileTxnLog(logDir);
+        final int count = 20000;
+        final AtomicBoolean appending = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        Thread committer = new Thread("committer") {
+            public void run() {
+                try {
+                    while (appending.get()) {
+                        log.commit();
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        committer.start();
+        try {
+            for (int i = 1; i <= count; i++) {
+                TxnHeader hdr = new TxnHeader(0x1234, i, i, i, OpCode.setData);
+                log.append(hdr, new SetDataTxn("/node" + i, new byte[i % 100],
+                        i));
+                if (i % 3000 == 0) {
+                    log.rollLog();
+                }
+            }
+        } finally {
+            appending.set(false);
+            committer.join();
+        }
+        Assert.assertNull(failure.get());
+        log.commit();
+        Assert.assertEquals(0, log.getUncommittedSize());
+        log.close();
+
+        TxnIterator itr = new FileTxnLog(logDir).read(1);
+        try {
+            for (int i = 1; i <= count; i++) {
+                Assert.assertNotNull("missing zxid " + i, itr.getHeader());
+                Assert.assertEquals(i, itr.getHeader().getZxid());
+                itr.next();
+            }
+            Assert.assertNull(itr.getHeader());
+        } finally {
+            itr.close();
+        }
+    }
+
+    /**
+     * Once the first log is full the next ones are prepared segments, which
+     * are never grown while they are written.
+     */
+    @Test
+    public void testPreallocatedSegments() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        long preAllocSize = FileTxnLog.preAllocSize;
+        FileTxnLog.setPreallocSize(64 * 1024);
+        try {
+            FileTxnLog log = new FileTxnLog(logDir);
+            int zxid = 0;
+            for (int i = 0; i < 4; i++) {
+                File current = log.logFileWrite;
+                while (current == log.logFileWrite) {
+                    zxid++;
+                    TxnHeader hdr = new TxnHeader(0x1234, zxid, zxid, zxid,
+                            OpCode.setData);
+                    log.append(hdr, new SetDataTxn("/node", new byte[200],
+                            zxid));
+                    if (zxid % 10 == 0) {
+                        log.commit();
+                    }
+                    waitForSegment(log);
+                }
+            }
+            log.commit();
+            log.close();
+
+            File logs[] = FileTxnLog.getLogFiles(logDir.listFiles(), 0);
+            Assert.assertEquals(4, logs.length);
+            for (int i = 1; i < logs.length; i++) {
+                Assert.assertEquals(logs[i].getName(), 64 * 1024,
+                        logs[i].length());
+            }
+            TxnIterator itr = new FileTxnLog(logDir).read(1);
+            try {
+                for (int i = 1; i <= zxid; i++) {
+                    Assert.assertEquals(i, itr.getHeader().getZxid());
+                    itr.next();
+                }
+                Assert.assertNull(itr.getHeader());
+            } finally {
+                itr.close();
+            }
+
+            // the segments that were not used are deleted
+            long end = System.currentTimeMillis() + 5000;
+            while (countSegments(logDir) > 0
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, countSegments(logDir));
+        } finally {
+            FileTxnLog.setPreallocSize(preAllocSize);
+        }
+    }
+
+    /**
+     * A log whose rename from a segment wasn't durable is still named like
+     * a segment after a restart, it has to be read as the log it started.
+     */
+    @Test
+    public void testRecoverSegmentWithEntries() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        File logDir = new FileTxnSnapLog(tmpDir, tmpDir).getDataDir();
+        long preAllocSize = FileTxnLog.preAllocSize;
+        FileTxnLog.setPreallocSize(64 * 1024);
+        try {
+            FileTxnLog log = new FileTxnLog(logDir);
+            int zxid = 0;
+            for (int i = 0; i < 2; i++) {
+                File current = log.logFileWrite;
+                while (current == log.logFileWrite) {
+                    zxid++;
+                    TxnHeader hdr = new TxnHeader(0x1234, zxid, zxid, zxid,
+                            OpCode.setData);
+                    log.append(hdr, new SetDataTxn("/node", new byte[200],
+                            zxid));
+                    log.commit();
+                    waitForSegment(log);
+                }
+            }
+            File segmentLog = log.logFileWrite;
+            log.commit();
+            log.close();
+
+            // the last log is a segment that lost its rename, next to an
+            // unused one
+            File lost = new File(logDir, LogPreallocator.PREFIX + "lost");
+            Assert.assertTrue(segmentLog.renameTo(lost));
+            File unused = new File(logDir, LogPreallocator.PREFIX + "unused");
+            copyHeader(lost, unused, 1024);
+
+            new FileTxnSnapLog(tmpDir, tmpDir);
+            Assert.assertTrue(segmentLog.exists());
+            Assert.assertFalse(lost.exists());
+            Assert.assertEquals(-1, LogPreallocator.getFirstZxid(unused));
+            TxnIterator itr = new FileTxnLog(logDir).read(1);
+            try {
+                for (int i = 1; i <= zxid; i++) {
+                    Assert.assertEquals(i, itr.getHeader().getZxid());
+                    itr.next();
+                }
+                Assert.assertNull(itr.getHeader());
+            } finally {
+                itr.close();
+            }
+
+            // nor is it deleted when segments are prepared again
+            Assert.assertTrue(segmentLog.renameTo(lost));
+            LogPreallocator preallocator = new LogPreallocator(logDir,
+                    new FileHeader(FileTxnLog.TXNLOG_MAGIC, FileTxnLog.VERSION,
+                            0), 1, 64 * 1024);
+            preallocator.shutdown();
+            Assert.assertTrue(lost.exists());
+            Assert.assertFalse(unused.exists());
+
+            // a damaged first entry stops the server from starting
+            RandomAccessFile raf = new RandomAccessFile(lost, "rw");
+            try {
+                raf.seek(preallocator.getHeaderLength());
+                long crc = raf.readLong();
+                raf.seek(preallocator.getHeaderLength());
+                raf.writeLong(crc + 1);
+            } finally {
+                raf.close();
+            }
+            try {
+                new FileTxnSnapLog(tmpDir, tmpDir);
+                Assert.fail("damaged segment was ignored");
+            } catch (IOException e) {
+                Assert.assertTrue(lost.exists());
+            }
+        } finally {
+            FileTxnLog.setPreallocSize(preAllocSize);
+        }
+    }
+
+    /**
+     * write the file header of from, followed by zeros, to a new file
+     */
+    private static void copyHeader(File from, File to, int zeros)
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(from, "r");
+        RandomAccessFile out = new RandomAccessFile(to, "rw");
+        try {
+            byte header[] = new byte[16];
+            in.readFully(header);
+            out.write(header);
+            out.write(new byte[zeros]);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static int countSegments(File logDir) {
+        int count = 0;
+        for (String name : logDir.list()) {
+            if (name.startsWith(LogPreallocator.PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void waitForSegment(FileTxnLog log) throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (!log.preallocator.hasReady()) {
+            Assert.assertTrue("no segment was prepared",
+                    System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testUncommittedSize() throws Exception {
+        FileTxnLog log = new FileTxnLog(ClientBase.createTmpDir());
+        Assert.assertEquals(0, log.getUncommittedSize());
+        TxnHeader hdr = new TxnHeader(0x1234, 1, 1, 1, OpCode.setData);
+        log.append(hdr, new SetDataTxn("/node", new byte[100], 1));
+        long size = log.getUncommittedSize();
+        Assert.assertTrue(size > 100);
+        hdr = new TxnHeader(0x1234, 2, 2, 2, OpCode.setData);
+        log.append(hdr, new SetDataTxn("/node", new byte[100], 2));
+        Assert.assertEquals(2 * size, log.getUncommittedSize());
+        log.commit();
+        Assert.assertEquals(0, log.getUncommittedSize());
+        log.close();
+    }
+}
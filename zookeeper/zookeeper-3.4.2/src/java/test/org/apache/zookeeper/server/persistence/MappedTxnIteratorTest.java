@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedTxnIteratorTest extends ZKTestCase {
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = ClientBase.createTmpDir();
+    }
+
+    @After
+    public void tearDown() {
+        MappedTxnIterator.setWindowSize(64 * 1024 * 1024);
+    }
+
+    /**
+     * write count transactions with growing data, rolling the log every
+     * perLog of them
+     */
+    static void writeLog(File logDir, int count, int perLog)
+            throws IOException {
+        FileTxnLog log = new FileTxnLog(logDir);
+        for (int i = 1; i <= count; i++) {
+            TxnHeader hdr = new TxnHeader(0x1234, i, i, i, OpCode.setData);
+            log.append(hdr, new SetDataTxn("/node" + i, new byte[i % 300],
+                    i));
+            if (i % perLog == 0) {
+                log.commit();
+                log.rollLog();
+            }
+        }
+        log.commit();
+        log.close();
+    }
+
+    private static List<String> readAll(TxnIterator itr) throws IOException {
+        List<String> txns = new ArrayList<String>();
+        try {
+            while (itr.getHeader() != null) {
+                txns.add(itr.getHeader() + " " + itr.getTxn());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        } finally {
+            itr.close();
+        }
+        return txns;
+    }
+
+    private void assertSameAsStream(long zxid) throws IOException {
+        List<String> expected =
+            readAll(new FileTxnLog.FileTxnIterator(logDir, zxid));
+        Assert.assertEquals(expected,
+                readAll(new MappedTxnIterator(logDir, zxid)));
+    }
+
+    @Test
+    public void testSameAsStream() throws Exception {
+        writeLog(logDir, 1000, 300);
+        List<String> all = readAll(new MappedTxnIterator(logDir, 1));
+        Assert.assertEquals(1000, all.size());
+        long[] zxids = { 0, 1, 299, 300, 301, 777, 1000, 1001 };
+        for (long zxid : zxids) {
+            assertSameAsStream(zxid);
+        }
+    }
+
+    /**
+     * entries that cross the end of a window are read from the next one
+     */
+    @Test
+    public void testSmallWindows() throws Exception {
+        writeLog(logDir, 500, 200);
+        List<String> expected =
+            readAll(new FileTxnLog.FileTxnIterator(logDir, 0));
+        int[] sizes = { 64, 113, 4096 };
+        for (int size : sizes) {
+            MappedTxnIterator.setWindowSize(size);
+            Assert.assertEquals(expected,
+                    readAll(new MappedTxnIterator(logDir, 0)));
+        }
+    }
+
+    /**
+     * a log cut in the middle of an entry ends before it
+     */
+    @Test
+    public void testPartialEntry() throws Exception {
+        writeLog(logDir, 100, 1000);
+        File log = new File(logDir, "log.1");
+        // drop the preallocated zeros and the end of the last entry
+        long end = 0;
+        TxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0);
+        while (itr.next()) {
+            end = ((FileTxnLog.FileTxnIterator) itr).inputStream.getPosition();
+        }
+        itr.close();
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(end - 10);
+        raf.close();
+
+        List<String> read = readAll(new MappedTxnIterator(logDir, 0));
+        Assert.assertEquals(99, read.size());
+        Assert.assertEquals(readAll(new FileTxnLog.FileTxnIterator(logDir, 0)),
+                read);
+    }
+
+    @Test
+    public void testCorruptEntry() throws Exception {
+        writeLog(logDir, 100, 1000);
+        RandomAccessFile raf = new RandomAccessFile(new File(logDir, "log.1"),
+                "rw");
+        raf.seek(2000);
+        raf.write("corrupt".getBytes());
+        raf.close();
+        try {
+            readAll(new MappedTxnIterator(logDir, 0));
+            Assert.fail("corruption was not detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
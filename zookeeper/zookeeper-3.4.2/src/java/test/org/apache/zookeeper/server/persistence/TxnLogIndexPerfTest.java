@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * compares starting to read a large transaction log near its end with and
+ * without the index of the log
+ */
+public class TxnLogIndexPerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(TxnLogIndexPerfTest.class);
+
+    private static final int TXNS = 200000;
+
+    private static final int ROUNDS = 5;
+
+    private static long seek(File logDir, boolean mapped, long zxid)
+            throws IOException {
+        long start = System.nanoTime();
+        TxnIterator itr = mapped ? new MappedTxnIterator(logDir, zxid)
+            : new FileTxnLog.FileTxnIterator(logDir, zxid);
+        try {
+            if (itr.getHeader() == null || itr.getHeader().getZxid() != zxid) {
+                throw new IOException("didn't find " + zxid);
+            }
+        } finally {
+            itr.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        MappedTxnIteratorTest.writeLog(logDir, TXNS, TXNS);
+        long zxid = TXNS - 100;
+        long interval = TxnLogIndex.interval;
+        try {
+            for (boolean indexed : new boolean[] { false, true }) {
+                TxnLogIndex.interval = indexed ? interval : 0;
+                for (boolean mapped : new boolean[] { false, true }) {
+                    seek(logDir, mapped, zxid);
+                    long best = Long.MAX_VALUE;
+                    for (int i = 0; i < ROUNDS; i++) {
+                        best = Math.min(best, seek(logDir, mapped, zxid));
+                    }
+                    LOG.info((mapped ? "Mapped" : "Stream") + " reader "
+                            + (indexed ? "with" : "without") + " index: found "
+                            + "zxid " + zxid + " of " + TXNS + " in "
+                            + best / 1000 + " us");
+                }
+            }
+        } finally {
+            TxnLogIndex.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TxnLogIndexTest extends ZKTestCase {
+    private static final int COUNT = 5000;
+
+    private File logDir;
+
+    private long interval;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = ClientBase.createTmpDir();
+        interval = TxnLogIndex.interval;
+        TxnLogIndex.interval = 4096;
+    }
+
+    @After
+    public void tearDown() {
+        TxnLogIndex.interval = interval;
+    }
+
+    private static void assertReads(TxnIterator itr, long from, long to)
+            throws IOException {
+        try {
+            for (long zxid = from; zxid <= to; zxid++) {
+                Assert.assertNotNull("missing " + zxid, itr.getHeader());
+                Assert.assertEquals(zxid, itr.getHeader().getZxid());
+                itr.next();
+            }
+            Assert.assertNull(itr.getHeader());
+        } finally {
+            itr.close();
+        }
+    }
+
+    private void assertReadsFrom(long zxid) throws IOException {
+        assertReads(new MappedTxnIterator(logDir, zxid), zxid, COUNT);
+        assertReads(new FileTxnLog.FileTxnIterator(logDir, zxid), zxid, COUNT);
+    }
+
+    private void assertAllReads() throws IOException {
+        for (long zxid = 1; zxid <= COUNT; zxid += 97) {
+            assertReadsFrom(zxid);
+        }
+        assertReadsFrom(COUNT);
+    }
+
+    @Test
+    public void testWrittenWithLog() throws Exception {
+        MappedTxnIteratorTest.writeLog(logDir, COUNT, 2000);
+        File log = new File(logDir, "log.1");
+        TxnLogIndex index = TxnLogIndex.load(log);
+        Assert.assertTrue(index.size() > 10);
+        Assert.assertNull(index.lookup(0));
+        long entry[] = index.lookup(1500);
+        Assert.assertTrue(entry[0] <= 1500 && entry[0] > 1400);
+        Assert.assertTrue(TxnLogIndex.indexFile(
+                new File(logDir, "log.7d1")).exists());
+        assertAllReads();
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        MappedTxnIteratorTest.writeLog(logDir, COUNT, 2000);
+        File log = new File(logDir, "log.1");
+        long written[] = TxnLogIndex.load(log).lookup(1500);
+        Assert.assertTrue(TxnLogIndex.indexFile(log).delete());
+        Assert.assertArrayEquals(written, TxnLogIndex.lookup(log, 1500));
+        Assert.assertTrue(TxnLogIndex.indexFile(log).exists());
+        assertAllReads();
+    }
+
+    @Test
+    public void testDamagedIndex() throws Exception {
+        MappedTxnIteratorTest.writeLog(logDir, COUNT, COUNT);
+        File index = TxnLogIndex.indexFile(new File(logDir, "log.1"));
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        try {
+            // offsets that are off by a few bytes or past the end
+            for (long pos = 8 + 8; pos < raf.length(); pos += 16 * 3) {
+                raf.seek(pos);
+                long offset = raf.readLong();
+                raf.seek(pos);
+                raf.writeLong(pos % 32 == 0 ? offset + 4 : offset << 20);
+            }
+        } finally {
+            raf.close();
+        }
+        assertAllReads();
+
+        // not an index at all
+        raf = new RandomAccessFile(index, "rw");
+        raf.writeInt(0);
+        raf.close();
+        assertAllReads();
+        Assert.assertEquals(TxnLogIndex.INDEX_MAGIC,
+                new RandomAccessFile(index, "r").readInt());
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        MappedTxnIteratorTest.writeLog(logDir, COUNT, 2000);
+        new FileTxnLog(logDir).truncate(3000);
+        File log = new File(logDir, "log.7d1");
+        Assert.assertFalse(TxnLogIndex.indexFile(
+                new File(logDir, "log.fa1")).exists());
+        long entry[] = TxnLogIndex.load(log).lookup(Long.MAX_VALUE);
+        Assert.assertTrue(entry[0] <= 3000);
+        assertReads(new MappedTxnIterator(logDir, 2500), 2500, 3000);
+        assertReads(new FileTxnLog.FileTxnIterator(logDir, 2500), 2500, 3000);
+    }
+}
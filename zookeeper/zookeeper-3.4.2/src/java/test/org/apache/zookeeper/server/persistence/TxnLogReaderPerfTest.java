@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * compares reading the transaction logs through streams and through
+ * memory mappings
+ */
+public class TxnLogReaderPerfTest extends ZKTestCase {
+    protected static final Logger LOG =
+        LoggerFactory.getLogger(TxnLogReaderPerfTest.class);
+
+    private static final int TXNS = 200000;
+
+    private static final int ROUNDS = 5;
+
+    private static long read(File logDir, boolean mapped) throws IOException {
+        long start = System.nanoTime();
+        TxnIterator itr = mapped ? new MappedTxnIterator(logDir, 0)
+            : new FileTxnLog.FileTxnIterator(logDir, 0);
+        int count = 0;
+        while (itr.getHeader() != null) {
+            count++;
+            if (!itr.next()) {
+                break;
+            }
+        }
+        itr.close();
+        if (count != TXNS) {
+            throw new IOException("read " + count + " txns");
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testReaders() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        MappedTxnIteratorTest.writeLog(logDir, TXNS, TXNS / 4);
+        for (boolean mapped : new boolean[] { false, true }) {
+            read(logDir, mapped);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                best = Math.min(best, read(logDir, mapped));
+            }
+            LOG.info((mapped ? "Mapped" : "Stream") + " reader: read " + TXNS
+                    + " txns in " + best / 1000000L + " ms ("
+                    + best / TXNS + "ns/txn)");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitProcessorTest extends ZKTestCase {
+    private static final int TIMEOUT = 10000;
+
+    private CommitProcessor processor;
+
+    /**
+     * Records the requests it gets and checks that the reads of a session
+     * come in order and never while a txn is being applied.
+     */
+    private static class CheckingProcessor implements RequestProcessor {
+        final BlockingQueue<Request> processed =
+            new LinkedBlockingQueue<Request>();
+
+        final AtomicInteger reading = new AtomicInteger();
+
+        final Map<Long, Integer> lastCxids = new HashMap<Long, Integer>();
+
+        volatile long lastZxid;
+
+        volatile String error;
+
+        /** reads wait on this, if set */
+        volatile CountDownLatch readLatch;
+
+        public void processRequest(Request request) {
+            synchronized (lastCxids) {
+                Integer last = lastCxids.get(request.sessionId);
+                if (last != null && request.cxid <= last) {
+                    error = "session " + request.sessionId + " got cxid "
+                        + request.cxid + " after " + last;
+                } else {
+                    lastCxids.put(request.sessionId, request.cxid);
+                }
+            }
+            if (request.hdr != null) {
+                if (reading.get() != 0) {
+                    error = "txn " + request.zxid + " applied during a read";
+                }
+                if (request.zxid != lastZxid + 1) {
+                    error = "txn " + request.zxid + " after " + lastZxid;
+                }
+                lastZxid = request.zxid;
+            } else {
+                reading.incrementAndGet();
+                try {
+                    CountDownLatch latch = readLatch;
+                    if (latch != null) {
+                        latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    }
+                    Thread.yield();
+                } catch (InterruptedException e) {
+                    error = e.toString();
+                } finally {
+                    reading.decrementAndGet();
+                }
+            }
+            processed.add(request);
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private CheckingProcessor next;
+
+    @Before
+    public void setUp() {
+        System.setProperty(CommitProcessor.NUM_WORKER_THREADS, "4");
+        next = new CheckingProcessor();
+        processor = new CommitProcessor(next, "test", true);
+        processor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(CommitProcessor.NUM_WORKER_THREADS);
+        processor.shutdown();
+        processor.join(TIMEOUT);
+    }
+
+    private static Request read(long sessionId, int cxid) {
+        return new Request(null, sessionId, cxid, OpCode.getData, null, null);
+    }
+
+    private static Request write(long sessionId, int cxid) {
+        return new Request(null, sessionId, cxid, OpCode.setData, null, null);
+    }
+
+    /**
+     * the txn of the write as it comes back from the leader
+     */
+    private static Request committed(Request write, long zxid) {
+        Request r = new Request(null, write.sessionId, write.cxid,
+                write.type, null, null);
+        r.hdr = new TxnHeader(write.sessionId, write.cxid, zxid, 0,
+                write.type);
+        r.zxid = zxid;
+        return r;
+    }
+
+    private Request poll() throws InterruptedException {
+        return next.processed.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testReadsOfOtherSessionsPassPendingWrite() throws Exception {
+        Request w1 = write(1, 1);
+        Request r1 = read(1, 2);
+        Request r2 = read(2, 1);
+        processor.processRequest(w1);
+        processor.processRequest(r1);
+        processor.processRequest(r2);
+
+        // session 2 doesn't wait for the write of session 1
+        Assert.assertSame(r2, poll());
+        Assert.assertNull(next.processed.poll(200, TimeUnit.MILLISECONDS));
+
+        // the local request is processed with the txn of the commit
+        processor.commit(committed(w1, 1));
+        Request r = poll();
+        Assert.assertSame(w1, r);
+        Assert.assertEquals(1, r.zxid);
+        Assert.assertNotNull(r.hdr);
+        Assert.assertSame(r1, poll());
+        Assert.assertNull(next.error);
+    }
+
+    @Test
+    public void testCommitWaitsForReads() throws Exception {
+        next.readLatch = new CountDownLatch(1);
+        Request r1 = read(1, 1);
+        Request w2 = write(2, 1);
+        processor.processRequest(r1);
+        processor.processRequest(w2);
+        processor.commit(committed(w2, 1));
+        // the read is still being processed, the txn can't be applied
+        Assert.assertNull(next.processed.poll(200, TimeUnit.MILLISECONDS));
+        next.readLatch.countDown();
+        Assert.assertSame(r1, poll());
+        Assert.assertSame(w2, poll());
+        Assert.assertNull(next.error);
+    }
+
+    @Test
+    public void testCommitOfAnotherServer() throws Exception {
+        Request w1 = write(1, 1);
+        processor.processRequest(w1);
+        // a txn of a session on another server comes first
+        Request other = committed(write(5, 1), 1);
+        processor.commit(other);
+        Assert.assertSame(other, poll());
+        processor.commit(committed(w1, 2));
+        Assert.assertSame(w1, poll());
+        Assert.assertNull(next.error);
+    }
+
+    @Test
+    public void testCommitBeforeWriteIsTaken() throws Exception {
+        // commits and requests of several sessions, the commits of each
+        // write right behind it
+        List<Request> writes = new ArrayList<Request>();
+        synchronized (processor) {
+            for (int i = 1; i <= 100; i++) {
+                Request w = write(i % 7, 2 * i);
+                writes.add(w);
+                processor.processRequest(w);
+                processor.processRequest(read(i % 7, 2 * i + 1));
+                processor.commit(committed(w, i));
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertNotNull(poll());
+        }
+        for (Request w : writes) {
+            Assert.assertNotNull(w.hdr);
+        }
+        Assert.assertNull(next.error);
+    }
+
+    /**
+     * many sessions doing reads and writes while a leader commits the writes
+     */
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        final int sessions = 20;
+        final int requestsPerSession = 500;
+        final BlockingQueue<Request> toCommit =
+            new LinkedBlockingQueue<Request>();
+        Thread leader = new Thread("leader") {
+            public void run() {
+                long zxid = 0;
+                try {
+                    while (true) {
+                        Request w = toCommit.take();
+                        if (w.sessionId == -1) {
+                            return;
+                        }
+                        processor.commit(committed(w, ++zxid));
+                    }
+                } catch (InterruptedException e) {
+                    next.error = e.toString();
+                }
+            }
+        };
+        leader.start();
+
+        Random r = new Random(42);
+        int total = 0;
+        for (int i = 0; i < requestsPerSession; i++) {
+            for (long s = 1; s <= sessions; s++) {
+                Request request;
+                if (r.nextInt(5) == 0) {
+                    request = write(s, i);
+                    synchronized (processor) {
+                        // forwarded to the leader in the order it's queued
+                        processor.processRequest(request);
+                        toCommit.add(request);
+                    }
+                } else {
+                    request = read(s, i);
+                    processor.processRequest(request);
+                }
+                total++;
+            }
+        }
+        toCommit.add(write(-1, 0));
+        for (int i = 0; i < total; i++) {
+            Assert.assertNotNull("only " + i + " of " + total, poll());
+        }
+        leader.join(TIMEOUT);
+        Assert.assertNull(next.error);
+    }
+}
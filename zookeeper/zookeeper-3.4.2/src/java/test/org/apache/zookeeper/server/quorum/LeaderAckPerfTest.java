@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how fast the leader commits proposals with one thread acking
+ * for each voter, as the LearnerHandlers and the leader itself do.
+ * Run with increasing voter counts to see how ack tracking scales.
+ */
+public class LeaderAckPerfTest extends ZKTestCase {
+    protected static final Logger LOG = LoggerFactory.getLogger(LeaderAckPerfTest.class);
+
+    private static final int PROPOSALS_PER_ROUND = 10000;
+
+    private static final int ROUNDS = 20;
+
+    /**
+     * A commit processor that only checks the commits come in order.
+     */
+    private static class CheckingCommitProcessor extends CommitProcessor {
+        long lastZxid;
+
+        int count;
+
+        CheckingCommitProcessor(long lastZxid) {
+            super(null, "perf", false);
+            this.lastZxid = lastZxid;
+        }
+
+        @Override
+        synchronized public void commit(Request request) {
+            Assert.assertEquals(lastZxid + 1, request.zxid);
+            lastZxid = request.zxid;
+            count++;
+        }
+    }
+
+    private static class NullRequestProcessor implements RequestProcessor {
+        public void processRequest(Request request) {
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private static Leader createLeader(File tmpDir, int voters)
+            throws IOException {
+        final InetSocketAddress addr =
+            new InetSocketAddress(PortAssignment.unique());
+        QuorumPeer peer = new QuorumPeer() {
+            @Override
+            public InetSocketAddress getQuorumAddress() {
+                return addr;
+            }
+        };
+        peer.setMyid(1);
+        peer.tickTime = 2000;
+        peer.setQuorumVerifier(new QuorumMaj(voters));
+        FileTxnSnapLog logFactory = new FileTxnSnapLog(tmpDir, tmpDir);
+        peer.setTxnFactory(logFactory);
+        ZKDatabase zkDb = new ZKDatabase(logFactory);
+        LeaderZooKeeperServer zk = new LeaderZooKeeperServer(logFactory, peer,
+                new ZooKeeperServer.BasicDataTreeBuilder(), zkDb);
+        Leader leader = new Leader(peer, zk);
+
+        // what lead() does once a quorum acked NEWLEADER
+        long newLeaderZxid = ZxidUtils.makeZxid(1, 0);
+        leader.newLeaderProposal.packet = new QuorumPacket(Leader.NEWLEADER,
+                newLeaderZxid, null, null);
+        leader.lastProposed = newLeaderZxid;
+        leader.lastCommitted = newLeaderZxid;
+        zk.commitProcessor = new CheckingCommitProcessor(newLeaderZxid);
+        return leader;
+    }
+
+    private static void runAcks(int voters) throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        final Leader leader = createLeader(tmpDir, voters);
+        try {
+            CheckingCommitProcessor commitProcessor =
+                (CheckingCommitProcessor) leader.zk.commitProcessor;
+            long zxid = leader.lastProposed;
+            long total = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                final long first = zxid + 1;
+                for (int i = 0; i < PROPOSALS_PER_ROUND; i++) {
+                    zxid++;
+                    Request request = new Request(null, 1, i, OpCode.setData,
+                            null, null);
+                    request.hdr = new TxnHeader(1, i, zxid, 0, OpCode.setData);
+                    request.zxid = zxid;
+                    leader.propose(request);
+                }
+                final long last = zxid;
+                final CountDownLatch startLatch = new CountDownLatch(1);
+                Thread[] threads = new Thread[voters];
+                for (int v = 0; v < voters; v++) {
+                    final long sid = v + 1;
+                    threads[v] = new Thread("acker-" + sid) {
+                        public void run() {
+                            try {
+                                startLatch.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            for (long z = first; z <= last; z++) {
+                                leader.processAck(sid, z, null);
+                            }
+                        }
+                    };
+                    threads[v].start();
+                }
+                long start = System.nanoTime();
+                startLatch.countDown();
+                for (Thread t : threads) {
+                    t.join();
+                }
+                total += System.nanoTime() - start;
+
+                Assert.assertEquals(last, leader.lastCommitted);
+                Assert.assertTrue(leader.outstandingProposals.isEmpty());
+                // nothing applies them here
+                leader.toBeApplied.clear();
+            }
+            Assert.assertEquals(ROUNDS * PROPOSALS_PER_ROUND,
+                    commitProcessor.count);
+
+            long commits = (long) ROUNDS * PROPOSALS_PER_ROUND;
+            long durationms = total / 1000000L;
+            LOG.info("Leader acks from " + voters + " voters: " + commits
+                    + " commits in " + durationms + " ms ("
+                    + (commits * 1000L / Math.max(1, durationms))
+                    + " commits/s), cores="
+                    + Runtime.getRuntime().availableProcessors());
+        } finally {
+            leader.ss.close();
+        }
+    }
+
+    @Test
+    public void testThreeVoters() throws Exception {
+        runAcks(3);
+    }
+
+    @Test
+    public void testFiveVoters() throws Exception {
+        runAcks(5);
+    }
+
+    @Test
+    public void testSevenVoters() throws Exception {
+        runAcks(7);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Acks that a quorum sent but that cannot be committed must not keep the
+ * LearnerHandler that delivers them busy.
+ */
+public class LeaderTest extends ZKTestCase {
+    private static final long NEW_LEADER_ZXID = ZxidUtils.makeZxid(1, 0);
+
+    private File tmpDir;
+
+    private Leader leader;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+        leader = createLeader(tmpDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        leader.ss.close();
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    private static Leader createLeader(File tmpDir) throws IOException {
+        final InetSocketAddress addr =
+            new InetSocketAddress(PortAssignment.unique());
+        QuorumPeer peer = new QuorumPeer() {
+            @Override
+            public InetSocketAddress getQuorumAddress() {
+                return addr;
+            }
+        };
+        peer.setMyid(1);
+        peer.tickTime = 2000;
+        peer.setQuorumVerifier(new QuorumMaj(3));
+        FileTxnSnapLog logFactory = new FileTxnSnapLog(tmpDir, tmpDir);
+        peer.setTxnFactory(logFactory);
+        ZKDatabase zkDb = new ZKDatabase(logFactory);
+        LeaderZooKeeperServer zk = new LeaderZooKeeperServer(logFactory, peer,
+                new ZooKeeperServer.BasicDataTreeBuilder(), zkDb);
+        Leader leader = new Leader(peer, zk);
+        leader.newLeaderProposal.packet = new QuorumPacket(Leader.NEWLEADER,
+                NEW_LEADER_ZXID, null, null);
+        return leader;
+    }
+
+    /**
+     * Acks zxid from a quorum of servers, failing if that does not return.
+     */
+    private void ackFromQuorum(final long zxid) throws Exception {
+        Thread acker = new Thread("acker") {
+            public void run() {
+                leader.processAck(1, zxid, null);
+                leader.processAck(2, zxid, null);
+            }
+        };
+        acker.setDaemon(true);
+        acker.start();
+        acker.join(ClientBase.CONNECTION_TIMEOUT);
+        Assert.assertFalse("processAck did not return", acker.isAlive());
+    }
+
+    @Test
+    public void testAckBeforeNewLeader() throws Exception {
+        leader.lastProposed = NEW_LEADER_ZXID;
+        leader.lastCommitted = NEW_LEADER_ZXID - 2;
+
+        ackFromQuorum(NEW_LEADER_ZXID - 1);
+        Assert.assertEquals(NEW_LEADER_ZXID - 2, leader.lastCommitted);
+    }
+
+    @Test
+    public void testAckOfMissingProposal() throws Exception {
+        leader.lastProposed = NEW_LEADER_ZXID + 1;
+        leader.lastCommitted = NEW_LEADER_ZXID;
+
+        ackFromQuorum(NEW_LEADER_ZXID + 1);
+        Assert.assertEquals(NEW_LEADER_ZXID, leader.lastCommitted);
+    }
+}
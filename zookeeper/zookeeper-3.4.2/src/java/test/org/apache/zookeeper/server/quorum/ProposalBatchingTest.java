@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooKeeper.States;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Proposals and commits batched on the leader to learner channel.
+ */
+public class ProposalBatchingTest extends QuorumPeerTestBase {
+    private static final int CONNECTION_TIMEOUT = ClientBase.CONNECTION_TIMEOUT;
+
+    private QuorumUtil qu;
+
+    @After
+    public void tearDown() throws Exception {
+        LearnerHandler.batchProposals = false;
+        if (qu != null) {
+            qu.tearDown();
+        }
+    }
+
+    private ZooKeeper connect(String connString) throws Exception {
+        ZooKeeper zk = new ZooKeeper(connString, CONNECTION_TIMEOUT, this);
+        // requests queued while connecting fail if a server is down
+        long end = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+        while (zk.getState() != States.CONNECTED
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(States.CONNECTED, zk.getState());
+        return zk;
+    }
+
+    /**
+     * create count nodes under /batch without waiting for each of them,
+     * so the leader has proposals to batch
+     */
+    private void createAsync(ZooKeeper zk, int start, int count)
+        throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(count);
+        final int rcs[] = new int[1];
+        StringCallback cb = new StringCallback() {
+            public void processResult(int rc, String path, Object ctx,
+                    String name) {
+                if (rc != Code.OK.intValue()) {
+                    synchronized (rcs) {
+                        rcs[0] = rc;
+                    }
+                }
+                latch.countDown();
+            }
+        };
+        for (int i = start; i < start + count; i++) {
+            zk.create("/batch/" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT, cb, null);
+        }
+        Assert.assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        synchronized (rcs) {
+            Assert.assertEquals(Code.OK.intValue(), rcs[0]);
+        }
+    }
+
+    /**
+     * every server has count children of /batch
+     */
+    private void assertConsistent(int count) throws Exception {
+        for (int i = 1; i <= qu.ALL; i++) {
+            ZooKeeper zk = connect("127.0.0.1:" + qu.getPeer(i).clientPort);
+            try {
+                long end = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+                int children;
+                do {
+                    children = zk.getChildren("/batch", false).size();
+                } while (children != count && System.currentTimeMillis() < end
+                        && sleep());
+                Assert.assertEquals("server " + i, count, children);
+            } finally {
+                zk.close();
+            }
+        }
+    }
+
+    private static boolean sleep() throws InterruptedException {
+        Thread.sleep(100);
+        return true;
+    }
+
+    @Test
+    public void testBatchedQuorum() throws Exception {
+        LearnerHandler.batchProposals = true;
+        qu = new QuorumUtil(1);
+        qu.startAll();
+        for (int i = 1; i <= qu.ALL; i++) {
+            Follower follower = qu.getPeer(i).peer.follower;
+            if (follower != null) {
+                Assert.assertTrue(follower.isBatched());
+            }
+        }
+
+        ZooKeeper zk = connect(qu.getConnString());
+        zk.create("/batch", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        createAsync(zk, 0, 1000);
+        // synchronous ones each commit alone
+        for (int i = 1000; i < 1010; i++) {
+            zk.create("/batch/" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+        zk.close();
+        assertConsistent(1010);
+
+        // a follower that missed some and rejoins is batched again
+        int follower = qu.getPeer(1).peer.follower != null ? 1 : 2;
+        qu.shutdown(follower);
+        zk = connect(qu.getConnString());
+        createAsync(zk, 1010, 500);
+        qu.restart(follower);
+        createAsync(zk, 1510, 500);
+        zk.close();
+        Assert.assertTrue(qu.getPeer(follower).peer.follower.isBatched());
+        assertConsistent(2010);
+    }
+
+    @Test
+    public void testNotBatchedByDefault() throws Exception {
+        qu = new QuorumUtil(1);
+        qu.startAll();
+        for (int i = 1; i <= qu.ALL; i++) {
+            Follower follower = qu.getPeer(i).peer.follower;
+            if (follower != null) {
+                Assert.assertFalse(follower.isBatched());
+            }
+        }
+        ZooKeeper zk = connect(qu.getConnString());
+        zk.create("/batch", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        createAsync(zk, 0, 200);
+        zk.close();
+        assertConsistent(200);
+    }
+}
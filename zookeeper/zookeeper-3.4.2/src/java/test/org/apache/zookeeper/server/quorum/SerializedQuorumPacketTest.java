@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Id;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SerializedQuorumPacketTest extends ZKTestCase {
+    private static void assertSerialized(int type, long zxid, byte[] data,
+            List<Id> authinfo) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(expected).writeRecord(
+                new QuorumPacket(type, zxid, data, authinfo), "packet");
+        SerializedQuorumPacket p = new SerializedQuorumPacket(type, zxid,
+                data, authinfo);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        p.write(written);
+        Assert.assertArrayEquals(expected.toByteArray(), written.toByteArray());
+        Assert.assertEquals(type, p.getType());
+        Assert.assertEquals(zxid, p.getZxid());
+        Assert.assertSame(data, p.getData());
+    }
+
+    @Test
+    public void testSameAsWriteRecord() throws Exception {
+        assertSerialized(Leader.COMMIT, 0x100000001L, null, null);
+        assertSerialized(Leader.PROPOSAL, 0x200000123L, new byte[0], null);
+        byte data[] = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertSerialized(Leader.PROPOSAL, -1, data, null);
+        List<Id> authinfo = new ArrayList<Id>();
+        authinfo.add(new Id("digest", "user:pass"));
+        authinfo.add(new Id("ip", "127.0.0.1"));
+        assertSerialized(Leader.INFORM, 42, data, authinfo);
+        assertSerialized(Leader.INFORM, 42, null, new ArrayList<Id>());
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        QuorumPacket p = new SerializedQuorumPacket(Leader.COMMIT, 1, null,
+                null);
+        try {
+            p.setZxid(2);
+            Assert.fail("the packet was changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            p.setData(new byte[1]);
+            Assert.fail("the packet was changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertEquals(1, p.getZxid());
+        Assert.assertNull(p.getData());
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotFileSyncTest extends QuorumPeerTestBase {
+    private static final int CONNECTION_TIMEOUT = ClientBase.CONNECTION_TIMEOUT;
+
+    private QuorumUtil qu;
+
+    @After
+    public void tearDown() throws Exception {
+        LearnerHandler.snapshotSyncFromFile = false;
+        System.clearProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR);
+        if (qu != null) {
+            qu.tearDown();
+        }
+    }
+
+    @Test
+    public void testTransferFile() throws Exception {
+        File file = File.createTempFile("transfer", ".bin",
+                ClientBase.createTmpDir());
+        byte data[] = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+
+        FileInputStream in = new FileInputStream(file);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        LearnerHandler.transferFile(in.getChannel(), Channels.newChannel(copy),
+                4 * 1024 * 1024);
+        long elapsed = System.currentTimeMillis() - start;
+        in.close();
+        Assert.assertArrayEquals(data, copy.toByteArray());
+        // 1MB at 4MB/s
+        Assert.assertTrue("took " + elapsed + "ms", elapsed >= 200);
+    }
+
+    @Test
+    public void testSnapshotFileChecked() throws Exception {
+        File snapDir = ClientBase.createTmpDir();
+        File snapshot = new File(snapDir, "snapshot.1");
+        DataTree dt = new DataTree();
+        dt.createNode("/a", new byte[10], null, -1, 1, 1, 1);
+        new FileSnap(snapDir).serialize(dt, new HashMap<Long, Integer>(),
+                snapshot);
+
+        DataTree loaded = new DataTree();
+        FileInputStream in = new FileInputStream(snapshot);
+        new FileSnap(null).deserialize(loaded, new HashMap<Long, Integer>(),
+                in);
+        Assert.assertEquals(-1, in.read());
+        in.close();
+        Assert.assertNotNull(loaded.getNode("/a"));
+
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0xff);
+        raf.close();
+        in = new FileInputStream(snapshot);
+        try {
+            new FileSnap(null).deserialize(new DataTree(),
+                    new HashMap<Long, Integer>(), in);
+            Assert.fail("a corrupt snapshot was loaded");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File children[] = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private static void create(ZooKeeper zk, int from, int to)
+            throws Exception {
+        for (int i = from; i < to; i++) {
+            zk.create("/sync/" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+    }
+
+    /**
+     * A follower that lost its data is sent the snapshot file of the leader
+     * and the transactions logged since.
+     */
+    @Test
+    public void testSyncFromSnapshotFile() throws Exception {
+        LearnerHandler.snapshotSyncFromFile = true;
+        // the snapshots of the test are tiny, let the logs be far bigger
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "100000");
+        qu = new QuorumUtil(1);
+        qu.startAll();
+        int leader = 1;
+        while (qu.getPeer(leader).peer.leader == null) {
+            leader++;
+        }
+        int follower = leader == 1 ? 2 : 1;
+
+        ZooKeeper zk = new ZooKeeper(qu.getConnString(), CONNECTION_TIMEOUT,
+                this);
+        zk.create("/sync", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        create(zk, 0, 100);
+        qu.getPeer(leader).peer.getActiveServer().takeSnapshot();
+        // more than the committedLog holds, some come from the logs
+        int count = 100 + ZKDatabase.commitLogCount * 2;
+        create(zk, 100, count);
+        zk.close();
+
+        qu.shutdown(follower);
+        delete(new File(qu.getPeer(follower).dataDir, "version-2"));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        WriterAppender appender = new WriterAppender(
+                new PatternLayout("%m%n"), os);
+        appender.setImmediateFlush(true);
+        appender.setThreshold(Level.INFO);
+        Logger zlogger = Logger.getLogger("org.apache.zookeeper");
+        Level level = zlogger.getLevel();
+        zlogger.setLevel(Level.INFO);
+        zlogger.addAppender(appender);
+        try {
+            qu.restart(follower);
+            zk = new ZooKeeper("127.0.0.1:" + qu.getPeer(follower).clientPort,
+                    CONNECTION_TIMEOUT, this);
+            Assert.assertEquals(count, zk.getChildren("/sync", false).size());
+            zk.close();
+        } finally {
+            zlogger.removeAppender(appender);
+            zlogger.setLevel(level);
+        }
+        String log = os.toString();
+        Assert.assertTrue(log.contains("Sending snapshot file"));
+        Assert.assertTrue(log.contains("proposals from the transaction logs"));
+    }
+}
@@ -357,7 +357,7 @@ public class Zab1_0Test {
                     Assert.assertEquals(qp.getZxid(), 0);
                     LearnerInfo learnInfo = new LearnerInfo();
                     ByteBufferInputStream.byteBuffer2Record(ByteBuffer.wrap(qp.getData()), learnInfo);
-                    Assert.assertEquals(learnInfo.getProtocolVersion(), 0x10000);
+                    Assert.assertEquals(learnInfo.getProtocolVersion(), Leader.BATCH_VERSION);
                     Assert.assertEquals(learnInfo.getServerid(), 0);
                 
                     // We are simulating an established leader, so the epoch is 1
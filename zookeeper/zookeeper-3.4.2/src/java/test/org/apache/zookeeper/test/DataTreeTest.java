@@ -59,7 +59,7 @@ public class DataTreeTest extends ZKTestCase {
         // set a watch on the root node
         dt.getChildren("/", new Stat(), watcher);
         // add a new node, should trigger a watch
-        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").stat.getCversion()+1, 1, 1);
+        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").getCversion()+1, 1, 1);
         Assert.assertFalse("Root node watch not triggered",!watcher.fired);
     }
 
@@ -68,13 +68,13 @@ public class DataTreeTest extends ZKTestCase {
      */
     @Test
     public void testIncrementCversion() throws Exception {
-        dt.createNode("/test", new byte[0], null, 0, dt.getNode("/").stat.getCversion()+1, 1, 1);
+        dt.createNode("/test", new byte[0], null, 0, dt.getNode("/").getCversion()+1, 1, 1);
         DataNode zk = dt.getNode("/test");
-        int prevCversion = zk.stat.getCversion();
-        long prevPzxid = zk.stat.getPzxid();
+        int prevCversion = zk.getCversion();
+        long prevPzxid = zk.getPzxid();
         dt.setCversionPzxid("/test/",  prevCversion + 1, prevPzxid + 1);
-        int newCversion = zk.stat.getCversion();
-        long newPzxid = zk.stat.getPzxid();
+        int newCversion = zk.getCversion();
+        long newPzxid = zk.getPzxid();
         Assert.assertTrue("<cversion, pzxid> verification failed. Expected: <" +
                 (prevCversion + 1) + ", " + (prevPzxid + 1) + ">, found: <" +
                 newCversion + ", " + newPzxid + ">",
@@ -93,6 +93,7 @@ public class FourLetterWordsTest extends ClientBase {
         verify("srvr", "Outstanding");
         verify("cons", "queued");
         verify("mntr", "zk_server_state\tstandalone");
+        verify("mntr", "zk_commit_batch_sizes\t");
     }
 
     private String sendRequest(String cmd) throws IOException {
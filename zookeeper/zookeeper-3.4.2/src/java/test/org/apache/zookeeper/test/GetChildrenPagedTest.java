@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GetChildrenPagedTest extends ClientBase {
+    private ZooKeeper zk;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        zk = createClient();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+
+        zk.close();
+    }
+
+    private List<String> createChildren(String parent, int count)
+        throws KeeperException, InterruptedException
+    {
+        zk.create(parent, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String path = zk.create(parent + "/item-", new byte[0],
+                    Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+            names.add(path.substring(parent.length() + 1));
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        List<String> expected = createChildren("/queue", 95);
+
+        List<String> all = new ArrayList<String>();
+        String last = null;
+        List<String> page;
+        Stat stat = new Stat();
+        do {
+            page = zk.getChildrenPage("/queue", last, 10, false, stat);
+            all.addAll(page);
+            if (!page.isEmpty()) {
+                last = page.get(page.size() - 1);
+            }
+            Assert.assertEquals(95, stat.getNumChildren());
+        } while (page.size() == 10);
+        Assert.assertEquals(expected, all);
+
+        Assert.assertEquals(expected.subList(41, 46),
+                zk.getChildrenPage("/queue", expected.get(40), 5, false, null));
+        Assert.assertTrue(zk.getChildrenPage("/queue", "z", 5, false, null)
+                .isEmpty());
+
+        try {
+            zk.getChildrenPage("/missing", null, 5, false, null);
+            Assert.fail("should have thrown NoNode");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+        try {
+            zk.getChildrenPage("/queue", null, 0, false, null);
+            Assert.fail("should have rejected maxChildren 0");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAsyncAndWatch() throws Exception {
+        final List<String> expected = createChildren("/lock", 5);
+
+        final CountDownLatch fired = new CountDownLatch(1);
+        Watcher watcher = new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getType() == Event.EventType.NodeChildrenChanged) {
+                    fired.countDown();
+                }
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> result = new ArrayList<String>();
+        zk.getChildrenPage("/lock", expected.get(1), 2, watcher,
+                new Children2Callback() {
+                    public void processResult(int rc, String path, Object ctx,
+                            List<String> children, Stat stat) {
+                        Assert.assertEquals(0, rc);
+                        Assert.assertEquals("/lock", path);
+                        Assert.assertEquals(5, stat.getNumChildren());
+                        result.addAll(children);
+                        done.countDown();
+                    }
+                }, null);
+        Assert.assertTrue(done.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(expected.subList(2, 4), result);
+
+        zk.delete("/lock/" + expected.get(0), -1);
+        Assert.assertTrue(fired.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}
@@ -162,11 +162,11 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
 
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.create, "/test/" + (count - 1), dt, zk,
-                zk.stat.getCversion() + 1);
+                zk.getCversion() + 1);
         
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.multi, "/test/" + (count - 1), dt, zk,
-                zk.stat.getCversion() + 1);
+                zk.getCversion() + 1);
         
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.multi, "/test/" + (count - 1), dt, zk,
@@ -186,8 +186,8 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
         int lastSlash = path.lastIndexOf('/');
         String parentName = path.substring(0, lastSlash);
 
-        int prevCversion = parent.stat.getCversion();
-        long prevPzxid = parent.stat.getPzxid();
+        int prevCversion = parent.getCversion();
+        long prevPzxid = parent.getPzxid();
         List<String> child = dt.getChildren(parentName, null, null);
         String childStr = "";
         for (String s : child) {
@@ -224,8 +224,8 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
         }
         logFile.processTransaction(txnHeader, dt, null, txn);
 
-        int newCversion = parent.stat.getCversion();
-        long newPzxid = parent.stat.getPzxid();
+        int newCversion = parent.getCversion();
+        long newPzxid = parent.getPzxid();
         child = dt.getChildren(parentName, null, null);
         childStr = "";
         for (String s : child) {
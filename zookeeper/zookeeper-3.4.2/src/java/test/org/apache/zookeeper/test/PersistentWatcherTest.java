@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PersistentWatcherTest extends ClientBase {
+    protected static final Logger LOG = LoggerFactory.getLogger(PersistentWatcherTest.class);
+    final int TIMEOUT = 5000;
+
+    private class MyWatcher extends CountdownWatcher {
+        LinkedBlockingQueue<WatchedEvent> events =
+            new LinkedBlockingQueue<WatchedEvent>();
+
+        public void process(WatchedEvent event) {
+            super.process(event);
+            if (event.getType() != Event.EventType.None) {
+                try {
+                    events.put(event);
+                } catch (InterruptedException e) {
+                    LOG.warn("ignoring interrupt during event.put");
+                }
+            }
+        }
+    }
+
+    private void assertEvent(MyWatcher watcher, EventType type, String path)
+        throws InterruptedException
+    {
+        WatchedEvent e = watcher.events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("no event for " + path, e);
+        Assert.assertEquals(type, e.getType());
+        Assert.assertEquals(path, e.getPath());
+    }
+
+    @Test
+    public void testRecursiveWatch() throws Exception {
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk = createClient(watcher, hostPort);
+        zk.addWatch("/a", AddWatchMode.PERSISTENT_RECURSIVE);
+
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a");
+        zk.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a/b");
+        zk.create("/a/b/c", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a/b/c");
+
+        // the watch fires again and again, without being set again
+        zk.setData("/a/b/c", "1".getBytes(), -1);
+        assertEvent(watcher, EventType.NodeDataChanged, "/a/b/c");
+        zk.setData("/a/b/c", "2".getBytes(), -1);
+        assertEvent(watcher, EventType.NodeDataChanged, "/a/b/c");
+
+        // nodes outside the subtree are not watched
+        zk.create("/ab", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        zk.delete("/a/b/c", -1);
+        assertEvent(watcher, EventType.NodeDeleted, "/a/b/c");
+        zk.delete("/a/b", -1);
+        assertEvent(watcher, EventType.NodeDeleted, "/a/b");
+        Assert.assertNull(watcher.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPersistentWatch() throws Exception {
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk = createClient(watcher, hostPort);
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.addWatch("/a", AddWatchMode.PERSISTENT);
+
+        zk.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeChildrenChanged, "/a");
+        zk.setData("/a/b", "1".getBytes(), -1);
+        zk.setData("/a", "1".getBytes(), -1);
+        assertEvent(watcher, EventType.NodeDataChanged, "/a");
+        zk.delete("/a/b", -1);
+        assertEvent(watcher, EventType.NodeChildrenChanged, "/a");
+        zk.delete("/a", -1);
+        assertEvent(watcher, EventType.NodeDeleted, "/a");
+        Assert.assertNull(watcher.events.poll(100, TimeUnit.MILLISECONDS));
+
+        // a one shot watch on the same path does not double the events
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a");
+        zk.getData("/a", true, null);
+        zk.setData("/a", "2".getBytes(), -1);
+        assertEvent(watcher, EventType.NodeDataChanged, "/a");
+        Assert.assertNull(watcher.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWatchesAreSetAgainOnReconnect() throws Exception {
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk = createClient(watcher, hostPort);
+        zk.addWatch("/a", AddWatchMode.PERSISTENT_RECURSIVE);
+        zk.addWatch("/b", AddWatchMode.PERSISTENT);
+
+        stopServer();
+        watcher.waitForDisconnected(3000);
+        startServer();
+        watcher.waitForConnected(3000);
+
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a");
+        zk.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/a/b");
+        zk.create("/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/b");
+        zk.create("/b/c", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeChildrenChanged, "/b");
+    }
+
+    @Test
+    public void testWatchWithChroot() throws Exception {
+        ZooKeeper zk1 = createClient();
+        zk1.create("/ch1", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk2 = createClient(watcher, hostPort + "/ch1");
+        zk2.addWatch("/", AddWatchMode.PERSISTENT_RECURSIVE);
+
+        zk1.create("/other", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk1.create("/ch1/x", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/x");
+        zk1.create("/ch1/x/y", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertEvent(watcher, EventType.NodeCreated, "/x/y");
+    }
+
+    @Test
+    public void testInvalidPath() throws Exception {
+        ZooKeeper zk = createClient();
+        try {
+            zk.addWatch("a", AddWatchMode.PERSISTENT);
+            Assert.fail("relative path should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
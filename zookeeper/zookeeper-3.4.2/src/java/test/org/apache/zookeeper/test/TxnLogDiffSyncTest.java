@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.test.ClientBase.CountdownWatcher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A follower that missed more than the committedLog holds is synced from
+ * the transaction logs of the leader.
+ */
+public class TxnLogDiffSyncTest extends ZKTestCase {
+    private static final int CONNECTION_TIMEOUT = ClientBase.CONNECTION_TIMEOUT;
+
+    private QuorumUtil qu;
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR);
+        if (qu != null) {
+            qu.tearDown();
+        }
+    }
+
+    /**
+     * restart a follower after it missed count creates
+     * @return what the servers logged while the follower synced
+     */
+    private String resync(int count) throws Exception {
+        qu = new QuorumUtil(1);
+        qu.startAll();
+        int follower = qu.getPeer(1).peer.follower != null ? 1 : 2;
+        CountdownWatcher watcher = new CountdownWatcher();
+        ZooKeeper zk = new ZooKeeper(qu.getConnString(), CONNECTION_TIMEOUT,
+                watcher);
+        watcher.waitForConnected(CONNECTION_TIMEOUT);
+        zk.create("/sync", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        zk.close();
+
+        qu.shutdown(follower);
+        watcher = new CountdownWatcher();
+        zk = new ZooKeeper(qu.getConnString(), CONNECTION_TIMEOUT, watcher);
+        watcher.waitForConnected(CONNECTION_TIMEOUT);
+        for (int i = 0; i < count; i++) {
+            zk.create("/sync/" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+        zk.close();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        WriterAppender appender = new WriterAppender(
+                new PatternLayout("%m%n"), os);
+        appender.setImmediateFlush(true);
+        appender.setThreshold(Level.INFO);
+        Logger zlogger = Logger.getLogger("org.apache.zookeeper");
+        Level level = zlogger.getLevel();
+        zlogger.setLevel(Level.INFO);
+        zlogger.addAppender(appender);
+        try {
+            qu.restart(follower);
+            watcher = new CountdownWatcher();
+            zk = new ZooKeeper("127.0.0.1:" + qu.getPeer(follower).clientPort,
+                    CONNECTION_TIMEOUT, watcher);
+            watcher.waitForConnected(CONNECTION_TIMEOUT);
+            zk.sync("/sync", null, null);
+            Assert.assertEquals(count, zk.getChildren("/sync", false).size());
+            zk.close();
+        } finally {
+            zlogger.removeAppender(appender);
+            zlogger.setLevel(level);
+        }
+        return os.toString();
+    }
+
+    @Test
+    public void testDiffFromTxnLogs() throws Exception {
+        // the snapshots of the test are tiny, let the logs be far bigger
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "100000");
+        String log = resync(ZKDatabase.commitLogCount * 2);
+        Assert.assertTrue(log.contains("Sending diff from the transaction logs"));
+        Assert.assertTrue(log.contains("proposals from the transaction logs"));
+    }
+
+    @Test
+    public void testSnapshotWhenDisabled() throws Exception {
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "-1");
+        String log = resync(ZKDatabase.commitLogCount * 2);
+        Assert.assertFalse(log.contains("from the transaction logs"));
+        Assert.assertTrue(log.contains("Sending snapshot"));
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notifications triggered in bursts are batched by the server, make sure the
+ * client still sees each of them, in order.
+ */
+public class WatchEventCoalescingTest extends ClientBase {
+    protected static final Logger LOG = LoggerFactory.getLogger(WatchEventCoalescingTest.class);
+    final int TIMEOUT = 5000;
+
+    private class MyWatcher extends CountdownWatcher {
+        LinkedBlockingQueue<WatchedEvent> events =
+            new LinkedBlockingQueue<WatchedEvent>();
+
+        public void process(WatchedEvent event) {
+            super.process(event);
+            if (event.getType() != Event.EventType.None) {
+                try {
+                    events.put(event);
+                } catch (InterruptedException e) {
+                    LOG.warn("ignoring interrupt during event.put");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMultiTriggersEveryWatch() throws Exception {
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk = createClient(watcher, hostPort);
+        int count = 200;
+        List<Op> ops = new ArrayList<Op>();
+        for (int i = 0; i < count; i++) {
+            Assert.assertNull(zk.exists("/node" + i, true));
+            ops.add(Op.create("/node" + i, null, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT));
+        }
+        zk.multi(ops);
+        for (int i = 0; i < count; i++) {
+            WatchedEvent e = watcher.events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(e);
+            Assert.assertEquals(EventType.NodeCreated, e.getType());
+            Assert.assertEquals("/node" + i, e.getPath());
+        }
+        Assert.assertNull(watcher.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRepeatedEventsKeepOrder() throws Exception {
+        MyWatcher watcher = new MyWatcher();
+        ZooKeeper zk = createClient(watcher, hostPort);
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.addWatch("/a", AddWatchMode.PERSISTENT);
+
+        int count = 100;
+        final LinkedBlockingQueue<Integer> done =
+            new LinkedBlockingQueue<Integer>();
+        StatCallback cb = new StatCallback() {
+            public void processResult(int rc, String path, Object ctx,
+                    Stat stat) {
+                done.add(rc);
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            zk.setData("/a", new byte[] { (byte) i }, -1, cb, null);
+        }
+        zk.delete("/a", -1);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(Integer.valueOf(0),
+                    done.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        // repeated changes may be collapsed, but never reordered with the
+        // delete that followed them
+        int changes = 0;
+        WatchedEvent e;
+        while (true) {
+            e = watcher.events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(e);
+            if (e.getType() != EventType.NodeDataChanged) {
+                break;
+            }
+            changes++;
+        }
+        Assert.assertEquals(EventType.NodeDeleted, e.getType());
+        Assert.assertTrue(changes >= 1 && changes <= count);
+        Assert.assertNull(watcher.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
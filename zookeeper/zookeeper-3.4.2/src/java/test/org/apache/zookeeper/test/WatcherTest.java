@@ -38,6 +38,7 @@ import org.apache.zookeeper.Watcher.Event;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.Stat;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -68,6 +69,15 @@ public class WatcherTest extends ClientBase {
         }
     }
 
+    /**
+     * The auto reset flag is static, don't let the tests that disable it
+     * affect the ones that run after them.
+     */
+    @After
+    public void resetAutoResetWatch() {
+        ClientCnxn.setDisableAutoResetWatch(false);
+    }
+
     /**
      * Verify that we get all of the events we expect to get. This particular
      * case verifies that we see all of the data events on a particular node.